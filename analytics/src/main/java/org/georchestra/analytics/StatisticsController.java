@@ -189,6 +189,9 @@ public class StatisticsController {
     // List of users to ignore in stats
     private Set<String> excludedUsers;
 
+    // Whether the OGC requests are counted from the hourly and daily rollups
+    private boolean useRollups = true;
+
     private static enum FORMAT {
         JSON, CSV
     }
@@ -228,6 +231,31 @@ public class StatisticsController {
         this.excludedUsers = excludedUsers;
     }
 
+    public void setUseRollups(boolean useRollups) {
+        this.useRollups = useRollups;
+    }
+
+    /**
+     * @param resolution "hour" or "day", the finest period the requests need to be
+     *                   counted by
+     * @return the FROM and WHERE clauses selecting the OGC requests between
+     *         {startDate} and {endDate}, from the rollups if enabled, to be counted
+     *         by {@link #ogcRequestsCount()}
+     */
+    private String ogcRequestsBetweenDates(String resolution) {
+        if (useRollups) {
+            return " FROM ogcstatistics.ogc_services_counts(CAST({startDate} AS timestamp without time zone), "
+                    + "CAST({endDate} AS timestamp without time zone), '" + resolution + "') WHERE true ";
+        }
+        return " FROM ogcstatistics.ogc_services_log "
+                + "WHERE date >= CAST({startDate} AS timestamp without time zone) "
+                + "AND date < CAST({endDate} AS timestamp without time zone) ";
+    }
+
+    private String ogcRequestsCount() {
+        return useRollups ? "SUM(count)" : "SUM(weight)";
+    }
+
     /**
      * Granularity used for the returned date type in combined requests statistics
      */
@@ -338,11 +366,9 @@ public class StatisticsController {
         sqlValues.put("aggregateDateExpression", aggregateDate);
 
         // Generate SQL query
-        String sql = "SELECT COUNT(*) AS count,"
+        String sql = "SELECT " + ogcRequestsCount() + " AS count,"
                 + "            to_char(date, {aggregateDateExpression}) AS aggregate_date "
-                + "     FROM ogcstatistics.ogc_services_log "
-                + "     WHERE date >= CAST({startDate} AS timestamp without time zone) "
-                + "     AND date < CAST({endDate} AS timestamp without time zone) ";
+                + ogcRequestsBetweenDates(g == GRANULARITY.HOUR ? "hour" : "day");
 
         // Handle user and role
         if (input.has("user")) {
@@ -565,8 +591,7 @@ public class StatisticsController {
         String sql;
 
         if (type == REQUEST_TYPE.USAGE) {
-            sql = "SELECT layer, COUNT(*) AS count " + "FROM ogcstatistics.ogc_services_log "
-                    + "WHERE date >= CAST({startDate} AS timestamp without time zone) AND date < CAST({endDate} AS timestamp without time zone) "
+            sql = "SELECT layer, " + ogcRequestsCount() + " AS count " + ogcRequestsBetweenDates("day")
                     + "AND layer != '' ";
         } else if (type == REQUEST_TYPE.EXTRACTION) {
             sql = "SELECT layer_name AS layer, COUNT(*) AS count " + "FROM extractorapp.extractor_layer_log "
@@ -591,7 +616,7 @@ public class StatisticsController {
         }
 
         if (type == REQUEST_TYPE.USAGE) {
-            sql += " GROUP BY layer " + " ORDER BY COUNT(*) DESC ";
+            sql += " GROUP BY layer " + " ORDER BY " + ogcRequestsCount() + " DESC ";
         } else if (type == REQUEST_TYPE.EXTRACTION) {
             sql += " GROUP BY layer_name " + " ORDER BY COUNT(*) DESC";
         } else {
@@ -684,13 +709,12 @@ public class StatisticsController {
         }
 
         // construct SQL query
-        String sql = "SELECT user_name, org, COUNT(*) AS count " + "FROM ogcstatistics.ogc_services_log "
-                + "WHERE date >= CAST({startDate} AS timestamp without time zone) AND date < CAST({endDate} AS timestamp without time zone) ";
+        String sql = "SELECT user_name, org, " + ogcRequestsCount() + " AS count " + ogcRequestsBetweenDates("day");
 
         if (roleFilter != null)
             sql += " AND {role} = ANY (roles) ";
 
-        sql += "GROUP BY user_name, org " + "ORDER BY COUNT(*) DESC";
+        sql += "GROUP BY user_name, org " + "ORDER BY " + ogcRequestsCount() + " DESC";
 
         // Fetch and format results
         final String generatedQuery = queryBuilder.generateQuery(sql, sqlValues);
@@ -29,16 +29,16 @@ import org.json.JSONObject;
 public class OGCStatsModel extends AbstractModel {
 
     private final String selectLayersQ = "SELECT " + "    service" + "    , layer" + "    , request"
-            + "    , COUNT(*) AS count " + "FROM " + "    ogcstatistics.ogc_services_log " + "WHERE "
+            + "    , SUM(weight) AS count " + "FROM " + "    ogcstatistics.ogc_services_log " + "WHERE "
             + "    date >= ?::timestamp " + "AND " + "    date < ?::timestamp " + "GROUP BY " + "    layer"
             + "    , service" + "    , request " + "ORDER BY " + "    @sort@ " + "LIMIT ? OFFSET ?;";
 
-    private final String selectUsersQ = "SELECT " + "    user_name " + "    , COUNT(*) AS count " + "FROM "
+    private final String selectUsersQ = "SELECT " + "    user_name " + "    , SUM(weight) AS count " + "FROM "
             + "    ogcstatistics.ogc_services_log " + "WHERE " + "    date >= ?::timestamp " + "AND "
             + "    date < ?::timestamp " + "GROUP BY " + "    user_name " + "ORDER BY " + "    @sort@ "
             + "LIMIT ? OFFSET ?;";
 
-    private final String selectOrgsQ = "SELECT " + "    org" + "    , COUNT(*) AS count " + "FROM "
+    private final String selectOrgsQ = "SELECT " + "    org" + "    , SUM(weight) AS count " + "FROM "
             + "    ogcstatistics.ogc_services_log " + "WHERE " + "    date >= ?::timestamp " + "AND "
             + "    date < ?::timestamp " + "GROUP BY " + "    org " + "ORDER BY " + "    @sort@ " + "LIMIT ? OFFSET ?;";
 
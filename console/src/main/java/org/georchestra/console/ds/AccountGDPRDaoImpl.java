@@ -87,7 +87,14 @@ public class AccountGDPRDaoImpl implements AccountGDPRDao {
     private static final String DELETE_GEODOCS_RECORDS = "update mapfishapp.geodocs set username = ? where username = ?";
 
     private static final String QUERY_OGCSTATS_RECORDS = "select date, service, layer, id, request, org, roles from ogcstatistics.ogc_services_log where user_name = ?";
-    private static final String DELETE_OGCSTATS_RECORDS = "update ogcstatistics.ogc_services_log set user_name = ? where user_name = ?";
+    private static final String DELETE_OGCSTATS_RECORDS = "update ogcstatistics.ogc_services_fact"
+            + " set user_id = ogcstatistics.dimension_key('ogcstatistics.ogc_services_users', ?)"
+            + " where user_id = (select id from ogcstatistics.ogc_services_users where name = ?)";
+
+    private static final String ANONYMIZE_OGCSTATS_USER = "update ogcstatistics.ogc_services_users set name = ? || id"
+            + " where name = ?";
+
+    private static final String DELETE_OGCSTATS_ROLLUPS_RECORDS = "select ogcstatistics.rename_rollups_user(?, ?)";
 
     @Autowired
     private DataSource ds;
@@ -131,11 +138,27 @@ public class AccountGDPRDaoImpl implements AccountGDPRDao {
     }
 
     private int deleteUserOgcStatsRecords(Connection conn, @NonNull Account account) throws SQLException {
+        // the hourly and daily counts of the user are merged into the ghost user's
+        try (PreparedStatement ps = conn.prepareStatement(DELETE_OGCSTATS_ROLLUPS_RECORDS)) {
+            ps.setString(1, account.getUid());
+            ps.setString(2, DELETED_ACCOUNT_USERNAME);
+            ps.execute();
+        }
+        int count;
         try (PreparedStatement ps = conn.prepareStatement(DELETE_OGCSTATS_RECORDS)) {
             ps.setString(1, DELETED_ACCOUNT_USERNAME);
             ps.setString(2, account.getUid());
-            return ps.executeUpdate();
+            count = ps.executeUpdate();
         }
+        // the logs now reference the ghost user, the user name is not kept. The row
+        // is renamed rather than deleted, since the security-proxy may still hold its
+        // key for a while, and insert logs with it
+        try (PreparedStatement ps = conn.prepareStatement(ANONYMIZE_OGCSTATS_USER)) {
+            ps.setString(1, DELETED_ACCOUNT_USERNAME);
+            ps.setString(2, account.getUid());
+            ps.executeUpdate();
+        }
+        return count;
     }
 
     private int deleteUserGeodocsRecords(Connection conn, @NonNull Account account) throws SQLException {
@@ -0,0 +1,203 @@
+-- Converts ogcstatistics.ogc_services_log, whose monthly tables inherit from
+-- it and are filled by a trigger, to a table partitioned by month with the
+-- native partitioning of PostgreSQL 11, see README.md. Run it with psql after
+-- update-ogc-server-statistics.sql: apart from step 4, which only changes the
+-- catalog, the logs can be inserted and read meanwhile.
+
+-- 1. Index the monthly tables not indexed yet, the current one in general,
+-- without blocking the inserts: the indexes of the partitioned table reuse them
+SELECT format('CREATE INDEX CONCURRENTLY IF NOT EXISTS %I ON ogcstatistics.%I(%I)',
+    c.relname || '_' || col || '_idx', c.relname, col)
+FROM pg_inherits i
+JOIN pg_class c ON c.oid = i.inhrelid
+CROSS JOIN unnest(ARRAY['date', 'user_name', 'id']) AS col
+WHERE i.inhparent = 'ogcstatistics.ogc_services_log'::regclass
+ORDER BY c.relname, col
+\gexec
+
+-- 2. Move the logs stored in the parent table itself, if any, to the monthly
+-- tables through the trigger
+WITH moved AS (
+  DELETE FROM ONLY ogcstatistics.ogc_services_log WHERE date IS NOT NULL RETURNING *
+)
+INSERT INTO ogcstatistics.ogc_services_log SELECT * FROM moved;
+
+-- 3. Add to each monthly table the constraint of its partition, checked without
+-- blocking the inserts, so that attaching it requires no scan
+SELECT format('ALTER TABLE ogcstatistics.%I ADD CONSTRAINT %I CHECK (date IS NOT NULL AND date >= %L AND date < %L) NOT VALID',
+    c.relname, c.relname || '_partition_check', borne_inf, borne_inf + INTERVAL '1 month'),
+  format('ALTER TABLE ogcstatistics.%I VALIDATE CONSTRAINT %I', c.relname, c.relname || '_partition_check')
+FROM pg_inherits i
+JOIN pg_class c ON c.oid = i.inhrelid
+CROSS JOIN LATERAL regexp_match(c.relname, '_y(\d+)m(\d+)$') AS m
+CROSS JOIN LATERAL make_date(m[1]::integer, m[2]::integer, 1)::timestamp AS borne_inf
+WHERE i.inhparent = 'ogcstatistics.ogc_services_log'::regclass
+  AND NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conrelid = c.oid AND conname = c.relname || '_partition_check')
+ORDER BY c.relname
+\gexec
+
+-- 4. Replace the parent table by a partitioned one, the monthly tables becoming
+-- its partitions
+BEGIN;
+
+LOCK TABLE ogcstatistics.ogc_services_log IN ACCESS EXCLUSIVE MODE;
+
+CREATE TABLE ogcstatistics.ogc_services_log_partitioned (
+  LIKE ogcstatistics.ogc_services_log INCLUDING DEFAULTS INCLUDING COMMENTS
+) PARTITION BY RANGE (date);
+
+-- keep the identifiers sequence when the parent table is dropped
+ALTER SEQUENCE ogcstatistics.ogc_services_log_id_seq OWNED BY ogcstatistics.ogc_services_log_partitioned.id;
+
+DO $$
+DECLARE
+  monthly record;
+BEGIN
+  FOR monthly IN
+    SELECT c.relname, make_date(m[1]::integer, m[2]::integer, 1)::timestamp AS borne_inf
+    FROM pg_inherits i
+    JOIN pg_class c ON c.oid = i.inhrelid
+    CROSS JOIN LATERAL regexp_match(c.relname, '_y(\d+)m(\d+)$') AS m
+    WHERE i.inhparent = 'ogcstatistics.ogc_services_log'::regclass
+  LOOP
+    EXECUTE format('ALTER TABLE ogcstatistics.%I NO INHERIT ogcstatistics.ogc_services_log', monthly.relname);
+    EXECUTE format('ALTER TABLE ogcstatistics.ogc_services_log_partitioned ATTACH PARTITION ogcstatistics.%I FOR VALUES FROM (%L) TO (%L)',
+      monthly.relname, monthly.borne_inf, monthly.borne_inf + INTERVAL '1 month');
+    EXECUTE format('ALTER TABLE ogcstatistics.%I DROP CONSTRAINT %I', monthly.relname, monthly.relname || '_partition_check');
+  END LOOP;
+END;
+$$;
+
+-- The logs of the months without partition, should there be any
+CREATE TABLE ogcstatistics.ogc_services_log_default PARTITION OF ogcstatistics.ogc_services_log_partitioned DEFAULT;
+
+-- the logs without date left in the parent table
+INSERT INTO ogcstatistics.ogc_services_log_partitioned SELECT * FROM ONLY ogcstatistics.ogc_services_log;
+
+DROP TABLE ogcstatistics.ogc_services_log;
+ALTER TABLE ogcstatistics.ogc_services_log_partitioned RENAME TO ogc_services_log;
+
+DROP FUNCTION ogcstatistics.insert_stat_trigger_function();
+DROP FUNCTION ogcstatistics.get_partition_table(timestamp without time zone);
+
+COMMIT;
+
+-- 5. Index the partitioned table, attaching the indexes created at step 1
+CREATE INDEX ogc_services_log_date_idx ON ogcstatistics.ogc_services_log(date);
+CREATE INDEX ogc_services_log_user_name_idx ON ogcstatistics.ogc_services_log(user_name);
+-- read to refresh the rollups
+CREATE INDEX ogc_services_log_id_idx ON ogcstatistics.ogc_services_log(id);
+
+-- 6. Create the functions maintaining the partitions, and the next partitions
+BEGIN;
+
+-- Return name of the partition of ogc_services_log that correspond to the month
+-- of the specified date, also create it if it does not exist, moving to it the
+-- logs of the month found in the default partition
+CREATE OR REPLACE FUNCTION ogcstatistics.create_partition(my_date timestamp without time zone)
+  RETURNS character varying AS
+$BODY$
+DECLARE
+    my_table_name character varying;
+    borne_sup timestamp without time zone;
+    borne_inf timestamp without time zone;
+    base_table_name character varying = 'ogc_services_log';
+    base_schema_name character varying = 'ogcstatistics';
+BEGIN
+
+  my_table_name := base_table_name || '_y' || EXTRACT(YEAR FROM my_date) || 'm' || EXTRACT(MONTH FROM my_date);
+
+  IF to_regclass(base_schema_name || '.' || my_table_name) IS NULL THEN
+
+    -- no log is inserted in the default partition until the new one is attached,
+    -- and the concurrent calls wait for each other
+    EXECUTE format('LOCK TABLE %I.%I IN SHARE ROW EXCLUSIVE MODE', base_schema_name, base_table_name);
+    IF to_regclass(base_schema_name || '.' || my_table_name) IS NOT NULL THEN
+      RETURN base_schema_name || '.' || my_table_name;
+    END IF;
+
+    borne_inf := date_trunc('month', my_date);
+    borne_sup := borne_inf + INTERVAL '1 month';
+
+    -- the constraint spares the scan of the table when attaching it
+    EXECUTE format('CREATE TABLE %I.%I (LIKE %I.%I, CONSTRAINT %I CHECK (date IS NOT NULL AND date >= %L AND date < %L))',
+      base_schema_name, my_table_name, base_schema_name, base_table_name, my_table_name || '_partition_check',
+      borne_inf, borne_sup);
+    EXECUTE format('WITH moved AS (DELETE FROM %I.%I WHERE date >= %L AND date < %L RETURNING *) INSERT INTO %I.%I SELECT * FROM moved',
+      base_schema_name, base_table_name || '_default', borne_inf, borne_sup, base_schema_name, my_table_name);
+    EXECUTE format('ALTER TABLE %I.%I ATTACH PARTITION %I.%I FOR VALUES FROM (%L) TO (%L)',
+      base_schema_name, base_table_name, base_schema_name, my_table_name, borne_inf, borne_sup);
+    EXECUTE format('ALTER TABLE %I.%I DROP CONSTRAINT %I',
+      base_schema_name, my_table_name, my_table_name || '_partition_check');
+
+  END IF;
+
+  RETURN base_schema_name || '.' || my_table_name;
+
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+COMMENT ON FUNCTION ogcstatistics.create_partition(timestamp without time zone) IS 'Return name of the partition that correspond to the month of the specified date, also create it if it does not exist';
+
+-- Creates the partitions of ogc_services_log from the current month to
+-- months_ahead months later, called regularly by the security-proxy so that
+-- the logs are not inserted in the default partition
+CREATE OR REPLACE FUNCTION ogcstatistics.create_partitions(months_ahead integer DEFAULT 3)
+  RETURNS void AS
+$BODY$
+BEGIN
+  FOR i IN 0..months_ahead LOOP
+    PERFORM ogcstatistics.create_partition(date_trunc('month', now()::timestamp) + i * INTERVAL '1 month');
+  END LOOP;
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+-- Partitions of ogc_services_log of the months before the last
+-- retention_months whole months, whose logs have all been rolled up, so that
+-- dropping them keeps the number of requests read from the rollups
+CREATE OR REPLACE FUNCTION ogcstatistics.expired_partitions(retention_months integer)
+  RETURNS SETOF character varying AS
+$BODY$
+DECLARE
+  my_table_name character varying;
+  rolled_up boolean;
+BEGIN
+  FOR my_table_name IN
+    SELECT format('%I.%I', n.nspname, c.relname)
+    FROM pg_inherits i
+    JOIN pg_class c ON c.oid = i.inhrelid
+    JOIN pg_namespace n ON n.oid = c.relnamespace
+    -- the upper bound of the default partition is null
+    CROSS JOIN LATERAL substring(pg_get_expr(c.relpartbound, c.oid) FROM 'TO \(''([^'']*)''\)') AS borne_sup
+    WHERE i.inhparent = 'ogcstatistics.ogc_services_log'::regclass
+      AND borne_sup::timestamp <= date_trunc('month', now()::timestamp) - retention_months * INTERVAL '1 month'
+    ORDER BY borne_sup::timestamp
+  LOOP
+    EXECUTE format('SELECT NOT EXISTS (SELECT 1 FROM %s WHERE id > (SELECT last_id FROM ogcstatistics.ogc_services_rollup_state))',
+      my_table_name) INTO rolled_up;
+    IF rolled_up THEN
+      RETURN NEXT my_table_name;
+    END IF;
+  END LOOP;
+END;
+$BODY$
+  LANGUAGE plpgsql STABLE;
+
+-- Detaches the partition from ogc_services_log and drops it
+CREATE OR REPLACE FUNCTION ogcstatistics.drop_partition(partition regclass)
+  RETURNS void AS
+$BODY$
+BEGIN
+  EXECUTE format('ALTER TABLE ogcstatistics.ogc_services_log DETACH PARTITION %s', partition);
+  EXECUTE format('DROP TABLE %s', partition);
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+COMMENT ON FUNCTION ogcstatistics.drop_partition(regclass) IS 'Detach the partition from ogc_services_log and drop it';
+
+SELECT ogcstatistics.create_partitions();
+
+COMMIT;
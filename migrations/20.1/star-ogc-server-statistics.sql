@@ -0,0 +1,492 @@
+-- Converts ogcstatistics.ogc_services_log to a fact table referencing the
+-- dimension tables of its users, orgs, layers, services, requests and roles by
+-- integer keys, see README.md. ogc_services_log becomes a view of the fact
+-- table with the values of the dimensions. Run it with psql after
+-- partition-ogc-server-statistics.sql: apart from step 5, the logs can be
+-- inserted and read meanwhile. The former table is kept as
+-- ogc_services_log_legacy, drop it once the conversion has been checked.
+
+-- 1. Create the dimension tables, filled with the values found in the logs
+BEGIN;
+
+CREATE TABLE ogcstatistics.ogc_services_users(
+  id serial PRIMARY KEY,
+  name character varying(255) NOT NULL UNIQUE
+);
+
+CREATE TABLE ogcstatistics.ogc_services_orgs(
+  id serial PRIMARY KEY,
+  name character varying(255) NOT NULL UNIQUE
+);
+
+CREATE TABLE ogcstatistics.ogc_services_layers(
+  id serial PRIMARY KEY,
+  name character varying(255) NOT NULL UNIQUE
+);
+
+CREATE TABLE ogcstatistics.ogc_services_services(
+  id serial PRIMARY KEY,
+  name character varying(5) NOT NULL UNIQUE
+);
+
+CREATE TABLE ogcstatistics.ogc_services_requests(
+  id serial PRIMARY KEY,
+  name character varying(20) NOT NULL UNIQUE
+);
+
+CREATE TABLE ogcstatistics.ogc_services_roles(
+  id serial PRIMARY KEY,
+  roles text[] NOT NULL UNIQUE
+);
+
+INSERT INTO ogcstatistics.ogc_services_users(name)
+SELECT DISTINCT user_name FROM ogcstatistics.ogc_services_log WHERE user_name IS NOT NULL ON CONFLICT DO NOTHING;
+INSERT INTO ogcstatistics.ogc_services_orgs(name)
+SELECT DISTINCT org FROM ogcstatistics.ogc_services_log WHERE org IS NOT NULL ON CONFLICT DO NOTHING;
+INSERT INTO ogcstatistics.ogc_services_layers(name)
+SELECT DISTINCT layer FROM ogcstatistics.ogc_services_log WHERE layer IS NOT NULL ON CONFLICT DO NOTHING;
+INSERT INTO ogcstatistics.ogc_services_services(name)
+SELECT DISTINCT service FROM ogcstatistics.ogc_services_log WHERE service IS NOT NULL ON CONFLICT DO NOTHING;
+INSERT INTO ogcstatistics.ogc_services_requests(name)
+SELECT DISTINCT request FROM ogcstatistics.ogc_services_log WHERE request IS NOT NULL ON CONFLICT DO NOTHING;
+INSERT INTO ogcstatistics.ogc_services_roles(roles)
+SELECT DISTINCT roles FROM ogcstatistics.ogc_services_log WHERE roles IS NOT NULL ON CONFLICT DO NOTHING;
+
+COMMIT;
+
+-- 2. Create the fact table, with the partitions of the months of the logs
+BEGIN;
+
+CREATE TABLE ogcstatistics.ogc_services_fact(
+  date timestamp without time zone,
+  id bigint NOT NULL DEFAULT nextval('ogcstatistics.ogc_services_log_id_seq'),
+  bytes_sent bigint,
+  service_id integer,
+  layer_id integer,
+  request_id integer,
+  user_id integer,
+  org_id integer,
+  roles_id integer,
+  ttfb_ms integer,
+  duration_ms integer,
+  http_status smallint,
+  weight integer NOT NULL DEFAULT 1
+) PARTITION BY RANGE (date);
+
+COMMENT ON COLUMN ogcstatistics.ogc_services_fact.ttfb_ms IS 'Milliseconds between sending the request to the backend and receiving its response head, null if no response was received';
+COMMENT ON COLUMN ogcstatistics.ogc_services_fact.duration_ms IS 'Milliseconds between receiving the request and sending the whole response';
+COMMENT ON COLUMN ogcstatistics.ogc_services_fact.bytes_sent IS 'Bytes of the response body sent to the client, shared among the layers of the request';
+COMMENT ON COLUMN ogcstatistics.ogc_services_fact.http_status IS 'Status of the response sent to the client';
+COMMENT ON COLUMN ogcstatistics.ogc_services_fact.weight IS 'Number of requests the log stands for, sampled or aggregated by the security-proxy, their measures being averaged';
+
+CREATE TABLE ogcstatistics.ogc_services_fact_default PARTITION OF ogcstatistics.ogc_services_fact DEFAULT;
+
+DO $$
+DECLARE
+  monthly record;
+BEGIN
+  FOR monthly IN
+    SELECT c.relname, substring(pg_get_expr(c.relpartbound, c.oid) FROM 'FROM \(''([^'']*)''\)')::timestamp AS borne_inf
+    FROM pg_inherits i
+    JOIN pg_class c ON c.oid = i.inhrelid
+    WHERE i.inhparent = 'ogcstatistics.ogc_services_log'::regclass
+      AND c.relname <> 'ogc_services_log_default'
+  LOOP
+    EXECUTE format('CREATE TABLE ogcstatistics.%I PARTITION OF ogcstatistics.ogc_services_fact FOR VALUES FROM (%L) TO (%L)',
+      replace(monthly.relname, 'ogc_services_log', 'ogc_services_fact'), monthly.borne_inf,
+      monthly.borne_inf + INTERVAL '1 month');
+  END LOOP;
+END;
+$$;
+
+COMMIT;
+
+-- 3. Copy the logs inserted so far, without blocking the inserts. The bound
+-- waits for the transactions inserting logs to end, so that all the logs up to
+-- it are copied.
+SELECT ogcstatistics.rollup_bound() AS bound
+\gset
+
+INSERT INTO ogcstatistics.ogc_services_fact(date, id, bytes_sent, service_id, layer_id, request_id, user_id,
+  org_id, roles_id, ttfb_ms, duration_ms, http_status)
+SELECT log.date, log.id, log.bytes_sent, s.id, l.id, r.id, u.id, o.id, ro.id, log.ttfb_ms, log.duration_ms,
+  log.http_status
+FROM ogcstatistics.ogc_services_log log
+LEFT JOIN ogcstatistics.ogc_services_users u ON u.name = log.user_name
+LEFT JOIN ogcstatistics.ogc_services_services s ON s.name = log.service
+LEFT JOIN ogcstatistics.ogc_services_layers l ON l.name = log.layer
+LEFT JOIN ogcstatistics.ogc_services_requests r ON r.name = log.request
+LEFT JOIN ogcstatistics.ogc_services_orgs o ON o.name = log.org
+LEFT JOIN ogcstatistics.ogc_services_roles ro ON ro.roles = log.roles
+WHERE log.id <= :bound;
+
+-- 4. Index the fact table, not used yet
+CREATE INDEX ogc_services_fact_date_idx ON ogcstatistics.ogc_services_fact(date);
+CREATE INDEX ogc_services_fact_user_id_idx ON ogcstatistics.ogc_services_fact(user_id);
+-- read to refresh the rollups
+CREATE INDEX ogc_services_fact_id_idx ON ogcstatistics.ogc_services_fact(id);
+
+ANALYZE ogcstatistics.ogc_services_fact;
+
+-- 5. Copy the logs inserted meanwhile and replace the table by the view
+BEGIN;
+
+LOCK TABLE ogcstatistics.ogc_services_log IN ACCESS EXCLUSIVE MODE;
+
+INSERT INTO ogcstatistics.ogc_services_users(name)
+SELECT DISTINCT user_name FROM ogcstatistics.ogc_services_log WHERE user_name IS NOT NULL AND id > :bound ON CONFLICT DO NOTHING;
+INSERT INTO ogcstatistics.ogc_services_orgs(name)
+SELECT DISTINCT org FROM ogcstatistics.ogc_services_log WHERE org IS NOT NULL AND id > :bound ON CONFLICT DO NOTHING;
+INSERT INTO ogcstatistics.ogc_services_layers(name)
+SELECT DISTINCT layer FROM ogcstatistics.ogc_services_log WHERE layer IS NOT NULL AND id > :bound ON CONFLICT DO NOTHING;
+INSERT INTO ogcstatistics.ogc_services_services(name)
+SELECT DISTINCT service FROM ogcstatistics.ogc_services_log WHERE service IS NOT NULL AND id > :bound ON CONFLICT DO NOTHING;
+INSERT INTO ogcstatistics.ogc_services_requests(name)
+SELECT DISTINCT request FROM ogcstatistics.ogc_services_log WHERE request IS NOT NULL AND id > :bound ON CONFLICT DO NOTHING;
+INSERT INTO ogcstatistics.ogc_services_roles(roles)
+SELECT DISTINCT roles FROM ogcstatistics.ogc_services_log WHERE roles IS NOT NULL AND id > :bound ON CONFLICT DO NOTHING;
+
+INSERT INTO ogcstatistics.ogc_services_fact(date, id, bytes_sent, service_id, layer_id, request_id, user_id,
+  org_id, roles_id, ttfb_ms, duration_ms, http_status)
+SELECT log.date, log.id, log.bytes_sent, s.id, l.id, r.id, u.id, o.id, ro.id, log.ttfb_ms, log.duration_ms,
+  log.http_status
+FROM ogcstatistics.ogc_services_log log
+LEFT JOIN ogcstatistics.ogc_services_users u ON u.name = log.user_name
+LEFT JOIN ogcstatistics.ogc_services_services s ON s.name = log.service
+LEFT JOIN ogcstatistics.ogc_services_layers l ON l.name = log.layer
+LEFT JOIN ogcstatistics.ogc_services_requests r ON r.name = log.request
+LEFT JOIN ogcstatistics.ogc_services_orgs o ON o.name = log.org
+LEFT JOIN ogcstatistics.ogc_services_roles ro ON ro.roles = log.roles
+WHERE log.id > :bound;
+
+ALTER TABLE ogcstatistics.ogc_services_log RENAME TO ogc_services_log_legacy;
+
+-- keep the identifiers sequence when the former table is dropped
+ALTER TABLE ogcstatistics.ogc_services_log_legacy ALTER COLUMN id DROP DEFAULT;
+ALTER SEQUENCE ogcstatistics.ogc_services_log_id_seq OWNED BY ogcstatistics.ogc_services_fact.id;
+
+-- The logs with the values of their dimensions, as stored before the
+-- dimension tables. The dimensions not selected are not joined. The logs can
+-- also be inserted, updated and deleted through it, one by one, see
+-- ogc_services_log_trigger_function.
+CREATE VIEW ogcstatistics.ogc_services_log AS
+SELECT u.name AS user_name, f.date, s.name AS service, l.name AS layer, f.id, r.name AS request,
+  o.name AS org, ro.roles, f.ttfb_ms, f.duration_ms, f.bytes_sent, f.http_status,
+  f.weight
+FROM ogcstatistics.ogc_services_fact f
+LEFT JOIN ogcstatistics.ogc_services_users u ON u.id = f.user_id
+LEFT JOIN ogcstatistics.ogc_services_services s ON s.id = f.service_id
+LEFT JOIN ogcstatistics.ogc_services_layers l ON l.id = f.layer_id
+LEFT JOIN ogcstatistics.ogc_services_requests r ON r.id = f.request_id
+LEFT JOIN ogcstatistics.ogc_services_orgs o ON o.id = f.org_id
+LEFT JOIN ogcstatistics.ogc_services_roles ro ON ro.id = f.roles_id;
+
+ALTER VIEW ogcstatistics.ogc_services_log ALTER COLUMN id SET DEFAULT nextval('ogcstatistics.ogc_services_log_id_seq');
+
+-- Key of the value of a dimension table, the value being added to the table
+-- if missing, null for a null value
+CREATE OR REPLACE FUNCTION ogcstatistics.dimension_key(dimension regclass, value character varying)
+  RETURNS integer AS
+$BODY$
+DECLARE
+  key integer;
+BEGIN
+
+  IF value IS NULL THEN
+    RETURN NULL;
+  END IF;
+  EXECUTE format('SELECT id FROM %s WHERE name = $1', dimension) INTO key USING value;
+  IF key IS NULL THEN
+    -- the update returns the key of a value added meanwhile
+    EXECUTE format('INSERT INTO %s(name) VALUES ($1) ON CONFLICT (name) DO UPDATE SET name = EXCLUDED.name RETURNING id',
+      dimension) INTO key USING value;
+  END IF;
+  RETURN key;
+
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+COMMENT ON FUNCTION ogcstatistics.dimension_key(regclass, character varying) IS 'Key of the value of a dimension table, added to the table if missing';
+
+-- Key of a set of roles, added to ogc_services_roles if missing
+CREATE OR REPLACE FUNCTION ogcstatistics.roles_key(value text[])
+  RETURNS integer AS
+$BODY$
+DECLARE
+  key integer;
+BEGIN
+
+  IF value IS NULL THEN
+    RETURN NULL;
+  END IF;
+  SELECT id INTO key FROM ogcstatistics.ogc_services_roles WHERE roles = value;
+  IF key IS NULL THEN
+    INSERT INTO ogcstatistics.ogc_services_roles AS r(roles) VALUES (value)
+    ON CONFLICT (roles) DO UPDATE SET roles = EXCLUDED.roles
+    RETURNING r.id INTO key;
+  END IF;
+  RETURN key;
+
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+-- Inserts, updates and deletes the logs of ogc_services_fact through the
+-- ogc_services_log view, resolving the keys of their dimensions
+CREATE OR REPLACE FUNCTION ogcstatistics.ogc_services_log_trigger_function()
+RETURNS TRIGGER AS $$
+BEGIN
+
+  IF TG_OP = 'DELETE' THEN
+    DELETE FROM ogcstatistics.ogc_services_fact WHERE id = OLD.id;
+    RETURN OLD;
+  ELSIF TG_OP = 'INSERT' THEN
+    INSERT INTO ogcstatistics.ogc_services_fact(date, id, bytes_sent, service_id, layer_id, request_id, user_id,
+      org_id, roles_id, ttfb_ms, duration_ms, http_status, weight)
+    VALUES (NEW.date, coalesce(NEW.id, nextval('ogcstatistics.ogc_services_log_id_seq')), NEW.bytes_sent,
+      ogcstatistics.dimension_key('ogcstatistics.ogc_services_services', NEW.service),
+      ogcstatistics.dimension_key('ogcstatistics.ogc_services_layers', NEW.layer),
+      ogcstatistics.dimension_key('ogcstatistics.ogc_services_requests', NEW.request),
+      ogcstatistics.dimension_key('ogcstatistics.ogc_services_users', NEW.user_name),
+      ogcstatistics.dimension_key('ogcstatistics.ogc_services_orgs', NEW.org),
+      ogcstatistics.roles_key(NEW.roles), NEW.ttfb_ms, NEW.duration_ms, NEW.http_status, coalesce(NEW.weight, 1));
+  ELSE
+    UPDATE ogcstatistics.ogc_services_fact SET date = NEW.date, id = NEW.id, bytes_sent = NEW.bytes_sent,
+      service_id = ogcstatistics.dimension_key('ogcstatistics.ogc_services_services', NEW.service),
+      layer_id = ogcstatistics.dimension_key('ogcstatistics.ogc_services_layers', NEW.layer),
+      request_id = ogcstatistics.dimension_key('ogcstatistics.ogc_services_requests', NEW.request),
+      user_id = ogcstatistics.dimension_key('ogcstatistics.ogc_services_users', NEW.user_name),
+      org_id = ogcstatistics.dimension_key('ogcstatistics.ogc_services_orgs', NEW.org),
+      roles_id = ogcstatistics.roles_key(NEW.roles), ttfb_ms = NEW.ttfb_ms, duration_ms = NEW.duration_ms,
+      http_status = NEW.http_status, weight = coalesce(NEW.weight, 1)
+    WHERE id = OLD.id;
+  END IF;
+  RETURN NEW;
+
+END;
+$$
+LANGUAGE plpgsql;
+
+CREATE TRIGGER ogc_services_log_trigger
+    INSTEAD OF INSERT OR UPDATE OR DELETE ON ogcstatistics.ogc_services_log
+    FOR EACH ROW EXECUTE PROCEDURE ogcstatistics.ogc_services_log_trigger_function();
+
+-- Return name of the partition of ogc_services_fact that correspond to the month
+-- of the specified date, also create it if it does not exist, moving to it the
+-- logs of the month found in the default partition
+CREATE OR REPLACE FUNCTION ogcstatistics.create_partition(my_date timestamp without time zone)
+  RETURNS character varying AS
+$BODY$
+DECLARE
+    my_table_name character varying;
+    borne_sup timestamp without time zone;
+    borne_inf timestamp without time zone;
+    base_table_name character varying = 'ogc_services_fact';
+    base_schema_name character varying = 'ogcstatistics';
+BEGIN
+
+  my_table_name := base_table_name || '_y' || EXTRACT(YEAR FROM my_date) || 'm' || EXTRACT(MONTH FROM my_date);
+
+  IF to_regclass(base_schema_name || '.' || my_table_name) IS NULL THEN
+
+    -- no log is inserted in the default partition until the new one is attached,
+    -- and the concurrent calls wait for each other
+    EXECUTE format('LOCK TABLE %I.%I IN SHARE ROW EXCLUSIVE MODE', base_schema_name, base_table_name);
+    IF to_regclass(base_schema_name || '.' || my_table_name) IS NOT NULL THEN
+      RETURN base_schema_name || '.' || my_table_name;
+    END IF;
+
+    borne_inf := date_trunc('month', my_date);
+    borne_sup := borne_inf + INTERVAL '1 month';
+
+    -- the constraint spares the scan of the table when attaching it
+    EXECUTE format('CREATE TABLE %I.%I (LIKE %I.%I, CONSTRAINT %I CHECK (date IS NOT NULL AND date >= %L AND date < %L))',
+      base_schema_name, my_table_name, base_schema_name, base_table_name, my_table_name || '_partition_check',
+      borne_inf, borne_sup);
+    EXECUTE format('WITH moved AS (DELETE FROM %I.%I WHERE date >= %L AND date < %L RETURNING *) INSERT INTO %I.%I SELECT * FROM moved',
+      base_schema_name, base_table_name || '_default', borne_inf, borne_sup, base_schema_name, my_table_name);
+    EXECUTE format('ALTER TABLE %I.%I ATTACH PARTITION %I.%I FOR VALUES FROM (%L) TO (%L)',
+      base_schema_name, base_table_name, base_schema_name, my_table_name, borne_inf, borne_sup);
+    EXECUTE format('ALTER TABLE %I.%I DROP CONSTRAINT %I',
+      base_schema_name, my_table_name, my_table_name || '_partition_check');
+
+  END IF;
+
+  RETURN base_schema_name || '.' || my_table_name;
+
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+COMMENT ON FUNCTION ogcstatistics.create_partition(timestamp without time zone) IS 'Return name of the partition that correspond to the month of the specified date, also create it if it does not exist';
+
+-- Creates the partitions of ogc_services_fact from the current month to
+-- months_ahead months later, called regularly by the security-proxy so that
+-- the logs are not inserted in the default partition
+CREATE OR REPLACE FUNCTION ogcstatistics.create_partitions(months_ahead integer DEFAULT 3)
+  RETURNS void AS
+$BODY$
+BEGIN
+  FOR i IN 0..months_ahead LOOP
+    PERFORM ogcstatistics.create_partition(date_trunc('month', now()::timestamp) + i * INTERVAL '1 month');
+  END LOOP;
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+-- Partitions of ogc_services_fact of the months before the last
+-- retention_months whole months, whose logs have all been rolled up, so that
+-- dropping them keeps the number of requests read from the rollups, with the
+-- range of dates of their logs
+DROP FUNCTION ogcstatistics.expired_partitions(integer);
+CREATE FUNCTION ogcstatistics.expired_partitions(retention_months integer)
+  RETURNS TABLE(partition character varying, from_date timestamp without time zone,
+    to_date timestamp without time zone) AS
+$BODY$
+DECLARE
+  rolled_up boolean;
+BEGIN
+  FOR partition, from_date, to_date IN
+    SELECT format('%I.%I', n.nspname, c.relname), borne_inf::timestamp, borne_sup::timestamp
+    FROM pg_inherits i
+    JOIN pg_class c ON c.oid = i.inhrelid
+    JOIN pg_namespace n ON n.oid = c.relnamespace
+    -- the bounds of the default partition are null
+    CROSS JOIN LATERAL substring(pg_get_expr(c.relpartbound, c.oid) FROM 'FROM \(''([^'']*)''\)') AS borne_inf
+    CROSS JOIN LATERAL substring(pg_get_expr(c.relpartbound, c.oid) FROM 'TO \(''([^'']*)''\)') AS borne_sup
+    WHERE i.inhparent = 'ogcstatistics.ogc_services_fact'::regclass
+      AND borne_sup::timestamp <= date_trunc('month', now()::timestamp) - retention_months * INTERVAL '1 month'
+    ORDER BY borne_sup::timestamp
+  LOOP
+    EXECUTE format('SELECT NOT EXISTS (SELECT 1 FROM %s WHERE id > (SELECT last_id FROM ogcstatistics.ogc_services_rollup_state))',
+      partition) INTO rolled_up;
+    IF rolled_up THEN
+      RETURN NEXT;
+    END IF;
+  END LOOP;
+END;
+$BODY$
+  LANGUAGE plpgsql STABLE;
+
+-- Detaches the partition from ogc_services_fact and drops it
+CREATE OR REPLACE FUNCTION ogcstatistics.drop_partition(partition regclass)
+  RETURNS void AS
+$BODY$
+BEGIN
+  EXECUTE format('ALTER TABLE ogcstatistics.ogc_services_fact DETACH PARTITION %s', partition);
+  EXECUTE format('DROP TABLE %s', partition);
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+COMMENT ON FUNCTION ogcstatistics.drop_partition(regclass) IS 'Detach the partition from ogc_services_fact and drop it';
+
+-- Identifier up to which the logs can be rolled up: waits for the
+-- transactions inserting logs to end, so that none of them commits a smaller
+-- identifier afterwards. The table is locked until the end of the transaction,
+-- so call it in its own transaction, before refresh_rollups.
+CREATE OR REPLACE FUNCTION ogcstatistics.rollup_bound()
+  RETURNS bigint AS
+$BODY$
+DECLARE
+  bound bigint;
+BEGIN
+  LOCK TABLE ogcstatistics.ogc_services_fact IN SHARE MODE;
+  SELECT last_value INTO bound FROM ogcstatistics.ogc_services_log_id_seq;
+  RETURN bound;
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+-- Adds the logs inserted since the last refresh, up to the identifier upto
+-- and at most batch_size of them, to the hourly and daily rollups. Returns the
+-- identifier of the last log rolled up, call it again until it reaches upto.
+CREATE OR REPLACE FUNCTION ogcstatistics.refresh_rollups(upto bigint, batch_size bigint DEFAULT 100000)
+  RETURNS bigint AS
+$BODY$
+DECLARE
+  from_id bigint;
+  to_id bigint;
+BEGIN
+
+  -- the concurrent refreshes wait for each other
+  SELECT last_id INTO from_id FROM ogcstatistics.ogc_services_rollup_state FOR UPDATE;
+  to_id := least(upto, from_id + batch_size);
+  IF to_id <= from_id THEN
+    RETURN from_id;
+  END IF;
+
+  WITH chunk AS (
+    SELECT date_trunc('hour', log.date) AS hour, coalesce(log.service, '') AS service,
+      coalesce(log.layer, '') AS layer, coalesce(log.request, '') AS request,
+      coalesce(log.user_name, '') AS user_name, coalesce(log.org, '') AS org,
+      coalesce(log.roles, '{}') AS roles, sum(log.weight) AS count
+    FROM ogcstatistics.ogc_services_log log
+    WHERE log.id > from_id AND log.id <= to_id
+    GROUP BY 1, 2, 3, 4, 5, 6, 7
+  ), hourly AS (
+    INSERT INTO ogcstatistics.ogc_services_log_hourly AS h
+    SELECT * FROM chunk
+    ON CONFLICT (hour, service, layer, request, user_name, org, roles)
+      DO UPDATE SET count = h.count + EXCLUDED.count
+  )
+  INSERT INTO ogcstatistics.ogc_services_log_daily AS d
+  SELECT date_trunc('day', hour), service, layer, request, user_name, org, roles, sum(count)
+  FROM chunk
+  GROUP BY 1, 2, 3, 4, 5, 6, 7
+  ON CONFLICT (day, service, layer, request, user_name, org, roles)
+    DO UPDATE SET count = d.count + EXCLUDED.count;
+
+  UPDATE ogcstatistics.ogc_services_rollup_state SET last_id = to_id;
+  RETURN to_id;
+
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+COMMENT ON FUNCTION ogcstatistics.refresh_rollups(bigint, bigint) IS 'Add the logs inserted since the last refresh to the hourly and daily rollups';
+
+-- Number of requests from from_date (included) to to_date (excluded), by
+-- date, service, layer, request, user, org and roles. With the 'day'
+-- resolution the whole days are read from the daily rollup, the other whole
+-- hours from the hourly rollup, along with the logs not rolled up yet, and the
+-- rest of the range from the logs themselves. The date of the rolled up
+-- requests is the start of their day or hour, so group them by hour at most,
+-- or by day with the 'day' resolution.
+CREATE OR REPLACE FUNCTION ogcstatistics.ogc_services_counts(from_date timestamp without time zone,
+    to_date timestamp without time zone, resolution text DEFAULT 'hour')
+  RETURNS TABLE(date timestamp without time zone, service character varying, layer character varying,
+    request character varying, user_name character varying, org character varying, roles text[], count bigint) AS
+$BODY$
+  SELECT d.day, d.service, d.layer, d.request, d.user_name, d.org, d.roles, d.count
+  FROM ogcstatistics.ogc_services_log_daily d
+  WHERE resolution = 'day'
+    AND d.day >= date_trunc('day', from_date - interval '1 microsecond') + interval '1 day'
+    AND d.day < date_trunc('day', to_date)
+  UNION ALL
+  SELECT h.hour, h.service, h.layer, h.request, h.user_name, h.org, h.roles, h.count
+  FROM ogcstatistics.ogc_services_log_hourly h
+  WHERE h.hour >= date_trunc('hour', from_date - interval '1 microsecond') + interval '1 hour'
+    AND h.hour < date_trunc('hour', to_date)
+    AND (resolution <> 'day'
+      OR h.hour < date_trunc('day', from_date - interval '1 microsecond') + interval '1 day'
+      OR h.hour >= date_trunc('day', to_date))
+  UNION ALL
+  -- the logs of the whole hours not rolled up yet, and of the partial hours
+  SELECT log.date, coalesce(log.service, ''), coalesce(log.layer, ''), coalesce(log.request, ''),
+    coalesce(log.user_name, ''), coalesce(log.org, ''), coalesce(log.roles, '{}'), log.weight::bigint
+  FROM ogcstatistics.ogc_services_log log
+  WHERE (log.date >= date_trunc('hour', from_date - interval '1 microsecond') + interval '1 hour'
+      AND log.date < date_trunc('hour', to_date)
+      AND log.id > (SELECT last_id FROM ogcstatistics.ogc_services_rollup_state))
+    OR (log.date >= from_date
+      AND log.date < least(to_date, date_trunc('hour', from_date - interval '1 microsecond') + interval '1 hour'))
+    OR (log.date >= greatest(from_date, date_trunc('hour', to_date))
+      AND log.date < to_date)
+$BODY$
+  LANGUAGE sql STABLE;
+
+COMMENT ON FUNCTION ogcstatistics.ogc_services_counts(timestamp without time zone, timestamp without time zone, text) IS 'Number of requests in a date range, read from the coarsest rollup covering each part of the range';
+
+COMMIT;
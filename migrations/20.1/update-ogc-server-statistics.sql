@@ -0,0 +1,306 @@
+BEGIN;
+
+-- The security-proxy now logs the OGC requests once their response has been
+-- sent, with the response measures. The columns added to the parent table are
+-- inherited by the existing monthly tables.
+ALTER TABLE ogcstatistics.ogc_services_log
+  ADD COLUMN ttfb_ms integer,
+  ADD COLUMN duration_ms integer,
+  ADD COLUMN bytes_sent bigint,
+  ADD COLUMN http_status smallint;
+
+COMMENT ON COLUMN ogcstatistics.ogc_services_log.ttfb_ms IS 'Milliseconds between sending the request to the backend and receiving its response head, null if no response was received';
+COMMENT ON COLUMN ogcstatistics.ogc_services_log.duration_ms IS 'Milliseconds between receiving the request and sending the whole response';
+COMMENT ON COLUMN ogcstatistics.ogc_services_log.bytes_sent IS 'Bytes of the response body sent to the client, shared among the layers of the request';
+COMMENT ON COLUMN ogcstatistics.ogc_services_log.http_status IS 'Status of the response sent to the client';
+
+-- Position up to which the local journal of each security-proxy has been
+-- replayed, updated in the same transaction as the replayed logs
+CREATE TABLE ogcstatistics.ogc_services_journal(
+  journal_id character varying(64) PRIMARY KEY,
+  segment bigint NOT NULL,
+  position bigint NOT NULL
+);
+
+-- Number of requests by hour and by day, for each service, layer, request,
+-- user, org and roles, maintained by refresh_rollups from the logs inserted
+-- since the last refresh, and read by ogc_services_counts
+CREATE TABLE ogcstatistics.ogc_services_log_hourly(
+  hour timestamp without time zone NOT NULL,
+  service character varying(5) NOT NULL,
+  layer character varying(255) NOT NULL,
+  request character varying(20) NOT NULL,
+  user_name character varying(255) NOT NULL,
+  org character varying(255) NOT NULL,
+  roles text[] NOT NULL,
+  count bigint NOT NULL,
+  PRIMARY KEY (hour, service, layer, request, user_name, org, roles)
+);
+
+CREATE TABLE ogcstatistics.ogc_services_log_daily(
+  day timestamp without time zone NOT NULL,
+  service character varying(5) NOT NULL,
+  layer character varying(255) NOT NULL,
+  request character varying(20) NOT NULL,
+  user_name character varying(255) NOT NULL,
+  org character varying(255) NOT NULL,
+  roles text[] NOT NULL,
+  count bigint NOT NULL,
+  PRIMARY KEY (day, service, layer, request, user_name, org, roles)
+);
+
+-- Identifier of the last log counted in the hourly and daily rollups
+CREATE TABLE ogcstatistics.ogc_services_rollup_state(
+  last_id bigint NOT NULL
+);
+INSERT INTO ogcstatistics.ogc_services_rollup_state VALUES (0);
+
+-- Index the identifiers of the monthly tables, read to refresh the rollups,
+-- the next monthly tables being indexed on creation by get_partition_table
+DO $$
+DECLARE
+  child character varying;
+BEGIN
+  FOR child IN SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+      WHERE i.inhparent = 'ogcstatistics.ogc_services_log'::regclass LOOP
+    EXECUTE 'CREATE INDEX IF NOT EXISTS ' || child || '_id_idx ON ogcstatistics.' || child || '(id)';
+  END LOOP;
+END;
+$$;
+
+-- Return name of table that correspond to specified date, also create table if it does
+-- not exists and indexes on table of previous month
+CREATE OR REPLACE FUNCTION ogcstatistics.get_partition_table(my_date timestamp without time zone)
+  RETURNS character varying AS
+$BODY$
+DECLARE
+    my_table_name character varying;
+    my_month character varying;
+    my_year character varying;
+    previous_month character varying;
+    previous_year character varying;
+    previous_table_name character varying;
+    previous_table_oid oid;
+    borne_sup date;
+    borne_inf date;
+    query character varying;
+    base_table_name character varying = 'ogc_services_log';
+    base_schema_name character varying = 'ogcstatistics';
+BEGIN
+
+  -- Generate table name
+  my_month := EXTRACT(MONTH FROM my_date);
+  my_year := EXTRACT(YEAR FROM my_date);
+
+  my_table_name := base_table_name || '_y' || my_year || 'm' || my_month;
+
+  -- RAISE NOTICE 'table name %.%', base_schema_name, my_table_name;
+
+  -- Test if table already exists
+  IF NOT (SELECT count(*) > 0
+          FROM information_schema.tables
+          WHERE table_schema = base_schema_name
+    AND table_name = my_table_name) THEN
+
+    borne_inf := (my_year || '-' || my_month || '-01')::date;
+    borne_sup := borne_inf + INTERVAL '1 month';
+
+    query := 'CREATE TABLE ' || base_schema_name || '.' || my_table_name || '( CHECK ( date >= DATE ''' || borne_inf || ''' AND date < DATE ''' || borne_sup || ''' ) ';
+    query := query || ') INHERITS (' || base_schema_name || '.' || base_table_name || ')';
+
+    -- Create table if it does not exists
+    EXECUTE query;
+
+    -- Index the identifiers, read to refresh the rollups
+    query := 'CREATE INDEX ' || my_table_name || '_id_idx ON ' || base_schema_name || '.' || my_table_name || '(id)';
+    EXECUTE query;
+
+    -- Create Indexes on previous table for user_name and date fields
+    previous_month := EXTRACT(MONTH FROM (my_date - INTERVAL '1 month'));
+    previous_year := EXTRACT(YEAR FROM (my_date - INTERVAL '1 month'));
+    previous_table_name := base_table_name || '_y' || previous_year || 'm' || previous_month;
+
+    -- Check if previous table exists
+    IF (SELECT count(*) > 0
+        FROM information_schema.tables
+        WHERE table_schema = base_schema_name
+        AND table_name = previous_table_name) THEN
+
+      previous_table_oid := (base_schema_name || '.' || previous_table_name)::regclass::int;
+      -- Check if indexes already exists
+      IF NOT (WITH stat_indexes AS (SELECT t.oid,
+                                           t.relname AS table_name,
+                                           i.relname AS index_name,
+                                           array_agg(a.attname) AS column_names
+                                    FROM
+                                       pg_class t,
+                                       pg_class i,
+                                       pg_index ix,
+                                       pg_attribute a
+                                    WHERE
+                                       t.oid = ix.indrelid
+                                       AND i.oid = ix.indexrelid
+                                       AND a.attrelid = t.oid
+                                       AND a.attnum = ANY(ix.indkey)
+                                       AND t.relkind = 'r'
+                                       AND t.oid = previous_table_oid
+                                    GROUP BY t.oid, t.relname, index_name)
+              SELECT count(*) = 2
+              FROM stat_indexes
+              WHERE column_names IN (ARRAY['date']::name[], ARRAY['user_name']::name[])) THEN
+
+        query := 'CREATE INDEX ' || previous_table_name || '_date_idx ON ' || base_schema_name || '.' || previous_table_name || '(date)';
+        EXECUTE query;
+        query := 'CREATE INDEX ' || previous_table_name || '_user_name_idx ON ' || base_schema_name || '.' || previous_table_name || '(user_name)';
+        EXECUTE query;
+
+      END IF;
+
+    END IF;
+
+  END IF;
+
+  RETURN base_schema_name || '.' || my_table_name;
+
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+-- Identifier up to which the logs can be rolled up: waits for the
+-- transactions inserting logs to end, so that none of them commits a smaller
+-- identifier afterwards. The table is locked until the end of the transaction,
+-- so call it in its own transaction, before refresh_rollups.
+CREATE OR REPLACE FUNCTION ogcstatistics.rollup_bound()
+  RETURNS bigint AS
+$BODY$
+DECLARE
+  bound bigint;
+BEGIN
+  LOCK TABLE ogcstatistics.ogc_services_log IN SHARE MODE;
+  SELECT last_value INTO bound FROM ogcstatistics.ogc_services_log_id_seq;
+  RETURN bound;
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+-- Adds the logs inserted since the last refresh, up to the identifier upto
+-- and at most batch_size of them, to the hourly and daily rollups. Returns the
+-- identifier of the last log rolled up, call it again until it reaches upto.
+CREATE OR REPLACE FUNCTION ogcstatistics.refresh_rollups(upto bigint, batch_size bigint DEFAULT 100000)
+  RETURNS bigint AS
+$BODY$
+DECLARE
+  from_id bigint;
+  to_id bigint;
+BEGIN
+
+  -- the concurrent refreshes wait for each other
+  SELECT last_id INTO from_id FROM ogcstatistics.ogc_services_rollup_state FOR UPDATE;
+  to_id := least(upto, from_id + batch_size);
+  IF to_id <= from_id THEN
+    RETURN from_id;
+  END IF;
+
+  WITH chunk AS (
+    SELECT date_trunc('hour', log.date) AS hour, coalesce(log.service, '') AS service,
+      coalesce(log.layer, '') AS layer, coalesce(log.request, '') AS request,
+      coalesce(log.user_name, '') AS user_name, coalesce(log.org, '') AS org,
+      coalesce(log.roles, '{}') AS roles, count(*) AS count
+    FROM ogcstatistics.ogc_services_log log
+    WHERE log.id > from_id AND log.id <= to_id
+    GROUP BY 1, 2, 3, 4, 5, 6, 7
+  ), hourly AS (
+    INSERT INTO ogcstatistics.ogc_services_log_hourly AS h
+    SELECT * FROM chunk
+    ON CONFLICT (hour, service, layer, request, user_name, org, roles)
+      DO UPDATE SET count = h.count + EXCLUDED.count
+  )
+  INSERT INTO ogcstatistics.ogc_services_log_daily AS d
+  SELECT date_trunc('day', hour), service, layer, request, user_name, org, roles, sum(count)
+  FROM chunk
+  GROUP BY 1, 2, 3, 4, 5, 6, 7
+  ON CONFLICT (day, service, layer, request, user_name, org, roles)
+    DO UPDATE SET count = d.count + EXCLUDED.count;
+
+  UPDATE ogcstatistics.ogc_services_rollup_state SET last_id = to_id;
+  RETURN to_id;
+
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+COMMENT ON FUNCTION ogcstatistics.refresh_rollups(bigint, bigint) IS 'Add the logs inserted since the last refresh to the hourly and daily rollups';
+
+-- Number of requests from from_date (included) to to_date (excluded), by
+-- date, service, layer, request, user, org and roles. With the 'day'
+-- resolution the whole days are read from the daily rollup, the other whole
+-- hours from the hourly rollup, along with the logs not rolled up yet, and the
+-- rest of the range from the logs themselves. The date of the rolled up
+-- requests is the start of their day or hour, so group them by hour at most,
+-- or by day with the 'day' resolution.
+CREATE OR REPLACE FUNCTION ogcstatistics.ogc_services_counts(from_date timestamp without time zone,
+    to_date timestamp without time zone, resolution text DEFAULT 'hour')
+  RETURNS TABLE(date timestamp without time zone, service character varying, layer character varying,
+    request character varying, user_name character varying, org character varying, roles text[], count bigint) AS
+$BODY$
+  SELECT d.day, d.service, d.layer, d.request, d.user_name, d.org, d.roles, d.count
+  FROM ogcstatistics.ogc_services_log_daily d
+  WHERE resolution = 'day'
+    AND d.day >= date_trunc('day', from_date - interval '1 microsecond') + interval '1 day'
+    AND d.day < date_trunc('day', to_date)
+  UNION ALL
+  SELECT h.hour, h.service, h.layer, h.request, h.user_name, h.org, h.roles, h.count
+  FROM ogcstatistics.ogc_services_log_hourly h
+  WHERE h.hour >= date_trunc('hour', from_date - interval '1 microsecond') + interval '1 hour'
+    AND h.hour < date_trunc('hour', to_date)
+    AND (resolution <> 'day'
+      OR h.hour < date_trunc('day', from_date - interval '1 microsecond') + interval '1 day'
+      OR h.hour >= date_trunc('day', to_date))
+  UNION ALL
+  -- the logs of the whole hours not rolled up yet, and of the partial hours
+  SELECT log.date, coalesce(log.service, ''), coalesce(log.layer, ''), coalesce(log.request, ''),
+    coalesce(log.user_name, ''), coalesce(log.org, ''), coalesce(log.roles, '{}'), 1::bigint
+  FROM ogcstatistics.ogc_services_log log
+  WHERE (log.date >= date_trunc('hour', from_date - interval '1 microsecond') + interval '1 hour'
+      AND log.date < date_trunc('hour', to_date)
+      AND log.id > (SELECT last_id FROM ogcstatistics.ogc_services_rollup_state))
+    OR (log.date >= from_date
+      AND log.date < least(to_date, date_trunc('hour', from_date - interval '1 microsecond') + interval '1 hour'))
+    OR (log.date >= greatest(from_date, date_trunc('hour', to_date))
+      AND log.date < to_date)
+$BODY$
+  LANGUAGE sql STABLE;
+
+COMMENT ON FUNCTION ogcstatistics.ogc_services_counts(timestamp without time zone, timestamp without time zone, text) IS 'Number of requests in a date range, read from the coarsest rollup covering each part of the range';
+
+-- Renames a user in the rollups, as done in ogc_services_log when the account
+-- is deleted, merging its counts into the ones of the new name
+CREATE OR REPLACE FUNCTION ogcstatistics.rename_rollups_user(old_name character varying, new_name character varying)
+  RETURNS void AS
+$BODY$
+BEGIN
+
+  -- not while the logs of the old name are being rolled up
+  PERFORM 1 FROM ogcstatistics.ogc_services_rollup_state FOR UPDATE;
+
+  WITH renamed AS (
+    DELETE FROM ogcstatistics.ogc_services_log_hourly WHERE user_name = old_name RETURNING *
+  )
+  INSERT INTO ogcstatistics.ogc_services_log_hourly AS h
+  SELECT hour, service, layer, request, new_name, org, roles, count FROM renamed
+  ON CONFLICT (hour, service, layer, request, user_name, org, roles)
+    DO UPDATE SET count = h.count + EXCLUDED.count;
+
+  WITH renamed AS (
+    DELETE FROM ogcstatistics.ogc_services_log_daily WHERE user_name = old_name RETURNING *
+  )
+  INSERT INTO ogcstatistics.ogc_services_log_daily AS d
+  SELECT day, service, layer, request, new_name, org, roles, count FROM renamed
+  ON CONFLICT (day, service, layer, request, user_name, org, roles)
+    DO UPDATE SET count = d.count + EXCLUDED.count;
+
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+COMMIT;
@@ -8,23 +8,40 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.log4j.Logger;
 import org.awaitility.Duration;
 import org.georchestra.ogcservstatistics.OGCServStatisticsException;
 import org.georchestra.ogcservstatistics.dataservices.DataCommandException;
+import org.georchestra.ogcservstatistics.dataservices.DataServicesConfiguration;
+import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
+import org.georchestra.ogcservstatistics.dataservices.MaintainPartitionsCommand;
+import org.georchestra.ogcservstatistics.dataservices.RefreshRollupsCommand;
 import org.georchestra.ogcservstatistics.log4j.OGCServiceMessageFormatter;
 import org.georchestra.ogcservstatistics.log4j.OGCServicesAppender;
 import org.georchestra.ogcservstatistics.util.IntegrationTestSupport;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * Test case for OGCServiceStatistics class
@@ -44,6 +61,8 @@ public class OGCServiceStatisticsIT {
 
     public static @ClassRule IntegrationTestSupport support = new IntegrationTestSupport();
 
+    public @Rule TemporaryFolder archives = new TemporaryFolder();
+
     public static @BeforeClass void before() throws ClassNotFoundException, SQLException, DataCommandException {
         support.deleteAllEntries();
 
@@ -313,4 +332,87 @@ public class OGCServiceStatisticsIT {
         }
 
     }
+
+    @Test
+    public void testRetrieveMostConsultedLayersFromRollups() throws Exception {
+
+        final int limit = 3;
+        List<Map<String, Object>> before = OGCServiceStatistics.retrieveMostConsultedLayers(getYear(this.time),
+                getMonth(this.time), limit);
+
+        try (Connection connection = DataServicesConfiguration.getInstance().getConnection()) {
+            RefreshRollupsCommand cmd = new RefreshRollupsCommand();
+            cmd.setConnection(connection);
+            cmd.execute();
+            assertEquals(cmd.getBound(), cmd.getLastId());
+        }
+
+        // the rolled up logs are counted once
+        assertEquals(before, OGCServiceStatistics.retrieveMostConsultedLayers(getYear(this.time),
+                getMonth(this.time), limit));
+    }
+
+    @Test
+    public void testWeightedLogsCounted() throws Exception {
+
+        Map<String, Object> sampled = new HashMap<>();
+        sampled.put("user_name", "user103");
+        sampled.put("date", new GregorianCalendar(2002, Calendar.MARCH, 1, 10, 0).getTime());
+        sampled.put("service", "WMTS");
+        sampled.put("layer", "layer9");
+        sampled.put("request", "gettile");
+        sampled.put("org", "");
+        sampled.put("roles", "ROLE1");
+        sampled.put("weight", 10);
+        Map<String, Object> single = new HashMap<>(sampled);
+        single.remove("weight");
+        try (Connection connection = DataServicesConfiguration.getInstance().getConnection()) {
+            InsertCommand cmd = new InsertCommand();
+            cmd.setConnection(connection);
+            cmd.setRows(Arrays.asList(sampled, single));
+            cmd.execute();
+        }
+        List<Map<String, Object>> layers = OGCServiceStatistics.retrieveMostConsultedLayers(2002, 3, 3);
+        assertEquals(1, layers.size());
+        assertEquals(11, layers.get(0).get("connections"));
+
+        try (Connection connection = DataServicesConfiguration.getInstance().getConnection()) {
+            RefreshRollupsCommand cmd = new RefreshRollupsCommand();
+            cmd.setConnection(connection);
+            cmd.execute();
+        }
+        assertEquals(layers, OGCServiceStatistics.retrieveMostConsultedLayers(2002, 3, 3));
+    }
+
+    @Test
+    public void testExpiredPartitionArchivedAndDropped() throws Exception {
+
+        try (Connection connection = DataServicesConfiguration.getInstance().getConnection()) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("SELECT ogcstatistics.create_partition('2001-01-15')");
+                stmt.execute("INSERT INTO ogcstatistics.ogc_services_log(user_name, date, service, layer, request)"
+                        + " VALUES ('user101', '2001-01-15 10:00', 'WMS', 'layer1', 'getmap')");
+            }
+            RefreshRollupsCommand refresh = new RefreshRollupsCommand();
+            refresh.setConnection(connection);
+            refresh.execute();
+
+            MaintainPartitionsCommand cmd = new MaintainPartitionsCommand();
+            cmd.setConnection(connection);
+            cmd.setRetentionMonths(12);
+            cmd.setArchiveDirectory(archives.getRoot());
+            cmd.execute();
+            assertTrue(cmd.getDropped().toString(),
+                    cmd.getDropped().contains("ogcstatistics.ogc_services_fact_y2001m1"));
+        }
+
+        File archive = new File(archives.getRoot(), "ogcstatistics.ogc_services_fact_y2001m1.csv.gz");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(archive)), StandardCharsets.UTF_8))) {
+            List<String> lines = reader.lines().collect(Collectors.toList());
+            assertEquals(2, lines.size());
+            assertTrue(lines.get(0), lines.get(0).startsWith("user_name,date,service,layer,id,"));
+            assertTrue(lines.get(1), lines.get(1).startsWith("\"user101\",\"2001-01-15 10:00:00\",\"WMS\",\"layer1\","));
+        }
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.calculations;
+
+import java.util.Arrays;
+
+/**
+ * Estimates how many times items were seen in a stream, in a constant memory of
+ * {@code depth x width} counters, see Cormode and Muthukrishnan, <i>An improved
+ * data stream summary: the count-min sketch and its applications</i>.
+ * <p>
+ * An estimate is never lower than the actual count, and higher by at most
+ * {@code e / width} times the total count with a probability of
+ * {@code 1 - e^-depth}. The items are hashed from {@link String#hashCode()},
+ * which is the same in every JVM, so that the sketches of the same dimensions
+ * built on several nodes can be {@link #merge merged}.
+ * </p>
+ * <p>
+ * It is not thread safe.
+ * </p>
+ */
+public final class CountMinSketch {
+
+    private final int depth;
+
+    private final int width;
+
+    private final long[] table;
+
+    private long total;
+
+    /**
+     * @param depth the number of hash functions
+     * @param width the number of counters by hash function
+     */
+    public CountMinSketch(int depth, int width) {
+        if (depth < 1 || width < 1) {
+            throw new IllegalArgumentException("depth and width must be positive");
+        }
+        this.depth = depth;
+        this.width = width;
+        this.table = new long[depth * width];
+    }
+
+    /**
+     * Creates a sketch from the state of another one, e.g. read from another node.
+     * 
+     * @param table the counters, row after row, see {@link #getTable()}
+     */
+    public CountMinSketch(int depth, int width, long[] table) {
+        this(depth, width);
+        if (table.length != this.table.length) {
+            throw new IllegalArgumentException("Expected " + this.table.length + " counters, got " + table.length);
+        }
+        System.arraycopy(table, 0, this.table, 0, table.length);
+        // every count is added to each row
+        for (int i = 0; i < width; i++) {
+            this.total += table[i];
+        }
+    }
+
+    public void add(String item, long count) {
+        int h1 = hash(item.hashCode());
+        int h2 = hash(h1) | 1;
+        for (int row = 0; row < depth; row++) {
+            table[row * width + index(h1, h2, row)] += count;
+        }
+        total += count;
+    }
+
+    /**
+     * @return an upper bound of the number of times the item was seen
+     */
+    public long estimate(String item) {
+        int h1 = hash(item.hashCode());
+        int h2 = hash(h1) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, table[row * width + index(h1, h2, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Adds the counts of the other sketch to this one.
+     * 
+     * @throws IllegalArgumentException if the sketches have different dimensions
+     */
+    public void merge(CountMinSketch other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException("Can not merge a " + other.depth + "x" + other.width
+                    + " count-min sketch into a " + depth + "x" + width + " one");
+        }
+        for (int i = 0; i < table.length; i++) {
+            table[i] += other.table[i];
+        }
+        total += other.total;
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0);
+        total = 0;
+    }
+
+    /**
+     * @return the sum of the counts added
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return a copy of the counters, row after row
+     */
+    public long[] getTable() {
+        return table.clone();
+    }
+
+    /**
+     * The row-th hash of an item, derived from two hashes as shown by Kirsch and
+     * Mitzenmacher.
+     */
+    private int index(int h1, int h2, int row) {
+        return Math.floorMod(h1 + row * h2, width);
+    }
+
+    /** spreads the bits of a hash, from the finalizer of MurmurHash3 */
+    private static int hash(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.calculations;
+
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DATE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.LAYER_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.ORG_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SERVICE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.USER_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.WEIGHT_COLUMN;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the OGC service requests of the last hour in memory, by layer, user,
+ * org and service, to tell the most requested ones over sliding windows of up
+ * to 60 minutes, e.g. 1, 15 and 60, without querying the database.
+ * <p>
+ * The requests are counted by minute in a ring of 60 buckets, each holding a
+ * {@link SpaceSaving} summary and a {@link CountMinSketch} by dimension, so the
+ * memory taken does not depend on the number of requests nor on the number of
+ * distinct layers or users. A window merges the buckets of its minutes.
+ * </p>
+ * <p>
+ * It is fed by the {@code OGCServicesAppender} from its writer thread, and read
+ * from any thread.
+ * </p>
+ */
+public final class LiveStatistics {
+
+    private static final long MINUTE = 60_000;
+
+    /** the number of minutes counted */
+    public static final int MINUTES = 60;
+
+    public enum Dimension {
+        LAYER(LAYER_COLUMN), USER(USER_COLUMN), ORG(ORG_COLUMN), SERVICE(SERVICE_COLUMN);
+
+        private final String column;
+
+        private Dimension(String column) {
+            this.column = column;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+    }
+
+    private final int capacity;
+
+    private final int depth;
+
+    private final int width;
+
+    private final Bucket[] buckets = new Bucket[MINUTES];
+
+    /**
+     * @param capacity the number of items counted exactly by dimension and minute,
+     *                 see {@link SpaceSaving}
+     * @param depth    the depth of the count-min sketches
+     * @param width    the width of the count-min sketches
+     */
+    public LiveStatistics(int capacity, int depth, int width) {
+        this.capacity = capacity;
+        this.depth = depth;
+        this.width = width;
+        for (int i = 0; i < MINUTES; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Counts the logs of the last hour, a log counting for its weight. The empty
+     * values, e.g. the layer of a GetCapabilities request, are not counted.
+     */
+    public synchronized void add(List<Map<String, Object>> logs) {
+        long current = System.currentTimeMillis() / MINUTE;
+        for (Map<String, Object> log : logs) {
+            Object date = log.get(DATE_COLUMN);
+            // a clock ahead of this one must not clear the buckets of the last hour
+            long minute = date instanceof Date ? Math.min(((Date) date).getTime() / MINUTE, current) : current;
+            if (minute <= current - MINUTES) {
+                continue;
+            }
+            Object weight = log.get(WEIGHT_COLUMN);
+            long count = weight instanceof Number ? ((Number) weight).longValue() : 1;
+            bucket(minute).add(log, count);
+        }
+    }
+
+    private Bucket bucket(long minute) {
+        Bucket bucket = buckets[(int) Math.floorMod(minute, (long) MINUTES)];
+        if (bucket.minute != minute) {
+            bucket.clear(minute);
+        }
+        return bucket;
+    }
+
+    /**
+     * @param minutes the length of the window, from 1 to {@link #MINUTES}
+     * @return the counts of the last minutes, the current one included
+     */
+    public Window window(int minutes) {
+        return window(minutes, System.currentTimeMillis());
+    }
+
+    synchronized Window window(int minutes, long now) {
+        if (minutes < 1 || minutes > MINUTES) {
+            throw new IllegalArgumentException("The window must be from 1 to " + MINUTES + " minutes long");
+        }
+        long to = now / MINUTE;
+        Window window = new Window((to - minutes + 1) * MINUTE, (to + 1) * MINUTE);
+        for (long minute = to - minutes + 1; minute <= to; minute++) {
+            Bucket bucket = buckets[(int) Math.floorMod(minute, (long) MINUTES)];
+            if (bucket.minute == minute) {
+                window.requests += bucket.requests;
+                for (Dimension dimension : Dimension.values()) {
+                    window.topItems.get(dimension).merge(bucket.topItems.get(dimension));
+                    window.counts.get(dimension).merge(bucket.counts.get(dimension));
+                }
+            }
+        }
+        return window;
+    }
+
+    /**
+     * The counts of the requests of a minute, a bucket being reused once the minute
+     * is an hour old.
+     */
+    private final class Bucket {
+
+        private long minute = Long.MIN_VALUE;
+
+        private long requests;
+
+        private final Map<Dimension, SpaceSaving> topItems = new EnumMap<>(Dimension.class);
+
+        private final Map<Dimension, CountMinSketch> counts = new EnumMap<>(Dimension.class);
+
+        Bucket() {
+            for (Dimension dimension : Dimension.values()) {
+                topItems.put(dimension, new SpaceSaving(capacity));
+                counts.put(dimension, new CountMinSketch(depth, width));
+            }
+        }
+
+        void add(Map<String, Object> log, long count) {
+            requests += count;
+            for (Dimension dimension : Dimension.values()) {
+                Object value = log.get(dimension.column);
+                if (value != null && !value.toString().isEmpty()) {
+                    topItems.get(dimension).offer(value.toString(), count);
+                    counts.get(dimension).add(value.toString(), count);
+                }
+            }
+        }
+
+        void clear(long minute) {
+            this.minute = minute;
+            this.requests = 0;
+            for (Dimension dimension : Dimension.values()) {
+                topItems.get(dimension).clear();
+                counts.get(dimension).clear();
+            }
+        }
+    }
+
+    /**
+     * The counts of the requests from a time to another, by dimension.
+     */
+    public final class Window {
+
+        private final long from;
+
+        private final long to;
+
+        private long requests;
+
+        private final Map<Dimension, SpaceSaving> topItems = new EnumMap<>(Dimension.class);
+
+        private final Map<Dimension, CountMinSketch> counts = new EnumMap<>(Dimension.class);
+
+        private Window(long from, long to) {
+            this.from = from;
+            this.to = to;
+            for (Dimension dimension : Dimension.values()) {
+                topItems.put(dimension, new SpaceSaving(capacity));
+                counts.put(dimension, new CountMinSketch(depth, width));
+            }
+        }
+
+        /**
+         * @return the start of the window, in milliseconds
+         */
+        public long getFrom() {
+            return from;
+        }
+
+        /**
+         * @return the end of the window, excluded, in milliseconds
+         */
+        public long getTo() {
+            return to;
+        }
+
+        /**
+         * @return the number of requests
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return the most requested items of the dimension
+         */
+        public List<SpaceSaving.Counter> top(Dimension dimension, int n) {
+            return topItems.get(dimension).top(n);
+        }
+
+        /**
+         * @return an upper bound of the number of requests of the item, the count of
+         *         the top items being more accurate
+         */
+        public long estimate(Dimension dimension, String item) {
+            return Math.min(topItems.get(dimension).estimate(item), counts.get(dimension).estimate(item));
+        }
+
+        /**
+         * @return the summary of the dimension, to be merged with the ones of other
+         *         nodes
+         */
+        public SpaceSaving getTopItems(Dimension dimension) {
+            return topItems.get(dimension);
+        }
+
+        /**
+         * @return the sketch of the dimension, to be merged with the ones of other
+         *         nodes
+         */
+        public CountMinSketch getCounts(Dimension dimension) {
+            return counts.get(dimension);
+        }
+    }
+}
@@ -30,9 +30,12 @@ import org.georchestra.ogcservstatistics.OGCServStatisticsException;
 import org.georchestra.ogcservstatistics.dataservices.DataServicesConfiguration;
 import org.georchestra.ogcservstatistics.dataservices.QueryCommand;
 import org.georchestra.ogcservstatistics.dataservices.RetrieveAllCommand;
+import org.georchestra.ogcservstatistics.dataservices.RetrieveBytesServedByOrg;
 import org.georchestra.ogcservstatistics.dataservices.RetrieveLayerConnectionsForUserCommand;
 import org.georchestra.ogcservstatistics.dataservices.RetrieveMostActiveUsers;
 import org.georchestra.ogcservstatistics.dataservices.RetrieveMostConsultedLayers;
+import org.georchestra.ogcservstatistics.dataservices.RetrieveServiceLatency;
+import org.georchestra.ogcservstatistics.dataservices.RetrieveSlowestLayers;
 import org.georchestra.ogcservstatistics.dataservices.RetrieveUserConnectionForLayerCommand;
 
 /**
@@ -265,6 +268,165 @@ public final class OGCServiceStatistics {
         return result;
     }
 
+    /**
+     * List of the N layers with the longest average response time on month. Returns
+     * a list of map with the following structure:
+     * 
+     * <pre>
+     * key: layer
+     * value: aLayer
+     * 
+     * key: connections
+     * value: anInteger Value
+     * 
+     * key: avg_duration_ms, p95_duration_ms
+     * value: aDouble Value
+     * 
+     * key: max_duration_ms
+     * value: anInteger Value
+     * </pre>
+     * 
+     * @param year  year
+     * @param month month
+     * @param limit the n slowest
+     * 
+     * @return List of pairs (fieldName, fieldValue)
+     * 
+     * @throws OGCServStatisticsException, IllegalArgumentException
+     */
+    public static List<Map<String, Object>> retrieveSlowestLayers(final int year, final int month, final int limit)
+            throws IllegalArgumentException, OGCServStatisticsException {
+
+        RetrieveSlowestLayers cmd = new RetrieveSlowestLayers();
+
+        List<Map<String, Object>> result = executeUsingLimit(cmd, year, month, limit);
+
+        assert result.size() <= limit;
+
+        return result;
+    }
+
+    /**
+     * List of the N layers with the longest average response time on the year
+     * 
+     * @param year
+     * @param limit
+     * @return List of pairs (fieldName, fieldValue)
+     * @throws IllegalArgumentException
+     * @throws OGCServStatisticsException
+     */
+    public static List<Map<String, Object>> retrieveSlowestLayers(final int year, final int limit)
+            throws IllegalArgumentException, OGCServStatisticsException {
+
+        RetrieveSlowestLayers cmd = new RetrieveSlowestLayers();
+
+        List<Map<String, Object>> result = executeUsingLimit(cmd, year, limit);
+
+        assert result.size() <= limit;
+
+        return result;
+    }
+
+    /**
+     * For each OGC service : percentiles of the response time on month. Returns a
+     * list of map with the following structure:
+     * 
+     * <pre>
+     * key: service
+     * value: aService
+     * 
+     * key: connections
+     * value: anInteger Value
+     * 
+     * key: p50_duration_ms, p95_duration_ms, p95_ttfb_ms
+     * value: aDouble Value
+     * </pre>
+     * 
+     * @param year  year
+     * @param month month
+     * 
+     * @return List of pairs (fieldName, fieldValue)
+     * 
+     * @throws OGCServStatisticsException, IllegalArgumentException
+     */
+    public static List<Map<String, Object>> retrieveServiceLatency(final int year, final int month)
+            throws IllegalArgumentException, OGCServStatisticsException {
+
+        RetrieveServiceLatency cmd = new RetrieveServiceLatency();
+        return execute(cmd, year, month);
+    }
+
+    /**
+     * For each OGC service : percentiles of the response time on the year
+     * 
+     * @param year
+     * @return List of pairs (fieldName, fieldValue)
+     * @throws IllegalArgumentException
+     * @throws OGCServStatisticsException
+     */
+    public static List<Map<String, Object>> retrieveServiceLatency(final int year)
+            throws IllegalArgumentException, OGCServStatisticsException {
+
+        RetrieveServiceLatency cmd = new RetrieveServiceLatency();
+        return execute(cmd, year);
+    }
+
+    /**
+     * List of the N organizations which were sent the most bytes on month. Returns
+     * a list of map with the following structure:
+     * 
+     * <pre>
+     * key: org
+     * value: anOrg
+     * 
+     * key: connections
+     * value: anInteger Value
+     * 
+     * key: bytes_sent
+     * value: aLong Value
+     * </pre>
+     * 
+     * @param year  year
+     * @param month month
+     * @param limit the n most served
+     * 
+     * @return List of pairs (fieldName, fieldValue)
+     * 
+     * @throws OGCServStatisticsException, IllegalArgumentException
+     */
+    public static List<Map<String, Object>> retrieveBytesServedByOrg(final int year, final int month, final int limit)
+            throws IllegalArgumentException, OGCServStatisticsException {
+
+        RetrieveBytesServedByOrg cmd = new RetrieveBytesServedByOrg();
+
+        List<Map<String, Object>> result = executeUsingLimit(cmd, year, month, limit);
+
+        assert result.size() <= limit;
+
+        return result;
+    }
+
+    /**
+     * List of the N organizations which were sent the most bytes on the year
+     * 
+     * @param year
+     * @param limit
+     * @return List of pairs (fieldName, fieldValue)
+     * @throws IllegalArgumentException
+     * @throws OGCServStatisticsException
+     */
+    public static List<Map<String, Object>> retrieveBytesServedByOrg(final int year, final int limit)
+            throws IllegalArgumentException, OGCServStatisticsException {
+
+        RetrieveBytesServedByOrg cmd = new RetrieveBytesServedByOrg();
+
+        List<Map<String, Object>> result = executeUsingLimit(cmd, year, limit);
+
+        assert result.size() <= limit;
+
+        return result;
+    }
+
     /**
      * List of the N most consulted layers
      * 
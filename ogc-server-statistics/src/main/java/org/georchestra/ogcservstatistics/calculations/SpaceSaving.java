@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.calculations;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Finds the most frequent items of a stream by keeping at most {@code capacity}
+ * counters, see Metwally, Agrawal and El Abbadi, <i>Efficient computation of
+ * frequent and top-k elements in data streams</i>.
+ * <p>
+ * An item not counted yet takes the counter of the least counted item once they
+ * are all taken, inheriting its count as error. The count of a counted item is
+ * never lower than its actual count, and higher by at most its error. Any item
+ * seen more than {@code total / capacity} times is counted.
+ * </p>
+ * <p>
+ * The summaries built on several nodes can be {@link #merge merged}, see
+ * Agarwal et al., <i>Mergeable summaries</i>. It is not thread safe.
+ * </p>
+ */
+public final class SpaceSaving {
+
+    private static final Comparator<Counter> BY_COUNT = Comparator.comparingLong(Counter::getCount)
+            .thenComparing(Counter::getItem);
+
+    private final int capacity;
+
+    private final Map<String, Counter> counters = new HashMap<>();
+
+    private final TreeSet<Counter> byCount = new TreeSet<>(BY_COUNT);
+
+    public SpaceSaving(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Counts an item.
+     * 
+     * @param count the number of times it was seen
+     */
+    public void offer(String item, long count) {
+        Counter counter = counters.get(item);
+        if (counter != null) {
+            byCount.remove(counter);
+            counter.count += count;
+        } else if (counters.size() < capacity) {
+            counter = new Counter(item, count, 0);
+            counters.put(item, counter);
+        } else {
+            Counter least = byCount.pollFirst();
+            counters.remove(least.item);
+            counter = new Counter(item, least.count + count, least.count);
+            counters.put(item, counter);
+        }
+        byCount.add(counter);
+    }
+
+    /**
+     * Counts an item with a known count and error, e.g. read from another node.
+     */
+    public void offer(String item, long count, long error) {
+        offer(item, count);
+        counters.get(item).error += error;
+    }
+
+    /**
+     * @return the n most counted items, by decreasing count
+     */
+    public List<Counter> top(int n) {
+        List<Counter> top = new ArrayList<>(Math.min(n, counters.size()));
+        for (Iterator<Counter> it = byCount.descendingIterator(); it.hasNext() && top.size() < n;) {
+            top.add(it.next().copy());
+        }
+        return top;
+    }
+
+    /**
+     * @return the count of the item, or else the count any item not counted can not
+     *         exceed
+     */
+    public long estimate(String item) {
+        Counter counter = counters.get(item);
+        return counter == null ? getMinCount() : counter.count;
+    }
+
+    /**
+     * @return the lowest count once every counter is taken, 0 before
+     */
+    public long getMinCount() {
+        return counters.size() < capacity ? 0 : byCount.first().count;
+    }
+
+    /**
+     * Adds the counts of the other summary to this one. An item counted by one
+     * summary only is given the {@link #getMinCount() minimum count} of the other
+     * as count and error, then the least counted items are dropped to keep at most
+     * {@code capacity} counters.
+     */
+    public void merge(SpaceSaving other) {
+        long min = getMinCount();
+        long otherMin = other.getMinCount();
+        Map<String, Counter> merged = new HashMap<>();
+        for (Counter counter : counters.values()) {
+            Counter o = other.counters.get(counter.item);
+            merged.put(counter.item,
+                    o == null ? new Counter(counter.item, counter.count + otherMin, counter.error + otherMin)
+                            : new Counter(counter.item, counter.count + o.count, counter.error + o.error));
+        }
+        for (Counter o : other.counters.values()) {
+            if (!merged.containsKey(o.item)) {
+                merged.put(o.item, new Counter(o.item, o.count + min, o.error + min));
+            }
+        }
+        TreeSet<Counter> sorted = new TreeSet<>(BY_COUNT);
+        sorted.addAll(merged.values());
+        while (sorted.size() > capacity) {
+            sorted.pollFirst();
+        }
+        counters.clear();
+        byCount.clear();
+        for (Counter counter : sorted) {
+            counters.put(counter.item, counter);
+        }
+        byCount.addAll(sorted);
+    }
+
+    public void clear() {
+        counters.clear();
+        byCount.clear();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return copies of the counters, by decreasing count
+     */
+    public Collection<Counter> getCounters() {
+        return top(capacity);
+    }
+
+    /**
+     * The count of an item, possibly higher than its actual count by at most
+     * {@link #getError()}.
+     */
+    public static final class Counter {
+
+        private final String item;
+
+        private long count;
+
+        private long error;
+
+        Counter(String item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getItem() {
+            return item;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+
+        private Counter copy() {
+            return new Counter(item, count, error);
+        }
+
+        @Override
+        public String toString() {
+            return item + "=" + count + "(+-" + error + ")";
+        }
+    }
+}
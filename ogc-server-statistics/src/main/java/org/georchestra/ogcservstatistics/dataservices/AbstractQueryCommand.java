@@ -22,6 +22,8 @@ package org.georchestra.ogcservstatistics.dataservices;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -65,6 +67,62 @@ public abstract class AbstractQueryCommand extends AbstractDataCommand implement
         this.limit = limit;
     }
 
+    /**
+     * @return the start of a range of days including the days of {@link #year}, as
+     *         filtered by {@code EXTRACT(ISOYEAR FROM date)}, or of its
+     *         {@link #month} if set
+     */
+    protected Timestamp getFromDate() {
+        if (this.month > 1 && this.month < 12) {
+            return Timestamp.valueOf(LocalDate.of(this.year, this.month, 1).atStartOfDay());
+        }
+        // the ISO year starts between December 29 and January 4
+        return Timestamp.valueOf(LocalDate.of(this.year, 1, 1).minusWeeks(1).atStartOfDay());
+    }
+
+    /**
+     * @return the end of the range of days starting at {@link #getFromDate()}
+     */
+    protected Timestamp getToDate() {
+        if (this.month > 1 && this.month < 12) {
+            return Timestamp.valueOf(LocalDate.of(this.year, this.month, 1).plusMonths(1).atStartOfDay());
+        }
+        return Timestamp.valueOf(LocalDate.of(this.year + 1, 1, 1).plusWeeks(1).atStartOfDay());
+    }
+
+    /**
+     * @return the WHERE clause selecting the logs of {@link #year}, or of its
+     *         {@link #month} if set, whose parameters are set by
+     *         {@link #setDateParameters}. The logs are also selected by date range,
+     *         so that only the monthly partitions of the period are read.
+     */
+    protected String getDateCondition() {
+        if (this.month > 0) {
+            return " WHERE date >= ? AND date < ? AND EXTRACT(ISOYEAR FROM date) = ? AND EXTRACT(MONTH FROM date) = ?";
+        }
+        return " WHERE date >= ? AND date < ? AND EXTRACT(ISOYEAR FROM date) = ? ";
+    }
+
+    /**
+     * Sets the parameters of {@link #getDateCondition()}, from the index of the
+     * first one
+     * 
+     * @return the index of the next parameter
+     */
+    protected int setDateParameters(PreparedStatement pStmt, int index) throws SQLException {
+        assert year > 0 : "year is expected";
+
+        pStmt.setTimestamp(index++, getFromDate());
+        pStmt.setTimestamp(index++, getToDate());
+        pStmt.setInt(index++, this.year);
+
+        // if the month was specified then set it in the statement
+        if (this.month > 0) {
+            pStmt.setInt(index++, this.month);
+        }
+        return index;
+    }
+
     /**
      * This template method executes the sql statement specified in the
      * prepareStatement method.
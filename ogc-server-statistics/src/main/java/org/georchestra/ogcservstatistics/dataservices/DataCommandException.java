@@ -36,4 +36,8 @@ public class DataCommandException extends Exception {
         super(e);
     }
 
+    public DataCommandException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
 }
@@ -39,6 +39,10 @@ public final class DataServicesConfiguration {
 
     private DataSource dataSource;
 
+    private boolean useRollups = true;
+
+    private final DimensionCache dimensions = new DimensionCache();
+
     private DataServicesConfiguration() {
 
     }
@@ -57,10 +61,33 @@ public final class DataServicesConfiguration {
             nonPoolingDS.setPassword(password);
         }
         this.dataSource = nonPoolingDS;
+        this.dimensions.clear();
     }
 
     public void initialize(DataSource dataSource) {
         this.dataSource = dataSource;
+        this.dimensions.clear();
+    }
+
+    /**
+     * @return the keys of the values of the dimensions of the logs, shared by the
+     *         inserts
+     */
+    public DimensionCache getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return whether the number of requests are read from the hourly and daily
+     *         rollups, see {@link LogColumns#COUNTS_FUNCTION}, rather than counted
+     *         from the logs
+     */
+    public boolean isUseRollups() {
+        return useRollups;
+    }
+
+    public void setUseRollups(boolean useRollups) {
+        this.useRollups = useRollups;
     }
 
     /**
@@ -19,13 +19,15 @@
 
 package org.georchestra.ogcservstatistics.dataservices;
 
-import static org.georchestra.ogcservstatistics.dataservices.LogColumns.QUALIFIED_TABLE_NAME;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DAILY_TABLE_NAME;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.FACT_TABLE_NAME;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.HOURLY_TABLE_NAME;
 
 import java.sql.SQLException;
 import java.sql.Statement;
 
 /**
- * WARNING Removes all logs from the table ogc_services_log
+ * WARNING Removes all logs from the table ogc_services_log, and their rollups
  * 
  * @author Mauricio Pazos
  *
@@ -40,7 +42,9 @@ public final class DeleteAllCommand extends AbstractDataCommand {
     @Override
     public void execute() throws DataCommandException {
         try (Statement pStmt = this.connection.createStatement()) {
-            pStmt.execute(String.format("DELETE FROM %s", QUALIFIED_TABLE_NAME));
+            pStmt.execute(String.format("DELETE FROM %s", FACT_TABLE_NAME));
+            pStmt.execute(String.format("DELETE FROM %s", HOURLY_TABLE_NAME));
+            pStmt.execute(String.format("DELETE FROM %s", DAILY_TABLE_NAME));
         } catch (SQLException e) {
             throw new DataCommandException(e);
         }
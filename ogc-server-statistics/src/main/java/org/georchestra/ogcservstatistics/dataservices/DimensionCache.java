@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.dataservices;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The keys of the values of the dimensions of the logs, kept in memory so that
+ * the logs are inserted in {@link LogColumns#FACT_TABLE_NAME} with the keys of
+ * their service, layer, user, etc. without looking them up in database.
+ * <p>
+ * The keys missing from the cache are resolved in transactions of their own, so
+ * that no key is cached for a value whose insert is rolled back. At most
+ * {@link #setMaxSize maxSize} keys are kept by dimension, the keys of a
+ * dimension being forgotten once it is full.
+ * </p>
+ * <p>
+ * The rows of the dimension tables are not deleted, but a value may be renamed,
+ * e.g. a user whose account is deleted by the console. Its cached key then
+ * still references an existing row, under the new name, until the cached keys
+ * are forgotten, at most {@link #setMaxAge maxAge} milliseconds after they have
+ * been looked up.
+ * </p>
+ */
+public final class DimensionCache {
+
+    /**
+     * The dimensions of the logs
+     */
+    public enum Dimension {
+        SERVICE("ogcstatistics.ogc_services_services"), LAYER("ogcstatistics.ogc_services_layers"),
+        REQUEST("ogcstatistics.ogc_services_requests"), USER("ogcstatistics.ogc_services_users"),
+        ORG("ogcstatistics.ogc_services_orgs"),
+        /** the set of roles, as a comma separated list */
+        ROLES("ogcstatistics.ogc_services_roles");
+
+        private final String tableName;
+
+        private Dimension(String tableName) {
+            this.tableName = tableName;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+    }
+
+    private static final String SQL_KEY = "SELECT ogcstatistics.dimension_key(?::regclass, ?)";
+
+    private static final String SQL_ROLES_KEY = "SELECT ogcstatistics.roles_key(string_to_array(?, ','))";
+
+    private final Map<Dimension, Map<String, Integer>> keys = new EnumMap<>(Dimension.class);
+
+    private volatile int maxSize = 100_000;
+
+    private volatile long maxAge = 10 * 60 * 1000;
+
+    /** when the cached keys were last forgotten */
+    private volatile long clearedAt = System.currentTimeMillis();
+
+    public DimensionCache() {
+        for (Dimension dimension : Dimension.values()) {
+            keys.put(dimension, new ConcurrentHashMap<>());
+        }
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param maxAge the milliseconds after which the cached keys are looked up
+     *               again, so that a renamed value gets its own key
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Resolves the keys of the values, from the cache or else from the dimension
+     * table, the missing values being added to the table.
+     * 
+     * @param connection a connection in auto-commit mode
+     * @return the key of each value but null
+     */
+    public Map<String, Integer> resolve(Connection connection, Dimension dimension, Collection<String> values)
+            throws SQLException {
+        if (System.currentTimeMillis() - clearedAt > maxAge) {
+            clear();
+        }
+        Map<String, Integer> cached = keys.get(dimension);
+        Map<String, Integer> resolved = new HashMap<>();
+        PreparedStatement pStmt = null;
+        try {
+            for (String value : values) {
+                if (value == null || resolved.containsKey(value)) {
+                    continue;
+                }
+                Integer key = cached.get(value);
+                if (key == null) {
+                    if (pStmt == null) {
+                        pStmt = connection.prepareStatement(dimension == Dimension.ROLES ? SQL_ROLES_KEY : SQL_KEY);
+                    }
+                    key = lookup(pStmt, dimension, value);
+                    if (cached.size() >= maxSize) {
+                        cached.clear();
+                    }
+                    cached.put(value, key);
+                }
+                resolved.put(value, key);
+            }
+        } finally {
+            if (pStmt != null) {
+                pStmt.close();
+            }
+        }
+        return resolved;
+    }
+
+    private Integer lookup(PreparedStatement pStmt, Dimension dimension, String value) throws SQLException {
+        if (dimension == Dimension.ROLES) {
+            pStmt.setString(1, value);
+        } else {
+            pStmt.setString(1, dimension.getTableName());
+            pStmt.setString(2, value);
+        }
+        try (ResultSet rs = pStmt.executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    /**
+     * @return the number of keys cached for the dimension
+     */
+    public int size(Dimension dimension) {
+        return keys.get(dimension).size();
+    }
+
+    /**
+     * Forgets the cached keys, e.g. when connecting to another database.
+     */
+    public void clear() {
+        clearedAt = System.currentTimeMillis();
+        for (Map<String, Integer> cached : keys.values()) {
+            cached.clear();
+        }
+    }
+}
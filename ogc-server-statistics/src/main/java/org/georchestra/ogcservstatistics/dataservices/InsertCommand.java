@@ -19,23 +19,47 @@
 
 package org.georchestra.ogcservstatistics.dataservices;
 
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.BYTES_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DATE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DURATION_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.FACT_TABLE_NAME;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.JOURNAL_TABLE_NAME;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.LAYER_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.LAYER_KEY_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.ORG_COLUMN;
-import static org.georchestra.ogcservstatistics.dataservices.LogColumns.QUALIFIED_TABLE_NAME;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.ORG_KEY_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.REQUEST_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.REQUEST_KEY_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SECROLE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SECROLE_KEY_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SERVICE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SERVICE_KEY_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.STATUS_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.TTFB_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.USER_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.USER_KEY_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.WEIGHT_COLUMN;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
+import org.georchestra.ogcservstatistics.dataservices.DimensionCache.Dimension;
 
 /**
  * Insert an ogc service log
+ * <p>
+ * The logs are inserted in {@link LogColumns#FACT_TABLE_NAME} with the keys of
+ * their dimensions, resolved through the {@link DimensionCache} of the
+ * {@link DataServicesConfiguration} before the insert transaction.
+ * </p>
  * 
  * @author Mauricio Pazos
  *
@@ -44,15 +68,103 @@ public final class InsertCommand extends AbstractDataCommand {
 
     private static final Logger LOGGER = Logger.getLogger(InsertCommand.class);
 
-    private static final String SQL_INSERT = "INSERT INTO " + QUALIFIED_TABLE_NAME + "(" + USER_COLUMN + ","
-            + DATE_COLUMN + "," + SERVICE_COLUMN + "," + LAYER_COLUMN + "," + REQUEST_COLUMN + "," + ORG_COLUMN + ","
-            + SECROLE_COLUMN + ") VALUES (?, ?, ?, ?, ?, ?, string_to_array(?, ','))";
+    private static final String SQL_INSERT = "INSERT INTO " + FACT_TABLE_NAME + "(" + USER_KEY_COLUMN + ","
+            + DATE_COLUMN + "," + SERVICE_KEY_COLUMN + "," + LAYER_KEY_COLUMN + "," + REQUEST_KEY_COLUMN + ","
+            + ORG_KEY_COLUMN + "," + SECROLE_KEY_COLUMN + "," + TTFB_COLUMN + "," + DURATION_COLUMN + "," + BYTES_COLUMN
+            + "," + STATUS_COLUMN + "," + WEIGHT_COLUMN + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_JOURNAL_POSITION = "INSERT INTO " + JOURNAL_TABLE_NAME
+            + "(journal_id, segment, position) VALUES (?, ?, ?) ON CONFLICT (journal_id)"
+            + " DO UPDATE SET segment = EXCLUDED.segment, position = EXCLUDED.position";
+
+    private Collection<Map<String, Object>> rows;
+
+    private String journalId;
+
+    private long journalSegment;
+
+    private long journalPosition;
 
     private Map<String, Object> rowValues;
 
+    private DimensionCache dimensions = DataServicesConfiguration.getInstance().getDimensions();
+
+    /** the keys of the values of the rows, by dimension */
+    private final Map<Dimension, Map<String, Integer>> keys = new EnumMap<>(Dimension.class);
+
     public void setRowValues(final Map<String, Object> ogcServiceLog) {
 
-        this.rowValues = ogcServiceLog;
+        this.rows = Collections.singletonList(ogcServiceLog);
+    }
+
+    /**
+     * Sets the rows to insert, sent in one JDBC batch and one transaction.
+     */
+    public void setRows(final Collection<Map<String, Object>> ogcServiceLogs) {
+
+        this.rows = ogcServiceLogs;
+    }
+
+    /**
+     * Records, in the same transaction as the rows, that a local journal has been
+     * replayed up to the given position, so that the rows are not inserted twice if
+     * the journal could not be updated afterwards.
+     * 
+     * @see RetrieveJournalPositionCommand
+     */
+    public void setJournalPosition(final String journalId, final long segment, final long position) {
+
+        this.journalId = journalId;
+        this.journalSegment = segment;
+        this.journalPosition = position;
+    }
+
+    /**
+     * Sets the cache of the keys of the dimensions, the one of the
+     * {@link DataServicesConfiguration} by default.
+     */
+    public void setDimensions(final DimensionCache dimensions) {
+
+        this.dimensions = dimensions;
+    }
+
+    /**
+     * Resolves the keys of the values of the rows, the connection being in
+     * auto-commit mode so that the values added to the dimension tables are kept
+     * even if the rows cannot be inserted.
+     */
+    private void resolveKeys() throws SQLException {
+        for (Dimension dimension : Dimension.values()) {
+            List<String> values = new ArrayList<>(this.rows.size());
+            for (Map<String, Object> row : this.rows) {
+                this.rowValues = row;
+                values.add(value(dimension));
+            }
+            this.keys.put(dimension, this.dimensions.resolve(this.connection, dimension, values));
+        }
+    }
+
+    /**
+     * @return the value of the dimension in the current row, trimmed but the user
+     *         name
+     */
+    private String value(Dimension dimension) {
+        switch (dimension) {
+        case USER:
+            return (String) this.rowValues.get(USER_COLUMN);
+        case SERVICE:
+            return ((String) this.rowValues.get(SERVICE_COLUMN)).trim();
+        case LAYER:
+            return ((String) this.rowValues.get(LAYER_COLUMN)).trim();
+        case REQUEST:
+            return ((String) this.rowValues.get(REQUEST_COLUMN)).trim();
+        case ORG:
+            return ((String) this.rowValues.get(ORG_COLUMN)).trim();
+        case ROLES:
+            return ((String) this.rowValues.get(SECROLE_COLUMN)).trim();
+        default:
+            throw new IllegalArgumentException("unknown dimension " + dimension);
+        }
     }
 
     private PreparedStatement prepareStatement() throws SQLException {
@@ -60,18 +172,68 @@ public final class InsertCommand extends AbstractDataCommand {
         assert this.connection != null : "database connection is null, use setConnection";
 
         PreparedStatement pStmt = this.connection.prepareStatement(SQL_INSERT);
-        pStmt.setString(1, (String) this.rowValues.get(USER_COLUMN));
+        try {
+            for (Map<String, Object> row : this.rows) {
+                this.rowValues = row;
+                setRowValues(pStmt);
+                pStmt.addBatch();
+            }
+        } catch (SQLException | RuntimeException e) {
+            pStmt.close();
+            throw e;
+        }
+        return pStmt;
+    }
+
+    private void setRowValues(PreparedStatement pStmt) throws SQLException {
+        setKey(pStmt, 1, Dimension.USER);
 
         java.sql.Timestamp sqlDate = new java.sql.Timestamp(
                 ((java.util.Date) this.rowValues.get(DATE_COLUMN)).getTime());
         pStmt.setTimestamp(2, sqlDate);
-        pStmt.setString(3, ((String) this.rowValues.get(SERVICE_COLUMN)).trim());
-        pStmt.setString(4, ((String) this.rowValues.get(LAYER_COLUMN)).trim());
-        pStmt.setString(5, ((String) this.rowValues.get(REQUEST_COLUMN)).trim());
-        pStmt.setString(6, ((String) this.rowValues.get(ORG_COLUMN)).trim());
-        pStmt.setString(7, ((String) this.rowValues.get(SECROLE_COLUMN)).trim());
+        setKey(pStmt, 3, Dimension.SERVICE);
+        setKey(pStmt, 4, Dimension.LAYER);
+        setKey(pStmt, 5, Dimension.REQUEST);
+        setKey(pStmt, 6, Dimension.ORG);
+        setKey(pStmt, 7, Dimension.ROLES);
+        setNumber(pStmt, 8, TTFB_COLUMN, Types.INTEGER);
+        setNumber(pStmt, 9, DURATION_COLUMN, Types.INTEGER);
+        setNumber(pStmt, 10, BYTES_COLUMN, Types.BIGINT);
+        setNumber(pStmt, 11, STATUS_COLUMN, Types.SMALLINT);
+        // a log stands for a single request unless sampled or aggregated
+        Number weight = (Number) this.rowValues.get(WEIGHT_COLUMN);
+        pStmt.setInt(12, weight == null ? 1 : weight.intValue());
+    }
 
-        return pStmt;
+    private void setKey(PreparedStatement pStmt, int index, Dimension dimension) throws SQLException {
+        Integer key = this.keys.get(dimension).get(value(dimension));
+        if (key == null) {
+            pStmt.setNull(index, Types.INTEGER);
+        } else {
+            pStmt.setInt(index, key);
+        }
+    }
+
+    /**
+     * Sets a response measure, which is missing from the logs of the producers
+     * which do not know it.
+     */
+    private void setNumber(PreparedStatement pStmt, int index, String column, int sqlType) throws SQLException {
+        Number value = (Number) this.rowValues.get(column);
+        if (value == null) {
+            pStmt.setNull(index, sqlType);
+        } else {
+            pStmt.setObject(index, value, sqlType);
+        }
+    }
+
+    private void updateJournalPosition() throws SQLException {
+        try (PreparedStatement pStmt = this.connection.prepareStatement(SQL_JOURNAL_POSITION)) {
+            pStmt.setString(1, this.journalId);
+            pStmt.setLong(2, this.journalSegment);
+            pStmt.setLong(3, this.journalPosition);
+            pStmt.executeUpdate();
+        }
     }
 
     @Override
@@ -80,15 +242,20 @@ public final class InsertCommand extends AbstractDataCommand {
         assert this.connection != null : "database connection is null, use setConnection";
 
         try {
+            this.connection.setAutoCommit(true);
+            resolveKeys();
             this.connection.setAutoCommit(false);
         } catch (SQLException e) {
             throw new DataCommandException(e);
         }
 
-        // executes the sql statement and checks that the update operation will be
-        // inserted one row in the table
+        // executes the sql statement for all the rows, which are routed to the
+        // monthly partitions of the fact table
         try (PreparedStatement pStmt = prepareStatement()) {
-            pStmt.executeUpdate();
+            pStmt.executeBatch();
+            if (this.journalId != null) {
+                updateJournalPosition();
+            }
             this.connection.commit();
         } catch (SQLException e) {
             try {
@@ -23,8 +23,29 @@ package org.georchestra.ogcservstatistics.dataservices;
  */
 public final class LogColumns {
 
+    /** the view of the logs with the values of their dimensions */
     public static final String QUALIFIED_TABLE_NAME = "ogcstatistics.OGC_SERVICES_LOG";
 
+    /**
+     * the logs with the keys of their dimensions, see
+     * {@link DimensionCache.Dimension}
+     */
+    public static final String FACT_TABLE_NAME = "ogcstatistics.ogc_services_fact";
+
+    /** the position up to which each local journal has been replayed */
+    public static final String JOURNAL_TABLE_NAME = "ogcstatistics.ogc_services_journal";
+
+    /** the number of requests by hour and by day, see RefreshRollupsCommand */
+    public static final String HOURLY_TABLE_NAME = "ogcstatistics.ogc_services_log_hourly";
+    public static final String DAILY_TABLE_NAME = "ogcstatistics.ogc_services_log_daily";
+
+    /**
+     * the function returning the number of requests from the rollups and the logs
+     * not rolled up yet, with the columns of the logs and a count
+     */
+    public static final String COUNTS_FUNCTION = "ogcstatistics.ogc_services_counts";
+    public static final String COUNT_COLUMN = "count";
+
     public static final String DATE_COLUMN = "date";
     public static final String USER_COLUMN = "user_name";
     public static final String SERVICE_COLUMN = "service";
@@ -33,6 +54,26 @@ public final class LogColumns {
     public static final String ORG_COLUMN = "org";
     public static final String SECROLE_COLUMN = "roles";
 
+    // the keys of the dimensions in the fact table
+    public static final String SERVICE_KEY_COLUMN = "service_id";
+    public static final String LAYER_KEY_COLUMN = "layer_id";
+    public static final String REQUEST_KEY_COLUMN = "request_id";
+    public static final String USER_KEY_COLUMN = "user_id";
+    public static final String ORG_KEY_COLUMN = "org_id";
+    public static final String SECROLE_KEY_COLUMN = "roles_id";
+
+    // response measures, null for the logs of a producer which does not know them
+    public static final String TTFB_COLUMN = "ttfb_ms";
+    public static final String DURATION_COLUMN = "duration_ms";
+    public static final String BYTES_COLUMN = "bytes_sent";
+    public static final String STATUS_COLUMN = "http_status";
+
+    /**
+     * the number of requests a log stands for, more than one for the logs sampled
+     * or aggregated by the appender, whose measures are then averaged
+     */
+    public static final String WEIGHT_COLUMN = "weight";
+
     private LogColumns() {
         // private constructor, force class being purely a utility class
     }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.dataservices;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Creates the monthly partitions of the fact table ahead of time, and drops the
+ * partitions older than {@link #setRetentionMonths retentionMonths}, once their
+ * logs have been rolled up.
+ * <p>
+ * When an archive directory is set, the logs of a partition, with the values of
+ * their dimensions, are written to a gzipped CSV file named after it before it
+ * is dropped, which can be loaded back with:
+ * </p>
+ * 
+ * <pre>
+ * gunzip -c ogcstatistics.ogc_services_fact_y2019m1.csv.gz | psql -c "\copy ogcstatistics.ogc_services_log FROM STDIN WITH (FORMAT csv, HEADER)"
+ * </pre>
+ */
+public final class MaintainPartitionsCommand extends AbstractDataCommand {
+
+    private static final String SQL_CREATE = "SELECT ogcstatistics.create_partitions(?)";
+
+    private static final String SQL_EXPIRED = "SELECT partition, from_date, to_date FROM ogcstatistics.expired_partitions(?)";
+
+    private static final String SQL_ARCHIVE = "SELECT * FROM " + LogColumns.QUALIFIED_TABLE_NAME
+            + " WHERE date >= ? AND date < ?";
+
+    private static final String SQL_DROP = "SELECT ogcstatistics.drop_partition(?::regclass)";
+
+    private static final int FETCH_SIZE = 10_000;
+
+    private int monthsAhead = 3;
+
+    private int retentionMonths = 0;
+
+    private File archiveDirectory;
+
+    private final List<String> dropped = new ArrayList<>();
+
+    /**
+     * @param monthsAhead the number of months after the current one whose
+     *                    partitions are created
+     */
+    public void setMonthsAhead(final int monthsAhead) {
+        this.monthsAhead = monthsAhead;
+    }
+
+    /**
+     * @param retentionMonths the number of whole months before the current one
+     *                        whose partitions are kept, 0 to keep them all
+     */
+    public void setRetentionMonths(final int retentionMonths) {
+        this.retentionMonths = retentionMonths;
+    }
+
+    /**
+     * @param archiveDirectory the directory the partitions are archived to before
+     *                         being dropped, null to drop them without archive
+     */
+    public void setArchiveDirectory(final File archiveDirectory) {
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    @Override
+    public void execute() throws DataCommandException {
+
+        assert this.connection != null : "database connection is null, use setConnection";
+
+        try {
+            this.connection.setAutoCommit(true);
+            try (PreparedStatement pStmt = this.connection.prepareStatement(SQL_CREATE)) {
+                pStmt.setInt(1, this.monthsAhead);
+                pStmt.execute();
+            }
+            if (this.retentionMonths <= 0) {
+                return;
+            }
+            List<String> expired = new ArrayList<>();
+            List<Timestamp[]> bounds = new ArrayList<>();
+            try (PreparedStatement pStmt = this.connection.prepareStatement(SQL_EXPIRED)) {
+                pStmt.setInt(1, this.retentionMonths);
+                try (ResultSet rs = pStmt.executeQuery()) {
+                    while (rs.next()) {
+                        expired.add(rs.getString(1));
+                        bounds.add(new Timestamp[] { rs.getTimestamp(2), rs.getTimestamp(3) });
+                    }
+                }
+            }
+            for (int i = 0; i < expired.size(); i++) {
+                String partition = expired.get(i);
+                if (this.archiveDirectory != null) {
+                    archive(partition, bounds.get(i)[0], bounds.get(i)[1]);
+                }
+                try (PreparedStatement pStmt = this.connection.prepareStatement(SQL_DROP)) {
+                    pStmt.setString(1, partition);
+                    pStmt.execute();
+                }
+                this.dropped.add(partition);
+            }
+        } catch (SQLException e) {
+            throw new DataCommandException(e);
+        }
+    }
+
+    /**
+     * Writes the logs of the partition, read through the logs view, to a gzipped
+     * CSV file, replacing the file only once complete.
+     */
+    private void archive(String partition, Timestamp from, Timestamp to) throws SQLException, DataCommandException {
+        File file = new File(this.archiveDirectory, partition + ".csv.gz");
+        File tmp = new File(this.archiveDirectory, partition + ".csv.gz.tmp");
+        // the logs are fetched by batches within a transaction
+        this.connection.setAutoCommit(false);
+        try (PreparedStatement pStmt = this.connection.prepareStatement(SQL_ARCHIVE)) {
+            pStmt.setFetchSize(FETCH_SIZE);
+            pStmt.setTimestamp(1, from);
+            pStmt.setTimestamp(2, to);
+            try (ResultSet rs = pStmt.executeQuery();
+                    Writer out = new BufferedWriter(new OutputStreamWriter(
+                            new GZIPOutputStream(new FileOutputStream(tmp)), StandardCharsets.UTF_8))) {
+                ResultSetMetaData metaData = rs.getMetaData();
+                int columns = metaData.getColumnCount();
+                for (int i = 1; i <= columns; i++) {
+                    out.write(i == 1 ? "" : ",");
+                    out.write(metaData.getColumnLabel(i));
+                }
+                out.write('\n');
+                while (rs.next()) {
+                    for (int i = 1; i <= columns; i++) {
+                        out.write(i == 1 ? "" : ",");
+                        String value = rs.getString(i);
+                        // an unquoted empty value is read back as null
+                        if (value != null) {
+                            out.write('"');
+                            out.write(value.replace("\"", "\"\""));
+                            out.write('"');
+                        }
+                    }
+                    out.write('\n');
+                }
+            }
+            this.connection.commit();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            this.connection.rollback();
+            tmp.delete();
+            throw new DataCommandException("Failed to archive " + partition + " to " + file, e);
+        } finally {
+            this.connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * @return the partitions dropped, qualified by their schema
+     */
+    public List<String> getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.georchestra.ogcservstatistics.dataservices;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Adds the logs inserted since the last refresh to the hourly and daily
+ * rollups, by a batch of at most {@link #setBatchSize batchSize} logs.
+ * <p>
+ * The identifier of the last log rolled up is kept in database, along with the
+ * rollups: the logs with a greater identifier are counted from the logs table
+ * until they are rolled up. To not skip a log whose transaction would commit
+ * after the refresh, the refresh first waits for the pending inserts, in a
+ * transaction of its own.
+ * </p>
+ */
+public final class RefreshRollupsCommand extends AbstractDataCommand {
+
+    private static final String SQL_BOUND = "SELECT ogcstatistics.rollup_bound()";
+
+    private static final String SQL_REFRESH = "SELECT ogcstatistics.refresh_rollups(?, ?)";
+
+    private long batchSize = 100_000;
+
+    private long bound = -1;
+
+    private long lastId = -1;
+
+    public void setBatchSize(final long batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void execute() throws DataCommandException {
+
+        assert this.connection != null : "database connection is null, use setConnection";
+
+        try {
+            this.connection.setAutoCommit(true);
+            try (Statement stmt = this.connection.createStatement(); ResultSet rs = stmt.executeQuery(SQL_BOUND)) {
+                rs.next();
+                this.bound = rs.getLong(1);
+            }
+            try (PreparedStatement pStmt = this.connection.prepareStatement(SQL_REFRESH)) {
+                pStmt.setLong(1, this.bound);
+                pStmt.setLong(2, this.batchSize);
+                try (ResultSet rs = pStmt.executeQuery()) {
+                    rs.next();
+                    this.lastId = rs.getLong(1);
+                }
+            }
+        } catch (SQLException e) {
+            throw new DataCommandException(e);
+        }
+    }
+
+    /**
+     * @return the identifier up to which the logs could be rolled up
+     */
+    public long getBound() {
+        return bound;
+    }
+
+    /**
+     * @return the identifier of the last log rolled up, less than
+     *         {@link #getBound()} if there are more logs to roll up
+     */
+    public long getLastId() {
+        return lastId;
+    }
+}
@@ -19,11 +19,15 @@
 
 package org.georchestra.ogcservstatistics.dataservices;
 
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.BYTES_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DATE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DURATION_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.LAYER_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.QUALIFIED_TABLE_NAME;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SECROLE_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SERVICE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.STATUS_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.TTFB_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.USER_COLUMN;
 
 import java.sql.PreparedStatement;
@@ -41,8 +45,9 @@ import java.util.Map;
 public final class RetrieveAllCommand extends AbstractQueryCommand {
 
     private static final String SQL = " SELECT " + DATE_COLUMN + "," + USER_COLUMN + "," + SERVICE_COLUMN + ","
-            + LAYER_COLUMN + "," + SECROLE_COLUMN + " FROM " + QUALIFIED_TABLE_NAME + " ORDER BY " + DATE_COLUMN + ","
-            + USER_COLUMN + "," + SERVICE_COLUMN + "," + LAYER_COLUMN + "," + SECROLE_COLUMN;
+            + LAYER_COLUMN + "," + SECROLE_COLUMN + "," + TTFB_COLUMN + "," + DURATION_COLUMN + "," + BYTES_COLUMN + ","
+            + STATUS_COLUMN + " FROM " + QUALIFIED_TABLE_NAME + " ORDER BY " + DATE_COLUMN + "," + USER_COLUMN + ","
+            + SERVICE_COLUMN + "," + LAYER_COLUMN + "," + SECROLE_COLUMN;
 
     protected PreparedStatement prepareStatement() throws SQLException {
         return connection.prepareStatement(SQL);
@@ -50,12 +55,16 @@ public final class RetrieveAllCommand extends AbstractQueryCommand {
 
     protected Map<String, Object> getRow(ResultSet rs) throws SQLException {
 
-        Map<String, Object> row = new HashMap<>(5);
+        Map<String, Object> row = new HashMap<>(16);
         row.put(DATE_COLUMN, rs.getDate(DATE_COLUMN));
         row.put(USER_COLUMN, rs.getString(USER_COLUMN));
         row.put(SERVICE_COLUMN, rs.getString(SERVICE_COLUMN));
         row.put(LAYER_COLUMN, rs.getString(LAYER_COLUMN));
         row.put(SECROLE_COLUMN, rs.getString(SECROLE_COLUMN));
+        row.put(TTFB_COLUMN, rs.getObject(TTFB_COLUMN));
+        row.put(DURATION_COLUMN, rs.getObject(DURATION_COLUMN));
+        row.put(BYTES_COLUMN, rs.getObject(BYTES_COLUMN));
+        row.put(STATUS_COLUMN, rs.getObject(STATUS_COLUMN));
 
         return row;
     }
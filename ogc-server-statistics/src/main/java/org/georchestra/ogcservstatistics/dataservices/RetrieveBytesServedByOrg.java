@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.dataservices;
+
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.BYTES_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.ORG_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.QUALIFIED_TABLE_NAME;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.WEIGHT_COLUMN;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * List of the N organizations which were sent the most bytes
+ */
+public final class RetrieveBytesServedByOrg extends AbstractQueryCommand {
+
+    public static final String CONNECTIONS_COLUMN = "connections";
+
+    /**
+     * builds the sql query taking into account if a month is or isn't specified.
+     * The logs without response size are ignored.
+     * 
+     * @return the sql statement
+     */
+    private String getSQLStatement() {
+
+        StringBuilder sql = new StringBuilder();
+
+        sql.append(" SELECT ").append(ORG_COLUMN).append(",sum(").append(WEIGHT_COLUMN).append(") as ")
+                .append(CONNECTIONS_COLUMN);
+        sql.append(",sum(").append(BYTES_COLUMN).append(" * ").append(WEIGHT_COLUMN).append(") as ")
+                .append(BYTES_COLUMN);
+        sql.append(" FROM ").append(QUALIFIED_TABLE_NAME);
+        sql.append(getDateCondition());
+        sql.append(" AND ").append(BYTES_COLUMN).append(" IS NOT NULL");
+        sql.append(" GROUP BY ").append(ORG_COLUMN);
+        sql.append(" ORDER BY ").append(BYTES_COLUMN).append(" DESC");
+        sql.append(" LIMIT ?");
+
+        return sql.toString();
+    }
+
+    @Override
+    protected PreparedStatement prepareStatement() throws SQLException {
+
+        PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
+
+        int index = setDateParameters(pStmt, 1);
+        assert this.limit > 0;
+        pStmt.setInt(index, this.limit);
+
+        return pStmt;
+    }
+
+    @Override
+    protected Map<String, Object> getRow(ResultSet rs) throws SQLException {
+        Map<String, Object> row = new HashMap<>(4);
+        row.put(ORG_COLUMN, rs.getString(ORG_COLUMN));
+        row.put(CONNECTIONS_COLUMN, rs.getInt(CONNECTIONS_COLUMN));
+        row.put(BYTES_COLUMN, rs.getLong(BYTES_COLUMN));
+
+        return row;
+    }
+
+}
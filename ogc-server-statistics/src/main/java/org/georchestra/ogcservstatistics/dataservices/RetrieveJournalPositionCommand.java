@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.dataservices;
+
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.JOURNAL_TABLE_NAME;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Retrieves the position up to which a local journal has been replayed, as
+ * recorded by {@link InsertCommand#setJournalPosition}.
+ */
+public final class RetrieveJournalPositionCommand extends AbstractDataCommand {
+
+    private static final String SQL_SELECT = "SELECT segment, position FROM " + JOURNAL_TABLE_NAME
+            + " WHERE journal_id = ?";
+
+    private String journalId;
+
+    private long segment = -1;
+
+    private long position = -1;
+
+    public void setJournalId(final String journalId) {
+        this.journalId = journalId;
+    }
+
+    @Override
+    public void execute() throws DataCommandException {
+
+        assert this.connection != null : "database connection is null, use setConnection";
+
+        try (PreparedStatement pStmt = this.connection.prepareStatement(SQL_SELECT)) {
+            pStmt.setString(1, this.journalId);
+            try (ResultSet rs = pStmt.executeQuery()) {
+                if (rs.next()) {
+                    this.segment = rs.getLong(1);
+                    this.position = rs.getLong(2);
+                }
+            }
+        } catch (SQLException e) {
+            throw new DataCommandException(e);
+        }
+    }
+
+    /**
+     * @return the replayed segment, -1 if the journal has never been replayed
+     */
+    public long getSegment() {
+        return segment;
+    }
+
+    /**
+     * @return the offset in the replayed segment, -1 if the journal has never been
+     *         replayed
+     */
+    public long getPosition() {
+        return position;
+    }
+}
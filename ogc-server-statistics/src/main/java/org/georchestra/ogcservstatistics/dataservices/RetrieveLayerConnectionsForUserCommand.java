@@ -22,6 +22,7 @@ package org.georchestra.ogcservstatistics.dataservices;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.LAYER_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.QUALIFIED_TABLE_NAME;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.USER_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.WEIGHT_COLUMN;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -48,14 +49,10 @@ public final class RetrieveLayerConnectionsForUserCommand extends AbstractQueryC
 
         StringBuilder sql = new StringBuilder();
 
-        sql.append(" SELECT ").append(USER_COLUMN).append(",").append(LAYER_COLUMN).append(",count(")
-                .append(LAYER_COLUMN).append(") as ").append(CONNECTIONS_COLUMN).append(" FROM ")
-                .append(QUALIFIED_TABLE_NAME);
-        if (this.month > 0) {
-            sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? AND EXTRACT(MONTH FROM date) = ?");
-        } else {
-            sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? ");
-        }
+        sql.append(" SELECT ").append(USER_COLUMN).append(",").append(LAYER_COLUMN).append(",sum(")
+                .append(WEIGHT_COLUMN).append(") FILTER (WHERE ").append(LAYER_COLUMN).append(" IS NOT NULL) as ")
+                .append(CONNECTIONS_COLUMN).append(" FROM ").append(QUALIFIED_TABLE_NAME);
+        sql.append(getDateCondition());
         sql.append(" GROUP BY ").append(USER_COLUMN).append(",").append(LAYER_COLUMN);
         sql.append(" ORDER BY ").append(USER_COLUMN).append(",").append(LAYER_COLUMN);
 
@@ -69,14 +66,7 @@ public final class RetrieveLayerConnectionsForUserCommand extends AbstractQueryC
     protected PreparedStatement prepareStatement() throws SQLException {
 
         PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
-        assert year > 0 : "year is expected";
-
-        pStmt.setInt(1, this.year);
-
-        // if the month was specified then set it in the statement
-        if (this.month > 0) {
-            pStmt.setInt(2, this.month);
-        }
+        setDateParameters(pStmt, 1);
 
         return pStmt;
     }
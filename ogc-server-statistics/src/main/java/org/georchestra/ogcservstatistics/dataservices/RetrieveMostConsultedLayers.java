@@ -19,8 +19,11 @@
 
 package org.georchestra.ogcservstatistics.dataservices;
 
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.COUNTS_FUNCTION;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.COUNT_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.LAYER_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.QUALIFIED_TABLE_NAME;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.WEIGHT_COLUMN;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -38,8 +41,11 @@ public final class RetrieveMostConsultedLayers extends AbstractQueryCommand {
 
     private static final String CONNECTIONS_COLUMN = "connections";
 
+    private final boolean useRollups = DataServicesConfiguration.getInstance().isUseRollups();
+
     /**
-     * builds the sql query taking into account if a month is or isn't specified.
+     * builds the sql query taking into account if a month is or isn't specified,
+     * counting the requests from the daily rollup if enabled.
      * 
      * @return the sql statement
      */
@@ -47,13 +53,15 @@ public final class RetrieveMostConsultedLayers extends AbstractQueryCommand {
 
         StringBuilder sql = new StringBuilder();
 
-        sql.append(" SELECT ").append(LAYER_COLUMN).append(",count(").append(LAYER_COLUMN).append(") as ")
-                .append(CONNECTIONS_COLUMN).append(" FROM ").append(QUALIFIED_TABLE_NAME);
-        if (this.month > 0) {
-            sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? AND EXTRACT(MONTH FROM date) = ?");
+        if (this.useRollups) {
+            sql.append(" SELECT ").append(LAYER_COLUMN).append(",sum(").append(COUNT_COLUMN).append(") as ")
+                    .append(CONNECTIONS_COLUMN).append(" FROM ").append(COUNTS_FUNCTION).append("(?, ?, 'day')");
         } else {
-            sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? ");
+            sql.append(" SELECT ").append(LAYER_COLUMN).append(",sum(").append(WEIGHT_COLUMN).append(") FILTER (WHERE ")
+                    .append(LAYER_COLUMN).append(" IS NOT NULL) as ").append(CONNECTIONS_COLUMN).append(" FROM ")
+                    .append(QUALIFIED_TABLE_NAME);
         }
+        sql.append(getDateCondition());
         sql.append(" GROUP BY ").append(LAYER_COLUMN);
         sql.append(" ORDER BY ").append(CONNECTIONS_COLUMN).append(" DESC");
         sql.append(" LIMIT ?");
@@ -65,19 +73,15 @@ public final class RetrieveMostConsultedLayers extends AbstractQueryCommand {
     protected PreparedStatement prepareStatement() throws SQLException {
 
         PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
-        assert year > 0 : "year is expected";
-
-        pStmt.setInt(1, this.year);
 
-        // if the month was specified then set it in the statement
-        if (this.month > 0) {
-            pStmt.setInt(2, this.month);
-            assert this.limit > 0;
-            pStmt.setInt(3, this.limit);
-        } else {
-            assert this.limit > 0;
-            pStmt.setInt(2, this.limit);
+        int index = 1;
+        if (this.useRollups) {
+            pStmt.setTimestamp(index++, getFromDate());
+            pStmt.setTimestamp(index++, getToDate());
         }
+        index = setDateParameters(pStmt, index);
+        assert this.limit > 0;
+        pStmt.setInt(index, this.limit);
 
         return pStmt;
     }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.dataservices;
+
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DURATION_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.QUALIFIED_TABLE_NAME;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SERVICE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.TTFB_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.WEIGHT_COLUMN;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * For each OGC service: the median and 95th percentile of the response time,
+ * and the 95th percentile of the time to first byte
+ */
+public final class RetrieveServiceLatency extends AbstractQueryCommand {
+
+    public static final String CONNECTIONS_COLUMN = "connections";
+    public static final String P50_DURATION_COLUMN = "p50_duration_ms";
+    public static final String P95_DURATION_COLUMN = "p95_duration_ms";
+    public static final String P95_TTFB_COLUMN = "p95_ttfb_ms";
+
+    /**
+     * builds the sql query taking into account if a month is or isn't specified.
+     * The logs without response time are ignored. The percentiles are computed on
+     * the logs, whatever the number of requests they stand for.
+     * 
+     * @return the sql statement
+     */
+    private String getSQLStatement() {
+
+        StringBuilder sql = new StringBuilder();
+
+        sql.append(" SELECT ").append(SERVICE_COLUMN).append(",sum(").append(WEIGHT_COLUMN).append(") as ")
+                .append(CONNECTIONS_COLUMN);
+        sql.append(",percentile_cont(0.5) WITHIN GROUP (ORDER BY ").append(DURATION_COLUMN).append(") as ")
+                .append(P50_DURATION_COLUMN);
+        sql.append(",percentile_cont(0.95) WITHIN GROUP (ORDER BY ").append(DURATION_COLUMN).append(") as ")
+                .append(P95_DURATION_COLUMN);
+        sql.append(",percentile_cont(0.95) WITHIN GROUP (ORDER BY ").append(TTFB_COLUMN).append(") as ")
+                .append(P95_TTFB_COLUMN);
+        sql.append(" FROM ").append(QUALIFIED_TABLE_NAME);
+        sql.append(getDateCondition());
+        sql.append(" AND ").append(DURATION_COLUMN).append(" IS NOT NULL");
+        sql.append(" GROUP BY ").append(SERVICE_COLUMN);
+        sql.append(" ORDER BY ").append(P95_DURATION_COLUMN).append(" DESC");
+
+        return sql.toString();
+    }
+
+    @Override
+    protected PreparedStatement prepareStatement() throws SQLException {
+
+        PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
+        setDateParameters(pStmt, 1);
+
+        return pStmt;
+    }
+
+    @Override
+    protected Map<String, Object> getRow(ResultSet rs) throws SQLException {
+        Map<String, Object> row = new HashMap<>(8);
+        row.put(SERVICE_COLUMN, rs.getString(SERVICE_COLUMN));
+        row.put(CONNECTIONS_COLUMN, rs.getInt(CONNECTIONS_COLUMN));
+        row.put(P50_DURATION_COLUMN, rs.getDouble(P50_DURATION_COLUMN));
+        row.put(P95_DURATION_COLUMN, rs.getDouble(P95_DURATION_COLUMN));
+        // null when no response was ever received
+        row.put(P95_TTFB_COLUMN, rs.getObject(P95_TTFB_COLUMN));
+
+        return row;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.dataservices;
+
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DURATION_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.LAYER_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.QUALIFIED_TABLE_NAME;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.WEIGHT_COLUMN;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * List of the N layers with the longest average response time
+ */
+public final class RetrieveSlowestLayers extends AbstractQueryCommand {
+
+    public static final String CONNECTIONS_COLUMN = "connections";
+    public static final String AVG_DURATION_COLUMN = "avg_duration_ms";
+    public static final String P95_DURATION_COLUMN = "p95_duration_ms";
+    public static final String MAX_DURATION_COLUMN = "max_duration_ms";
+
+    /**
+     * builds the sql query taking into account if a month is or isn't specified.
+     * The logs without response time are ignored. The percentile is computed on the
+     * logs, whatever the number of requests they stand for.
+     * 
+     * @return the sql statement
+     */
+    private String getSQLStatement() {
+
+        StringBuilder sql = new StringBuilder();
+
+        sql.append(" SELECT ").append(LAYER_COLUMN).append(",sum(").append(WEIGHT_COLUMN).append(") as ")
+                .append(CONNECTIONS_COLUMN);
+        sql.append(",sum(").append(DURATION_COLUMN).append("::float8 * ").append(WEIGHT_COLUMN).append(") / sum(")
+                .append(WEIGHT_COLUMN).append(") as ").append(AVG_DURATION_COLUMN);
+        sql.append(",percentile_cont(0.95) WITHIN GROUP (ORDER BY ").append(DURATION_COLUMN).append(") as ")
+                .append(P95_DURATION_COLUMN);
+        sql.append(",max(").append(DURATION_COLUMN).append(") as ").append(MAX_DURATION_COLUMN);
+        sql.append(" FROM ").append(QUALIFIED_TABLE_NAME);
+        sql.append(getDateCondition());
+        sql.append(" AND ").append(DURATION_COLUMN).append(" IS NOT NULL");
+        sql.append(" GROUP BY ").append(LAYER_COLUMN);
+        sql.append(" ORDER BY ").append(AVG_DURATION_COLUMN).append(" DESC");
+        sql.append(" LIMIT ?");
+
+        return sql.toString();
+    }
+
+    @Override
+    protected PreparedStatement prepareStatement() throws SQLException {
+
+        PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
+
+        int index = setDateParameters(pStmt, 1);
+        assert this.limit > 0;
+        pStmt.setInt(index, this.limit);
+
+        return pStmt;
+    }
+
+    @Override
+    protected Map<String, Object> getRow(ResultSet rs) throws SQLException {
+        Map<String, Object> row = new HashMap<>(8);
+        row.put(LAYER_COLUMN, rs.getString(LAYER_COLUMN));
+        row.put(CONNECTIONS_COLUMN, rs.getInt(CONNECTIONS_COLUMN));
+        row.put(AVG_DURATION_COLUMN, rs.getDouble(AVG_DURATION_COLUMN));
+        row.put(P95_DURATION_COLUMN, rs.getDouble(P95_DURATION_COLUMN));
+        row.put(MAX_DURATION_COLUMN, rs.getInt(MAX_DURATION_COLUMN));
+
+        return row;
+    }
+
+}
@@ -22,6 +22,7 @@ package org.georchestra.ogcservstatistics.dataservices;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.LAYER_COLUMN;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.QUALIFIED_TABLE_NAME;
 import static org.georchestra.ogcservstatistics.dataservices.LogColumns.USER_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.WEIGHT_COLUMN;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -50,13 +51,9 @@ public final class RetrieveUserConnectionForLayerCommand extends AbstractQueryCo
         StringBuilder sql = new StringBuilder();
 
         sql.append(" SELECT ").append(LAYER_COLUMN).append(",").append(USER_COLUMN)
-                .append(",count(" + USER_COLUMN + ") as ").append(CONNECTIONS_COLUMN).append(" FROM ")
-                .append(QUALIFIED_TABLE_NAME);
-        if (this.month > 0) {
-            sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? AND EXTRACT(MONTH FROM date) = ?");
-        } else {
-            sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? ");
-        }
+                .append(",sum(" + WEIGHT_COLUMN + ") FILTER (WHERE " + USER_COLUMN + " IS NOT NULL) as ")
+                .append(CONNECTIONS_COLUMN).append(" FROM ").append(QUALIFIED_TABLE_NAME);
+        sql.append(getDateCondition());
         sql.append(" GROUP BY ").append(LAYER_COLUMN).append(",").append(USER_COLUMN);
         sql.append(" ORDER BY ").append(LAYER_COLUMN).append(",").append(USER_COLUMN);
 
@@ -69,15 +66,8 @@ public final class RetrieveUserConnectionForLayerCommand extends AbstractQueryCo
     @Override
     protected PreparedStatement prepareStatement() throws SQLException {
 
-        assert year > 0 : "year is expected";
-
         PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
-        pStmt.setInt(1, this.year);
-
-        // if the month was specified then sets it in the statement
-        if (this.month > 0) {
-            pStmt.setInt(2, this.month);
-        }
+        setDateParameters(pStmt, 1);
 
         return pStmt;
     }
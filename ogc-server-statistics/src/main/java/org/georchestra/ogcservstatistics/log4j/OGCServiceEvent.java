@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.log4j;
+
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.BYTES_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DATE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DURATION_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.LAYER_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.ORG_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.REQUEST_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SECROLE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SERVICE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.STATUS_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.TTFB_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.USER_COLUMN;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An OGC service request, already split into service, operation and layers.
+ * <p>
+ * A producer which knows the parameters of the request logs this object instead
+ * of a message built by {@link OGCServiceMessageFormatter}: the
+ * {@link OGCServicesAppender} then records it as is, without parsing the
+ * request. {@link #toString()} returns the formatted message, so that the other
+ * appenders log the same text as before.
+ * </p>
+ */
+public final class OGCServiceEvent {
+
+    private static final Set<String> SERVICES = new HashSet<>(Arrays.asList("WMS", "WFS", "WCS", "WMTS"));
+
+    private static final Set<String> OPERATIONS = new HashSet<>(Arrays.asList("GETCAPABILITIES", "GETMAP",
+            "GETLEGENDGRAPHIC", "GETFEATUREINFO", "DESCRIBELAYER", "GETFEATURE", "DESCRIBEFEATURETYPE", "GETCOVERAGE",
+            "DESCRIBECOVERAGE", "GETTILE", "GETSTYLES", "GETPROPERTYVALUE", "LOCKFEATURE", "GETFEATUREWITHLOCK",
+            "LISTSTOREDQUERIES", "DESCRIBESTOREDQUERIES", "CREATESTOREDQUERY", "DROPSTOREDQUERY", "TRANSACTION"));
+
+    /** the parameters holding the layer names, the last one present winning */
+    private static final List<String> LAYER_PARAMETERS = Arrays.asList("LAYERS", "LAYER", "TYPENAME", "QUERY_LAYERS",
+            "COVERAGEID");
+
+    /** starts the journal records of the events, see {@link #toJournal()} */
+    static final String JOURNAL_MARKER = "\u001E";
+
+    private final String user;
+    private final Date date;
+    private final String request;
+    private final String service;
+    private final String operation;
+    private final List<String> layers;
+    private final String org;
+    private final String[] roles;
+
+    private final long ttfb;
+    private final long duration;
+    private final long bytes;
+    private final int httpStatus;
+
+    /**
+     * @param user      the user name
+     * @param date      the date the request was received
+     * @param request   the requested URL
+     * @param service   the OGC service, e.g. WMS
+     * @param operation the OGC operation in lower case, "" if unknown
+     * @param layers    the requested layers in lower case, empty if none
+     * @param org       the org of the user, may be null
+     * @param roles     the roles of the user
+     */
+    public OGCServiceEvent(final String user, final Date date, final String request, final String service,
+            final String operation, final List<String> layers, final String org, final String[] roles) {
+        this(user, date, request, service, operation, layers, org, roles, -1, -1, -1, -1);
+    }
+
+    private OGCServiceEvent(final String user, final Date date, final String request, final String service,
+            final String operation, final List<String> layers, final String org, final String[] roles, final long ttfb,
+            final long duration, final long bytes, final int httpStatus) {
+        if (user == null) {
+            throw new IllegalArgumentException("user cannot be null");
+        }
+        if (date == null) {
+            throw new IllegalArgumentException("date cannot be null");
+        }
+        if (request == null) {
+            throw new IllegalArgumentException("request cannot be null");
+        }
+        if ((service == null) || "".equals(service)) {
+            throw new IllegalArgumentException("service cannot be null");
+        }
+        if (roles == null) {
+            throw new IllegalArgumentException("roles cannot be null");
+        }
+        this.user = user;
+        this.date = date;
+        this.request = request;
+        this.service = service;
+        this.operation = operation == null ? "" : operation;
+        this.layers = layers == null ? Collections.emptyList() : layers;
+        this.org = org;
+        this.roles = roles;
+        this.ttfb = ttfb;
+        this.duration = duration;
+        this.bytes = bytes;
+        this.httpStatus = httpStatus;
+    }
+
+    /**
+     * Builds the event of a request from its decoded parameters, the names of the
+     * parameters being case insensitive.
+     * 
+     * @param user
+     * @param date       the date the request was received
+     * @param request    the requested URL
+     * @param parameters the parameters of the request
+     * @param org
+     * @param roles
+     * 
+     * @return the event, null if the parameters do not tell an OGC service
+     */
+    public static OGCServiceEvent fromParameters(final String user, final Date date, final String request,
+            final Map<String, String[]> parameters, final String org, final String[] roles) {
+        String service = null;
+        String operation = null;
+        String[] layerValues = null;
+        int layerParameter = -1;
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            String[] values = parameter.getValue();
+            if (values == null || values.length == 0) {
+                continue;
+            }
+            String name = parameter.getKey().toUpperCase(Locale.ROOT);
+            if ("SERVICE".equals(name)) {
+                service = values[0].trim().toUpperCase(Locale.ROOT);
+            } else if ("REQUEST".equals(name)) {
+                operation = values[0].trim().toUpperCase(Locale.ROOT);
+            } else {
+                int index = LAYER_PARAMETERS.indexOf(name);
+                if (index > layerParameter) {
+                    layerParameter = index;
+                    layerValues = values;
+                }
+            }
+        }
+        if (!SERVICES.contains(service)) {
+            // legend graphics are requested without the service parameter
+            if ("GETLEGENDGRAPHIC".equals(operation)) {
+                service = "WMS";
+            } else {
+                return null;
+            }
+        }
+        operation = OPERATIONS.contains(operation) ? operation.toLowerCase(Locale.ROOT) : "";
+
+        List<String> layers = new ArrayList<>();
+        if (layerValues != null) {
+            for (String layer : layerValues[0].split(",")) {
+                layers.add(layer.replace('"', ' ').trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        return new OGCServiceEvent(user, date, request, service, operation, layers, org, roles);
+    }
+
+    /**
+     * Builds the event of a POST request from its URL and XML body, e.g. a WFS
+     * GetFeature, see {@link OGCServiceXmlExtractor}.
+     * 
+     * @param user
+     * @param date    the date the request was received
+     * @param request the requested URL
+     * @param body    the body, of which at most limit bytes are read, and which is
+     *                not closed
+     * @param limit   the maximum number of bytes read from the body
+     * @param org
+     * @param roles
+     * 
+     * @return the event, null if neither the URL nor the body tell an OGC service
+     */
+    public static OGCServiceEvent fromXmlRequest(final String user, final Date date, final String request,
+            final InputStream body, final int limit, final String org, final String[] roles) {
+        OGCServiceRequest parsed = OGCServiceRequest.parse(request, body, limit);
+        if (parsed.getService().isEmpty()) {
+            return null;
+        }
+        return new OGCServiceEvent(user, date, request, parsed.getService(), parsed.getOperation(), parsed.getLayers(),
+                org, roles);
+    }
+
+    /**
+     * @param ttfb       milliseconds until the response head was received, -1 if no
+     *                   response was received
+     * @param duration   milliseconds until the response was fully sent
+     * @param bytes      bytes of the response body sent to the client
+     * @param httpStatus status of the response sent to the client
+     * 
+     * @return a copy of this event with the measures of the response
+     */
+    public OGCServiceEvent withResponse(final long ttfb, final long duration, final long bytes, final int httpStatus) {
+        return new OGCServiceEvent(user, date, request, service, operation, layers, org, roles, ttfb, duration, bytes,
+                httpStatus);
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public String getRequest() {
+        return request;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public List<String> getLayers() {
+        return layers;
+    }
+
+    public String getOrg() {
+        return org;
+    }
+
+    public String[] getRoles() {
+        return roles;
+    }
+
+    /**
+     * @return true if the measures of the response are known
+     */
+    public boolean hasResponse() {
+        return duration >= 0;
+    }
+
+    /**
+     * Builds the rows to insert in the log table, one per layer.
+     * 
+     * @return list of logs
+     */
+    public List<Map<String, Object>> toLogs() {
+        List<String> layerList = layers.isEmpty() ? Collections.singletonList("") : layers;
+        String joinedRoles = String.join(",", roles);
+        List<Map<String, Object>> logList = new ArrayList<>(layerList.size());
+        int layerIndex = 0;
+        for (String layer : layerList) {
+            Map<String, Object> log = new HashMap<>(16);
+
+            log.put(USER_COLUMN, user);
+            log.put(DATE_COLUMN, date);
+            log.put(SERVICE_COLUMN, service);
+            log.put(LAYER_COLUMN, layer);
+            log.put(REQUEST_COLUMN, operation);
+            log.put(ORG_COLUMN, org == null ? "" : org);
+            log.put(SECROLE_COLUMN, joinedRoles);
+            if (hasResponse()) {
+                log.put(TTFB_COLUMN, ttfb < 0 ? null : Integer.valueOf((int) ttfb));
+                log.put(DURATION_COLUMN, Integer.valueOf((int) duration));
+                // the bytes are shared among the layers, so that their sum is the size of
+                // the response
+                log.put(BYTES_COLUMN, share(bytes, layerList.size(), layerIndex++));
+                log.put(STATUS_COLUMN, Integer.valueOf(httpStatus));
+            }
+
+            logList.add(log);
+        }
+        return logList;
+    }
+
+    /**
+     * @return the part of total accounted to the i-th of n, the remainder going to
+     *         the first one
+     */
+    private static long share(long total, int n, int i) {
+        return total / n + (i == 0 ? total % n : 0);
+    }
+
+    /**
+     * Serializes the fields of this event, including the measures of the response,
+     * to be journaled and read back by {@link #fromJournal(String)}. The record
+     * starts with {@link #JOURNAL_MARKER}, which no formatted message starts with,
+     * and each of its fields is preceded by a tabulation.
+     * 
+     * @return the journal record of this event
+     */
+    String toJournal() {
+        StringBuilder record = new StringBuilder(128).append(JOURNAL_MARKER);
+        appendField(record, user);
+        appendField(record, Long.toString(date.getTime()));
+        appendField(record, request);
+        appendField(record, service);
+        appendField(record, operation);
+        appendField(record, org == null ? "" : org);
+        appendField(record, String.join(",", roles));
+        appendField(record, Long.toString(ttfb));
+        appendField(record, Long.toString(duration));
+        appendField(record, Long.toString(bytes));
+        appendField(record, Integer.toString(httpStatus));
+        // the layers come last, so that their names need no other separator
+        for (String layer : layers) {
+            appendField(record, layer);
+        }
+        return record.toString();
+    }
+
+    private static void appendField(StringBuilder record, String value) {
+        record.append('\t');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                record.append("\\\\");
+            } else if (c == '\t') {
+                record.append("\\t");
+            } else if (c == '\n') {
+                record.append("\\n");
+            } else if (c == '\r') {
+                record.append("\\r");
+            } else {
+                record.append(c);
+            }
+        }
+    }
+
+    /**
+     * @return true if record has been built by {@link #toJournal()}, otherwise it
+     *         is a message formatted by {@link OGCServiceMessageFormatter}
+     */
+    static boolean isJournal(String record) {
+        return record.startsWith(JOURNAL_MARKER);
+    }
+
+    /**
+     * Reads an event back from its journal record.
+     * 
+     * @param record a record built by {@link #toJournal()}
+     * 
+     * @return the event
+     * @throws IllegalArgumentException if the record is malformed
+     */
+    static OGCServiceEvent fromJournal(String record) {
+        if (!isJournal(record)) {
+            throw new IllegalArgumentException("Not an ogc service event record: " + record);
+        }
+        List<String> fields = new ArrayList<>(12);
+        StringBuilder field = new StringBuilder();
+        for (int i = JOURNAL_MARKER.length() + 1; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (c == '\t') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\\' && i + 1 < record.length()) {
+                char escaped = record.charAt(++i);
+                field.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        if (fields.size() < 11) {
+            throw new IllegalArgumentException("Truncated ogc service event record: " + record);
+        }
+        String org = fields.get(5);
+        String roles = fields.get(6);
+        try {
+            return new OGCServiceEvent(fields.get(0), new Date(Long.parseLong(fields.get(1))), fields.get(2),
+                    fields.get(3), fields.get(4), new ArrayList<>(fields.subList(11, fields.size())),
+                    org.isEmpty() ? null : org, roles.isEmpty() ? new String[0] : roles.split(","),
+                    Long.parseLong(fields.get(7)), Long.parseLong(fields.get(8)), Long.parseLong(fields.get(9)),
+                    Integer.parseInt(fields.get(10)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed ogc service event record: " + record, e);
+        }
+    }
+
+    /**
+     * @return the message built by {@link OGCServiceMessageFormatter}
+     */
+    @Override
+    public String toString() {
+        if (hasResponse()) {
+            return OGCServiceMessageFormatter.format(user, date, request, org, roles, ttfb, duration, bytes,
+                    httpStatus);
+        }
+        return OGCServiceMessageFormatter.format(user, date, request, org, roles);
+    }
+}
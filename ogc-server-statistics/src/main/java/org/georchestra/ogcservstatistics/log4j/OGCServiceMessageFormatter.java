@@ -22,8 +22,8 @@ package org.georchestra.ogcservstatistics.log4j;
 import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 
 import org.apache.commons.logging.Log;
@@ -42,6 +42,10 @@ import org.apache.commons.logging.LogFactory;
  * userName | yyyy - MM - dd | ogcRequest
  * 
  * </pre>
+ * <p>
+ * optionally followed by the org and roles of the user, and the measures of the
+ * response once it has been sent.
+ * </p>
  * 
  * @see format
  * @author Mauricio Pazos
@@ -53,6 +57,9 @@ public class OGCServiceMessageFormatter {
     public static final String SEPARATOR = "|";
     public static final String DATE_FORMAT = "yyyy/MM/dd HH:mm:ss";
 
+    /** formats and parses the dates in {@link #DATE_FORMAT}, thread safe */
+    static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern(DATE_FORMAT);
+
     private OGCServiceMessageFormatter() {
         // utility class
     }
@@ -61,6 +68,48 @@ public class OGCServiceMessageFormatter {
         return format(user, new Date(), request, org, roles);
     }
 
+    /**
+     * Builds a formated string that can be recognized by the OGCServicesAppender,
+     * with the measures of the response.
+     * 
+     * <pre>
+     * Produced format:
+     * 
+     * user|yyyy-MM-dd|request|org|roles|ttfb|duration|bytes|status
+     * 
+     * </pre>
+     * 
+     * @param user
+     * @param date       the date the request was received
+     * @param request
+     * @param org
+     * @param roles
+     * @param ttfb       milliseconds until the response head was received, -1 if no
+     *                   response was received
+     * @param duration   milliseconds until the response was fully sent
+     * @param bytes      bytes of the response body sent to the client
+     * @param httpStatus status of the response sent to the client
+     * 
+     * @return The ogcservice message
+     */
+    public static String format(final String user, final Date date, final String request, final String org,
+            final String[] roles, final long ttfb, final long duration, final long bytes, final int httpStatus) {
+
+        StringBuilder ogcLogBuilder = new StringBuilder(format(user, date, request, org, roles));
+        ogcLogBuilder.append(SEPARATOR);
+        if (ttfb >= 0) {
+            ogcLogBuilder.append(ttfb);
+        }
+        ogcLogBuilder.append(SEPARATOR);
+        ogcLogBuilder.append(duration);
+        ogcLogBuilder.append(SEPARATOR);
+        ogcLogBuilder.append(bytes);
+        ogcLogBuilder.append(SEPARATOR);
+        ogcLogBuilder.append(httpStatus);
+
+        return ogcLogBuilder.toString();
+    }
+
     /**
      * Builds a formated string that can be recognized by the OGCServicesAppender.
      * 
@@ -100,8 +149,7 @@ public class OGCServiceMessageFormatter {
         ogcLogBuilder.append(SEPARATOR);
 
         // appends date
-        DateFormat formatter = new SimpleDateFormat(DATE_FORMAT);
-        ogcLogBuilder.append(formatter.format(date));
+        ogcLogBuilder.append(DATE_FORMATTER.format(date.toInstant().atZone(ZoneId.systemDefault())));
         ogcLogBuilder.append(SEPARATOR);
 
         // appends ogc service request
@@ -135,6 +183,10 @@ public class OGCServiceMessageFormatter {
 
     private static void log(final StringBuilder logBuilder) {
 
+        if (!LOGGER.isDebugEnabled()) {
+            return;
+        }
+
         StringBuilder debugLog = new StringBuilder("REQUEST: ");
         debugLog.append(logBuilder);
 
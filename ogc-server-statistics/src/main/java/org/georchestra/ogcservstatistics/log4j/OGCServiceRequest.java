@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.log4j;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The service, operation, version and layers of a logged request, read in a
+ * single pass over its query string.
+ * <p>
+ * The request is the URL, possibly followed on the next lines by the body of a
+ * POST request, read by {@link OGCServiceXmlExtractor} up to
+ * {@link OGCServiceXmlExtractor#DEFAULT_LIMIT} characters. Only the parameters
+ * of the query string are decoded. The rules are the ones of the former regular
+ * expressions of {@link OGCServiceParser}:
+ * <ul>
+ * <li>the service is told by the {@code SERVICE} parameter, or by the last path
+ * element before the query string: {@code wms}, {@code wfs},
+ * {@code wfsdispatcher} or {@code wcs}. A request without service asking for
+ * {@code GETLEGENDGRAPHIC} is a WMS request</li>
+ * <li>the operation is told by the {@code REQUEST} parameter</li>
+ * <li>the layers are told by the last present of the {@code LAYERS},
+ * {@code LAYER}, {@code TYPENAME}, {@code QUERY_LAYERS} and {@code COVERAGEID}
+ * parameters</li>
+ * </ul>
+ * The parameter names and values are case insensitive, a value matching as long
+ * as it is followed by a non word character. The service, operation and layers
+ * found in an XML body take precedence over the ones of the URL.
+ * </p>
+ */
+final class OGCServiceRequest {
+
+    static final String WMS = "WMS";
+    static final String WFS = "WFS";
+    static final String WCS = "WCS";
+    static final String WMTS = "WMTS";
+
+    private static final String[] SERVICES = { WMS, WFS, WCS, WMTS };
+
+    private static final String GETLEGENDGRAPHIC = "GETLEGENDGRAPHIC";
+
+    private static final String[] OPERATIONS = { "GETCAPABILITIES", "GETMAP", GETLEGENDGRAPHIC, "GETFEATUREINFO",
+            "DESCRIBELAYER", "GETFEATURE", "DESCRIBEFEATURETYPE", "GETCOVERAGE", "DESCRIBECOVERAGE", "GETTILE",
+            "GETSTYLES", "GETPROPERTYVALUE", "LOCKFEATURE", "GETFEATUREWITHLOCK", "LISTSTOREDQUERIES",
+            "DESCRIBESTOREDQUERIES", "CREATESTOREDQUERY", "DROPSTOREDQUERY", "TRANSACTION" };
+
+    /** the operations also matching a longer word */
+    private static final String[] OPERATION_PREFIXES = { "CREATESTOREDQUERY", "DROPSTOREDQUERY", "GETMAP" };
+
+    private static final Map<String, String> SERVICE_ENDPOINTS = new HashMap<>();
+    static {
+        SERVICE_ENDPOINTS.put("WMS", WMS);
+        SERVICE_ENDPOINTS.put("WFS", WFS);
+        SERVICE_ENDPOINTS.put("WFSDISPATCHER", WFS);
+        SERVICE_ENDPOINTS.put("WCS", WCS);
+    }
+
+    private static final String SERVICE = "SERVICE";
+    private static final String REQUEST = "REQUEST";
+    private static final String VERSION = "VERSION";
+
+    /** the parameters holding the layer names, the last one present winning */
+    private static final String[] LAYER_PARAMETERS = { "LAYERS", "LAYER", "TYPENAME", "QUERY_LAYERS", "COVERAGEID" };
+
+    private static final List<String> NO_LAYER = Collections.singletonList("");
+
+    /** a request which is not an OGC service request */
+    static final OGCServiceRequest NONE = new OGCServiceRequest("", "", "", Collections.emptyList());
+
+    private final String service;
+    private final String operation;
+    private final String version;
+    private final List<String> layers;
+
+    OGCServiceRequest(String service, String operation, String version, List<String> layers) {
+        this.service = service;
+        this.operation = operation;
+        this.version = version;
+        this.layers = layers;
+    }
+
+    /**
+     * @return the OGC service in upper case, "" if the request is not an OGC
+     *         service request
+     */
+    String getService() {
+        return service;
+    }
+
+    /**
+     * @return the OGC operation in lower case, "" if unknown
+     */
+    String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the version parameter, "" if missing
+     */
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the layer names in lower case, a single "" if no layer parameter is
+     *         given
+     */
+    List<String> getLayers() {
+        return layers;
+    }
+
+    /**
+     * Reads the request, as logged by {@link OGCServiceMessageFormatter}.
+     */
+    static OGCServiceRequest parse(final String request) {
+        final int length = request.length();
+        int lineEnd = 0;
+        while (lineEnd < length && !isLineTerminator(request.charAt(lineEnd))) {
+            lineEnd++;
+        }
+        OGCServiceRequest url = parseUrl(request, lineEnd);
+        int body = lineEnd;
+        while (body < length && Character.isWhitespace(request.charAt(body))) {
+            body++;
+        }
+        if (body < length && request.charAt(body) == '<') {
+            int end = (int) Math.min(length, (long) body + OGCServiceXmlExtractor.DEFAULT_LIMIT);
+            return url.with(OGCServiceXmlExtractor.extract(new StringReader(request.substring(body, end))));
+        }
+        return url;
+    }
+
+    /**
+     * Reads the URL of a request, and at most limit bytes of its XML body.
+     */
+    static OGCServiceRequest parse(final String url, final InputStream body, final int limit) {
+        return parseUrl(url, url.length()).with(OGCServiceXmlExtractor.extract(body, limit));
+    }
+
+    /**
+     * @return this request, with the service, operation and layers of the body when
+     *         found
+     */
+    private OGCServiceRequest with(OGCServiceRequest body) {
+        return new OGCServiceRequest(body.service.isEmpty() ? service : body.service,
+                body.operation.isEmpty() ? operation : body.operation, body.version.isEmpty() ? version : body.version,
+                body.layers.isEmpty() ? layers : body.layers);
+    }
+
+    /**
+     * @return the service matching value, "" if none
+     */
+    static String service(String value) {
+        return match(value, SERVICES, null);
+    }
+
+    /**
+     * @return the operation matching value, in upper case, "" if none
+     */
+    static String operation(String value) {
+        return match(value, OPERATIONS, OPERATION_PREFIXES);
+    }
+
+    private static OGCServiceRequest parseUrl(final String request, final int lineEnd) {
+        int query = request.indexOf('?');
+        if (query >= lineEnd) {
+            query = -1;
+        }
+
+        String service = "";
+        String operation = "";
+        String version = "";
+        String layerValue = null;
+        int layerParameter = -1;
+
+        int start = query + 1;
+        while (start < lineEnd) {
+            int end = request.indexOf('&', start);
+            if (end < 0 || end > lineEnd) {
+                end = lineEnd;
+            }
+            int eq = request.indexOf('=', start);
+            if (eq >= 0 && eq < end) {
+                String name = parameterName(request, start, eq);
+                if (name == SERVICE) {
+                    if (service.isEmpty()) {
+                        service = service(value(request, eq + 1, end));
+                    }
+                } else if (name == REQUEST) {
+                    if (operation.isEmpty()) {
+                        operation = operation(value(request, eq + 1, end));
+                    }
+                } else if (name == VERSION) {
+                    if (version.isEmpty()) {
+                        version = value(request, eq + 1, end).trim();
+                    }
+                } else if (name != null) {
+                    int index = indexOf(LAYER_PARAMETERS, name);
+                    if (index > layerParameter) {
+                        layerParameter = index;
+                        layerValue = value(request, eq + 1, end);
+                    }
+                }
+            }
+            start = end + 1;
+        }
+
+        if (service.isEmpty() && query > 0) {
+            service = endpointService(request, query);
+        }
+        if (service.isEmpty() && request.lastIndexOf(GETLEGENDGRAPHIC, lineEnd - GETLEGENDGRAPHIC.length()) >= 0) {
+            service = WMS;
+        }
+        return new OGCServiceRequest(service, operation.toLowerCase(Locale.ROOT), version,
+                layerValue == null ? NO_LAYER : layers(layerValue));
+    }
+
+    /**
+     * @return the line terminators of {@link java.util.regex.Pattern}
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * @return the known parameter name, null for another parameter
+     */
+    private static String parameterName(String request, int from, int to) {
+        if (indexOfEncoded(request, from, to) >= 0) {
+            String decoded = decode(request.substring(from, to));
+            return knownName(decoded, 0, decoded.length());
+        }
+        return knownName(request, from, to);
+    }
+
+    private static String knownName(String s, int from, int to) {
+        int length = to - from;
+        if (length == SERVICE.length() && s.regionMatches(true, from, SERVICE, 0, length)) {
+            return SERVICE;
+        }
+        if (length == REQUEST.length() && s.regionMatches(true, from, REQUEST, 0, length)) {
+            return REQUEST;
+        }
+        if (length == VERSION.length() && s.regionMatches(true, from, VERSION, 0, length)) {
+            return VERSION;
+        }
+        for (String name : LAYER_PARAMETERS) {
+            if (length == name.length() && s.regionMatches(true, from, name, 0, length)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == name) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfEncoded(String s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '%' || c == '+') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String value(String request, int from, int to) {
+        String value = request.substring(from, to);
+        return indexOfEncoded(value, 0, value.length()) < 0 ? value : decode(value);
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            // malformed escape, kept as is
+            return value;
+        }
+    }
+
+    /**
+     * @return the candidate the value starts with, followed by a non word character
+     *         unless it is one of the prefixes, "" if none
+     */
+    private static String match(String value, String[] candidates, String[] prefixes) {
+        for (String candidate : candidates) {
+            int length = candidate.length();
+            if (value.regionMatches(true, 0, candidate, 0, length)
+                    && (value.length() == length || !isWordChar(value.charAt(length)))) {
+                return candidate;
+            }
+        }
+        if (prefixes != null) {
+            for (String prefix : prefixes) {
+                if (value.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                    return prefix;
+                }
+            }
+        }
+        return "";
+    }
+
+    /**
+     * @return the service of the endpoint the query string follows, e.g.
+     *         {@code /geoserver/wms?}, "" if unknown
+     */
+    private static String endpointService(String request, int query) {
+        int start = query;
+        while (start > 0 && isWordChar(request.charAt(start - 1))) {
+            start--;
+        }
+        String service = SERVICE_ENDPOINTS.get(request.substring(start, query).toUpperCase(Locale.ROOT));
+        return service == null ? "" : service;
+    }
+
+    /**
+     * Splits the layer names, up to the first space, tab, carriage return, '&' or
+     * '>'.
+     */
+    private static List<String> layers(String value) {
+        int end = 0;
+        while (end < value.length()) {
+            char c = value.charAt(end);
+            if (c == '&' || c == ' ' || c == '\r' || c == '\t' || c == '>') {
+                break;
+            }
+            end++;
+        }
+        String[] names = value.substring(0, end).toUpperCase().split(",");
+        List<String> layers = new ArrayList<>(names.length);
+        for (String name : names) {
+            layers.add(name.replace('"', ' ').trim().toLowerCase());
+        }
+        return layers;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.log4j;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Extracts the service, operation and layers of an OGC request from its XML
+ * body, e.g. a WFS GetFeature or Transaction, reading at most a given number of
+ * bytes of it.
+ * <p>
+ * The body is streamed with StAX: the service and version are the attributes of
+ * the root element, whose name is the operation. The layers are the
+ * {@code typeName} or {@code typeNames} attributes of the elements right under
+ * it (e.g. {@code Query}, {@code Update}, {@code Delete}), the text of the
+ * {@code TypeName}, {@code Coverage}, {@code CoverageId},
+ * {@code sourceCoverage} and {@code Identifier} elements right under it, and
+ * the names of the inserted features. Reading stops at the end of the root
+ * element, as soon as it is not an OGC request, or at the limit: what has been
+ * read so far is kept, so that the cost is bounded whatever the size of the
+ * body.
+ * </p>
+ */
+final class OGCServiceXmlExtractor {
+
+    /** bytes of the body read by default */
+    static final int DEFAULT_LIMIT = 64 * 1024;
+
+    private static final int MAX_LAYERS = 100;
+
+    private static final Set<String> LAYER_ELEMENTS = new HashSet<>(
+            Arrays.asList("typename", "coverage", "coverageid", "sourcecoverage", "identifier"));
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    private OGCServiceXmlExtractor() {
+        // utility class
+    }
+
+    /**
+     * Reads at most limit bytes of body, which is neither closed nor read further.
+     */
+    static OGCServiceRequest extract(final InputStream body, final int limit) {
+        try {
+            return extract(FACTORY.createXMLStreamReader(new LimitedInputStream(body, limit)));
+        } catch (XMLStreamException e) {
+            return OGCServiceRequest.NONE;
+        }
+    }
+
+    /**
+     * Reads body, whose length is bounded by the caller.
+     */
+    static OGCServiceRequest extract(final Reader body) {
+        try {
+            return extract(FACTORY.createXMLStreamReader(body));
+        } catch (XMLStreamException e) {
+            return OGCServiceRequest.NONE;
+        }
+    }
+
+    private static OGCServiceRequest extract(final XMLStreamReader reader) {
+        String service = "";
+        String operation = "";
+        String version = "";
+        Set<String> layers = new LinkedHashSet<>();
+        try {
+            int depth = 0;
+            boolean insert = false;
+            while (reader.hasNext() && layers.size() < MAX_LAYERS) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (--depth == 0) {
+                        break;
+                    }
+                } else if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (depth == 1) {
+                        service = OGCServiceRequest.service(attribute(reader, "service"));
+                        operation = OGCServiceRequest.operation(reader.getLocalName());
+                        version = attribute(reader, "version").trim();
+                        if (service.isEmpty() && operation.isEmpty()) {
+                            // not an OGC request
+                            break;
+                        }
+                    } else if (depth == 2) {
+                        String name = reader.getLocalName();
+                        insert = "Insert".equals(name);
+                        addLayers(layers, attribute(reader, "typeName"));
+                        addLayers(layers, attribute(reader, "typeNames"));
+                        if (LAYER_ELEMENTS.contains(name.toLowerCase(Locale.ROOT))) {
+                            // moves to the end of the element
+                            addLayers(layers, reader.getElementText());
+                            depth--;
+                        }
+                    } else if (depth == 3 && insert) {
+                        String prefix = reader.getPrefix();
+                        addLayers(layers, prefix == null || prefix.isEmpty() ? reader.getLocalName()
+                                : prefix + ":" + reader.getLocalName());
+                    }
+                }
+            }
+        } catch (XMLStreamException e) {
+            // truncated at the limit or malformed, what has been read is kept
+        } finally {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // the underlying input is not closed anyway
+            }
+        }
+        return new OGCServiceRequest(service, operation.toLowerCase(Locale.ROOT), version,
+                Arrays.asList(layers.toArray(new String[layers.size()])));
+    }
+
+    private static String attribute(XMLStreamReader reader, String localName) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (localName.equalsIgnoreCase(reader.getAttributeLocalName(i))) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Adds the names of a comma or space separated list
+     */
+    private static void addLayers(Set<String> layers, String names) {
+        for (String name : names.split("[,\\s]+")) {
+            name = name.replace('"', ' ').trim();
+            if (!name.isEmpty()) {
+                layers.add(name.toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    /**
+     * Ends after limit bytes, and does not close the underlying stream.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // the body is still to be sent
+        }
+    }
+}
@@ -19,13 +19,18 @@
 
 package org.georchestra.ogcservstatistics.log4j;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.sql.Connection;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
@@ -33,8 +38,12 @@ import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 import org.georchestra.ogcservstatistics.OGCServStatisticsException;
+import org.georchestra.ogcservstatistics.calculations.LiveStatistics;
 import org.georchestra.ogcservstatistics.dataservices.DataServicesConfiguration;
 import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
+import org.georchestra.ogcservstatistics.dataservices.MaintainPartitionsCommand;
+import org.georchestra.ogcservstatistics.dataservices.RefreshRollupsCommand;
+import org.georchestra.ogcservstatistics.dataservices.RetrieveJournalPositionCommand;
 
 /**
  * This appender is responsible to record the OGC services in the configured
@@ -58,12 +67,64 @@ import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
  * log4j.appender.OGCSERVICES.jdbcURL=jdbc:postgresql://localhost:5432/testdb
  * log4j.appender.OGCSERVICES.databaseUser=postgres
  * log4j.appender.OGCSERVICES.databasePassword=postgres
- * log4j.appender.OGCSERVICES.bufferSize=1
+ * log4j.appender.OGCSERVICES.queueSize=10000
+ * log4j.appender.OGCSERVICES.batchSize=500
+ * log4j.appender.OGCSERVICES.flushInterval=1000
+ * log4j.appender.OGCSERVICES.offerTimeout=0
+ * log4j.appender.OGCSERVICES.journalDirectory=/var/lib/georchestra/ogc-statistics
+ * log4j.appender.OGCSERVICES.journalSegmentSize=4194304
+ * log4j.appender.OGCSERVICES.journalMaxSize=268435456
+ * log4j.appender.OGCSERVICES.retryInterval=10000
+ * log4j.appender.OGCSERVICES.rollupInterval=60000
+ * log4j.appender.OGCSERVICES.rollupBatchSize=100000
+ * log4j.appender.OGCSERVICES.partitionInterval=3600000
+ * log4j.appender.OGCSERVICES.partitionsAhead=3
+ * log4j.appender.OGCSERVICES.retentionMonths=24
+ * log4j.appender.OGCSERVICES.archiveDirectory=/var/lib/georchestra/ogc-statistics-archives
+ * log4j.appender.OGCSERVICES.samplingPolicy=WMTS.GetTile=aggregate, WMS.GetMap=sample:10
+ * log4j.appender.OGCSERVICES.liveStatisticsCapacity=100
  * </code>
  * </pre>
  * <p>
- * Note: you could improve the performance increasing the <b>bufferSize</b>
- * value.
+ * The records are inserted from a dedicated thread by batches of at most
+ * <b>batchSize</b> records, at least every <b>flushInterval</b> milliseconds.
+ * At most <b>queueSize</b> records wait to be inserted: when the database can
+ * not keep up, a logging thread waits at most <b>offerTimeout</b> milliseconds
+ * for room, then the record is dropped and counted, see {@link #getDropped()}.
+ * </p>
+ * <p>
+ * When a <b>journalDirectory</b> is set, the records which can not be inserted
+ * since the database is unreachable, or which do not fit in the queue, are
+ * appended to a local journal instead, taking at most <b>journalMaxSize</b>
+ * bytes in segments of <b>journalSegmentSize</b> bytes. They are replayed by
+ * batches when the writer is idle, at least <b>retryInterval</b> milliseconds
+ * after the last failure, see {@link #getJournalBacklog()}.
+ * </p>
+ * <p>
+ * When the writer is idle, at most every <b>rollupInterval</b> milliseconds (0
+ * to never), at most <b>rollupBatchSize</b> of the inserted records are added
+ * to the hourly and daily rollups the number of requests are read from, see
+ * {@link RefreshRollupsCommand}.
+ * </p>
+ * <p>
+ * Every <b>partitionInterval</b> milliseconds (0 to never), from a thread of
+ * its own, the monthly partitions of the records table are created up to
+ * <b>partitionsAhead</b> months after the current one, and the partitions of
+ * the months before the last <b>retentionMonths</b> whole months (0 to keep
+ * them all) are dropped once rolled up, being archived to
+ * <b>archiveDirectory</b> first if set, see {@link MaintainPartitionsCommand}.
+ * </p>
+ * <p>
+ * The <b>samplingPolicy</b> tells, for each service and request, whether every
+ * request is recorded, or a sample of them, or their number by minute, the
+ * records standing for several requests being weighted, see
+ * {@link OGCServicesSampling}. Every request is recorded by default.
+ * </p>
+ * <p>
+ * Every request, recorded or not, is also counted in memory by layer, user, org
+ * and service over the last hour, at most <b>liveStatisticsCapacity</b> items
+ * being counted exactly by dimension and minute (0 to not count them), see
+ * {@link #getLiveStatistics()}.
  * </p>
  * 
  * <p>
@@ -88,6 +149,15 @@ import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
  * String ogcServiceMessage = OGCServiceMessageFormatter.format(user, time, request);
  * LOGGER.info(ogcServiceMessage);
  * </pre>
+ * <p>
+ * or, when the parameters of the request are at hand, log an
+ * {@link OGCServiceEvent} which is recorded without parsing the request:
+ * </p>
+ * 
+ * <pre>
+ * OGCServiceEvent event = OGCServiceEvent.fromParameters(user, time, request, parameters, org, roles);
+ * LOGGER.info(event);
+ * </pre>
  * 
  * 
  * @author Mauricio Pazos
@@ -107,6 +177,65 @@ public class OGCServicesAppender extends AppenderSkeleton {
 
     private static DataServicesConfiguration dataServiceConfiguration = DataServicesConfiguration.getInstance();
 
+    /** milliseconds given to the queued records to be inserted on close */
+    private static final long CLOSE_TIMEOUT = 10_000;
+
+    /** the dimensions of the count-min sketches of the live statistics */
+    private static final int LIVE_STATISTICS_DEPTH = 4;
+
+    private static final int LIVE_STATISTICS_WIDTH = 128;
+
+    private int queueSize = 10_000;
+
+    private int batchSize = 500;
+
+    private long flushInterval = 1000;
+
+    private long offerTimeout = 0;
+
+    private String journalDirectory = "";
+
+    private long journalSegmentSize = 4L << 20;
+
+    private long journalMaxSize = 256L << 20;
+
+    private long retryInterval = 10_000;
+
+    private long rollupInterval = 60_000;
+
+    private long rollupBatchSize = 100_000;
+
+    private long partitionInterval = 3_600_000;
+
+    private int partitionsAhead = 3;
+
+    private int retentionMonths = 0;
+
+    private String archiveDirectory = "";
+
+    private String samplingPolicy = "";
+
+    private int liveStatisticsCapacity = 100;
+
+    private volatile OGCServicesWriter writer;
+
+    private volatile OGCServicesJournal journal;
+
+    /** no insert is tried before, the records being journaled */
+    private volatile long retryAt;
+
+    /** whether the journal has been moved to the position recorded in database */
+    private boolean journalPositionLoaded;
+
+    /** the rollups are not refreshed before */
+    private long rollupAt;
+
+    private ScheduledExecutorService partitionMaintenance;
+
+    private volatile OGCServicesSampling sampling;
+
+    private volatile LiveStatistics liveStatistics;
+
     public OGCServicesAppender() {
         super();
     }
@@ -142,6 +271,134 @@ public class OGCServicesAppender extends AppenderSkeleton {
     public @Deprecated void setBufferSize(int newBufferSize) {
     }
 
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public long getOfferTimeout() {
+        return offerTimeout;
+    }
+
+    public void setOfferTimeout(long offerTimeout) {
+        this.offerTimeout = offerTimeout;
+    }
+
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public void setJournalDirectory(String journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    public long getJournalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    public void setJournalSegmentSize(long journalSegmentSize) {
+        this.journalSegmentSize = journalSegmentSize;
+    }
+
+    public long getJournalMaxSize() {
+        return journalMaxSize;
+    }
+
+    public void setJournalMaxSize(long journalMaxSize) {
+        this.journalMaxSize = journalMaxSize;
+    }
+
+    public long getRetryInterval() {
+        return retryInterval;
+    }
+
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    public long getRollupInterval() {
+        return rollupInterval;
+    }
+
+    public void setRollupInterval(long rollupInterval) {
+        this.rollupInterval = rollupInterval;
+    }
+
+    public long getRollupBatchSize() {
+        return rollupBatchSize;
+    }
+
+    public void setRollupBatchSize(long rollupBatchSize) {
+        this.rollupBatchSize = rollupBatchSize;
+    }
+
+    public long getPartitionInterval() {
+        return partitionInterval;
+    }
+
+    public void setPartitionInterval(long partitionInterval) {
+        this.partitionInterval = partitionInterval;
+    }
+
+    public int getPartitionsAhead() {
+        return partitionsAhead;
+    }
+
+    public void setPartitionsAhead(int partitionsAhead) {
+        this.partitionsAhead = partitionsAhead;
+    }
+
+    public int getRetentionMonths() {
+        return retentionMonths;
+    }
+
+    public void setRetentionMonths(int retentionMonths) {
+        this.retentionMonths = retentionMonths;
+    }
+
+    public String getArchiveDirectory() {
+        return archiveDirectory;
+    }
+
+    public void setArchiveDirectory(String archiveDirectory) {
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    public String getSamplingPolicy() {
+        return samplingPolicy;
+    }
+
+    public void setSamplingPolicy(String samplingPolicy) {
+        this.samplingPolicy = samplingPolicy;
+    }
+
+    public int getLiveStatisticsCapacity() {
+        return liveStatisticsCapacity;
+    }
+
+    public void setLiveStatisticsCapacity(int liveStatisticsCapacity) {
+        this.liveStatisticsCapacity = liveStatisticsCapacity;
+    }
+
     public boolean isActivated() {
         return activated;
     }
@@ -169,51 +426,330 @@ public class OGCServicesAppender extends AppenderSkeleton {
      * Appends the OGC Service in the table.
      * 
      * The string present in buffer is parsed, if it is an interesting OGC service
-     * then extracts the data required to insert a row in the table.
+     * then extracts the data required to insert a row in the table. An
+     * {@link OGCServiceEvent} is inserted as is.
      * 
      * @implNote This method is called from inside the {@code synchronized} method
-     *           {@link AppenderSkeleton#doAppend}, as it calls
-     *           {@link OGCServiceParser#parseLog} and runs one
-     *           {@link InsertCommand} per parsed entry, the job is done
-     *           asynchronously on the platforms' default {@link ForkJoinPool} to
-     *           avoid hindering application performance.
+     *           {@link AppenderSkeleton#doAppend}, so it only queues the event: the
+     *           parsing and the inserts are done by batches from the thread of the
+     *           {@link OGCServicesWriter}, to avoid hindering application
+     *           performance.
      */
     @Override
     protected void append(final LoggingEvent event) {
-        // do not run if not activated or closed
-        if (!this.activated && !this.closed)
+        // do not run if not activated
+        if (!this.activated)
             return;
 
-        CompletableFuture.runAsync(() -> {
-            try {
-                // let it finish if the task was issued even if the appender was closed after
-                // the fact
-                if (!this.activated) {
-                    return;
+        if (!writer().offer(event)) {
+            errorHandler.error("The ogc service records are logged faster than they can be inserted, dropping them",
+                    null, ErrorCode.WRITE_FAILURE);
+        }
+    }
+
+    private synchronized OGCServicesWriter writer() {
+        if (this.writer == null) {
+            if (journalDirectory != null && !journalDirectory.trim().isEmpty()) {
+                try {
+                    this.journal = new OGCServicesJournal(new File(journalDirectory.trim()), journalSegmentSize,
+                            journalMaxSize);
+                } catch (IOException e) {
+                    errorHandler.error("Unable to open the ogc service records journal in " + journalDirectory, e,
+                            ErrorCode.FILE_OPEN_FAILURE);
                 }
-                String msg = event.getRenderedMessage();
-                List<Map<String, Object>> logList = OGCServiceParser.parseLog(msg);
-                insert(logList);
-            } catch (Exception ex) {
-                errorHandler.error("Failed to insert the ogc service record", ex, ErrorCode.WRITE_FAILURE);
             }
-        });
+            try {
+                this.sampling = OGCServicesSampling.parse(samplingPolicy);
+            } catch (IllegalArgumentException e) {
+                errorHandler.error("Invalid ogc service records sampling policy, recording every request", e,
+                        ErrorCode.GENERIC_FAILURE);
+                this.sampling = OGCServicesSampling.parse(null);
+            }
+            if (liveStatisticsCapacity > 0) {
+                this.liveStatistics = new LiveStatistics(liveStatisticsCapacity, LIVE_STATISTICS_DEPTH,
+                        LIVE_STATISTICS_WIDTH);
+            }
+            this.writer = new OGCServicesWriter(queueSize, batchSize, flushInterval, offerTimeout,
+                    new OGCServicesWriter.Sink() {
+                        @Override
+                        public int write(List<LoggingEvent> events) {
+                            return insert(events);
+                        }
+
+                        @Override
+                        public void idle() {
+                            replay();
+                            flushAggregates();
+                            refreshRollups();
+                        }
+
+                        @Override
+                        public boolean overflow(LoggingEvent event) {
+                            return journal(event);
+                        }
+                    });
+            if (partitionInterval > 0) {
+                // archiving a partition may take a while, the inserts go on meanwhile
+                this.partitionMaintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "ogc-services-partitions");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                this.partitionMaintenance.scheduleWithFixedDelay(this::maintainPartitions, 0, partitionInterval,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        return this.writer;
+    }
+
+    /**
+     * @return the rows of the logged {@link OGCServiceEvent}, or else of the
+     *         message parsed by {@link OGCServiceParser}
+     */
+    static List<Map<String, Object>> toLogs(LoggingEvent event) throws ParseException, UnsupportedEncodingException {
+        Object message = event.getMessage();
+        if (message instanceof OGCServiceEvent) {
+            return ((OGCServiceEvent) message).toLogs();
+        }
+        return OGCServiceParser.parseLog(event.getRenderedMessage());
     }
 
-    private void insert(List<Map<String, Object>> ogcServiceRecords) {
+    /**
+     * @return the rows of a journaled record, an {@link OGCServiceEvent} serialized
+     *         by {@link OGCServiceEvent#toJournal()} or else a message parsed by
+     *         {@link OGCServiceParser}
+     */
+    static List<Map<String, Object>> toLogs(String record) throws ParseException, UnsupportedEncodingException {
+        if (OGCServiceEvent.isJournal(record)) {
+            return OGCServiceEvent.fromJournal(record).toLogs();
+        }
+        return OGCServiceParser.parseLog(record);
+    }
 
-        try (Connection c = dataServiceConfiguration.getConnection()) {
-            for (Map<String, Object> entry : ogcServiceRecords) {
+    /**
+     * @return the journal record of the event, see {@link #toLogs(String)}
+     */
+    static String toJournal(LoggingEvent event) {
+        Object message = event.getMessage();
+        if (message instanceof OGCServiceEvent) {
+            // the service, operation and layers of a POST request can not be parsed back
+            // from its URL
+            return ((OGCServiceEvent) message).toJournal();
+        }
+        return event.getRenderedMessage();
+    }
+
+    /**
+     * Inserts the rows of the events in one transaction.
+     * 
+     * @return the number of events which could not be inserted
+     */
+    private int insert(List<LoggingEvent> events) {
+        int failures = 0;
+        List<Map<String, Object>> ogcServiceRecords = new ArrayList<>(events.size());
+        List<LoggingEvent> parsed = new ArrayList<>(events.size());
+        for (LoggingEvent event : events) {
+            try {
+                ogcServiceRecords.addAll(toLogs(event));
+                parsed.add(event);
+            } catch (Exception ex) {
+                failures++;
+                errorHandler.error("Failed to parse the ogc service record", ex, ErrorCode.WRITE_FAILURE);
+            }
+        }
+        if (ogcServiceRecords.isEmpty()) {
+            return failures;
+        }
+        LiveStatistics liveStatistics = this.liveStatistics;
+        if (liveStatistics != null) {
+            // before sampling, the requests are counted whether recorded or not
+            liveStatistics.add(ogcServiceRecords);
+        }
+        long now = System.currentTimeMillis();
+        if (this.journal != null && now < retryAt) {
+            // the database has just failed, do not wait for it again
+            return failures + journal(parsed);
+        }
+        OGCServicesSampling.Selection selection = sampling.select(ogcServiceRecords);
+        // the counts of the minutes over are inserted along
+        List<Map<String, Object>> aggregates = sampling.drain(now);
+        List<Map<String, Object>> rows = selection.recorded;
+        rows.addAll(aggregates);
+        if (!rows.isEmpty()) {
+            try (Connection c = dataServiceConfiguration.getConnection()) {
                 InsertCommand cmd = new InsertCommand();
                 cmd.setConnection(c);
-                cmd.setRowValues(entry);
+                cmd.setRows(rows);
                 cmd.execute();
+            } catch (Exception e) {
+                retryAt = System.currentTimeMillis() + retryInterval;
+                errorHandler.error("Failed to insert the log", e, ErrorCode.WRITE_FAILURE);
+                sampling.aggregate(aggregates);
+                return this.journal == null ? events.size() : failures + journal(parsed);
             }
+        }
+        sampling.aggregate(selection.aggregated);
+        return failures;
+    }
+
+    /**
+     * Inserts the aggregated records of the minutes over, once the retry interval
+     * has elapsed since the last failure.
+     */
+    private void flushAggregates() {
+        long now = System.currentTimeMillis();
+        if (now >= retryAt) {
+            insertAggregates(now);
+        }
+    }
+
+    /**
+     * Inserts the aggregated records of the minutes before the given time, keeping
+     * them to be inserted later on failure.
+     */
+    private void insertAggregates(long before) {
+        List<Map<String, Object>> aggregates = sampling.drain(before);
+        if (aggregates.isEmpty()) {
+            return;
+        }
+        try (Connection c = dataServiceConfiguration.getConnection()) {
+            InsertCommand cmd = new InsertCommand();
+            cmd.setConnection(c);
+            cmd.setRows(aggregates);
+            cmd.execute();
         } catch (Exception e) {
+            retryAt = System.currentTimeMillis() + retryInterval;
+            errorHandler.error("Failed to insert the aggregated ogc service records", e, ErrorCode.WRITE_FAILURE);
+            sampling.aggregate(aggregates);
+        }
+    }
+
+    /**
+     * Appends the events to the journal, and forces them to the disk.
+     * 
+     * @return the number of events which could not be journaled
+     */
+    private int journal(List<LoggingEvent> events) {
+        int failures = 0;
+        for (LoggingEvent event : events) {
+            if (!journal(event)) {
+                failures++;
+            }
+        }
+        OGCServicesJournal journal = this.journal;
+        if (journal != null && failures < events.size()) {
+            try {
+                journal.sync();
+            } catch (IOException e) {
+                errorHandler.error("Failed to sync the ogc service records journal", e, ErrorCode.WRITE_FAILURE);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return false if there is no journal, or it is full
+     */
+    private boolean journal(LoggingEvent event) {
+        OGCServicesJournal journal = this.journal;
+        if (journal == null) {
+            return false;
+        }
+        try {
+            return journal.append(toJournal(event), event.getTimeStamp());
+        } catch (IOException e) {
+            errorHandler.error("Failed to journal the ogc service record", e, ErrorCode.WRITE_FAILURE);
+            return false;
+        }
+    }
 
-            errorHandler.error("Failed to insert the log", e, ErrorCode.WRITE_FAILURE);
+    /**
+     * Inserts a batch of journaled records, once the retry interval has elapsed
+     * since the last failure. The position reached in the journal is recorded in
+     * the same transaction, so that a record is not inserted twice if the process
+     * stops before the journal is updated.
+     */
+    private void replay() {
+        OGCServicesJournal journal = this.journal;
+        if (journal == null || journal.getBacklogRecords() == 0 || System.currentTimeMillis() < retryAt) {
+            return;
+        }
+        try (Connection c = dataServiceConfiguration.getConnection()) {
+            if (!journalPositionLoaded) {
+                RetrieveJournalPositionCommand position = new RetrieveJournalPositionCommand();
+                position.setConnection(c);
+                position.setJournalId(journal.getId());
+                position.execute();
+                if (position.getSegment() >= 0) {
+                    journal.seek(new OGCServicesJournal.Position(position.getSegment(), position.getPosition()));
+                }
+                journalPositionLoaded = true;
+            }
+            List<OGCServicesJournal.Record> records = journal.read(batchSize);
+            if (records.isEmpty()) {
+                return;
+            }
+            List<Map<String, Object>> ogcServiceRecords = new ArrayList<>(records.size());
+            for (OGCServicesJournal.Record record : records) {
+                try {
+                    ogcServiceRecords.addAll(toLogs(record.message));
+                } catch (Exception ex) {
+                    errorHandler.error("Failed to parse the journaled ogc service record", ex, ErrorCode.WRITE_FAILURE);
+                }
+            }
+            OGCServicesSampling.Selection selection = sampling.select(ogcServiceRecords);
+            OGCServicesJournal.Position end = records.get(records.size() - 1).end;
+            InsertCommand cmd = new InsertCommand();
+            cmd.setConnection(c);
+            cmd.setRows(selection.recorded);
+            cmd.setJournalPosition(journal.getId(), end.segment, end.offset);
+            cmd.execute();
+            journal.commit(end, records.size());
+            sampling.aggregate(selection.aggregated);
+        } catch (Exception e) {
+            retryAt = System.currentTimeMillis() + retryInterval;
+            errorHandler.error("Failed to replay the journaled ogc service records", e, ErrorCode.WRITE_FAILURE);
         }
+    }
 
+    /**
+     * Adds a batch of the inserted records to the rollups, once the rollup interval
+     * has elapsed since the last refresh.
+     */
+    private void refreshRollups() {
+        long now = System.currentTimeMillis();
+        if (rollupInterval <= 0 || now < rollupAt || now < retryAt) {
+            return;
+        }
+        rollupAt = now + rollupInterval;
+        try (Connection c = dataServiceConfiguration.getConnection()) {
+            RefreshRollupsCommand cmd = new RefreshRollupsCommand();
+            cmd.setConnection(c);
+            cmd.setBatchSize(rollupBatchSize);
+            cmd.execute();
+        } catch (Exception e) {
+            errorHandler.error("Failed to refresh the rollups of the ogc service records", e,
+                    ErrorCode.GENERIC_FAILURE);
+        }
+    }
+
+    /**
+     * Creates the next monthly partitions and drops the expired ones.
+     */
+    private void maintainPartitions() {
+        try (Connection c = dataServiceConfiguration.getConnection()) {
+            MaintainPartitionsCommand cmd = new MaintainPartitionsCommand();
+            cmd.setConnection(c);
+            cmd.setMonthsAhead(partitionsAhead);
+            cmd.setRetentionMonths(retentionMonths);
+            if (archiveDirectory != null && !archiveDirectory.trim().isEmpty()) {
+                cmd.setArchiveDirectory(new File(archiveDirectory.trim()));
+            }
+            cmd.execute();
+        } catch (Exception e) {
+            errorHandler.error("Failed to maintain the partitions of the ogc service records", e,
+                    ErrorCode.GENERIC_FAILURE);
+        }
     }
 
     @Override
@@ -222,11 +758,140 @@ public class OGCServicesAppender extends AppenderSkeleton {
     }
 
     /**
-     * Release all the allocated resources
+     * Release all the allocated resources, once the queued events have been
+     * inserted
      */
     @Override
     public void close() {
         this.closed = true;
+        OGCServicesWriter writer;
+        ScheduledExecutorService partitionMaintenance;
+        synchronized (this) {
+            writer = this.writer;
+            this.writer = null;
+            partitionMaintenance = this.partitionMaintenance;
+            this.partitionMaintenance = null;
+        }
+        if (partitionMaintenance != null) {
+            partitionMaintenance.shutdownNow();
+        }
+        if (writer != null && !writer.close(CLOSE_TIMEOUT)) {
+            errorHandler.error("Timeout inserting the ogc service records, " + writer.getQueued() + " were dropped");
+        }
+        OGCServicesSampling sampling = this.sampling;
+        if (writer != null && sampling != null) {
+            // the counts of the current minute as well
+            insertAggregates(Long.MAX_VALUE);
+            if (sampling.getPendingAggregates() > 0) {
+                errorHandler.error(sampling.getPendingAggregates() + " aggregated ogc service records were dropped");
+            }
+        }
+        OGCServicesJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                errorHandler.error("Failed to close the ogc service records journal", e, ErrorCode.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * @return the counts of the requests of the last hour, null if they are not
+     *         counted or if no request has been logged yet
+     */
+    public LiveStatistics getLiveStatistics() {
+        return liveStatistics;
+    }
+
+    /**
+     * @return the number of events waiting to be inserted
+     */
+    public int getQueued() {
+        OGCServicesWriter writer = this.writer;
+        return writer == null ? 0 : writer.getQueued();
+    }
+
+    /**
+     * @return the number of events dropped since they were logged faster than they
+     *         could be inserted
+     */
+    public long getDropped() {
+        OGCServicesWriter writer = this.writer;
+        return writer == null ? 0 : writer.getDropped();
+    }
+
+    /**
+     * @return the number of events inserted or journaled
+     */
+    public long getWritten() {
+        OGCServicesWriter writer = this.writer;
+        return writer == null ? 0 : writer.getWritten();
+    }
+
+    /**
+     * @return the number of events which could not be parsed or inserted
+     */
+    public long getFailed() {
+        OGCServicesWriter writer = this.writer;
+        return writer == null ? 0 : writer.getFailed();
+    }
+
+    /**
+     * @return the number of journaled records waiting to be replayed
+     */
+    public long getJournalBacklog() {
+        OGCServicesJournal journal = this.journal;
+        return journal == null ? 0 : journal.getBacklogRecords();
+    }
+
+    /**
+     * @return the bytes taken by the journal on disk
+     */
+    public long getJournalBacklogBytes() {
+        OGCServicesJournal journal = this.journal;
+        return journal == null ? 0 : journal.getBacklogBytes();
+    }
+
+    /**
+     * @return the milliseconds elapsed since the oldest record waiting to be
+     *         replayed was journaled, 0 if there is none
+     */
+    public long getJournalBacklogAge() {
+        OGCServicesJournal journal = this.journal;
+        return journal == null ? 0 : journal.getBacklogAge();
+    }
+
+    /**
+     * @return the number of records journaled
+     */
+    public long getJournaled() {
+        OGCServicesJournal journal = this.journal;
+        return journal == null ? 0 : journal.getJournaled();
+    }
+
+    /**
+     * @return the number of journaled records replayed
+     */
+    public long getReplayed() {
+        OGCServicesJournal journal = this.journal;
+        return journal == null ? 0 : journal.getReplayed();
+    }
+
+    /**
+     * @return the number of records dropped since the journal was full
+     */
+    public long getJournalDropped() {
+        OGCServicesJournal journal = this.journal;
+        return journal == null ? 0 : journal.getDropped();
+    }
+
+    /**
+     * @return the number of journal segments whose end was torn or corrupted
+     */
+    public long getJournalCorrupted() {
+        OGCServicesJournal journal = this.journal;
+        return journal == null ? 0 : journal.getCorrupted();
     }
 
     @Override
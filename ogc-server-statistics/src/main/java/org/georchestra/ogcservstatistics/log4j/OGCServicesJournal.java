@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.log4j;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only local journal of the OGC service records which could not be
+ * inserted in the database, to be replayed once it is reachable again.
+ * <p>
+ * The records are appended to segment files of about {@code segmentSize} bytes,
+ * named after their sequence number. Each record is framed by its length, a
+ * CRC32 checksum and its timestamp, so that a record torn by a crash is
+ * detected and skipped. Records are read back from the replay {@link Position},
+ * which only moves forward on {@link #commit}: the segments before it are
+ * deleted. Once the journal takes {@code maxSize} bytes, new records are
+ * dropped and counted. The records are forced to the disk by {@link #sync},
+ * when a segment is full and when the journal is closed.
+ * </p>
+ * <p>
+ * The journal has a random identifier, stored in its directory, so that the
+ * replayer can record the position it reached in the database, in the same
+ * transaction as the replayed rows, see {@link #seek}.
+ * </p>
+ */
+final class OGCServicesJournal implements Closeable {
+
+    private static final String SUFFIX = ".journal";
+    private static final String ID_FILE = "journal.id";
+    /** length, checksum and timestamp */
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    /**
+     * A position in the journal: a segment and an offset in it.
+     */
+    static final class Position implements Comparable<Position> {
+        final long segment;
+        final long offset;
+
+        Position(long segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        @Override
+        public int compareTo(Position o) {
+            int c = Long.compare(segment, o.segment);
+            return c != 0 ? c : Long.compare(offset, o.offset);
+        }
+
+        @Override
+        public String toString() {
+            return segment + ":" + offset;
+        }
+    }
+
+    /**
+     * A journaled record, and the position right after it.
+     */
+    static final class Record {
+        final String message;
+        final long timestamp;
+        final Position end;
+
+        private Record(String message, long timestamp, Position end) {
+            this.message = message;
+            this.timestamp = timestamp;
+            this.end = end;
+        }
+    }
+
+    private final File directory;
+    private final long segmentSize;
+    private final long maxSize;
+    private final String id;
+
+    /** the segment files by sequence number, the last one being written */
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private long activeSegment;
+    private FileOutputStream active;
+    private long activeSize;
+
+    private Position readPosition;
+    /** bytes of the segments */
+    private long size;
+    /** records after the read position */
+    private long records;
+    /** timestamp of the record at the read position, 0 if there is none */
+    private long oldestTimestamp;
+
+    private long journaled;
+    private long replayed;
+    private long dropped;
+    private long corrupted;
+
+    /**
+     * Opens the journal in directory, created if needed. The existing segments are
+     * checked, and the records are appended to a new segment.
+     */
+    OGCServicesJournal(File directory, long segmentSize, long maxSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the journal directory " + directory);
+        }
+        this.id = readId();
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    long sequence = Long
+                            .parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                    segments.put(sequence, file);
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        for (Map.Entry<Long, File> segment : segments.entrySet()) {
+            size += segment.getValue().length();
+            records += scan(segment.getKey(), segment.getValue());
+        }
+        this.activeSegment = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        this.readPosition = new Position(segments.isEmpty() ? activeSegment : segments.firstKey(), 0);
+        openActive();
+        this.oldestTimestamp = peekTimestamp();
+    }
+
+    private String readId() throws IOException {
+        File file = new File(directory, ID_FILE);
+        if (file.exists()) {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+        }
+        String newId = UUID.randomUUID().toString();
+        Files.write(file.toPath(), newId.getBytes(StandardCharsets.UTF_8));
+        return newId;
+    }
+
+    /**
+     * @return the number of valid records in the segment
+     */
+    private long scan(long sequence, File file) throws IOException {
+        long count = 0;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            while (readRecord(in, sequence) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void openActive() throws IOException {
+        File file = new File(directory, String.format("%020d%s", activeSegment, SUFFIX));
+        this.active = new FileOutputStream(file, true);
+        this.activeSize = file.length();
+        segments.put(activeSegment, file);
+    }
+
+    private void roll() throws IOException {
+        // the records of a full segment are not written again, make them durable
+        active.getFD().sync();
+        active.close();
+        activeSegment++;
+        openActive();
+    }
+
+    /**
+     * @return the identifier of the journal
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * Appends a record.
+     * 
+     * @return false if the record has been dropped since the journal is full or
+     *         closed
+     */
+    synchronized boolean append(String message, long timestamp) throws IOException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        int frameSize = HEADER_SIZE + payload.length;
+        if (active == null || payload.length > MAX_RECORD_SIZE || size + frameSize > maxSize) {
+            dropped++;
+            return false;
+        }
+        if (activeSize > 0 && activeSize + frameSize > segmentSize) {
+            roll();
+        }
+        ByteBuffer frame = ByteBuffer.allocate(frameSize);
+        frame.putInt(payload.length);
+        frame.putInt(checksum(timestamp, payload));
+        frame.putLong(timestamp);
+        frame.put(payload);
+        // a single write, so that a record is either whole or torn at the end of
+        // the segment
+        active.write(frame.array());
+        active.flush();
+        activeSize += frameSize;
+        size += frameSize;
+        if (records++ == 0) {
+            oldestTimestamp = timestamp;
+        }
+        journaled++;
+        return true;
+    }
+
+    private static int checksum(long timestamp, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(timestamp).array());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the record at the current offset of in, null at the end of the
+     *         segment or at a torn or corrupted record
+     */
+    private static Record readRecord(RandomAccessFile in, long sequence) throws IOException {
+        if (in.length() - in.getFilePointer() < HEADER_SIZE) {
+            return null;
+        }
+        int length = in.readInt();
+        int checksum = in.readInt();
+        long timestamp = in.readLong();
+        if (length < 0 || length > MAX_RECORD_SIZE || in.length() - in.getFilePointer() < length) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        try {
+            in.readFully(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+        if (checksum(timestamp, payload) != checksum) {
+            return null;
+        }
+        return new Record(new String(payload, StandardCharsets.UTF_8), timestamp,
+                new Position(sequence, in.getFilePointer()));
+    }
+
+    /**
+     * Reads the records following the read position, without moving it.
+     * 
+     * @param max the maximum number of records to read
+     */
+    synchronized List<Record> read(int max) throws IOException {
+        List<Record> read = new ArrayList<>();
+        Position position = readPosition;
+        while (read.size() < max) {
+            File file = segments.get(position.segment);
+            if (file == null) {
+                break;
+            }
+            boolean endOfSegment = false;
+            boolean torn = false;
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                in.seek(position.offset);
+                while (read.size() < max) {
+                    long start = in.getFilePointer();
+                    Record record = readRecord(in, position.segment);
+                    if (record == null) {
+                        endOfSegment = true;
+                        torn = in.length() > start;
+                        break;
+                    }
+                    read.add(record);
+                }
+            }
+            if (!endOfSegment || position.segment == activeSegment) {
+                break;
+            }
+            Long next = segments.higherKey(position.segment);
+            if (next == null) {
+                break;
+            }
+            if (read.isEmpty()) {
+                // nothing left to replay in this segment, the rest of which may have been
+                // torn by a crash
+                if (torn) {
+                    corrupted++;
+                }
+                readPosition = new Position(next, 0);
+                deleteBefore(next);
+            } else if (torn) {
+                // skipped on next read
+                break;
+            }
+            position = new Position(next, 0);
+        }
+        return read;
+    }
+
+    /**
+     * Moves the read position after replayed records, deleting the segments they
+     * were read from.
+     * 
+     * @param end   the end of the last replayed record
+     * @param count the number of replayed records
+     */
+    synchronized void commit(Position end, int count) throws IOException {
+        if (end.compareTo(readPosition) <= 0) {
+            return;
+        }
+        readPosition = end;
+        records = Math.max(0, records - count);
+        replayed += count;
+        deleteBefore(end.segment);
+        if (end.segment == activeSegment && end.offset >= activeSize && active != null) {
+            // everything has been replayed, start a new segment so that this one can
+            // be deleted
+            roll();
+            readPosition = new Position(activeSegment, 0);
+            deleteBefore(activeSegment);
+            records = 0;
+        }
+        oldestTimestamp = peekTimestamp();
+    }
+
+    /**
+     * Moves the read position to the checkpoint recorded in the database, the
+     * records before it having already been replayed.
+     */
+    synchronized void seek(Position checkpoint) throws IOException {
+        while (readPosition.compareTo(checkpoint) < 0) {
+            List<Record> read = read(1000);
+            Position end = null;
+            int count = 0;
+            for (Record record : read) {
+                if (record.end.compareTo(checkpoint) > 0) {
+                    break;
+                }
+                end = record.end;
+                count++;
+            }
+            if (end == null) {
+                break;
+            }
+            commit(end, count);
+            replayed -= count;
+        }
+    }
+
+    private void deleteBefore(long segment) throws IOException {
+        while (!segments.isEmpty() && segments.firstKey() < segment) {
+            File file = segments.pollFirstEntry().getValue();
+            size -= file.length();
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private long peekTimestamp() throws IOException {
+        List<Record> next = read(1);
+        return next.isEmpty() ? 0 : next.get(0).timestamp;
+    }
+
+    /**
+     * @return the number of records to replay
+     */
+    synchronized long getBacklogRecords() {
+        return records;
+    }
+
+    /**
+     * @return the bytes taken by the journal on disk
+     */
+    synchronized long getBacklogBytes() {
+        return size;
+    }
+
+    /**
+     * @return the milliseconds elapsed since the oldest record to replay was
+     *         journaled, 0 if there is none
+     */
+    synchronized long getBacklogAge() {
+        return oldestTimestamp == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldestTimestamp);
+    }
+
+    synchronized long getJournaled() {
+        return journaled;
+    }
+
+    synchronized long getReplayed() {
+        return replayed;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    synchronized long getCorrupted() {
+        return corrupted;
+    }
+
+    /**
+     * Forces the appended records to the disk, {@link #append} only handing them to
+     * the operating system.
+     */
+    synchronized void sync() throws IOException {
+        if (active != null) {
+            active.getFD().sync();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (active != null) {
+            active.getFD().sync();
+            active.close();
+            active = null;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.log4j;
+
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.BYTES_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DATE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.DURATION_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.LAYER_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.ORG_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.REQUEST_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SECROLE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.SERVICE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.STATUS_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.TTFB_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.USER_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.LogColumns.WEIGHT_COLUMN;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides how the requests of each OGC service and operation are recorded:
+ * every one of them, a deterministic 1 in N sample, or aggregated by minute.
+ * <p>
+ * The policy is a comma separated list of {@code service[.request]=mode} rules,
+ * mode being {@code all}, {@code sample:N} or {@code aggregate}, e.g.
+ * {@code WMTS.GetTile=aggregate, WMS.GetMap=sample:10}. The rule of the service
+ * and request of a log applies, or else the rule of its service, or else the
+ * log is recorded.
+ * </p>
+ * <p>
+ * The first of every N logs of a sampling rule is recorded with a weight of N,
+ * the others being dropped. The logs of an aggregation rule are counted by
+ * minute, service, request, layer, user, org, roles and status, and each count
+ * is recorded as a single log once its minute is over, with the number of
+ * requests as weight and their average measures. The counts not recorded yet
+ * are lost if the process stops abruptly.
+ * </p>
+ * <p>
+ * It is used from the writer thread of the {@link OGCServicesAppender}, then
+ * from the thread closing it.
+ * </p>
+ */
+final class OGCServicesSampling {
+
+    private static final long MINUTE = 60_000;
+
+    private final Map<String, Rule> rules;
+
+    /** the counts of the logs to aggregate, by minute and dimensions */
+    private final Map<List<Object>, Aggregate> aggregates = new LinkedHashMap<>();
+
+    private OGCServicesSampling(Map<String, Rule> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * @param policy the rules, see the class documentation, null or empty to record
+     *               every request
+     * @throws IllegalArgumentException if a rule is malformed
+     */
+    static OGCServicesSampling parse(String policy) {
+        Map<String, Rule> rules = new HashMap<>();
+        if (policy != null) {
+            for (String rule : policy.split(",")) {
+                if (rule.trim().isEmpty()) {
+                    continue;
+                }
+                String[] keyAndMode = rule.split("=");
+                if (keyAndMode.length != 2 || keyAndMode[0].trim().isEmpty()) {
+                    throw new IllegalArgumentException("Malformed sampling rule '" + rule.trim()
+                            + "', expected service[.request]=all|sample:N|aggregate");
+                }
+                rules.put(keyAndMode[0].trim().toLowerCase(Locale.ROOT), Rule.parse(keyAndMode[1].trim()));
+            }
+        }
+        return new OGCServicesSampling(rules);
+    }
+
+    /**
+     * Splits the logs into the ones to record right away, the sampled ones being
+     * weighted, and the ones to {@link #aggregate} once the former are recorded.
+     * The sampled out logs are dropped.
+     */
+    synchronized Selection select(List<Map<String, Object>> logs) {
+        Selection selection = new Selection();
+        for (Map<String, Object> log : logs) {
+            Rule rule = rule(log);
+            if (rule == null || rule.mode == Mode.ALL) {
+                selection.recorded.add(log);
+            } else if (rule.mode == Mode.AGGREGATE) {
+                selection.aggregated.add(log);
+            } else if (rule.seen++ % rule.rate == 0) {
+                Map<String, Object> sampled = new HashMap<>(log);
+                sampled.put(WEIGHT_COLUMN, rule.rate);
+                selection.recorded.add(sampled);
+            }
+        }
+        return selection;
+    }
+
+    private Rule rule(Map<String, Object> log) {
+        if (rules.isEmpty()) {
+            return null;
+        }
+        String service = lowerCase(log.get(SERVICE_COLUMN));
+        Rule rule = rules.get(service + "." + lowerCase(log.get(REQUEST_COLUMN)));
+        return rule == null ? rules.get(service) : rule;
+    }
+
+    private static String lowerCase(Object value) {
+        return value == null ? "" : value.toString().trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Adds the logs to the counts of their minute, a log counting for its weight.
+     */
+    synchronized void aggregate(List<Map<String, Object>> logs) {
+        for (Map<String, Object> log : logs) {
+            long minute = ((Date) log.get(DATE_COLUMN)).getTime() / MINUTE * MINUTE;
+            List<Object> key = Arrays.asList(minute, log.get(SERVICE_COLUMN), log.get(REQUEST_COLUMN),
+                    log.get(LAYER_COLUMN), log.get(USER_COLUMN), log.get(ORG_COLUMN), log.get(SECROLE_COLUMN),
+                    log.get(STATUS_COLUMN));
+            Aggregate aggregate = aggregates.get(key);
+            if (aggregate == null) {
+                aggregate = new Aggregate(log, minute);
+                aggregates.put(key, aggregate);
+            }
+            aggregate.add(log);
+        }
+    }
+
+    /**
+     * Removes the counts of the minutes before the given time, to be recorded.
+     * 
+     * @param before a time in milliseconds, {@link Long#MAX_VALUE} for all the
+     *               counts
+     * @return the logs of the counts, to be {@link #aggregate aggregated} again if
+     *         they can not be recorded
+     */
+    synchronized List<Map<String, Object>> drain(long before) {
+        if (aggregates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Map<String, Object>> logs = new ArrayList<>();
+        for (Iterator<Aggregate> it = aggregates.values().iterator(); it.hasNext();) {
+            Aggregate aggregate = it.next();
+            if (before == Long.MAX_VALUE || aggregate.minute + MINUTE <= before) {
+                logs.add(aggregate.toLog());
+                it.remove();
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * @return the number of counts waiting for the end of their minute
+     */
+    synchronized int getPendingAggregates() {
+        return aggregates.size();
+    }
+
+    /**
+     * The logs of a batch to record right away, and to aggregate
+     */
+    static final class Selection {
+        final List<Map<String, Object>> recorded = new ArrayList<>();
+
+        final List<Map<String, Object>> aggregated = new ArrayList<>();
+    }
+
+    private enum Mode {
+        ALL, SAMPLE, AGGREGATE
+    }
+
+    private static final class Rule {
+        final Mode mode;
+
+        final int rate;
+
+        /** the number of logs of the rule seen so far, when sampling */
+        long seen;
+
+        private Rule(Mode mode, int rate) {
+            this.mode = mode;
+            this.rate = rate;
+        }
+
+        static Rule parse(String mode) {
+            String lowerCase = mode.toLowerCase(Locale.ROOT);
+            if ("all".equals(lowerCase)) {
+                return new Rule(Mode.ALL, 1);
+            }
+            if ("aggregate".equals(lowerCase)) {
+                return new Rule(Mode.AGGREGATE, 1);
+            }
+            if (lowerCase.startsWith("sample:")) {
+                try {
+                    int rate = Integer.parseInt(lowerCase.substring("sample:".length()).trim());
+                    if (rate > 0) {
+                        return new Rule(rate == 1 ? Mode.ALL : Mode.SAMPLE, rate);
+                    }
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+            }
+            throw new IllegalArgumentException(
+                    "Unknown sampling mode '" + mode + "', expected all, sample:N with N > 0, or aggregate");
+        }
+    }
+
+    /**
+     * The count of the requests of a minute with the same dimensions, and the sum
+     * of their measures
+     */
+    private static final class Aggregate {
+        final Map<String, Object> dimensions;
+
+        final long minute;
+
+        long weight;
+
+        final Measure ttfb = new Measure();
+
+        final Measure duration = new Measure();
+
+        final Measure bytes = new Measure();
+
+        Aggregate(Map<String, Object> log, long minute) {
+            this.dimensions = new HashMap<>(log);
+            this.dimensions.keySet().retainAll(Arrays.asList(SERVICE_COLUMN, REQUEST_COLUMN, LAYER_COLUMN, USER_COLUMN,
+                    ORG_COLUMN, SECROLE_COLUMN, STATUS_COLUMN));
+            this.minute = minute;
+        }
+
+        void add(Map<String, Object> log) {
+            Number logWeight = (Number) log.get(WEIGHT_COLUMN);
+            long w = logWeight == null ? 1 : logWeight.longValue();
+            weight += w;
+            ttfb.add((Number) log.get(TTFB_COLUMN), w);
+            duration.add((Number) log.get(DURATION_COLUMN), w);
+            bytes.add((Number) log.get(BYTES_COLUMN), w);
+        }
+
+        Map<String, Object> toLog() {
+            Map<String, Object> log = new HashMap<>(dimensions);
+            log.put(DATE_COLUMN, new Date(minute));
+            log.put(WEIGHT_COLUMN, (int) Math.min(weight, Integer.MAX_VALUE));
+            Long average = ttfb.average();
+            log.put(TTFB_COLUMN, average == null ? null : Integer.valueOf(average.intValue()));
+            average = duration.average();
+            log.put(DURATION_COLUMN, average == null ? null : Integer.valueOf(average.intValue()));
+            log.put(BYTES_COLUMN, bytes.average());
+            return log;
+        }
+    }
+
+    /**
+     * The sum of a measure over the requests which know it
+     */
+    private static final class Measure {
+        double sum;
+
+        long count;
+
+        void add(Number value, long weight) {
+            if (value != null) {
+                sum += value.doubleValue() * weight;
+                count += weight;
+            }
+        }
+
+        Long average() {
+            return count == 0 ? null : Math.round(sum / count);
+        }
+    }
+}
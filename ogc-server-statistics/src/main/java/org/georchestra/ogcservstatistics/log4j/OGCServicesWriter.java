@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.log4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Writes the events logged to the {@link OGCServicesAppender} from a dedicated
+ * thread, in batches.
+ * <p>
+ * The events are put in a bounded queue, so that logging costs the request
+ * threads no more than an enqueue. The writer thread takes them out by batches
+ * of at most {@code batchSize} events, and hands a batch to the {@link Sink}
+ * once it is full or once {@code flushInterval} milliseconds have elapsed since
+ * its first event. When the queue is full, an event waits at most
+ * {@code offerTimeout} milliseconds for room and is then handed to
+ * {@link Sink#overflow}, or dropped and counted.
+ * </p>
+ */
+final class OGCServicesWriter {
+
+    /**
+     * Where the batches of events are written.
+     */
+    interface Sink {
+        /**
+         * Writes the events, failures being reported by the sink itself.
+         * 
+         * @return the number of events which could not be written
+         */
+        int write(List<LoggingEvent> events);
+
+        /**
+         * Called from the writer thread when it is not busy writing full batches, e.g.
+         * to replay the events which could not be written before.
+         */
+        default void idle() {
+        }
+
+        /**
+         * Called from a logging thread when the queue is full.
+         * 
+         * @return true if the sink has kept the event aside, false to drop it
+         */
+        default boolean overflow(LoggingEvent event) {
+            return false;
+        }
+    }
+
+    /** milliseconds between two checks that the writer is closed, while waiting */
+    private static final long POLL_INTERVAL = 100;
+
+    private final BlockingQueue<LoggingEvent> queue;
+    private final int batchSize;
+    private final long flushInterval;
+    private final long offerTimeout;
+    private final Sink sink;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param capacity      the maximum number of events waiting to be written
+     * @param batchSize     the maximum number of events written at once
+     * @param flushInterval the maximum milliseconds an event waits for its batch to
+     *                      fill up
+     * @param offerTimeout  the maximum milliseconds a logging thread waits for room
+     *                      in the queue, 0 to drop the event right away
+     * @param sink          writes the batches
+     */
+    OGCServicesWriter(int capacity, int batchSize, long flushInterval, long offerTimeout, Sink sink) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("capacity and batchSize must be greater than 0");
+        }
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushInterval = Math.max(0, flushInterval);
+        this.offerTimeout = Math.max(0, offerTimeout);
+        this.sink = sink;
+        this.thread = new Thread(this::run, "ogc-statistics-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues the event to be written.
+     * 
+     * @return false if the event has been dropped since the queue is full and the
+     *         sink did not keep it aside, or the writer is closed
+     */
+    boolean offer(LoggingEvent event) {
+        boolean queued = false;
+        if (running) {
+            try {
+                queued = offerTimeout == 0 ? queue.offer(event)
+                        : queue.offer(event, offerTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (queued) {
+            return true;
+        }
+        if (running && sink.overflow(event)) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    private void run() {
+        List<LoggingEvent> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                fill(batch);
+            } catch (InterruptedException e) {
+                // closing, write what is left
+                queue.drainTo(batch, batchSize - batch.size());
+            }
+            boolean busy = batch.size() == batchSize;
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+            if (!busy && running) {
+                try {
+                    sink.idle();
+                } catch (RuntimeException e) {
+                    // reported by the sink
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a first event, then for the batch to be full or the flush interval
+     * to elapse.
+     */
+    private void fill(List<LoggingEvent> batch) throws InterruptedException {
+        LoggingEvent first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+        while (batch.size() < batchSize) {
+            if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !running) {
+                return;
+            }
+            LoggingEvent next = queue.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL)),
+                    TimeUnit.NANOSECONDS);
+            if (next != null) {
+                batch.add(next);
+            }
+        }
+    }
+
+    private void write(List<LoggingEvent> batch) {
+        int failures;
+        try {
+            failures = sink.write(batch);
+        } catch (RuntimeException e) {
+            failures = batch.size();
+        }
+        failed.addAndGet(failures);
+        written.addAndGet(batch.size() - failures);
+    }
+
+    /**
+     * Stops accepting events and waits at most timeout milliseconds for the queued
+     * ones to be written.
+     * 
+     * @return true if all the queued events have been written
+     */
+    boolean close(long timeout) {
+        running = false;
+        try {
+            thread.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            thread.interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of events waiting to be written
+     */
+    int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of events dropped since the queue was full
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of events written
+     */
+    long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of events which could not be written
+     */
+    long getFailed() {
+        return failed.get();
+    }
+}
@@ -0,0 +1,133 @@
+package org.georchestra.ogcservstatistics.calculations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.georchestra.ogcservstatistics.calculations.LiveStatistics.Dimension;
+import org.junit.Test;
+
+public class LiveStatisticsTest {
+
+    private static Map<String, Object> log(String layer, String user, long date) {
+        Map<String, Object> log = new HashMap<>();
+        log.put("user_name", user);
+        log.put("date", new Date(date));
+        log.put("service", "WMS");
+        log.put("layer", layer);
+        log.put("request", "getmap");
+        log.put("org", "");
+        return log;
+    }
+
+    @Test
+    public void testSpaceSavingFindsFrequentItems() {
+        SpaceSaving summary = new SpaceSaving(10);
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            // two heavy hitters among many rare items
+            summary.offer(i % 4 == 0 ? "roads" : i % 4 == 1 ? "rivers" : "layer" + random.nextInt(1000), 1);
+        }
+        List<SpaceSaving.Counter> top = summary.top(2);
+        assertEquals(2, top.size());
+        assertTrue(top.get(0).getItem() + " " + top.get(1).getItem(),
+                top.get(0).getItem().matches("roads|rivers") && top.get(1).getItem().matches("roads|rivers"));
+        for (SpaceSaving.Counter counter : top) {
+            assertTrue(counter.getCount() >= 2500);
+            assertTrue(counter.getCount() - counter.getError() <= 2500);
+        }
+        assertEquals(10, summary.getCounters().size());
+    }
+
+    @Test
+    public void testSpaceSavingMerge() {
+        SpaceSaving node1 = new SpaceSaving(3);
+        SpaceSaving node2 = new SpaceSaving(3);
+        node1.offer("roads", 10);
+        node1.offer("rivers", 5);
+        node2.offer("roads", 7);
+        node2.offer("parcels", 8);
+        node1.merge(node2);
+        List<SpaceSaving.Counter> top = node1.top(3);
+        assertEquals("roads", top.get(0).getItem());
+        assertEquals(17, top.get(0).getCount());
+        assertEquals("parcels", top.get(1).getItem());
+        assertEquals(8, top.get(1).getCount());
+        assertEquals(0, top.get(1).getError());
+    }
+
+    @Test
+    public void testCountMinSketchOverestimates() {
+        CountMinSketch sketch = new CountMinSketch(4, 128);
+        Map<String, Long> actual = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            String item = "user" + random.nextInt(500);
+            sketch.add(item, 1);
+            actual.merge(item, 1L, Long::sum);
+        }
+        assertEquals(10_000, sketch.getTotal());
+        for (Map.Entry<String, Long> entry : actual.entrySet()) {
+            long estimate = sketch.estimate(entry.getKey());
+            assertTrue(estimate >= entry.getValue());
+            // e / width of the total count, with a high probability
+            assertTrue(estimate - entry.getValue() <= 10_000 * Math.E / 128);
+        }
+
+        // the state read from another node merges as the sketch itself
+        CountMinSketch other = new CountMinSketch(4, 128, sketch.getTable());
+        assertEquals(10_000, other.getTotal());
+        other.merge(sketch);
+        assertEquals(2 * sketch.estimate("user1"), other.estimate("user1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCountMinSketchOfOtherDimensions() {
+        new CountMinSketch(4, 128).merge(new CountMinSketch(4, 256));
+    }
+
+    @Test
+    public void testSlidingWindows() {
+        LiveStatistics statistics = new LiveStatistics(10, 4, 128);
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> logs = new ArrayList<>();
+        logs.add(log("roads", "testuser", now));
+        logs.add(log("roads", "testadmin", now - 5 * 60_000));
+        logs.add(log("rivers", "testadmin", now - 30 * 60_000));
+        // older than the last hour
+        logs.add(log("parcels", "testadmin", now - 2 * 3600_000));
+        Map<String, Object> weighted = log("rivers", "testuser", now - 30 * 60_000);
+        weighted.put("weight", 10);
+        logs.add(weighted);
+        statistics.add(logs);
+
+        LiveStatistics.Window window = statistics.window(1, now);
+        assertEquals(1, window.getRequests());
+        assertEquals("roads", window.top(Dimension.LAYER, 10).get(0).getItem());
+        assertEquals(now / 60_000 * 60_000 + 60_000, window.getTo());
+
+        window = statistics.window(15, now);
+        assertEquals(2, window.getRequests());
+        assertEquals(2, window.estimate(Dimension.LAYER, "roads"));
+        assertEquals(0, window.estimate(Dimension.LAYER, "rivers"));
+
+        window = statistics.window(60, now);
+        assertEquals(13, window.getRequests());
+        assertEquals("rivers", window.top(Dimension.LAYER, 10).get(0).getItem());
+        assertEquals(11, window.estimate(Dimension.LAYER, "rivers"));
+        assertEquals(0, window.estimate(Dimension.LAYER, "parcels"));
+        assertEquals(13, window.estimate(Dimension.SERVICE, "WMS"));
+        // the empty values are not counted
+        assertEquals(Collections.emptyList(), window.top(Dimension.ORG, 10));
+
+        // an hour later, the requests are not counted anymore
+        assertEquals(0, statistics.window(60, now + 3600_000).getRequests());
+    }
+}
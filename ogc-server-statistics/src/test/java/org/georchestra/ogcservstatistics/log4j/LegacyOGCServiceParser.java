@@ -0,0 +1,279 @@
+
+package org.georchestra.ogcservstatistics.log4j;
+
+import static java.util.regex.Pattern.CASE_INSENSITIVE;
+import static java.util.regex.Pattern.compile;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * The regular expressions based {@link OGCServiceParser} of 20.0, kept to check
+ * the single pass parser gives the same results, see
+ * {@link OGCServiceParserBenchmark}.
+ */
+final class LegacyOGCServiceParser {
+
+    // service types
+    private static final String WFS = "WFS";
+    private static final String WMS = "WMS";
+    private static final String WCS = "WCS";
+    private static final String WMTS = "WMTS";
+
+    private static Map<Pattern, String> SERVICE_PATTERNS = new HashMap<>();
+    static {
+        SERVICE_PATTERNS.put(compile(".*\\bservice=wms\\b.*", CASE_INSENSITIVE), WMS);
+        SERVICE_PATTERNS.put(compile(".*\\bWMS\\?\\n*[\\s\\S]*", CASE_INSENSITIVE), WMS);
+        SERVICE_PATTERNS.put(compile(".*\\bservice=wfs\\b.*", CASE_INSENSITIVE), WFS);
+        SERVICE_PATTERNS.put(compile(".*\\bWFS\\?\\n*[\\s\\S]*", CASE_INSENSITIVE), WFS);
+        SERVICE_PATTERNS.put(compile(".*\\bWFSDISPATCHER\\?\\n*[\\s\\S]*", CASE_INSENSITIVE), WFS);
+        SERVICE_PATTERNS.put(compile(".*\\bservice=wcs\\b.*", CASE_INSENSITIVE), WCS);
+        SERVICE_PATTERNS.put(compile(".*\\bWCS\\?\\n*[\\s\\S]*", CASE_INSENSITIVE), WCS);
+        SERVICE_PATTERNS.put(compile(".*\\bservice=wmts\\b.*", CASE_INSENSITIVE), WMTS);
+    }
+
+    // request type
+    private static final String GETCAPABILITIES = "GETCAPABILITIES";
+    private static final String GETMAP = "GETMAP";
+    private static final String GETLEGENDGRAPHIC = "GETLEGENDGRAPHIC";
+    private static final String GETFEATUREINFO = "GETFEATUREINFO";
+    private static final String DESCRIBELAYER = "DESCRIBELAYER";
+    private static final String GETFEATURE = "GETFEATURE";
+    private static final String DESCRIBEFEATURETYPE = "DESCRIBEFEATURETYPE";
+    private static final String GETCOVERAGE = "GETCOVERAGE";
+    private static final String DESCRIBECOVERAGE = "DESCRIBECOVERAGE";
+    private static final String GETTILE = "GETTILE";
+    private static final String GETSTYLES = "GETSTYLES";
+
+    // WFS2 support
+    private static final String GETPROPERTYVALUE = "GETPROPERTYVALUE";
+    private static final String LOCKFEATURE = "LOCKFEATURE";
+    private static final String GETFEATUREWITHLOCK = "GETFEATUREWITHLOCK";
+    private static final String LISTSTOREDQUERIES = "LISTSTOREDQUERIES";
+    private static final String DESCRIBESTOREDQUERIES = "DESCRIBESTOREDQUERIES";
+    private static final String CREATESTOREDQUERY = "CREATESTOREDQUERY";
+    private static final String DROPSTOREDQUERY = "DROPSTOREDQUERY";
+
+    private static Map<Pattern, String> OPERATION_NAME_PATTERNS = new HashMap<>();
+    static {
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=getcapabilities\\b.*", CASE_INSENSITIVE), GETCAPABILITIES);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=getmap\\b.*", CASE_INSENSITIVE), GETMAP);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=GETLEGENDGRAPHIC\\b.*", CASE_INSENSITIVE), GETLEGENDGRAPHIC);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=GETFEATUREINFO\\b.*", CASE_INSENSITIVE), GETFEATUREINFO);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=DESCRIBELAYER\\b.*", CASE_INSENSITIVE), DESCRIBELAYER);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=GETFEATURE\\b.*", CASE_INSENSITIVE), GETFEATURE);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=DESCRIBEFEATURETYPE\\b.*", CASE_INSENSITIVE),
+                DESCRIBEFEATURETYPE);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=GETCOVERAGE\\b.*", CASE_INSENSITIVE), GETCOVERAGE);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=DESCRIBECOVERAGE\\b.*", CASE_INSENSITIVE), DESCRIBECOVERAGE);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=GETTILE\\b.*", CASE_INSENSITIVE), GETTILE);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=GETSTYLES\\b.*", CASE_INSENSITIVE), GETSTYLES);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=GETPROPERTYVALUE\\b.*", CASE_INSENSITIVE), GETPROPERTYVALUE);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=LOCKFEATURE\\b.*", CASE_INSENSITIVE), LOCKFEATURE);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=GETFEATUREWITHLOCK\\b.*", CASE_INSENSITIVE),
+                GETFEATUREWITHLOCK);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=LISTSTOREDQUERIES\\b.*", CASE_INSENSITIVE),
+                LISTSTOREDQUERIES);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=DESCRIBESTOREDQUERIES\\b.*", CASE_INSENSITIVE),
+                DESCRIBESTOREDQUERIES);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=CREATESTOREDQUERY.*", CASE_INSENSITIVE), CREATESTOREDQUERY);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=DROPSTOREDQUERY.*", CASE_INSENSITIVE), DROPSTOREDQUERY);
+        OPERATION_NAME_PATTERNS.put(compile(".*\\brequest=getmap.*", CASE_INSENSITIVE), GETMAP);
+    };
+
+    private static final String[] LAYER_KEYWORD = { "LAYERS=", "LAYER=", "TYPENAME=", "QUERY_LAYERS=", "COVERAGEID=" };
+
+    private static final String COMMA = ",";
+    private static final char QUOTE = '\"';
+    private static final char[] DELIMITER = { '&', ' ', '\r', '\t', '>' };
+    private static final String OGC_MSG_SPLITTER = "[" + OGCServiceMessageFormatter.SEPARATOR + "]";
+
+    private static final List<String> HAS_TO_CREATE_A_LOG_WITHOUT_LAYER = Collections.singletonList("");
+
+    static {
+        // sorts the delimiters to allow binary search
+        Arrays.sort(DELIMITER);
+    }
+
+    private LegacyOGCServiceParser() {
+        // utility class
+    }
+
+    /**
+     * Parses the request string in order to extract service, layer, user, date
+     * 
+     * @param message
+     * @return list of logs
+     * 
+     * @throws ParseException
+     * @throws UnsupportedEncodingException
+     */
+    public static List<Map<String, Object>> parseLog(final String message)
+            throws ParseException, UnsupportedEncodingException {
+
+        String[] splittedMessage = message.split(OGC_MSG_SPLITTER);
+        if (splittedMessage.length < 3) {
+            throw new ParseException(
+                    "the message has not be recognized. Use OGCServiceMessageFormatter.format(...) to build the message",
+                    0);
+        }
+
+        // parses service and layer from request
+        String request = URLDecoder.decode(splittedMessage[2], "UTF-8");
+        String service = parseService(request);
+        String ogcReq = parseOperationName(request).toLowerCase();
+
+        boolean undefinedService = "".equals(service);
+        if (undefinedService)
+            return Collections.emptyList();
+
+        // extracts user
+        String user = splittedMessage[0];
+
+        // extracts date
+        DateFormat formatter = new SimpleDateFormat(OGCServiceMessageFormatter.DATE_FORMAT);
+        Date date = formatter.parse(splittedMessage[1]);
+
+        // parses org (it is optional) and sec roles
+        String org;
+        String roles;
+        if (splittedMessage.length == 5 || splittedMessage.length == 9) {
+            org = splittedMessage[3];
+            roles = splittedMessage[4];
+        } else { // missing case
+            org = "";
+            roles = "";
+        }
+
+        // for each layer adds a log to the list
+        List<String> layerList = new ArrayList<>();
+        for (String layer : parseLayer(request)) {
+            layerList.add(layer.toLowerCase());
+        }
+        OGCServiceEvent event = new OGCServiceEvent(user, date, splittedMessage[2], service, ogcReq, layerList, org,
+                roles.split(COMMA, -1));
+
+        // parses the response measures (they are optional)
+        if (splittedMessage.length == 9) {
+            try {
+                long ttfb = splittedMessage[5].isEmpty() ? -1 : Long.parseLong(splittedMessage[5]);
+                event = event.withResponse(ttfb, Long.parseLong(splittedMessage[6]), Long.parseLong(splittedMessage[7]),
+                        Integer.parseInt(splittedMessage[8]));
+            } catch (NumberFormatException e) {
+                throw new ParseException("the response measures are not numbers: " + e.getMessage(), 0);
+            }
+        }
+        return event.toLogs();
+    }
+
+    /**
+     * Parses the OGC service.
+     *
+     * @param message
+     *
+     * @return an OGC service symbol, "" in other case.
+     */
+    private static String parseService(final String message) {
+        // checks if it is an ogc service
+        String service = SERVICE_PATTERNS.entrySet().stream().filter(e -> e.getKey().matcher(message).matches())
+                .map(Entry<Pattern, String>::getValue).findFirst().orElse("");
+
+        // Particular case: the following does not contain the WMS service key
+        if (service.isEmpty() && message.contains(GETLEGENDGRAPHIC)) {
+            service = WMS;
+        }
+        return service;
+    }
+
+    private static String parseOperationName(final String message) {
+        Optional<String> operationName = OPERATION_NAME_PATTERNS.entrySet().stream().parallel()
+                .filter(e -> e.getKey().matcher(message).matches()).map(Entry<Pattern, String>::getValue).findFirst();
+        return operationName.orElse("");
+    }
+
+    /**
+     * Parses the layer name
+     * 
+     * @param request
+     * 
+     * @return a list of layer names
+     */
+    private static List<String> parseLayer(final String request) {
+        // only convert to upper case the request URL, in case it has a large POST body
+        final int newlineIndex = request.indexOf('\n');
+        String matchLayersStr = newlineIndex == -1 ? request : request.substring(0, newlineIndex);
+        matchLayersStr = matchLayersStr.toUpperCase();
+
+        List<String> layerList = HAS_TO_CREATE_A_LOG_WITHOUT_LAYER;
+        for (String layerKeyword : LAYER_KEYWORD) {
+            if (matchLayersStr.contains(layerKeyword)) {
+
+                int begin = matchLayersStr.indexOf(layerKeyword);
+                begin = begin + layerKeyword.length();
+                String layers = matchLayersStr.substring(begin);
+                int end = searchEndOfLayerValue(layers);
+                layers = layers.substring(0, end);
+
+                layerList = buildLayerList(layers);
+            }
+        }
+        return layerList;
+    }
+
+    /**
+     * Index of the end of list of the layer names.
+     * 
+     * @param layer
+     * @return index
+     */
+    private static int searchEndOfLayerValue(String layer) {
+
+        int end = -1;
+        // search the delimiter the layer element
+        for (int i = 0; i < layer.length(); i++) {
+
+            char current = layer.charAt(i);
+            if (Arrays.binarySearch(DELIMITER, current) >= 0) {
+                return i;
+            }
+        }
+        if (end == -1) {
+            end = layer.length();
+        }
+        return end;
+    }
+
+    /**
+     * Extract the layer name from a list like layer1, layer2, ...., layerN
+     * 
+     * @param strLayerList
+     * 
+     * @return List of layers
+     */
+    private static List<String> buildLayerList(final String strLayerList) {
+        List<String> layers = new LinkedList<>();
+        String[] layersToBeautify = strLayerList.split(COMMA);
+        for (String layerToBeautify : layersToBeautify) {
+            layers.add(removeQuoteAndTrim(layerToBeautify));
+        }
+        return layers;
+    }
+
+    private static String removeQuoteAndTrim(String string) {
+        return string.replace(QUOTE, ' ').trim();
+    }
+}
@@ -0,0 +1,111 @@
+package org.georchestra.ogcservstatistics.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+public class OGCServiceEventTest {
+
+    private static final String[] REQUESTS = {
+            "http://localhost/geoserver/wms?SERVICE=WMS&LAYERS=layer2,Layer3&VERSION=1.1.1&REQUEST=GetMap&STYLES=&SRS=EPSG%3A2154",
+            "http://localhost/geoserver/ows?service=wfs&version=2.0.0&request=GetFeature&typeName=%22ns:Roads%22",
+            "http://localhost/geoserver/ows?SERVICE=WCS&VERSION=2.0.1&REQUEST=GetCoverage&COVERAGEID=arBres,animaux",
+            "http://localhost/geoserver/gwc/service/wmts?SERVICE=WMTS&REQUEST=GetTile&LAYER=ortho",
+            "http://localhost/geoserver/wms?REQUEST=GetLegendGraphic&LAYER=roads&FORMAT=image/png",
+            "http://localhost/geoserver/wms?SERVICE=WMS&REQUEST=GetFeatureInfo&QUERY_LAYERS=roads&LAYERS=roads,rivers",
+            "http://localhost/geoserver/wfs?SERVICE=WFS&REQUEST=UnknownOperation",
+            "http://localhost/geoserver/wms?SERVICE=WMS&REQUEST=GetCapabilities" };
+
+    private static Map<String, String[]> parameters(String url) throws UnsupportedEncodingException {
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        for (String parameter : url.substring(url.indexOf('?') + 1).split("&")) {
+            int eq = parameter.indexOf('=');
+            parameters.put(parameter.substring(0, eq),
+                    new String[] { URLDecoder.decode(parameter.substring(eq + 1), "UTF-8") });
+        }
+        return parameters;
+    }
+
+    @Test
+    public void testSameLogsAsParser() throws Exception {
+        Date date = new Date(1_500_000_000_000L);
+        String[] roles = { "ROLE_USER", "ROLE_ADMIN" };
+        for (String request : REQUESTS) {
+            OGCServiceEvent event = OGCServiceEvent.fromParameters("user", date, request, parameters(request), "c2c",
+                    roles);
+            List<Map<String, Object>> parsed = OGCServiceParser.parseLog(event.toString());
+            assertEquals(request, parsed, event.toLogs());
+
+            event = event.withResponse(5, 40, 1000, 200);
+            parsed = OGCServiceParser.parseLog(event.toString());
+            assertEquals(request, parsed, event.toLogs());
+        }
+    }
+
+    @Test
+    public void testNoService() {
+        Map<String, String[]> parameters = new HashMap<>();
+        parameters.put("SERVICE", new String[] { "WPS" });
+        assertNull(OGCServiceEvent.fromParameters("user", new Date(), "http://localhost/wps", parameters, "",
+                new String[] { "" }));
+    }
+
+    @Test
+    public void testAppenderUsesEvent() throws Exception {
+        Map<String, String[]> parameters = new HashMap<>();
+        parameters.put("service", new String[] { "WMS" });
+        parameters.put("request", new String[] { "GetMap" });
+        parameters.put("layers", new String[] { "Roads" });
+        // the request is not parsed again
+        OGCServiceEvent event = OGCServiceEvent.fromParameters("user", new Date(), "not parseable", parameters, "",
+                new String[] { "" });
+
+        Logger logger = Logger.getLogger(OGCServiceEventTest.class);
+        LoggingEvent loggingEvent = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, event, null);
+        List<Map<String, Object>> logs = OGCServicesAppender.toLogs(loggingEvent);
+        assertEquals(1, logs.size());
+        assertEquals("WMS", logs.get(0).get("service"));
+        assertEquals("getmap", logs.get(0).get("request"));
+        assertEquals("roads", logs.get(0).get("layer"));
+    }
+
+    @Test
+    public void testJournalKeepsParsedFields() throws Exception {
+        Map<String, String[]> parameters = new HashMap<>();
+        parameters.put("service", new String[] { "WFS" });
+        parameters.put("request", new String[] { "GetFeature" });
+        parameters.put("typeName", new String[] { "ns:Roads,ns:Rivers" });
+        // a POST request, of which the URL does not tell the service
+        OGCServiceEvent event = OGCServiceEvent
+                .fromParameters("user", new Date(1_500_000_000_123L), "http://localhost/geoserver/ows?a=b\tc\\d",
+                        parameters, "c2c", new String[] { "ROLE_USER", "ROLE_ADMIN" })
+                .withResponse(5, 40, 1001, 200);
+
+        Logger logger = Logger.getLogger(OGCServiceEventTest.class);
+        LoggingEvent loggingEvent = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, event, null);
+        String record = OGCServicesAppender.toJournal(loggingEvent);
+        List<Map<String, Object>> logs = OGCServicesAppender.toLogs(record);
+        assertEquals(event.toLogs(), logs);
+        assertEquals(2, logs.size());
+        assertEquals("getfeature", logs.get(0).get("request"));
+        assertEquals("ns:rivers", logs.get(1).get("layer"));
+        assertEquals(event.getRequest(), OGCServiceEvent.fromJournal(record).getRequest());
+
+        // the messages of the other producers are still parsed
+        String message = OGCServiceMessageFormatter.format("user", new Date(), REQUESTS[0], "c2c",
+                new String[] { "ROLE_USER" });
+        assertEquals(OGCServiceParser.parseLog(message), OGCServicesAppender.toLogs(message));
+    }
+}
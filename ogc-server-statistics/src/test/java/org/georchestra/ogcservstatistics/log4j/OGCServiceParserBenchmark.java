@@ -0,0 +1,168 @@
+package org.georchestra.ogcservstatistics.log4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.georchestra.ogcservstatistics.util.Utility;
+
+/**
+ * Compares the time taken by {@link OGCServiceParser} and
+ * {@link LegacyOGCServiceParser} to parse a corpus of requests similar to the
+ * ones logged by the security-proxy, e.g. from the IDE or with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.georchestra.ogcservstatistics.log4j.OGCServiceParserBenchmark}
+ */
+public class OGCServiceParserBenchmark {
+
+    private static final String[] ENDPOINTS = { "http://localhost/geoserver/wms?", "http://localhost/geoserver/wfs?",
+            "http://localhost/geoserver/wcs?", "http://localhost/geoserver/ows?",
+            "http://localhost/geoserver/gwc/service/wmts?", "http://ns383241.ovh.net:80/geoserver/wfs/WfsDispatcher?",
+            "http://localhost/mapserver?", "http://localhost/geoserver/wps?" };
+
+    private static final String[] SERVICES = { "WMS", "wms", "WFS", "wFs", "WCS", "WMTS", "WPS", "WMS,WFS" };
+
+    private static final String[] OPERATIONS = { "GetCapabilities", "GetMap", "GETMAP", "GetLegendGraphic",
+            "GETLEGENDGRAPHIC", "GetFeatureInfo", "DescribeLayer", "GetFeature", "DescribeFeatureType", "GetCoverage",
+            "DescribeCoverage", "GetTile", "GetStyles", "GetPropertyValue", "LockFeature", "GetFeatureWithLock",
+            "ListStoredQueries", "DescribeStoredQueries", "CreateStoredQuery", "DropStoredQuery", "GetMapX",
+            "UnknownOperation", "" };
+
+    private static final String[] LAYER_PARAMETERS = { "LAYERS", "layers", "LAYER", "TypeName", "QUERY_LAYERS",
+            "COVERAGEID" };
+
+    private static final String[] LAYERS = { "roads", "ns:Roads", "%22ns:Rivers%22", "ns%3ALakes", "a+b",
+            "Layer%20With%20Spaces", "ortho,roads", "\"quoted\",plain", "x&gt;y", "", ",", "arBres,animaux," };
+
+    private static final String[] EXTRA = { "VERSION=1.1.1", "version=2.0.0", "STYLES=", "SRS=EPSG%3A2154",
+            "BBOX=-180,-90,180,90", "FORMAT=image%2Fpng", "WIDTH=256&HEIGHT=256", "TRANSPARENT=true",
+            "CQL_FILTER=name%3D%27main%27", "EXCEPTIONS=application%2Fvnd.ogc.se_inimage" };
+
+    private static final String[] BODIES = { "postWcsDescribeCoverage.txt", "postWcsGetCoverage.txt",
+            "postWfsDelete.txt", "postWfsGetFeature.txt", "postWfsInsert.txt", "postWfsUpdate.txt" };
+
+    private OGCServiceParserBenchmark() {
+    }
+
+    /**
+     * @param posts whether a tenth of the requests are POST requests, whose body
+     *              the legacy parser did not interpret
+     * @return messages built by {@link OGCServiceMessageFormatter}
+     */
+    static List<String> corpus(int size, long seed, boolean posts) {
+        Random random = new Random(seed);
+        List<String> bodies = new ArrayList<>();
+        for (String body : BODIES) {
+            bodies.add(Utility.loadRequest(body));
+        }
+        // a transaction inserting 2 MB of features
+        StringBuilder transaction = new StringBuilder("http://localhost/geoserver/wfs?\n<wfs:Transaction"
+                + " service=\"WFS\" version=\"1.0.0\" xmlns:wfs=\"http://www.opengis.net/wfs\""
+                + " xmlns:topp=\"http://www.openplans.org/topp\"><wfs:Insert>");
+        while (transaction.length() < 2 << 20) {
+            transaction.append("<topp:roads><topp:name>main</topp:name></topp:roads>");
+        }
+        bodies.add(transaction.append("</wfs:Insert></wfs:Transaction>").toString());
+        List<String> messages = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String request = posts && random.nextInt(10) == 0 ? bodies.get(random.nextInt(bodies.size()))
+                    : request(random);
+            Date date = new Date(1_500_000_000_000L + random.nextInt(1_000_000_000) * 1000L);
+            String user = random.nextBoolean() ? "anonymousUser" : "user" + random.nextInt(100);
+            String[] roles = random.nextBoolean() ? new String[] { "" } : new String[] { "ROLE_USER", "ROLE_ADMIN" };
+            String message;
+            if (random.nextBoolean()) {
+                message = OGCServiceMessageFormatter.format(user, date, request, "org" + random.nextInt(5), roles);
+            } else {
+                message = OGCServiceMessageFormatter.format(user, date, request, "", roles,
+                        random.nextBoolean() ? -1 : random.nextInt(1000), random.nextInt(10_000),
+                        random.nextInt(1 << 20), 200);
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static String request(Random random) {
+        String endpoint = ENDPOINTS[random.nextInt(ENDPOINTS.length)];
+        List<String> parameters = new ArrayList<>();
+        // a service parameter contradicting the endpoint made the legacy parser
+        // choose one of them at random
+        boolean serviceEndpoint = endpoint.matches("(?i).*/(wms|wfs|wcs|wfsdispatcher)\\?");
+        if (!serviceEndpoint && random.nextInt(10) > 0) {
+            parameters.add(key("SERVICE", random) + "=" + SERVICES[random.nextInt(SERVICES.length)]);
+        } else if (serviceEndpoint && random.nextInt(4) == 0) {
+            String service = endpoint.replaceAll("(?i).*/(wms|wfs|wcs)(dispatcher)?\\?", "$1");
+            parameters.add(key("SERVICE", random) + "=" + service);
+        }
+        if (random.nextInt(10) > 0) {
+            parameters.add(key("REQUEST", random) + "=" + OPERATIONS[random.nextInt(OPERATIONS.length)]);
+        }
+        for (int i = random.nextInt(3); i > 0; i--) {
+            parameters.add(key(LAYER_PARAMETERS[random.nextInt(LAYER_PARAMETERS.length)], random) + "="
+                    + LAYERS[random.nextInt(LAYERS.length)]);
+        }
+        for (int i = random.nextInt(5); i > 0; i--) {
+            parameters.add(EXTRA[random.nextInt(EXTRA.length)]);
+        }
+        Collections.shuffle(parameters, random);
+        return endpoint + String.join("&", parameters);
+    }
+
+    private static String key(String key, Random random) {
+        switch (random.nextInt(3)) {
+        case 0:
+            return key.toLowerCase(Locale.ROOT);
+        case 1:
+            return key.toUpperCase(Locale.ROOT);
+        default:
+            return key;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> corpus = corpus(50_000, 1, false);
+        for (int round = 0; round < 5; round++) {
+            long legacy = 0;
+            long start = System.nanoTime();
+            for (String message : corpus) {
+                legacy += LegacyOGCServiceParser.parseLog(message).size();
+            }
+            long legacyTime = System.nanoTime() - start;
+
+            long current = 0;
+            start = System.nanoTime();
+            for (String message : corpus) {
+                current += OGCServiceParser.parseLog(message).size();
+            }
+            long currentTime = System.nanoTime() - start;
+
+            System.out.printf(Locale.ROOT, "round %d: legacy %.2f us/message, single pass %.2f us/message, x%.1f%n",
+                    round, legacyTime / 1e3 / corpus.size(), currentTime / 1e3 / corpus.size(),
+                    (double) legacyTime / currentTime);
+            if (legacy != current) {
+                throw new IllegalStateException("different number of logs: " + legacy + " != " + current);
+            }
+        }
+
+        // the XML bodies are read up to OGCServiceXmlExtractor.DEFAULT_LIMIT
+        corpus = corpus(5_000, 1, true);
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (String message : corpus) {
+                LegacyOGCServiceParser.parseLog(message);
+            }
+            long legacyTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (String message : corpus) {
+                OGCServiceParser.parseLog(message);
+            }
+            long currentTime = System.nanoTime() - start;
+            System.out.printf(Locale.ROOT, "with POST: legacy %.2f us/message, single pass %.2f us/message, x%.1f%n",
+                    legacyTime / 1e3 / corpus.size(), currentTime / 1e3 / corpus.size(),
+                    (double) legacyTime / currentTime);
+        }
+    }
+}
@@ -2,10 +2,12 @@ package org.georchestra.ogcservstatistics.log4j;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -73,31 +75,95 @@ public class OGCServiceParserTest {
         assertEquals("", logEntries.get(0).get("layer"));
     }
 
+    @Test
+    public void parseResponseMeasures() throws Exception {
+        String request = "http://localhost/geoserver/wms?SERVICE=WMS&REQUEST=GetMap&LAYERS=roads,rivers,lakes";
+        String message = OGCServiceMessageFormatter.format("user", new Date(), request, "c2c", new String[] { "ROLE1" },
+                12, 250, 1001, 200);
+
+        List<Map<String, Object>> logEntries = OGCServiceParser.parseLog(message);
+        assertEquals(3, logEntries.size());
+        assertEquals("c2c", logEntries.get(0).get("org"));
+        assertEquals("ROLE1", logEntries.get(0).get("roles"));
+        long bytes = 0;
+        for (Map<String, Object> entry : logEntries) {
+            assertEquals(12, entry.get("ttfb_ms"));
+            assertEquals(250, entry.get("duration_ms"));
+            assertEquals(200, entry.get("http_status"));
+            bytes += (Long) entry.get("bytes_sent");
+        }
+        // the size of the response is shared among the layers
+        assertEquals(1001, bytes);
+
+        // no response received from the backend
+        message = OGCServiceMessageFormatter.format("user", new Date(), request, "", new String[] { "" }, -1, 30000, 0,
+                504);
+        Map<String, Object> entry = OGCServiceParser.parseLog(message).get(0);
+        assertNull(entry.get("ttfb_ms"));
+        assertEquals(30000, entry.get("duration_ms"));
+        assertEquals(504, entry.get("http_status"));
+
+        // legacy message
+        message = OGCServiceMessageFormatter.format("user", new Date(), request, "c2c", new String[] { "ROLE1" });
+        entry = OGCServiceParser.parseLog(message).get(0);
+        assertEquals("c2c", entry.get("org"));
+        assertNull(entry.get("duration_ms"));
+        assertNull(entry.get("bytes_sent"));
+    }
+
+    @Test
+    public void testSameResultsAsLegacyParser() throws Exception {
+        for (String message : OGCServiceParserBenchmark.corpus(10_000, 42, false)) {
+            assertEquals(message, LegacyOGCServiceParser.parseLog(message), OGCServiceParser.parseLog(message));
+        }
+    }
+
+    @Test
+    public void testRequestTokenized() {
+        OGCServiceRequest request = OGCServiceRequest.parse(
+                "http://localhost/geoserver/ows?service=WFS&version=2.0.0&REQUEST=GetFeature&typeName=ns%3ARoads");
+        assertEquals("WFS", request.getService());
+        assertEquals("getfeature", request.getOperation());
+        assertEquals("2.0.0", request.getVersion());
+        assertEquals(Collections.singletonList("ns:roads"), request.getLayers());
+
+        // the XML body takes precedence over the URL
+        request = OGCServiceRequest.parse("http://localhost/geoserver/ows?SERVICE=WMS&REQUEST=GetMap\n"
+                + "<wfs:GetFeature service=\"WFS\" xmlns:wfs=\"http://www.opengis.net/wfs\">"
+                + "<wfs:Query typeName=\"ns:Roads\"/></wfs:GetFeature>");
+        assertEquals("WFS", request.getService());
+        assertEquals("getfeature", request.getOperation());
+        assertEquals(Collections.singletonList("ns:roads"), request.getLayers());
+
+        assertEquals("", OGCServiceRequest.parse("http://localhost/geoserver/wps?SERVICE=WPS").getService());
+    }
+
     public @Test void postWcsDescribeCoverage() throws UnsupportedEncodingException, ParseException {
-        testResourceRequest("postWcsDescribeCoverage.txt", "WCS");
+        testResourceRequest("postWcsDescribeCoverage.txt", "WCS", "describecoverage", "nurc:pk50095");
     }
 
     public @Test void postWcsGetCoverage() throws UnsupportedEncodingException, ParseException {
-        testResourceRequest("postWcsGetCoverage.txt", "WCS");
+        testResourceRequest("postWcsGetCoverage.txt", "WCS", "getcoverage", "nurc:pk50095");
     }
 
     public @Test void postWfsDelete() throws UnsupportedEncodingException, ParseException {
-        testResourceRequest("postWfsDelete.txt", "WFS");
+        testResourceRequest("postWfsDelete.txt", "WFS", "transaction", "topp:tasmania_roads");
     }
 
     public @Test void postWfsGetFeature() throws UnsupportedEncodingException, ParseException {
-        testResourceRequest("postWfsGetFeature.txt", "WFS");
+        testResourceRequest("postWfsGetFeature.txt", "WFS", "getfeature", "ign:commune");
     }
 
     public @Test void postWfsInsert() throws UnsupportedEncodingException, ParseException {
-        testResourceRequest("postWfsInsert.txt", "WFS");
+        testResourceRequest("postWfsInsert.txt", "WFS", "transaction", "topp:tasmania_roads");
     }
 
     public @Test void postWfsUpdate() throws UnsupportedEncodingException, ParseException {
-        testResourceRequest("postWfsUpdate.txt", "WFS");
+        testResourceRequest("postWfsUpdate.txt", "WFS", "transaction", "feature:menhir");
     }
 
-    private void testResourceRequest(final String resourceName, final String expectedService)
+    private void testResourceRequest(final String resourceName, final String expectedService,
+            final String expectedOperation, final String expectedLayer)
             throws UnsupportedEncodingException, ParseException {
         String request = Utility.loadRequest(resourceName);
         String user = "user";
@@ -112,6 +178,8 @@ public class OGCServiceParserTest {
         assertEquals(1, logEntries.size());
         Map<String, Object> entry = logEntries.get(0);
         assertEquals(expectedService, entry.get("service"));
+        assertEquals(expectedOperation, entry.get("request"));
+        assertEquals(expectedLayer, entry.get("layer"));
     }
 
 }
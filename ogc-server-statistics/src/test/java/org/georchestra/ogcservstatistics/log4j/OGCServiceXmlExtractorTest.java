@@ -0,0 +1,80 @@
+package org.georchestra.ogcservstatistics.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class OGCServiceXmlExtractorTest {
+
+    private static OGCServiceRequest extract(String xml) {
+        return OGCServiceXmlExtractor.extract(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)),
+                OGCServiceXmlExtractor.DEFAULT_LIMIT);
+    }
+
+    @Test
+    public void testGetFeature() {
+        OGCServiceRequest request = extract("<?xml version=\"1.0\"?>"
+                + "<wfs:GetFeature service=\"WFS\" version=\"2.0.0\" xmlns:wfs=\"http://www.opengis.net/wfs/2.0\">"
+                + "<wfs:Query typeNames=\"ns:Roads ns:Rivers\"><fes:Filter xmlns:fes=\"http://www.opengis.net/fes/2.0\">"
+                + "<fes:ResourceId rid=\"roads.1\"/></fes:Filter></wfs:Query>"
+                + "<wfs:Query typeNames=\"ns:Lakes\"/></wfs:GetFeature>");
+        assertEquals("WFS", request.getService());
+        assertEquals("getfeature", request.getOperation());
+        assertEquals("2.0.0", request.getVersion());
+        assertEquals(Arrays.asList("ns:roads", "ns:rivers", "ns:lakes"), request.getLayers());
+    }
+
+    @Test
+    public void testNotAnOgcRequest() {
+        assertEquals("", extract("<html><body>GetMap</body></html>").getService());
+        // not recorded
+        OGCServiceRequest execute = extract("<wps:Execute service=\"WPS\" version=\"1.0.0\""
+                + " xmlns:wps=\"http://www.opengis.net/wps/1.0.0\" xmlns:ows=\"http://www.opengis.net/ows/1.1\">"
+                + "<ows:Identifier>gs:Buffer</ows:Identifier></wps:Execute>");
+        assertEquals("", execute.getService());
+        assertEquals(Collections.emptyList(), execute.getLayers());
+        // malformed
+        assertEquals("", extract("GetMap").getService());
+    }
+
+    @Test
+    public void testBoundedRead() {
+        // a transaction inserting 10 MB of features, streamed
+        byte[] head = ("<wfs:Transaction service=\"WFS\" version=\"1.1.0\" xmlns:wfs=\"http://www.opengis.net/wfs\""
+                + " xmlns:topp=\"http://www.openplans.org/topp\"><wfs:Insert>").getBytes(StandardCharsets.UTF_8);
+        byte[] feature = "<topp:roads><topp:name>main</topp:name></topp:roads>".getBytes(StandardCharsets.UTF_8);
+        AtomicLong read = new AtomicLong();
+        Enumeration<InputStream> chunks = new Enumeration<InputStream>() {
+            int remaining = 10 << 20;
+
+            @Override
+            public boolean hasMoreElements() {
+                return remaining > 0;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                remaining -= feature.length;
+                read.addAndGet(feature.length);
+                return new ByteArrayInputStream(feature);
+            }
+        };
+        InputStream body = new SequenceInputStream(new ByteArrayInputStream(head), new SequenceInputStream(chunks));
+
+        OGCServiceRequest request = OGCServiceXmlExtractor.extract(body, 16 * 1024);
+        assertEquals("WFS", request.getService());
+        assertEquals("transaction", request.getOperation());
+        assertEquals(Collections.singletonList("topp:roads"), request.getLayers());
+        assertTrue(read.get() <= 16 * 1024 + feature.length);
+    }
+}
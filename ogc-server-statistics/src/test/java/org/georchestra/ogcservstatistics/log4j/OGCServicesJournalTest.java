@@ -0,0 +1,137 @@
+package org.georchestra.ogcservstatistics.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OGCServicesJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int segments(File directory) {
+        return directory.listFiles((dir, name) -> name.endsWith(".journal")).length;
+    }
+
+    @Test
+    public void testReplayedAcrossSegments() throws Exception {
+        File directory = folder.newFolder();
+        try (OGCServicesJournal journal = new OGCServicesJournal(directory, 100, 1 << 20)) {
+            for (int i = 0; i < 10; i++) {
+                assertTrue(journal.append("record" + i, 1000 + i));
+            }
+            assertEquals(10, journal.getBacklogRecords());
+            assertTrue(segments(directory) > 1);
+            assertTrue(journal.getBacklogAge() > 0);
+
+            List<OGCServicesJournal.Record> records = journal.read(4);
+            assertEquals(4, records.size());
+            assertEquals("record0", records.get(0).message);
+            assertEquals(1000, records.get(0).timestamp);
+            // reading does not move the read position
+            assertEquals("record0", journal.read(1).get(0).message);
+
+            journal.commit(records.get(3).end, 4);
+            assertEquals(6, journal.getBacklogRecords());
+            assertEquals("record4", journal.read(1).get(0).message);
+
+            records = journal.read(100);
+            assertEquals(6, records.size());
+            assertEquals("record9", records.get(5).message);
+            journal.commit(records.get(5).end, 6);
+            assertEquals(0, journal.getBacklogRecords());
+            assertEquals(0, journal.getBacklogAge());
+            assertEquals(10, journal.getReplayed());
+            // only the new active segment is left
+            assertEquals(1, segments(directory));
+            assertTrue(journal.read(100).isEmpty());
+        }
+    }
+
+    @Test
+    public void testReopened() throws Exception {
+        File directory = folder.newFolder();
+        String id;
+        OGCServicesJournal.Position checkpoint;
+        try (OGCServicesJournal journal = new OGCServicesJournal(directory, 1 << 20, 1 << 20)) {
+            id = journal.getId();
+            for (int i = 0; i < 5; i++) {
+                journal.append("record" + i, 1000 + i);
+            }
+            checkpoint = journal.read(2).get(1).end;
+        }
+        try (OGCServicesJournal journal = new OGCServicesJournal(directory, 1 << 20, 1 << 20)) {
+            assertEquals(id, journal.getId());
+            assertEquals(5, journal.getBacklogRecords());
+            journal.append("record5", 1005);
+
+            // the first records were inserted but the journal was not updated
+            journal.seek(checkpoint);
+            assertEquals(4, journal.getBacklogRecords());
+            List<OGCServicesJournal.Record> records = journal.read(100);
+            assertEquals(4, records.size());
+            assertEquals("record2", records.get(0).message);
+            assertEquals("record5", records.get(3).message);
+        }
+    }
+
+    @Test
+    public void testTornSegmentSkipped() throws Exception {
+        File directory = folder.newFolder();
+        try (OGCServicesJournal journal = new OGCServicesJournal(directory, 1 << 20, 1 << 20)) {
+            journal.append("record0", 1000);
+            journal.append("record1", 1001);
+        }
+        File segment = directory.listFiles((dir, name) -> name.endsWith(".journal"))[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // corrupts the second record
+            file.seek(file.length() - 1);
+            file.write('X');
+        }
+        try (OGCServicesJournal journal = new OGCServicesJournal(directory, 1 << 20, 1 << 20)) {
+            assertEquals(1, journal.getBacklogRecords());
+            journal.append("record2", 1002);
+
+            List<OGCServicesJournal.Record> records = journal.read(100);
+            assertEquals(1, records.size());
+            assertEquals("record0", records.get(0).message);
+            journal.commit(records.get(0).end, 1);
+
+            records = journal.read(100);
+            assertEquals(1, records.size());
+            assertEquals("record2", records.get(0).message);
+            assertEquals(1, journal.getCorrupted());
+        }
+    }
+
+    @Test
+    public void testBoundedSize() throws Exception {
+        File directory = folder.newFolder();
+        try (OGCServicesJournal journal = new OGCServicesJournal(directory, 100, 200)) {
+            int appended = 0;
+            for (int i = 0; i < 20; i++) {
+                if (journal.append("record" + i, 1000 + i)) {
+                    appended++;
+                }
+            }
+            assertTrue(appended < 20);
+            assertEquals(20 - appended, journal.getDropped());
+            assertTrue(journal.getBacklogBytes() <= 200);
+
+            List<OGCServicesJournal.Record> records = journal.read(100);
+            journal.commit(records.get(records.size() - 1).end, records.size());
+            assertTrue(journal.append("record20", 1020));
+        }
+        try (OGCServicesJournal journal = new OGCServicesJournal(directory, 100, 200)) {
+            assertFalse(journal.read(1).isEmpty());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.georchestra.ogcservstatistics.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class OGCServicesSamplingTest {
+
+    private static Map<String, Object> log(String service, String request, long date, Integer duration) {
+        Map<String, Object> log = new HashMap<>();
+        log.put("user_name", "testuser");
+        log.put("date", new Date(date));
+        log.put("service", service);
+        log.put("layer", "roads");
+        log.put("request", request);
+        log.put("org", "psc");
+        log.put("roles", "ROLE_USER");
+        log.put("duration_ms", duration);
+        log.put("bytes_sent", duration == null ? null : 1000L);
+        log.put("http_status", 200);
+        return log;
+    }
+
+    private static List<Map<String, Object>> logs(String service, String request, int count) {
+        List<Map<String, Object>> logs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            logs.add(log(service, request, 0, 10));
+        }
+        return logs;
+    }
+
+    @Test
+    public void testEveryRequestRecordedByDefault() {
+        OGCServicesSampling sampling = OGCServicesSampling.parse("");
+        OGCServicesSampling.Selection selection = sampling.select(logs("WMTS", "gettile", 5));
+        assertEquals(5, selection.recorded.size());
+        assertTrue(selection.aggregated.isEmpty());
+        assertNull(selection.recorded.get(0).get("weight"));
+    }
+
+    @Test
+    public void testSampledRequestsWeighted() {
+        OGCServicesSampling sampling = OGCServicesSampling.parse("WMS.GetMap=sample:10");
+        List<Map<String, Object>> recorded = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            recorded.addAll(sampling.select(logs("WMS", "getmap", 10)).recorded);
+        }
+        // one in ten, whatever the batches
+        assertEquals(3, recorded.size());
+        assertEquals(10, recorded.get(0).get("weight"));
+        // the other requests of the service are recorded
+        assertEquals(1, sampling.select(logs("WMS", "getcapabilities", 1)).recorded.size());
+    }
+
+    @Test
+    public void testRequestRuleOverridesServiceRule() {
+        OGCServicesSampling sampling = OGCServicesSampling.parse("WMTS=aggregate, wmts.GetCapabilities=all");
+        OGCServicesSampling.Selection selection = sampling.select(logs("WMTS", "gettile", 2));
+        assertTrue(selection.recorded.isEmpty());
+        assertEquals(2, selection.aggregated.size());
+        selection = sampling.select(logs("WMTS", "getcapabilities", 2));
+        assertEquals(2, selection.recorded.size());
+    }
+
+    @Test
+    public void testAggregatedByMinute() {
+        OGCServicesSampling sampling = OGCServicesSampling.parse("WMTS.GetTile=aggregate");
+        List<Map<String, Object>> logs = new ArrayList<>();
+        logs.add(log("WMTS", "gettile", 1_000, 10));
+        logs.add(log("WMTS", "gettile", 59_000, 30));
+        logs.add(log("WMTS", "gettile", 30_000, null));
+        logs.add(log("WMTS", "gettile", 61_000, 40));
+        sampling.aggregate(sampling.select(logs).aggregated);
+        assertEquals(2, sampling.getPendingAggregates());
+
+        // the minute is not over
+        assertTrue(sampling.drain(59_999).isEmpty());
+        List<Map<String, Object>> aggregates = sampling.drain(60_000);
+        assertEquals(1, aggregates.size());
+        Map<String, Object> aggregate = aggregates.get(0);
+        assertEquals(new Date(0), aggregate.get("date"));
+        assertEquals(3, aggregate.get("weight"));
+        assertEquals("roads", aggregate.get("layer"));
+        assertEquals("testuser", aggregate.get("user_name"));
+        // the measures are averaged over the requests which know them
+        assertEquals(20, aggregate.get("duration_ms"));
+        assertEquals(1000L, aggregate.get("bytes_sent"));
+        assertNull(aggregate.get("ttfb_ms"));
+
+        // the counts which could not be recorded are merged back
+        sampling.aggregate(aggregates);
+        sampling.aggregate(sampling.select(logs("WMTS", "gettile", 1)).aggregated);
+        aggregates = sampling.drain(Long.MAX_VALUE);
+        assertEquals(2, aggregates.size());
+        Map<Object, Object> weights = new HashMap<>();
+        for (Map<String, Object> log : aggregates) {
+            weights.put(log.get("date"), log.get("weight"));
+        }
+        assertEquals(4, weights.get(new Date(0)));
+        assertEquals(1, weights.get(new Date(60_000)));
+        assertEquals(0, sampling.getPendingAggregates());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRate() {
+        OGCServicesSampling.parse("WMS.GetMap=sample:0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownMode() {
+        OGCServicesSampling.parse("WMS.GetMap=some");
+    }
+}
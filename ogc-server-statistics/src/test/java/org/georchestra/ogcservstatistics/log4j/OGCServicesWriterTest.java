@@ -0,0 +1,98 @@
+package org.georchestra.ogcservstatistics.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+public class OGCServicesWriterTest {
+
+    private static LoggingEvent event(int i) {
+        Logger logger = Logger.getLogger(OGCServicesWriterTest.class);
+        return new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "event" + i, null);
+    }
+
+    @Test
+    public void testBatchedBySize() throws Exception {
+        List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        OGCServicesWriter writer = new OGCServicesWriter(100, 10, 60_000, 0, events -> {
+            batches.add(events.size());
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 0;
+        });
+        for (int i = 0; i < 10; i++) {
+            assertTrue(writer.offer(event(i)));
+        }
+        // a full batch is written without waiting for the flush interval
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 25; i++) {
+            assertTrue(writer.offer(event(i)));
+        }
+        release.countDown();
+        assertTrue(writer.close(5000));
+
+        assertEquals(Integer.valueOf(10), batches.get(0));
+        assertEquals(35, batches.stream().mapToInt(Integer::intValue).sum());
+        assertTrue(batches.stream().allMatch(size -> size <= 10));
+        assertEquals(35, writer.getWritten());
+        assertEquals(0, writer.getQueued());
+    }
+
+    @Test
+    public void testFlushedByTime() throws Exception {
+        CountDownLatch written = new CountDownLatch(3);
+        OGCServicesWriter writer = new OGCServicesWriter(100, 100, 50, 0, events -> {
+            events.forEach(e -> written.countDown());
+            return 0;
+        });
+        writer.offer(event(1));
+        writer.offer(event(2));
+        writer.offer(event(3));
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertTrue(writer.close(5000));
+    }
+
+    @Test
+    public void testDroppedWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        OGCServicesWriter writer = new OGCServicesWriter(5, 1, 0, 10, events -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return events.size();
+        });
+        int queued = 0;
+        for (int i = 0; i < 20; i++) {
+            if (writer.offer(event(i))) {
+                queued++;
+            }
+        }
+        // one event taken by the blocked writer, five in the queue
+        assertTrue(queued <= 6);
+        assertEquals(20 - queued, writer.getDropped());
+
+        release.countDown();
+        assertTrue(writer.close(5000));
+        assertEquals(queued, writer.getFailed());
+        assertFalse(writer.offer(event(0)));
+    }
+}
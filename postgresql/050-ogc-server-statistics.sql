@@ -7,103 +7,264 @@ BEGIN;
 CREATE SCHEMA ogcstatistics;
 SET search_path TO ogcstatistics,public,pg_catalog;
 
--- Create new version of ogc_services_log table
-CREATE TABLE ogc_services_log(
-  user_name character varying(255),
+-- Values of the dimensions of the logs, referenced by their integer key from
+-- ogc_services_fact. Their rows are never deleted, see dimension_key, so that the
+-- security-proxy can keep their keys in memory. A value may be renamed, e.g. the
+-- user of a deleted account, the security-proxy looking its keys up again after a
+-- while.
+CREATE TABLE ogc_services_users(
+  id serial PRIMARY KEY,
+  name character varying(255) NOT NULL UNIQUE
+);
+
+CREATE TABLE ogc_services_orgs(
+  id serial PRIMARY KEY,
+  name character varying(255) NOT NULL UNIQUE
+);
+
+CREATE TABLE ogc_services_layers(
+  id serial PRIMARY KEY,
+  name character varying(255) NOT NULL UNIQUE
+);
+
+CREATE TABLE ogc_services_services(
+  id serial PRIMARY KEY,
+  name character varying(5) NOT NULL UNIQUE
+);
+
+CREATE TABLE ogc_services_requests(
+  id serial PRIMARY KEY,
+  name character varying(20) NOT NULL UNIQUE
+);
+
+CREATE TABLE ogc_services_roles(
+  id serial PRIMARY KEY,
+  roles text[] NOT NULL UNIQUE
+);
+
+CREATE SEQUENCE ogc_services_log_id_seq;
+
+-- The logs, with the keys of their dimensions, partitioned by month, see
+-- create_partition. They are read with the values of their dimensions through
+-- the ogc_services_log view.
+CREATE TABLE ogc_services_fact(
   date timestamp without time zone,
-  service character varying(5),
-  layer character varying(255),
-  id bigserial,
-  request character varying(20),
-  org character varying(255),
-  roles text[]
+  id bigint NOT NULL DEFAULT nextval('ogc_services_log_id_seq'),
+  bytes_sent bigint,
+  service_id integer,
+  layer_id integer,
+  request_id integer,
+  user_id integer,
+  org_id integer,
+  roles_id integer,
+  ttfb_ms integer,
+  duration_ms integer,
+  http_status smallint,
+  weight integer NOT NULL DEFAULT 1
+) PARTITION BY RANGE (date);
+
+ALTER SEQUENCE ogc_services_log_id_seq OWNED BY ogc_services_fact.id;
+
+-- The logs of the months without partition, should there be any
+CREATE TABLE ogc_services_fact_default PARTITION OF ogc_services_fact DEFAULT;
+
+CREATE INDEX ogc_services_fact_date_idx ON ogc_services_fact(date);
+CREATE INDEX ogc_services_fact_user_id_idx ON ogc_services_fact(user_id);
+-- read to refresh the rollups
+CREATE INDEX ogc_services_fact_id_idx ON ogc_services_fact(id);
+
+COMMENT ON COLUMN ogc_services_fact.ttfb_ms IS 'Milliseconds between sending the request to the backend and receiving its response head, null if no response was received';
+COMMENT ON COLUMN ogc_services_fact.duration_ms IS 'Milliseconds between receiving the request and sending the whole response';
+COMMENT ON COLUMN ogc_services_fact.bytes_sent IS 'Bytes of the response body sent to the client, shared among the layers of the request';
+COMMENT ON COLUMN ogc_services_fact.http_status IS 'Status of the response sent to the client';
+COMMENT ON COLUMN ogc_services_fact.weight IS 'Number of requests the log stands for, sampled or aggregated by the security-proxy, their measures being averaged';
+
+-- The logs with the values of their dimensions, as stored before the
+-- dimension tables. The dimensions not selected are not joined. The logs can
+-- also be inserted, updated and deleted through it, one by one, see
+-- ogc_services_log_trigger_function.
+CREATE VIEW ogc_services_log AS
+SELECT u.name AS user_name, f.date, s.name AS service, l.name AS layer, f.id, r.name AS request,
+  o.name AS org, ro.roles, f.ttfb_ms, f.duration_ms, f.bytes_sent, f.http_status,
+  f.weight
+FROM ogc_services_fact f
+LEFT JOIN ogc_services_users u ON u.id = f.user_id
+LEFT JOIN ogc_services_services s ON s.id = f.service_id
+LEFT JOIN ogc_services_layers l ON l.id = f.layer_id
+LEFT JOIN ogc_services_requests r ON r.id = f.request_id
+LEFT JOIN ogc_services_orgs o ON o.id = f.org_id
+LEFT JOIN ogc_services_roles ro ON ro.id = f.roles_id;
+
+ALTER VIEW ogc_services_log ALTER COLUMN id SET DEFAULT nextval('ogc_services_log_id_seq');
+
+-- Position up to which the local journal of each security-proxy has been
+-- replayed, updated in the same transaction as the replayed logs
+CREATE TABLE ogc_services_journal(
+  journal_id character varying(64) PRIMARY KEY,
+  segment bigint NOT NULL,
+  position bigint NOT NULL
+);
+
+-- Number of requests by hour and by day, for each service, layer, request,
+-- user, org and roles, maintained by refresh_rollups from the logs inserted
+-- since the last refresh, and read by ogc_services_counts
+CREATE TABLE ogc_services_log_hourly(
+  hour timestamp without time zone NOT NULL,
+  service character varying(5) NOT NULL,
+  layer character varying(255) NOT NULL,
+  request character varying(20) NOT NULL,
+  user_name character varying(255) NOT NULL,
+  org character varying(255) NOT NULL,
+  roles text[] NOT NULL,
+  count bigint NOT NULL,
+  PRIMARY KEY (hour, service, layer, request, user_name, org, roles)
+);
+
+CREATE TABLE ogc_services_log_daily(
+  day timestamp without time zone NOT NULL,
+  service character varying(5) NOT NULL,
+  layer character varying(255) NOT NULL,
+  request character varying(20) NOT NULL,
+  user_name character varying(255) NOT NULL,
+  org character varying(255) NOT NULL,
+  roles text[] NOT NULL,
+  count bigint NOT NULL,
+  PRIMARY KEY (day, service, layer, request, user_name, org, roles)
 );
 
--- Return name of table that correspond to specified date, also create table if it does
--- not exists and indexes on table of previous month
-CREATE OR REPLACE FUNCTION get_partition_table(my_date timestamp without time zone)
+-- Identifier of the last log counted in the hourly and daily rollups
+CREATE TABLE ogc_services_rollup_state(
+  last_id bigint NOT NULL
+);
+INSERT INTO ogc_services_rollup_state VALUES (0);
+
+-- Key of the value of a dimension table, the value being added to the table
+-- if missing, null for a null value
+CREATE OR REPLACE FUNCTION dimension_key(dimension regclass, value character varying)
+  RETURNS integer AS
+$BODY$
+DECLARE
+  key integer;
+BEGIN
+
+  IF value IS NULL THEN
+    RETURN NULL;
+  END IF;
+  EXECUTE format('SELECT id FROM %s WHERE name = $1', dimension) INTO key USING value;
+  IF key IS NULL THEN
+    -- the update returns the key of a value added meanwhile
+    EXECUTE format('INSERT INTO %s(name) VALUES ($1) ON CONFLICT (name) DO UPDATE SET name = EXCLUDED.name RETURNING id',
+      dimension) INTO key USING value;
+  END IF;
+  RETURN key;
+
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+COMMENT ON FUNCTION dimension_key(regclass, character varying) IS 'Key of the value of a dimension table, added to the table if missing';
+
+-- Key of a set of roles, added to ogc_services_roles if missing
+CREATE OR REPLACE FUNCTION roles_key(value text[])
+  RETURNS integer AS
+$BODY$
+DECLARE
+  key integer;
+BEGIN
+
+  IF value IS NULL THEN
+    RETURN NULL;
+  END IF;
+  SELECT id INTO key FROM ogcstatistics.ogc_services_roles WHERE roles = value;
+  IF key IS NULL THEN
+    INSERT INTO ogcstatistics.ogc_services_roles AS r(roles) VALUES (value)
+    ON CONFLICT (roles) DO UPDATE SET roles = EXCLUDED.roles
+    RETURNING r.id INTO key;
+  END IF;
+  RETURN key;
+
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+-- Inserts, updates and deletes the logs of ogc_services_fact through the
+-- ogc_services_log view, resolving the keys of their dimensions
+CREATE OR REPLACE FUNCTION ogc_services_log_trigger_function()
+RETURNS TRIGGER AS $$
+BEGIN
+
+  IF TG_OP = 'DELETE' THEN
+    DELETE FROM ogcstatistics.ogc_services_fact WHERE id = OLD.id;
+    RETURN OLD;
+  ELSIF TG_OP = 'INSERT' THEN
+    INSERT INTO ogcstatistics.ogc_services_fact(date, id, bytes_sent, service_id, layer_id, request_id, user_id,
+      org_id, roles_id, ttfb_ms, duration_ms, http_status, weight)
+    VALUES (NEW.date, coalesce(NEW.id, nextval('ogcstatistics.ogc_services_log_id_seq')), NEW.bytes_sent,
+      ogcstatistics.dimension_key('ogcstatistics.ogc_services_services', NEW.service),
+      ogcstatistics.dimension_key('ogcstatistics.ogc_services_layers', NEW.layer),
+      ogcstatistics.dimension_key('ogcstatistics.ogc_services_requests', NEW.request),
+      ogcstatistics.dimension_key('ogcstatistics.ogc_services_users', NEW.user_name),
+      ogcstatistics.dimension_key('ogcstatistics.ogc_services_orgs', NEW.org),
+      ogcstatistics.roles_key(NEW.roles), NEW.ttfb_ms, NEW.duration_ms, NEW.http_status, coalesce(NEW.weight, 1));
+  ELSE
+    UPDATE ogcstatistics.ogc_services_fact SET date = NEW.date, id = NEW.id, bytes_sent = NEW.bytes_sent,
+      service_id = ogcstatistics.dimension_key('ogcstatistics.ogc_services_services', NEW.service),
+      layer_id = ogcstatistics.dimension_key('ogcstatistics.ogc_services_layers', NEW.layer),
+      request_id = ogcstatistics.dimension_key('ogcstatistics.ogc_services_requests', NEW.request),
+      user_id = ogcstatistics.dimension_key('ogcstatistics.ogc_services_users', NEW.user_name),
+      org_id = ogcstatistics.dimension_key('ogcstatistics.ogc_services_orgs', NEW.org),
+      roles_id = ogcstatistics.roles_key(NEW.roles), ttfb_ms = NEW.ttfb_ms, duration_ms = NEW.duration_ms,
+      http_status = NEW.http_status, weight = coalesce(NEW.weight, 1)
+    WHERE id = OLD.id;
+  END IF;
+  RETURN NEW;
+
+END;
+$$
+LANGUAGE plpgsql;
+
+CREATE TRIGGER ogc_services_log_trigger
+    INSTEAD OF INSERT OR UPDATE OR DELETE ON ogc_services_log
+    FOR EACH ROW EXECUTE PROCEDURE ogc_services_log_trigger_function();
+
+-- Return name of the partition of ogc_services_fact that correspond to the month
+-- of the specified date, also create it if it does not exist, moving to it the
+-- logs of the month found in the default partition
+CREATE OR REPLACE FUNCTION create_partition(my_date timestamp without time zone)
   RETURNS character varying AS
 $BODY$
 DECLARE
     my_table_name character varying;
-    my_month character varying;
-    my_year character varying;
-    previous_month character varying;
-    previous_year character varying;
-    previous_table_name character varying;
-    previous_table_oid oid;
-    borne_sup date;
-    borne_inf date;
-    query character varying;
-    base_table_name character varying = 'ogc_services_log';
+    borne_sup timestamp without time zone;
+    borne_inf timestamp without time zone;
+    base_table_name character varying = 'ogc_services_fact';
     base_schema_name character varying = 'ogcstatistics';
 BEGIN
 
-  -- Generate table name
-  my_month := EXTRACT(MONTH FROM my_date);
-  my_year := EXTRACT(YEAR FROM my_date);
+  my_table_name := base_table_name || '_y' || EXTRACT(YEAR FROM my_date) || 'm' || EXTRACT(MONTH FROM my_date);
 
-  my_table_name := base_table_name || '_y' || my_year || 'm' || my_month;
+  IF to_regclass(base_schema_name || '.' || my_table_name) IS NULL THEN
 
-  -- RAISE NOTICE 'table name %.%', base_schema_name, my_table_name;
-
-  -- Test if table already exists
-  IF NOT (SELECT count(*) > 0
-          FROM information_schema.tables
-          WHERE table_schema = base_schema_name
-    AND table_name = my_table_name) THEN
+    -- no log is inserted in the default partition until the new one is attached,
+    -- and the concurrent calls wait for each other
+    EXECUTE format('LOCK TABLE %I.%I IN SHARE ROW EXCLUSIVE MODE', base_schema_name, base_table_name);
+    IF to_regclass(base_schema_name || '.' || my_table_name) IS NOT NULL THEN
+      RETURN base_schema_name || '.' || my_table_name;
+    END IF;
 
-    borne_inf := (my_year || '-' || my_month || '-01')::date;
+    borne_inf := date_trunc('month', my_date);
     borne_sup := borne_inf + INTERVAL '1 month';
 
-    query := 'CREATE TABLE ' || base_schema_name || '.' || my_table_name || '( CHECK ( date >= DATE ''' || borne_inf || ''' AND date < DATE ''' || borne_sup || ''' ) ';
-    query := query || ') INHERITS (' || base_schema_name || '.' || base_table_name || ')';
-
-    -- Create table if it does not exists
-    EXECUTE query;
-
-    -- Create Indexes on previous table for user_name and date fields
-    previous_month := EXTRACT(MONTH FROM (my_date - INTERVAL '1 month'));
-    previous_year := EXTRACT(YEAR FROM (my_date - INTERVAL '1 month'));
-    previous_table_name := base_table_name || '_y' || previous_year || 'm' || previous_month;
-
-    -- Check if previous table exists
-    IF (SELECT count(*) > 0
-        FROM information_schema.tables
-        WHERE table_schema = base_schema_name
-        AND table_name = previous_table_name) THEN
-
-      previous_table_oid := (base_schema_name || '.' || previous_table_name)::regclass::int;
-      -- Check if indexes already exists
-      IF NOT (WITH stat_indexes AS (SELECT t.oid,
-                                           t.relname AS table_name,
-                                           i.relname AS index_name,
-                                           array_agg(a.attname) AS column_names
-                                    FROM
-                                       pg_class t,
-                                       pg_class i,
-                                       pg_index ix,
-                                       pg_attribute a
-                                    WHERE
-                                       t.oid = ix.indrelid
-                                       AND i.oid = ix.indexrelid
-                                       AND a.attrelid = t.oid
-                                       AND a.attnum = ANY(ix.indkey)
-                                       AND t.relkind = 'r'
-                                       AND t.oid = previous_table_oid
-                                    GROUP BY t.oid, t.relname, index_name)
-              SELECT count(*) = 2
-              FROM stat_indexes
-              WHERE column_names IN (ARRAY['date']::name[], ARRAY['user_name']::name[])) THEN
-
-        query := 'CREATE INDEX ' || previous_table_name || '_date_idx ON ' || base_schema_name || '.' || previous_table_name || '(date)';
-        EXECUTE query;
-        query := 'CREATE INDEX ' || previous_table_name || '_user_name_idx ON ' || base_schema_name || '.' || previous_table_name || '(user_name)';
-        EXECUTE query;
-
-      END IF;
-
-    END IF;
+    -- the constraint spares the scan of the table when attaching it
+    EXECUTE format('CREATE TABLE %I.%I (LIKE %I.%I, CONSTRAINT %I CHECK (date IS NOT NULL AND date >= %L AND date < %L))',
+      base_schema_name, my_table_name, base_schema_name, base_table_name, my_table_name || '_partition_check',
+      borne_inf, borne_sup);
+    EXECUTE format('WITH moved AS (DELETE FROM %I.%I WHERE date >= %L AND date < %L RETURNING *) INSERT INTO %I.%I SELECT * FROM moved',
+      base_schema_name, base_table_name || '_default', borne_inf, borne_sup, base_schema_name, my_table_name);
+    EXECUTE format('ALTER TABLE %I.%I ATTACH PARTITION %I.%I FOR VALUES FROM (%L) TO (%L)',
+      base_schema_name, base_table_name, base_schema_name, my_table_name, borne_inf, borne_sup);
+    EXECUTE format('ALTER TABLE %I.%I DROP CONSTRAINT %I',
+      base_schema_name, my_table_name, my_table_name || '_partition_check');
 
   END IF;
 
@@ -113,31 +274,206 @@ END;
 $BODY$
   LANGUAGE plpgsql VOLATILE;
 
-COMMENT ON FUNCTION get_partition_table(timestamp without time zone) IS 'Return name of table that correspond to specified date, also create table if it does not exists and indexes on table of previous month';
+COMMENT ON FUNCTION create_partition(timestamp without time zone) IS 'Return name of the partition that correspond to the month of the specified date, also create it if it does not exist';
+
+-- Creates the partitions of ogc_services_fact from the current month to
+-- months_ahead months later, called regularly by the security-proxy so that
+-- the logs are not inserted in the default partition
+CREATE OR REPLACE FUNCTION create_partitions(months_ahead integer DEFAULT 3)
+  RETURNS void AS
+$BODY$
+BEGIN
+  FOR i IN 0..months_ahead LOOP
+    PERFORM ogcstatistics.create_partition(date_trunc('month', now()::timestamp) + i * INTERVAL '1 month');
+  END LOOP;
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+-- Partitions of ogc_services_fact of the months before the last
+-- retention_months whole months, whose logs have all been rolled up, so that
+-- dropping them keeps the number of requests read from the rollups, with the
+-- range of dates of their logs
+CREATE OR REPLACE FUNCTION expired_partitions(retention_months integer)
+  RETURNS TABLE(partition character varying, from_date timestamp without time zone,
+    to_date timestamp without time zone) AS
+$BODY$
+DECLARE
+  rolled_up boolean;
+BEGIN
+  FOR partition, from_date, to_date IN
+    SELECT format('%I.%I', n.nspname, c.relname), borne_inf::timestamp, borne_sup::timestamp
+    FROM pg_inherits i
+    JOIN pg_class c ON c.oid = i.inhrelid
+    JOIN pg_namespace n ON n.oid = c.relnamespace
+    -- the bounds of the default partition are null
+    CROSS JOIN LATERAL substring(pg_get_expr(c.relpartbound, c.oid) FROM 'FROM \(''([^'']*)''\)') AS borne_inf
+    CROSS JOIN LATERAL substring(pg_get_expr(c.relpartbound, c.oid) FROM 'TO \(''([^'']*)''\)') AS borne_sup
+    WHERE i.inhparent = 'ogcstatistics.ogc_services_fact'::regclass
+      AND borne_sup::timestamp <= date_trunc('month', now()::timestamp) - retention_months * INTERVAL '1 month'
+    ORDER BY borne_sup::timestamp
+  LOOP
+    EXECUTE format('SELECT NOT EXISTS (SELECT 1 FROM %s WHERE id > (SELECT last_id FROM ogcstatistics.ogc_services_rollup_state))',
+      partition) INTO rolled_up;
+    IF rolled_up THEN
+      RETURN NEXT;
+    END IF;
+  END LOOP;
+END;
+$BODY$
+  LANGUAGE plpgsql STABLE;
+
+-- Detaches the partition from ogc_services_fact and drops it
+CREATE OR REPLACE FUNCTION drop_partition(partition regclass)
+  RETURNS void AS
+$BODY$
+BEGIN
+  EXECUTE format('ALTER TABLE ogcstatistics.ogc_services_fact DETACH PARTITION %s', partition);
+  EXECUTE format('DROP TABLE %s', partition);
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
 
+COMMENT ON FUNCTION drop_partition(regclass) IS 'Detach the partition from ogc_services_fact and drop it';
 
 
-CREATE OR REPLACE FUNCTION insert_stat_trigger_function()
-RETURNS TRIGGER AS $$
+-- Identifier up to which the logs can be rolled up: waits for the
+-- transactions inserting logs to end, so that none of them commits a smaller
+-- identifier afterwards. The table is locked until the end of the transaction,
+-- so call it in its own transaction, before refresh_rollups.
+CREATE OR REPLACE FUNCTION rollup_bound()
+  RETURNS bigint AS
+$BODY$
+DECLARE
+  bound bigint;
+BEGIN
+  LOCK TABLE ogcstatistics.ogc_services_fact IN SHARE MODE;
+  SELECT last_value INTO bound FROM ogcstatistics.ogc_services_log_id_seq;
+  RETURN bound;
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
+
+-- Adds the logs inserted since the last refresh, up to the identifier upto
+-- and at most batch_size of them, to the hourly and daily rollups. Returns the
+-- identifier of the last log rolled up, call it again until it reaches upto.
+CREATE OR REPLACE FUNCTION refresh_rollups(upto bigint, batch_size bigint DEFAULT 100000)
+  RETURNS bigint AS
+$BODY$
 DECLARE
-  table_name character varying;
+  from_id bigint;
+  to_id bigint;
 BEGIN
 
-  table_name := ogcstatistics.get_partition_table(NEW.date);
+  -- the concurrent refreshes wait for each other
+  SELECT last_id INTO from_id FROM ogcstatistics.ogc_services_rollup_state FOR UPDATE;
+  to_id := least(upto, from_id + batch_size);
+  IF to_id <= from_id THEN
+    RETURN from_id;
+  END IF;
+
+  WITH chunk AS (
+    SELECT date_trunc('hour', log.date) AS hour, coalesce(log.service, '') AS service,
+      coalesce(log.layer, '') AS layer, coalesce(log.request, '') AS request,
+      coalesce(log.user_name, '') AS user_name, coalesce(log.org, '') AS org,
+      coalesce(log.roles, '{}') AS roles, sum(log.weight) AS count
+    FROM ogcstatistics.ogc_services_log log
+    WHERE log.id > from_id AND log.id <= to_id
+    GROUP BY 1, 2, 3, 4, 5, 6, 7
+  ), hourly AS (
+    INSERT INTO ogcstatistics.ogc_services_log_hourly AS h
+    SELECT * FROM chunk
+    ON CONFLICT (hour, service, layer, request, user_name, org, roles)
+      DO UPDATE SET count = h.count + EXCLUDED.count
+  )
+  INSERT INTO ogcstatistics.ogc_services_log_daily AS d
+  SELECT date_trunc('day', hour), service, layer, request, user_name, org, roles, sum(count)
+  FROM chunk
+  GROUP BY 1, 2, 3, 4, 5, 6, 7
+  ON CONFLICT (day, service, layer, request, user_name, org, roles)
+    DO UPDATE SET count = d.count + EXCLUDED.count;
 
-  -- insert record in child table
-  EXECUTE 'INSERT INTO ' || table_name || ' VALUES ($1.*)' USING NEW;
-  -- do *not* insert record in master table
-  RETURN NULL;
+  UPDATE ogcstatistics.ogc_services_rollup_state SET last_id = to_id;
+  RETURN to_id;
 
 END;
-$$
-LANGUAGE plpgsql;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
 
+COMMENT ON FUNCTION refresh_rollups(bigint, bigint) IS 'Add the logs inserted since the last refresh to the hourly and daily rollups';
 
+-- Number of requests from from_date (included) to to_date (excluded), by
+-- date, service, layer, request, user, org and roles. With the 'day'
+-- resolution the whole days are read from the daily rollup, the other whole
+-- hours from the hourly rollup, along with the logs not rolled up yet, and the
+-- rest of the range from the logs themselves. The date of the rolled up
+-- requests is the start of their day or hour, so group them by hour at most,
+-- or by day with the 'day' resolution.
+CREATE OR REPLACE FUNCTION ogc_services_counts(from_date timestamp without time zone,
+    to_date timestamp without time zone, resolution text DEFAULT 'hour')
+  RETURNS TABLE(date timestamp without time zone, service character varying, layer character varying,
+    request character varying, user_name character varying, org character varying, roles text[], count bigint) AS
+$BODY$
+  SELECT d.day, d.service, d.layer, d.request, d.user_name, d.org, d.roles, d.count
+  FROM ogcstatistics.ogc_services_log_daily d
+  WHERE resolution = 'day'
+    AND d.day >= date_trunc('day', from_date - interval '1 microsecond') + interval '1 day'
+    AND d.day < date_trunc('day', to_date)
+  UNION ALL
+  SELECT h.hour, h.service, h.layer, h.request, h.user_name, h.org, h.roles, h.count
+  FROM ogcstatistics.ogc_services_log_hourly h
+  WHERE h.hour >= date_trunc('hour', from_date - interval '1 microsecond') + interval '1 hour'
+    AND h.hour < date_trunc('hour', to_date)
+    AND (resolution <> 'day'
+      OR h.hour < date_trunc('day', from_date - interval '1 microsecond') + interval '1 day'
+      OR h.hour >= date_trunc('day', to_date))
+  UNION ALL
+  -- the logs of the whole hours not rolled up yet, and of the partial hours
+  SELECT log.date, coalesce(log.service, ''), coalesce(log.layer, ''), coalesce(log.request, ''),
+    coalesce(log.user_name, ''), coalesce(log.org, ''), coalesce(log.roles, '{}'), log.weight::bigint
+  FROM ogcstatistics.ogc_services_log log
+  WHERE (log.date >= date_trunc('hour', from_date - interval '1 microsecond') + interval '1 hour'
+      AND log.date < date_trunc('hour', to_date)
+      AND log.id > (SELECT last_id FROM ogcstatistics.ogc_services_rollup_state))
+    OR (log.date >= from_date
+      AND log.date < least(to_date, date_trunc('hour', from_date - interval '1 microsecond') + interval '1 hour'))
+    OR (log.date >= greatest(from_date, date_trunc('hour', to_date))
+      AND log.date < to_date)
+$BODY$
+  LANGUAGE sql STABLE;
+
+COMMENT ON FUNCTION ogc_services_counts(timestamp without time zone, timestamp without time zone, text) IS 'Number of requests in a date range, read from the coarsest rollup covering each part of the range';
+
+-- Renames a user in the rollups, as done in ogc_services_fact when the account
+-- is deleted, merging its counts into the ones of the new name
+CREATE OR REPLACE FUNCTION rename_rollups_user(old_name character varying, new_name character varying)
+  RETURNS void AS
+$BODY$
+BEGIN
+
+  -- not while the logs of the old name are being rolled up
+  PERFORM 1 FROM ogcstatistics.ogc_services_rollup_state FOR UPDATE;
+
+  WITH renamed AS (
+    DELETE FROM ogcstatistics.ogc_services_log_hourly WHERE user_name = old_name RETURNING *
+  )
+  INSERT INTO ogcstatistics.ogc_services_log_hourly AS h
+  SELECT hour, service, layer, request, new_name, org, roles, count FROM renamed
+  ON CONFLICT (hour, service, layer, request, user_name, org, roles)
+    DO UPDATE SET count = h.count + EXCLUDED.count;
+
+  WITH renamed AS (
+    DELETE FROM ogcstatistics.ogc_services_log_daily WHERE user_name = old_name RETURNING *
+  )
+  INSERT INTO ogcstatistics.ogc_services_log_daily AS d
+  SELECT day, service, layer, request, new_name, org, roles, count FROM renamed
+  ON CONFLICT (day, service, layer, request, user_name, org, roles)
+    DO UPDATE SET count = d.count + EXCLUDED.count;
+
+END;
+$BODY$
+  LANGUAGE plpgsql VOLATILE;
 
-CREATE TRIGGER insert_stat_trigger
-    BEFORE INSERT ON ogc_services_log
-    FOR EACH ROW EXECUTE PROCEDURE insert_stat_trigger_function();
+SELECT create_partitions();
 
 COMMIT;
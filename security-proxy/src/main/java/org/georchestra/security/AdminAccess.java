@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Tells who may call the {@code /_admin/} endpoints of the proxy: super users,
+ * and the clients connecting from one of the {@code allowedAddresses}, e.g. a
+ * monitoring server.
+ * <p>
+ * The local host is not trusted as such, since a front web server on the same
+ * host forwards every external request from it. The {@code X-Forwarded-For}
+ * header is not trusted either.
+ * </p>
+ */
+public class AdminAccess {
+
+    static final String SUPERUSER_ROLE = "ROLE_SUPERUSER";
+
+    private Set<InetAddress> allowedAddresses = Collections.emptySet();
+
+    /**
+     * Sends a 403 error unless the request comes from a super user or from an
+     * allowed address.
+     */
+    public boolean isAllowed(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (isSuperUser() || isAllowedAddress(request.getRemoteAddr())) {
+            return true;
+        }
+        response.sendError(HttpServletResponse.SC_FORBIDDEN);
+        return false;
+    }
+
+    private boolean isAllowedAddress(String remoteAddr) {
+        if (allowedAddresses.isEmpty() || remoteAddr == null) {
+            return false;
+        }
+        try {
+            // the remote address is a literal, it is not looked up
+            return allowedAddresses.contains(InetAddress.getByName(remoteAddr));
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private static boolean isSuperUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null) {
+            return false;
+        }
+        for (GrantedAuthority authority : authentication.getAuthorities()) {
+            if (SUPERUSER_ROLE.equals(authority.getAuthority())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param allowedAddresses comma separated IP addresses of the clients allowed
+     *                         without authentication, none by default
+     * @throws IllegalArgumentException if an address is not an IP address
+     */
+    public void setAllowedAddresses(String allowedAddresses) {
+        Set<InetAddress> addresses = new HashSet<>();
+        if (allowedAddresses != null) {
+            for (String address : allowedAddresses.split(",")) {
+                address = address.trim();
+                if (address.isEmpty()) {
+                    continue;
+                }
+                if (!address.matches("[0-9.]+|[0-9a-fA-F:.]*:[0-9a-fA-F:.]*")) {
+                    throw new IllegalArgumentException("Not an IP address: " + address);
+                }
+                try {
+                    addresses.add(InetAddress.getByName(address));
+                } catch (UnknownHostException e) {
+                    throw new IllegalArgumentException("Not an IP address: " + address, e);
+                }
+            }
+        }
+        this.allowedAddresses = addresses;
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+
+/**
+ * A request proxified in non-blocking mode.
+ * <p>
+ * No container thread is held while waiting for the proxified server:
+ * <ul>
+ * <li>a raw request body is read through a {@link ReadListener} and buffered
+ * before the request is sent, the statistics of an XML request being taken from
+ * the buffered body, see {@link Proxy#logXmlStatistics},</li>
+ * <li>the response status and headers are handled once received, through
+ * {@link AsyncContext#start(Runnable)},</li>
+ * <li>the response body is written through a {@link WriteListener} as the
+ * chunks are received by the {@link StreamingResponseConsumer}, compressed one
+ * by one if decided by {@link Proxy#handleResponseHead}.</li>
+ * </ul>
+ * The chunks to compress are written from a container thread, through
+ * {@link AsyncContext#start(Runnable)}, so that compressing them does not hold
+ * the I/O reactor thread which notifies the received content.
+ * </p>
+ */
+class AsyncProxyExchange implements ReadListener, WriteListener, AsyncListener {
+
+    private static final Log logger = LogFactory.getLog(AsyncProxyExchange.class.getPackage().getName());
+
+    private final Proxy proxy;
+    private final AsyncContext asyncContext;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final String sURL;
+    private final HttpRequestBase proxyingRequest;
+    private final CircuitBreaker.Call call;
+
+    private final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+    private final StreamingResponseConsumer consumer;
+    private volatile Future<Boolean> execution;
+
+    private ServletInputStream input;
+    private ByteArrayOutputStream requestBody;
+
+    private volatile ServletOutputStream output;
+    private volatile ResponseCompression.Encoder encoder;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private ProxyMetrics.Sample sample;
+    private ByteBuffer pendingChunk;
+    private byte[] transfer;
+    private boolean encoderFinished;
+    private boolean completed;
+
+    AsyncProxyExchange(Proxy proxy, AsyncContext asyncContext, String sURL, HttpRequestBase proxyingRequest,
+            CircuitBreaker.Call call) {
+        this.proxy = proxy;
+        this.asyncContext = asyncContext;
+        this.request = (HttpServletRequest) asyncContext.getRequest();
+        this.response = (HttpServletResponse) asyncContext.getResponse();
+        this.sURL = sURL;
+        this.proxyingRequest = proxyingRequest;
+        this.call = call;
+        this.consumer = proxy.createResponseConsumer(future);
+        this.consumer.setContentListener(this::onContent);
+    }
+
+    void start() {
+        asyncContext.addListener(this);
+        try {
+            if (hasRawBody()) {
+                long contentLength = request.getContentLengthLong();
+                if (contentLength > proxy.getMaxAsyncRequestBodySize()) {
+                    response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                    complete();
+                    return;
+                }
+                // the announced length is not trusted, the buffer grows as the body is read
+                requestBody = new ByteArrayOutputStream((int) Math.min(Math.max(contentLength, 1024), 64 * 1024));
+                input = request.getInputStream();
+                input.setReadListener(this);
+            } else {
+                execute();
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @return true if the request body is read from the servlet input stream rather
+     *         than from the request parameters
+     */
+    private boolean hasRawBody() {
+        if (!(proxyingRequest instanceof HttpEntityEnclosingRequest)) {
+            return false;
+        }
+        return ((HttpEntityEnclosingRequest) proxyingRequest).getEntity() instanceof InputStreamEntity;
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        byte[] buffer = new byte[8192];
+        while (input.isReady() && !input.isFinished()) {
+            int read = input.read(buffer);
+            if (read == -1) {
+                break;
+            }
+            requestBody.write(buffer, 0, read);
+            if (requestBody.size() > proxy.getMaxAsyncRequestBodySize()) {
+                requestBody = null;
+                response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                complete();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException {
+        if (requestBody == null) {
+            return;
+        }
+        HttpEntityEnclosingRequest enclosingRequest = (HttpEntityEnclosingRequest) proxyingRequest;
+        HttpEntity original = enclosingRequest.getEntity();
+        byte[] content = requestBody.toByteArray();
+        proxy.logXmlStatistics(request, content);
+        ByteArrayEntity body = new ByteArrayEntity(content);
+        body.setContentType(original.getContentType());
+        body.setContentEncoding(original.getContentEncoding());
+        enclosingRequest.setEntity(body);
+        requestBody = null;
+        execute();
+    }
+
+    private void execute() {
+        ProxyMetrics.Sample sample = ProxyMetrics.sample(request);
+        if (sample != null) {
+            sample.onRequestSent();
+        }
+        future.whenComplete((proxiedResponse, e) -> asyncContext.start(() -> onResponseHead(proxiedResponse, e)));
+        execution = proxy.executeHttpRequestAsync(proxyingRequest, future, consumer);
+    }
+
+    private void onResponseHead(HttpResponse proxiedResponse, Throwable e) {
+        if (e != null) {
+            call.onFailure();
+            fail(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            return;
+        }
+        call.onResponse(proxiedResponse.getStatusLine().getStatusCode());
+        try {
+            if (!proxy.handleResponseHead(request, response, sURL, proxiedResponse)
+                    || proxiedResponse.getEntity() == null) {
+                consumer.abort();
+                complete();
+                return;
+            }
+            synchronized (this) {
+                encoder = ResponseCompression.encoder(request);
+                sample = ProxyMetrics.sample(request);
+                ServletOutputStream out = response.getOutputStream();
+                out.setWriteListener(this);
+                output = out;
+            }
+            // content may have been received before the listener was set
+            writeContent();
+        } catch (IOException | RuntimeException ex) {
+            logger.error("Error sending the response of " + sURL, ex);
+            abort();
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        writeContent();
+    }
+
+    /**
+     * Called from the I/O reactor thread when new content has been received.
+     */
+    private void onContent() {
+        if (encoder == null) {
+            writeContent(true);
+        } else {
+            scheduleWrite();
+        }
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            try {
+                asyncContext.start(() -> {
+                    writeScheduled.set(false);
+                    writeContent();
+                });
+            } catch (IllegalStateException e) {
+                // the exchange is already complete
+                writeScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the available chunks of content as long as the servlet output stream
+     * accepts them without blocking. Called by the container once the output stream
+     * is ready, and by the consumer when new content has been received.
+     */
+    private void writeContent() {
+        writeContent(false);
+    }
+
+    /**
+     * @param onReactor whether called from the I/O reactor thread, which must not
+     *                  compress the chunks
+     */
+    private synchronized void writeContent(boolean onReactor) {
+        ServletOutputStream out = this.output;
+        if (out == null || completed) {
+            return;
+        }
+        if (onReactor && encoder != null) {
+            scheduleWrite();
+            return;
+        }
+        try {
+            while (out.isReady()) {
+                if (pendingChunk == null) {
+                    ByteBuffer chunk = consumer.pollChunk();
+                    if (chunk == null) {
+                        if (consumer.isFinished()) {
+                            if (encoder != null && !encoderFinished) {
+                                encoderFinished = true;
+                                pendingChunk = ByteBuffer.wrap(encoder.finish());
+                                continue;
+                            }
+                            complete();
+                        }
+                        return;
+                    }
+                    if (sample != null) {
+                        sample.onResponseBytes(chunk.remaining());
+                    }
+                    pendingChunk = encoder == null ? chunk : encode(chunk);
+                }
+                if (pendingChunk.hasArray()) {
+                    out.write(pendingChunk.array(), pendingChunk.arrayOffset() + pendingChunk.position(),
+                            pendingChunk.remaining());
+                    pendingChunk.position(pendingChunk.limit());
+                } else {
+                    if (transfer == null) {
+                        transfer = new byte[pendingChunk.capacity()];
+                    }
+                    int length = Math.min(transfer.length, pendingChunk.remaining());
+                    pendingChunk.get(transfer, 0, length);
+                    out.write(transfer, 0, length);
+                }
+                if (!pendingChunk.hasRemaining()) {
+                    releasePendingChunk();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.info("Error sending the response of " + sURL + ": " + e.getMessage());
+            abort();
+        }
+    }
+
+    /**
+     * @return the compressed content of the chunk, which is given back to the
+     *         consumer
+     */
+    private ByteBuffer encode(ByteBuffer chunk) {
+        byte[] encoded;
+        if (chunk.hasArray()) {
+            encoded = encoder.encode(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        } else {
+            if (transfer == null || transfer.length < chunk.remaining()) {
+                transfer = new byte[chunk.capacity()];
+            }
+            int length = chunk.remaining();
+            chunk.get(transfer, 0, length);
+            encoded = encoder.encode(transfer, 0, length);
+        }
+        consumer.releaseChunk(chunk);
+        return ByteBuffer.wrap(encoded);
+    }
+
+    private void releasePendingChunk() {
+        // the compressed chunks do not come from the consumer pool
+        if (encoder == null) {
+            consumer.releaseChunk(pendingChunk);
+        }
+        pendingChunk = null;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.info("Error proxifying " + sURL + ": " + t.getMessage());
+        abort();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+        abort();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+        onError(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+
+    /**
+     * Sends the error matching a failure to get the proxified response.
+     */
+    private void fail(Throwable e) {
+        if (response.isCommitted()) {
+            abort();
+            return;
+        }
+        proxy.handleExecutionFailure(request, response, sURL, e);
+        complete();
+    }
+
+    /**
+     * Stops the exchange with the proxified server, e.g. when the client has gone.
+     */
+    private void abort() {
+        Future<Boolean> execution = this.execution;
+        if (execution != null) {
+            execution.cancel(true);
+        }
+        consumer.abort();
+        complete();
+    }
+
+    private synchronized void complete() {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        // the body of the request has not been read, e.g. it is too large or the
+        // client has gone
+        proxy.logXmlStatistics(request, new byte[0]);
+        call.release();
+        if (pendingChunk != null) {
+            releasePendingChunk();
+        }
+        ResponseCompression.release(request);
+        ProxyMetrics.Sample sample = ProxyMetrics.sample(request);
+        if (sample != null) {
+            sample.end();
+        }
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException e) {
+            // already completed by the container, e.g. after an error
+            logger.debug("AsyncContext already completed", e);
+        }
+    }
+}
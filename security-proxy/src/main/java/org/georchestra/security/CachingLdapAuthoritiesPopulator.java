@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+
+import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.ldap.userdetails.LdapAuthoritiesPopulator;
+import org.springframework.util.Assert;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Keeps the roles found by another {@link LdapAuthoritiesPopulator} in the
+ * {@link LdapUserDetailsCache}, so that stateless clients authenticating on
+ * every request do not trigger a role search each time.
+ */
+public class CachingLdapAuthoritiesPopulator implements LdapAuthoritiesPopulator {
+
+    private final LdapAuthoritiesPopulator delegate;
+    private final LdapUserDetailsCache cache;
+
+    public CachingLdapAuthoritiesPopulator(LdapAuthoritiesPopulator delegate, LdapUserDetailsCache cache) {
+        Assert.notNull(delegate, "delegate must not be null");
+        Assert.notNull(cache, "cache must not be null");
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public Collection<? extends GrantedAuthority> getGrantedAuthorities(DirContextOperations userData,
+            String username) {
+        try {
+            return cache.getAuthorities(username, () -> delegate.getGrantedAuthorities(userData, username));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to get the roles of user " + username, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Protects the other targets from a failing or slow one.
+ * <p>
+ * As a bulkhead, it rejects the requests beyond {@code maxConcurrentRequests}
+ * in-flight requests to the target. When enabled, it also acts as a circuit
+ * breaker over the outcome of the last {@code windowSize} requests:
+ * <ul>
+ * <li>CLOSED: the requests are proxified. Once at least {@code minimumCalls}
+ * outcomes are known, the breaker opens if the rate of failures (connection
+ * errors, timeouts or 5xx responses) reaches {@code failureRateThreshold}
+ * percents, or if the {@code latencyPercentile} percentile of the time to the
+ * response head exceeds {@code slowCallDuration},</li>
+ * <li>OPEN: all the requests are rejected during {@code openDuration},</li>
+ * <li>HALF_OPEN: only {@code halfOpenProbes} requests are let through, the
+ * breaker closing once they all succeed, or opening again at the first of them
+ * failing.</li>
+ * </ul>
+ * </p>
+ */
+public class CircuitBreaker {
+
+    private static final Log logger = LogFactory.getLog(CircuitBreaker.class.getPackage().getName());
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    private final String target;
+    private final int maxConcurrentRequests;
+    private final Semaphore bulkhead;
+    private final LongSupplier clock;
+
+    private boolean enabled = true;
+    private int failureRateThreshold = 50;
+    private long slowCallDuration = TimeUnit.SECONDS.toNanos(30);
+    private int latencyPercentile = 95;
+    private int minimumCalls = 20;
+    private long openDuration = TimeUnit.SECONDS.toNanos(30);
+    private int halfOpenProbes = 3;
+
+    /** outcomes of the last requests, guarded by this */
+    private final byte[] window;
+    private int position;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+
+    private volatile State state = State.CLOSED;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejectedWhileOpen = new LongAdder();
+    private final LongAdder rejectedByBulkhead = new LongAdder();
+    private final Map<State, LongAdder> transitions = new EnumMap<>(State.class);
+
+    /**
+     * @param maxConcurrentRequests the maximum number of in-flight requests to the
+     *                              target, 0 for no limit
+     * @param windowSize            the number of last outcomes the rates are
+     *                              computed over
+     */
+    public CircuitBreaker(String target, int maxConcurrentRequests, int windowSize) {
+        this(target, maxConcurrentRequests, windowSize, System::nanoTime);
+    }
+
+    CircuitBreaker(String target, int maxConcurrentRequests, int windowSize, LongSupplier clock) {
+        this.target = target;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.bulkhead = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests) : null;
+        this.window = new byte[Math.max(windowSize, 1)];
+        this.clock = clock;
+        for (State s : State.values()) {
+            transitions.put(s, new LongAdder());
+        }
+    }
+
+    /**
+     * @return the permission to send a request to the target, to be released once
+     *         the response has been sent to the client, or null if the request has
+     *         to be rejected
+     */
+    Call tryAcquire() {
+        boolean probe = false;
+        if (enabled && state != State.CLOSED) {
+            synchronized (this) {
+                if (state == State.OPEN) {
+                    if (clock.getAsLong() - openedAt < openDuration) {
+                        rejectedWhileOpen.increment();
+                        return null;
+                    }
+                    transition(State.HALF_OPEN, "open duration elapsed");
+                }
+                if (state == State.HALF_OPEN) {
+                    if (probesStarted >= halfOpenProbes) {
+                        rejectedWhileOpen.increment();
+                        return null;
+                    }
+                    probesStarted++;
+                    probe = true;
+                }
+            }
+        }
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            rejectedByBulkhead.increment();
+            if (probe) {
+                probeAbandoned();
+            }
+            return null;
+        }
+        inFlight.incrementAndGet();
+        return new Call(this, probe, clock.getAsLong());
+    }
+
+    /**
+     * @return the number of seconds after which a rejected request may be sent
+     *         again
+     */
+    long getRetryAfter() {
+        if (state == State.OPEN) {
+            synchronized (this) {
+                long remaining = openDuration - (clock.getAsLong() - openedAt);
+                if (remaining > 0) {
+                    return Math.max(1, (remaining + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+                }
+            }
+        }
+        return 1;
+    }
+
+    private void complete(Call call, boolean failure, boolean slow) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            if (call.probe) {
+                if (state != State.HALF_OPEN) {
+                    return;
+                }
+                if (failure || slow) {
+                    open(failure ? "probe failed" : "probe too slow");
+                } else if (++probesSucceeded >= halfOpenProbes) {
+                    close();
+                }
+                return;
+            }
+            if (state != State.CLOSED) {
+                // sent before the breaker opened
+                return;
+            }
+            if (calls == window.length) {
+                byte old = window[position];
+                failures -= old & FAILURE;
+                slowCalls -= (old & SLOW) >> 1;
+            } else {
+                calls++;
+            }
+            byte outcome = (byte) ((failure ? FAILURE : 0) | (slow ? SLOW : 0));
+            window[position] = outcome;
+            position = (position + 1) % window.length;
+            failures += outcome & FAILURE;
+            slowCalls += (outcome & SLOW) >> 1;
+            if (calls < minimumCalls) {
+                return;
+            }
+            if (failures * 100 >= failureRateThreshold * calls) {
+                open(String.format("failure rate %d%% over the last %d requests", failures * 100 / calls, calls));
+            } else if (slowCalls * 100 > (100 - latencyPercentile) * calls) {
+                open(String.format("%d%% of the last %d requests slower than %dms", slowCalls * 100 / calls, calls,
+                        TimeUnit.NANOSECONDS.toMillis(slowCallDuration)));
+            }
+        }
+    }
+
+    private synchronized void probeAbandoned() {
+        if (state == State.HALF_OPEN && probesStarted > 0) {
+            probesStarted--;
+        }
+    }
+
+    /* called with the lock held */
+    private void open(String reason) {
+        openedAt = clock.getAsLong();
+        transition(State.OPEN, reason);
+    }
+
+    /* called with the lock held */
+    private void close() {
+        position = calls = failures = slowCalls = 0;
+        transition(State.CLOSED, probesSucceeded + " probes succeeded");
+    }
+
+    /* called with the lock held */
+    private void transition(State to, String reason) {
+        probesStarted = probesSucceeded = 0;
+        state = to;
+        transitions.get(to).increment();
+        if (to == State.OPEN) {
+            logger.warn("Circuit breaker of target " + target + " opened: " + reason);
+        } else {
+            logger.info("Circuit breaker of target " + target + " is now " + to + ": " + reason);
+        }
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public int getInFlightRequests() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of requests rejected while the breaker was open or half
+     *         open
+     */
+    public long getRejectedWhileOpen() {
+        return rejectedWhileOpen.sum();
+    }
+
+    /**
+     * @return the number of requests rejected because too many requests were
+     *         in-flight
+     */
+    public long getRejectedByBulkhead() {
+        return rejectedByBulkhead.sum();
+    }
+
+    /**
+     * @return the number of times the breaker went to the given state
+     */
+    public long getTransitions(State to) {
+        return transitions.get(to).sum();
+    }
+
+    /**
+     * @return the failure rate, in percents, of the requests in the window
+     */
+    public synchronized int getFailureRate() {
+        return calls == 0 ? 0 : failures * 100 / calls;
+    }
+
+    /**
+     * @return the rate, in percents, of the slow requests in the window
+     */
+    public synchronized int getSlowCallRate() {
+        return calls == 0 ? 0 : slowCalls * 100 / calls;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setFailureRateThreshold(int failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    public void setSlowCallDuration(long slowCallDuration, TimeUnit unit) {
+        this.slowCallDuration = unit.toNanos(slowCallDuration);
+    }
+
+    public void setLatencyPercentile(int latencyPercentile) {
+        this.latencyPercentile = latencyPercentile;
+    }
+
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    public void setOpenDuration(long openDuration, TimeUnit unit) {
+        this.openDuration = unit.toNanos(openDuration);
+    }
+
+    public void setHalfOpenProbes(int halfOpenProbes) {
+        this.halfOpenProbes = Math.max(halfOpenProbes, 1);
+    }
+
+    /**
+     * A request let through, whose outcome is reported by {@link #onResponse(int)}
+     * or {@link #onFailure()}.
+     */
+    static final class Call {
+
+        /** the call of the requests to targets without circuit breaker */
+        static final Call NONE = new Call(null, false, 0);
+
+        private final CircuitBreaker breaker;
+        private final boolean probe;
+        private final long startedAt;
+        private final AtomicBoolean reported = new AtomicBoolean();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Call(CircuitBreaker breaker, boolean probe, long startedAt) {
+            this.breaker = breaker;
+            this.probe = probe;
+            this.startedAt = startedAt;
+        }
+
+        /**
+         * Reports the head of the response has been received.
+         */
+        void onResponse(int statusCode) {
+            if (breaker != null && reported.compareAndSet(false, true)) {
+                boolean slow = breaker.clock.getAsLong() - startedAt > breaker.slowCallDuration;
+                breaker.complete(this, statusCode >= 500, slow);
+            }
+        }
+
+        /**
+         * Reports no response could be received.
+         */
+        void onFailure() {
+            if (breaker != null && reported.compareAndSet(false, true)) {
+                breaker.complete(this, true, false);
+            }
+        }
+
+        /**
+         * Frees the slot of the request in the bulkhead, once the response has been
+         * sent to the client.
+         */
+        void release() {
+            if (breaker == null || !released.compareAndSet(false, true)) {
+                return;
+            }
+            breaker.inFlight.decrementAndGet();
+            if (breaker.bulkhead != null) {
+                breaker.bulkhead.release();
+            }
+            if (probe && !reported.get()) {
+                // e.g. the request has been refused by the proxy itself
+                breaker.probeAbandoned();
+            }
+        }
+    }
+}
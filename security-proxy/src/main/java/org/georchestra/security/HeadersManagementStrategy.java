@@ -33,12 +33,15 @@ import static org.georchestra.security.HeaderNames.TRANSFER_ENCODING;
 
 import java.net.HttpCookie;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -65,69 +68,57 @@ public class HeadersManagementStrategy {
     protected static final Logger logger = LoggerFactory.getLogger(Proxy.class.getPackage().getName());
 
     /**
-     * If true (default is false) AcceptEncoding headers are removed from request
-     * headers
+     * Request headers never copied to the proxified request, whatever the
+     * configuration.
      */
-    private boolean noAcceptEncoding = false;
-    private List<HeaderProvider> headerProviders = Collections.emptyList();
-    private List<HeaderFilter> filters = new ArrayList<HeaderFilter>(1);
-    private String referer = null;
+    private static final Set<String> SKIPPED_REQUEST_HEADERS = caseInsensitiveSet(CONTENT_LENGTH, COOKIE_ID,
+            // It is the HttpClient's lib duty to add this header accordingly.
+            TRANSFER_ENCODING, HOST,
+            // Don't forward basic auth
+            BASIC_AUTH_HEADER);
 
-    public HeadersManagementStrategy() {
-        filters.add(new SecurityRequestHeaderFilter());
-    }
+    /**
+     * Immutable snapshot of the configuration, replaced as a whole by the setters
+     * so that the request processing needs no locking.
+     */
+    private volatile Configuration configuration = new Configuration(false, Collections.<HeaderProvider>emptyList(),
+            Collections.<HeaderFilter>singletonList(new SecurityRequestHeaderFilter()), null);
 
     /**
      * Copies the request headers from the original request to the proxy request. It
      * may modify the headers slightly
      */
-    @SuppressWarnings("unchecked")
-    public synchronized void configureRequestHeaders(HttpServletRequest originalRequest, HttpRequestBase proxyRequest,
+    public void configureRequestHeaders(HttpServletRequest originalRequest, HttpRequestBase proxyRequest,
             boolean localProxy) {
+        final Configuration config = this.configuration;
         Enumeration<String> headerNames = originalRequest.getHeaderNames();
         String headerName = null;
 
         HttpSession session = originalRequest.getSession();
 
-        StringBuilder headersLog = new StringBuilder("Request Headers:\n");
-        headersLog.append("==========================================================\n");
+        StringBuilder headersLog = null;
+        if (logger.isTraceEnabled()) {
+            headersLog = new StringBuilder("Request Headers:\n");
+            headersLog.append("==========================================================\n");
+        }
 
-        if (!localProxy && referer != null) {
-            addHeaderToRequestAndLog(proxyRequest, headersLog, REFERER_HEADER_NAME, this.referer);
+        if (!localProxy && config.referer != null) {
+            addHeaderToRequestAndLog(proxyRequest, headersLog, REFERER_HEADER_NAME, config.referer);
         }
 
+        final Set<String> skippedHeaders = localProxy ? config.skippedLocalHeaders : config.skippedHeaders;
         if (session.getAttribute("pre-auth") == null) {
             while (headerNames.hasMoreElements()) {
                 headerName = headerNames.nextElement();
-                if (headerName.compareToIgnoreCase(CONTENT_LENGTH) == 0) {
-                    continue;
-                }
-                if (headerName.equalsIgnoreCase(COOKIE_ID)) {
-                    continue;
-                }
-                if (filter(originalRequest, headerName, proxyRequest)) {
-                    continue;
-                }
-                if (noAcceptEncoding && headerName.equalsIgnoreCase(ACCEPT_ENCODING)) {
-                    continue;
-                }
-                // It is the HttpClient's lib duty to add this header accordingly.
-                if (headerName.equalsIgnoreCase(TRANSFER_ENCODING)) {
-                    continue;
-                }
-                if (headerName.equalsIgnoreCase(HOST)) {
-                    continue;
-                }
-                // Don't forward basic auth
-                if (headerName.equalsIgnoreCase(BASIC_AUTH_HEADER)) {
+                if (skippedHeaders.contains(headerName)) {
                     continue;
                 }
                 // Don't forward 'sec-*' headers, those headers must be managed by
                 // security-proxy
-                if (headerName.toLowerCase().startsWith(PROTECTED_HEADER_PREFIX)) {
+                if (headerName.regionMatches(true, 0, PROTECTED_HEADER_PREFIX, 0, PROTECTED_HEADER_PREFIX.length())) {
                     continue;
                 }
-                if (!localProxy && referer != null && headerName.equalsIgnoreCase(REFERER_HEADER_NAME)) {
+                if (filter(config, originalRequest, headerName, proxyRequest)) {
                     continue;
                 }
 
@@ -140,30 +131,27 @@ public class HeadersManagementStrategy {
 
         if (localProxy) {
             handleRequestCookies(originalRequest, proxyRequest, headersLog);
-            for (HeaderProvider provider : headerProviders) {
+            for (HeaderProvider provider : config.headerProviders) {
 
                 // Don't include headers from security framework for request coming from trusted
                 // proxy
                 if (session.getAttribute("pre-auth") != null
                         && (!(provider instanceof TrustedProxyRequestHeaderProvider))) {
-                    logger.debug("Bypassing header provider : {}", provider.getClass().toString());
+                    logger.debug("Bypassing header provider : {}", provider.getClass());
                     continue;
                 }
 
                 for (Header header : provider.getCustomRequestHeaders(session, originalRequest)) {
 
-                    logger.debug("Processing  header  {} from {}", header.getName(), provider.getClass().toString());
+                    logger.debug("Processing  header  {} from {}", header.getName(), provider.getClass());
 
                     if ((header.getName().equalsIgnoreCase(SEC_USERNAME)
                             || header.getName().equalsIgnoreCase(SEC_ROLES))
-                            && proxyRequest.getHeaders(header.getName()) != null
-                            && proxyRequest.getHeaders(header.getName()).length > 0) {
-                        Header[] originalHeaders = proxyRequest.getHeaders(header.getName());
-                        for (Header originalHeader : originalHeaders) {
-                            headersLog.append("\t" + originalHeader.getName());
-                            headersLog.append("=");
-                            headersLog.append(originalHeader.getValue());
-                            headersLog.append("\n");
+                            && proxyRequest.containsHeader(header.getName())) {
+                        if (headersLog != null) {
+                            for (Header originalHeader : proxyRequest.getHeaders(header.getName())) {
+                                appendToLog(headersLog, originalHeader.getName(), originalHeader.getValue());
+                            }
                         }
                     } else {
                         // ignore Host and Content-Length header
@@ -173,28 +161,29 @@ public class HeadersManagementStrategy {
 
                         logger.debug("Adding header to proxied request: {} = {}", header.getName(), header.getValue());
                         proxyRequest.addHeader(header);
-                        headersLog.append("\t" + header.getName());
-                        headersLog.append("=");
-                        headersLog.append(header.getValue());
-                        headersLog.append("\n");
+                        appendToLog(headersLog, header.getName(), header.getValue());
                     }
                 }
             }
         }
 
-        headersLog.append("==========================================================");
+        if (headersLog != null) {
+            headersLog.append("==========================================================");
+            logger.trace(headersLog.toString());
+        }
+    }
 
-        logger.trace(headersLog.toString());
+    private static void appendToLog(StringBuilder headersLog, String headerName, Object value) {
+        if (headersLog != null) {
+            headersLog.append('\t').append(headerName).append('=').append(value).append('\n');
+        }
     }
 
     private void addHeaderToRequestAndLog(HttpRequestBase proxyRequest, StringBuilder headersLog, String headerName,
             String value) {
         logger.debug("Add Header: {} = {}", headerName, value);
         proxyRequest.addHeader(new BasicHeader(headerName, value));
-        headersLog.append("\t" + headerName);
-        headersLog.append("=");
-        headersLog.append(value);
-        headersLog.append("\n");
+        appendToLog(headersLog, headerName, value);
     }
 
     /**
@@ -213,7 +202,7 @@ public class HeadersManagementStrategy {
      * @param originalRequest the request as it comes from the client
      * @param proxyRequest    the proxified request
      * @param headersLog      a stringbuilder used in case of debugging / tracing
-     *                        loglevel.
+     *                        loglevel, null if the headers are not logged.
      */
     @VisibleForTesting
     public void handleRequestCookies(HttpServletRequest originalRequest, HttpRequestBase proxyRequest,
@@ -259,17 +248,15 @@ public class HeadersManagementStrategy {
             }
         }
 
-        headersLog.append("\t" + COOKIE_ID);
-        headersLog.append("=");
-        headersLog.append(cookies);
-        headersLog.append("\n");
+        appendToLog(headersLog, COOKIE_ID, cookies);
 
         proxyRequest.addHeader(new BasicHeader(COOKIE_ID, cookies.toString()));
 
     }
 
-    private boolean filter(HttpServletRequest originalRequest, String headerName, HttpRequestBase proxyRequest) {
-        for (HeaderFilter filter : filters) {
+    private boolean filter(Configuration config, HttpServletRequest originalRequest, String headerName,
+            HttpRequestBase proxyRequest) {
+        for (HeaderFilter filter : config.filters) {
             if (filter.filter(headerName, originalRequest, proxyRequest)) {
                 return true;
             }
@@ -280,7 +267,7 @@ public class HeadersManagementStrategy {
     /**
      * Copy headers from the proxy response to the final response
      */
-    public synchronized void copyResponseHeaders(HttpServletRequest originalRequest, String originalRequestURI,
+    public void copyResponseHeaders(HttpServletRequest originalRequest, String originalRequestURI,
             HttpResponse proxyResponse, HttpServletResponse finalResponse, Map<String, String> proxyTargets) {
         HttpSession session = originalRequest.getSession(true);
         Collection<String> protectedHeaders = finalResponse.getHeaderNames();
@@ -306,7 +293,7 @@ public class HeadersManagementStrategy {
             }
         }
 
-        for (HeaderProvider provider : headerProviders) {
+        for (HeaderProvider provider : configuration.headerProviders) {
             for (Header header : provider.getCustomResponseHeaders()) {
                 finalResponse.addHeader(header.getName(), header.getValue());
             }
@@ -407,20 +394,16 @@ public class HeadersManagementStrategy {
      * @param cookie  the cookie value, as JSESSIONID=session_id
      */
     private void storeJsessionHeader(HttpSession session, String path, String cookie) {
-        Map<String, String> map = (Map<String, String>) session.getAttribute(HeaderNames.JSESSION_ID);
-        if (map == null) {
-            map = new HashMap<String, String>();
-        }
+        // the map is never modified once stored in the session, since concurrent
+        // requests of the same session may be reading it: it is copied instead.
+        Map<String, String> current = (Map<String, String>) session.getAttribute(HeaderNames.JSESSION_ID);
+        Map<String, String> map = current == null ? new HashMap<String, String>() : new HashMap<>(current);
         if (!StringUtils.isEmpty(path)) {
             // clean out session IDs with longer path since this should supersede them
-            for (String key : new HashMap<String, String>(map).keySet()) {
-                if (key.startsWith(path)) {
-                    map.remove(key);
-                }
-            }
+            map.keySet().removeIf(key -> key.startsWith(path));
         }
         map.put(path, cookie);
-        session.setAttribute(HeaderNames.JSESSION_ID, map);
+        session.setAttribute(HeaderNames.JSESSION_ID, Collections.unmodifiableMap(map));
     }
 
     private boolean defaultIgnores(Header header) {
@@ -430,19 +413,70 @@ public class HeadersManagementStrategy {
         return transferEncoding;
     }
 
-    public void setNoAcceptEncoding(boolean noAcceptEncoding) {
-        this.noAcceptEncoding = noAcceptEncoding;
+    public synchronized void setNoAcceptEncoding(boolean noAcceptEncoding) {
+        Configuration c = this.configuration;
+        this.configuration = new Configuration(noAcceptEncoding, c.headerProviders, c.filters, c.referer);
+    }
+
+    public synchronized void setHeaderProviders(List<HeaderProvider> headerProviders) {
+        Configuration c = this.configuration;
+        this.configuration = new Configuration(c.noAcceptEncoding, headerProviders, c.filters, c.referer);
     }
 
-    public void setHeaderProviders(List<HeaderProvider> headerProviders) {
-        this.headerProviders = headerProviders;
+    public synchronized void setFilters(List<HeaderFilter> filters) {
+        Configuration c = this.configuration;
+        this.configuration = new Configuration(c.noAcceptEncoding, c.headerProviders, filters, c.referer);
     }
 
-    public void setFilters(List<HeaderFilter> filters) {
-        this.filters = filters;
+    public synchronized void setReferer(String referer) {
+        Configuration c = this.configuration;
+        this.configuration = new Configuration(c.noAcceptEncoding, c.headerProviders, c.filters, referer);
     }
 
-    public void setReferer(String referer) {
-        this.referer = referer;
+    private static Set<String> caseInsensitiveSet(String... values) {
+        Set<String> set = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        set.addAll(Arrays.asList(values));
+        return Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * The configuration of the strategy, along with the request header names to
+     * skip derived from it.
+     */
+    private static final class Configuration {
+        /**
+         * If true (default is false) AcceptEncoding headers are removed from request
+         * headers
+         */
+        final boolean noAcceptEncoding;
+        final List<HeaderProvider> headerProviders;
+        final List<HeaderFilter> filters;
+        final String referer;
+
+        /** headers skipped when proxifying to a security-proxified webapp */
+        final Set<String> skippedLocalHeaders;
+        /** headers skipped when proxifying through the url parameter */
+        final Set<String> skippedHeaders;
+
+        Configuration(boolean noAcceptEncoding, List<HeaderProvider> headerProviders, List<HeaderFilter> filters,
+                String referer) {
+            this.noAcceptEncoding = noAcceptEncoding;
+            this.headerProviders = Collections.unmodifiableList(new ArrayList<>(headerProviders));
+            this.filters = Collections.unmodifiableList(new ArrayList<>(filters));
+            this.referer = referer;
+
+            Set<String> local = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            local.addAll(SKIPPED_REQUEST_HEADERS);
+            if (noAcceptEncoding) {
+                local.add(ACCEPT_ENCODING);
+            }
+            Set<String> remote = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            remote.addAll(local);
+            if (referer != null) {
+                remote.add(REFERER_HEADER_NAME);
+            }
+            this.skippedLocalHeaders = Collections.unmodifiableSet(local);
+            this.skippedHeaders = Collections.unmodifiableSet(remote);
+        }
     }
 }
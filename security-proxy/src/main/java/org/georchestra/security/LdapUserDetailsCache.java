@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.springframework.security.core.GrantedAuthority;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * JVM-wide cache of the user details read from LDAP, shared by all the
+ * sessions: the headers built from the user attributes and organization, and
+ * the granted roles.
+ * <p>
+ * Entries are keyed by the (case-insensitive) username, evicted
+ * {@code timeToLive} seconds after being loaded, and at most {@code maxSize}
+ * users are kept. Concurrent misses for the same user trigger a single LDAP
+ * lookup. When a user is modified, its entries can be dropped through
+ * {@link #invalidate(String)}, see {@link UserDetailsCacheController}.
+ * </p>
+ */
+public class LdapUserDetailsCache {
+
+    private static final Log logger = LogFactory.getLog(LdapUserDetailsCache.class.getPackage().getName());
+
+    private long maxSize = 10000;
+    private long timeToLive = 300;
+
+    private Cache<String, List<Header>> headers;
+    private Cache<String, Collection<? extends GrantedAuthority>> authorities;
+
+    @PostConstruct
+    public void init() {
+        headers = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(timeToLive, TimeUnit.SECONDS).build();
+        authorities = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(timeToLive, TimeUnit.SECONDS)
+                .build();
+        logger.info("LDAP user details cached for " + timeToLive + "s, up to " + maxSize + " users");
+    }
+
+    /**
+     * @return the cached headers of the user, loaded through {@code loader} if
+     *         absent
+     * @throws ExecutionException if the loader failed, in which case nothing is
+     *                            cached
+     */
+    public List<Header> getHeaders(String username, Callable<List<Header>> loader) throws ExecutionException {
+        return headers.get(key(username), loader);
+    }
+
+    /**
+     * @return the cached roles of the user, loaded through {@code loader} if absent
+     * @throws ExecutionException if the loader failed, in which case nothing is
+     *                            cached
+     */
+    public Collection<? extends GrantedAuthority> getAuthorities(String username,
+            Callable<Collection<? extends GrantedAuthority>> loader) throws ExecutionException {
+        return authorities.get(key(username), loader);
+    }
+
+    /**
+     * Drops the cached details of a user, e.g. after it has been modified.
+     */
+    public void invalidate(String username) {
+        String key = key(username);
+        headers.invalidate(key);
+        authorities.invalidate(key);
+        logger.debug("Invalidated the cached details of user " + username);
+    }
+
+    public void invalidateAll() {
+        headers.invalidateAll();
+        authorities.invalidateAll();
+        logger.debug("Invalidated the cached details of all users");
+    }
+
+    /**
+     * @return the number of users whose headers are cached
+     */
+    public long size() {
+        return headers.size();
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param maxSize the maximum number of users kept in the cache
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param timeToLive the time, in seconds, the details of a user are kept once
+     *                   loaded
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+}
@@ -23,8 +23,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,6 +46,7 @@ import org.georchestra.commons.configuration.GeorchestraConfiguration;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.ldap.core.DirContextOperations;
 import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.support.BaseLdapPathContextSource;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -49,9 +54,17 @@ import org.springframework.security.ldap.search.FilterBasedLdapUserSearch;
 import org.springframework.security.ldap.search.LdapUserSearch;
 import org.springframework.util.Assert;
 
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 /**
  * Reads information from a user node in LDAP and adds the information as
  * headers to the request.
+ * <p>
+ * The headers of a user are kept in a {@link LdapUserDetailsCache} shared by
+ * all the sessions. When {@code userSearchBase} is set, they are loaded through
+ * a single search returning both the mapped attributes and {@code memberOf};
+ * otherwise the provided user search is used, in two steps.
+ * </p>
  *
  * @author jeichar
  */
@@ -60,11 +73,20 @@ public class LdapUserDetailsRequestHeaderProvider extends HeaderProvider {
     protected static final Log logger = LogFactory
             .getLog(LdapUserDetailsRequestHeaderProvider.class.getPackage().getName());
 
+    private static final String MEMBER_OF = "memberOf";
+
     private LdapUserSearch _userSearch;
     private Map<String, String> _headerMapping;
     private Pattern pattern;
     private String orgSearchBaseDN;
 
+    private String userSearchBase;
+    private String userSearchFilter = "(uid={0})";
+    private LdapUserDetailsCache userDetailsCache;
+
+    /** returns the mapped attributes and memberOf at once, never modified */
+    private FilterBasedLdapUserSearch headersSearch;
+
     @Autowired
     private LdapTemplate ldapTemplate;
 
@@ -91,9 +113,20 @@ public class LdapUserDetailsRequestHeaderProvider extends HeaderProvider {
                 _headerMapping.put(key, pHmap.getProperty(key));
             }
         }
+        if (userDetailsCache == null) {
+            userDetailsCache = new LdapUserDetailsCache();
+            userDetailsCache.init();
+        }
+        if (userSearchBase != null && ldapTemplate != null
+                && ldapTemplate.getContextSource() instanceof BaseLdapPathContextSource) {
+            Set<String> attributes = new LinkedHashSet<String>(_headerMapping.values());
+            attributes.add(MEMBER_OF);
+            headersSearch = new FilterBasedLdapUserSearch(userSearchBase, userSearchFilter,
+                    (BaseLdapPathContextSource) ldapTemplate.getContextSource());
+            headersSearch.setReturningAttributes(attributes.toArray(new String[attributes.size()]));
+        }
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     protected Collection<Header> getCustomRequestHeaders(HttpSession session, HttpServletRequest originalRequest) {
 
@@ -106,96 +139,130 @@ public class LdapUserDetailsRequestHeaderProvider extends HeaderProvider {
         if (authentication instanceof AnonymousAuthenticationToken) {
             return Collections.emptyList();
         }
-        String username = authentication.getName();
-        DirContextOperations userData;
-
-        Collection<Header> headers = Collections.emptyList();
-
-        synchronized (session) {
+        final String username = authentication.getName();
+        try {
+            return userDetailsCache.getHeaders(username, () -> loadHeaders(username));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            logger.info("Unable to lookup user:" + username, e.getCause());
+            return Collections.emptyList();
+        }
+    }
 
-            if (session.getAttribute("security-proxy-cached-attrs") != null) {
-                try {
-                    headers = (Collection<Header>) session.getAttribute("security-proxy-cached-attrs");
-                    String expectedUsername = (String) session.getAttribute("security-proxy-cached-username");
+    /**
+     * Reads the headers of a user from LDAP.
+     */
+    private List<Header> loadHeaders(String username) throws Exception {
+        DirContextOperations userData;
+        DirContextOperations memberOfData;
+        if (headersSearch != null) {
+            userData = headersSearch.searchForUser(username);
+            memberOfData = userData;
+        } else {
+            // the returning attributes of the user search are temporarily
+            // changed below, hence the lock
+            synchronized (_userSearch) {
+                userData = _userSearch.searchForUser(username);
+                memberOfData = searchForMemberOf(username);
+            }
+        }
 
-                    if (username.equals(expectedUsername)) {
-                        return headers;
-                    }
-                } catch (Exception e) {
-                    logger.info("Unable to lookup cached user's attributes for user :" + username, e);
-                }
-            } else {
-                try {
-                    userData = _userSearch.searchForUser(username);
-                } catch (Exception e) {
-                    logger.info("Unable to lookup user:" + username, e);
-                    return Collections.emptyList();
-                }
-                headers = new ArrayList<Header>();
-                for (Map.Entry<String, String> entry : _headerMapping.entrySet()) {
-                    try {
-                        Attribute attributes = userData.getAttributes().get(entry.getValue());
-                        if (attributes != null) {
-                            NamingEnumeration<?> all = attributes.getAll();
-                            StringBuilder value = new StringBuilder();
-                            while (all.hasMore()) {
-                                if (value.length() > 0) {
-                                    value.append(',');
-                                }
-                                value.append(all.next());
-                            }
-                            headers.add(new BasicHeader(entry.getKey(), value.toString()));
+        List<Header> headers = new ArrayList<Header>();
+        for (Map.Entry<String, String> entry : _headerMapping.entrySet()) {
+            try {
+                Attribute attributes = userData.getAttributes().get(entry.getValue());
+                if (attributes != null) {
+                    NamingEnumeration<?> all = attributes.getAll();
+                    StringBuilder value = new StringBuilder();
+                    while (all.hasMore()) {
+                        if (value.length() > 0) {
+                            value.append(',');
                         }
-                    } catch (javax.naming.NamingException e) {
-                        logger.error("problem adding headers for request:" + entry.getKey(), e);
+                        value.append(all.next());
                     }
+                    headers.add(new BasicHeader(entry.getKey(), value.toString()));
                 }
+            } catch (javax.naming.NamingException e) {
+                logger.error("problem adding headers for request:" + entry.getKey(), e);
+            }
+        }
 
-                // Add user organization
-                String orgCn = null;
-                try {
-                    // Retreive memberOf attributes
-                    String[] attrs = { "memberOf" };
-                    ((FilterBasedLdapUserSearch) this._userSearch).setReturningAttributes(attrs);
-                    userData = _userSearch.searchForUser(username);
-                    Attribute attributes = userData.getAttributes().get("memberOf");
-                    if (attributes != null) {
-                        NamingEnumeration<?> all = attributes.getAll();
-
-                        while (all.hasMore()) {
-                            String memberOf = all.next().toString();
-                            Matcher m = this.pattern.matcher(memberOf);
-                            if (m.matches()) {
-                                orgCn = m.group(2);
-                                headers.add(new BasicHeader("sec-org", orgCn));
-                                break;
-                            }
-                        }
-                    }
-                } catch (javax.naming.NamingException e) {
-                    logger.error("problem adding headers for request: organization", e);
-                } finally {
-                    // restore standard attribute list
-                    ((FilterBasedLdapUserSearch) this._userSearch).setReturningAttributes(null);
-                }
+        // Add user organization
+        String orgCn = null;
+        if (memberOfData != null) {
+            try {
+                Attribute attributes = memberOfData.getAttributes().get(MEMBER_OF);
+                if (attributes != null) {
+                    NamingEnumeration<?> all = attributes.getAll();
 
-                // add sec-orgname
-                if (orgCn != null) {
-                    try {
-                        DirContextOperations ctx = this.ldapTemplate
-                                .lookupContext("cn=" + orgCn + "," + this.orgSearchBaseDN);
-                        headers.add(new BasicHeader("sec-orgname", ctx.getStringAttribute("o")));
-                    } catch (RuntimeException ex) {
-                        logger.warn("Cannot find associated org with cn " + orgCn);
+                    while (all.hasMore()) {
+                        String memberOf = all.next().toString();
+                        Matcher m = this.pattern.matcher(memberOf);
+                        if (m.matches()) {
+                            orgCn = m.group(2);
+                            headers.add(new BasicHeader("sec-org", orgCn));
+                            break;
+                        }
                     }
                 }
+            } catch (javax.naming.NamingException e) {
+                logger.error("problem adding headers for request: organization", e);
+            }
+        }
 
-                logger.info("Storing attributes into session for user :" + username);
-                session.setAttribute("security-proxy-cached-username", username);
-                session.setAttribute("security-proxy-cached-attrs", headers);
+        // add sec-orgname
+        if (orgCn != null) {
+            try {
+                DirContextOperations ctx = this.ldapTemplate.lookupContext("cn=" + orgCn + "," + this.orgSearchBaseDN);
+                headers.add(new BasicHeader("sec-orgname", ctx.getStringAttribute("o")));
+            } catch (RuntimeException ex) {
+                logger.warn("Cannot find associated org with cn " + orgCn);
             }
         }
 
-        return headers;
+        logger.info("Caching attributes of user :" + username);
+        return Collections.unmodifiableList(headers);
+    }
+
+    /**
+     * Searches for the user with only memberOf as returning attribute, as it is an
+     * operational attribute. Must be called while holding the lock on the user
+     * search.
+     */
+    private DirContextOperations searchForMemberOf(String username) {
+        if (!(this._userSearch instanceof FilterBasedLdapUserSearch)) {
+            return null;
+        }
+        FilterBasedLdapUserSearch userSearch = (FilterBasedLdapUserSearch) this._userSearch;
+        try {
+            userSearch.setReturningAttributes(new String[] { MEMBER_OF });
+            return userSearch.searchForUser(username);
+        } catch (RuntimeException e) {
+            logger.error("problem adding headers for request: organization", e);
+            return null;
+        } finally {
+            // restore standard attribute list
+            userSearch.setReturningAttributes(null);
+        }
+    }
+
+    /**
+     * @param userSearchBase the base of the single search reading both the mapped
+     *                       attributes and the organization of the users, relative
+     *                       to the base of the LDAP context source
+     */
+    public void setUserSearchBase(String userSearchBase) {
+        this.userSearchBase = userSearchBase;
+    }
+
+    /**
+     * @param userSearchFilter the filter of the users search, {0} being replaced by
+     *                         the username
+     */
+    public void setUserSearchFilter(String userSearchFilter) {
+        this.userSearchFilter = userSearchFilter;
+    }
+
+    public void setUserDetailsCache(LdapUserDetailsCache userDetailsCache) {
+        this.userDetailsCache = userDetailsCache;
     }
 }
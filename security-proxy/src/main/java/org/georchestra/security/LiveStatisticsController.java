@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import static org.springframework.web.bind.annotation.RequestMethod.GET;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.georchestra.ogcservstatistics.calculations.CountMinSketch;
+import org.georchestra.ogcservstatistics.calculations.LiveStatistics;
+import org.georchestra.ogcservstatistics.calculations.LiveStatistics.Dimension;
+import org.georchestra.ogcservstatistics.calculations.SpaceSaving;
+import org.georchestra.ogcservstatistics.log4j.OGCServicesAppender;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Tells the most requested layers, users, orgs and services of the last minutes
+ * in JSON on {@code GET /_admin/statistics/live}, as counted in memory by the
+ * {@link OGCServicesAppender}, see {@link LiveStatistics}:
+ * <ul>
+ * <li>{@code window} is the number of minutes, 15 by default, up to 60;</li>
+ * <li>{@code limit} is the number of items by dimension, 10 by default;</li>
+ * <li>{@code layer}, {@code user}, {@code org} or {@code service} ask for the
+ * estimated number of requests of an item which may not be in the top
+ * ones;</li>
+ * <li>{@code sketches=true} adds the summaries the counts are read from, the
+ * ones of several proxies being merged by adding the cells of the count-min
+ * sketches, and the counts and errors of the top items.</li>
+ * </ul>
+ * <p>
+ * Only super users and the allowed addresses may call it, see
+ * {@link AdminAccess}.
+ * </p>
+ */
+@Controller
+public class LiveStatisticsController {
+
+    private AdminAccess adminAccess = new AdminAccess();
+
+    @RequestMapping(value = "/_admin/statistics/live", method = GET)
+    public void live(HttpServletRequest request, HttpServletResponse response,
+            @RequestParam(value = "window", defaultValue = "15") int minutes,
+            @RequestParam(value = "limit", defaultValue = "10") int limit,
+            @RequestParam(value = "sketches", defaultValue = "false") boolean sketches) throws IOException {
+        if (!adminAccess.isAllowed(request, response)) {
+            return;
+        }
+        OGCServicesAppender statistics = ProxyMetricsController.statisticsAppender();
+        LiveStatistics live = statistics == null ? null : statistics.getLiveStatistics();
+        if (live == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "The OGC service requests are not counted");
+            return;
+        }
+        if (minutes < 1 || minutes > LiveStatistics.MINUTES || limit < 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "window must be from 1 to " + LiveStatistics.MINUTES + " minutes, limit positive");
+            return;
+        }
+        JSONObject json = toJson(live.window(minutes), request, limit, sketches);
+        response.setContentType("application/json; charset=UTF-8");
+        response.getWriter().write(json.toString());
+    }
+
+    JSONObject toJson(LiveStatistics.Window window, HttpServletRequest request, int limit, boolean sketches) {
+        JSONObject json = new JSONObject();
+        json.put("from", Instant.ofEpochMilli(window.getFrom()).toString());
+        json.put("to", Instant.ofEpochMilli(window.getTo()).toString());
+        json.put("requests", window.getRequests());
+        JSONObject estimates = new JSONObject();
+        JSONObject summaries = new JSONObject();
+        for (Dimension dimension : Dimension.values()) {
+            String name = dimension.name().toLowerCase(Locale.ROOT);
+            json.put(name + "s", toJson(window.top(dimension, limit)));
+            String item = request.getParameter(name);
+            if (item != null) {
+                estimates.put(name, new JSONObject().put("name", item).put("count", window.estimate(dimension, item)));
+            }
+            if (sketches) {
+                CountMinSketch counts = window.getCounts(dimension);
+                summaries.put(name + "s",
+                        new JSONObject().put("top", toJson(window.getTopItems(dimension).getCounters()))
+                                .put("capacity", window.getTopItems(dimension).getCapacity())
+                                .put("depth", counts.getDepth()).put("width", counts.getWidth())
+                                .put("counts", new JSONArray(counts.getTable())));
+            }
+        }
+        if (estimates.length() > 0) {
+            json.put("estimates", estimates);
+        }
+        if (sketches) {
+            json.put("sketches", summaries);
+        }
+        return json;
+    }
+
+    private static JSONArray toJson(Iterable<SpaceSaving.Counter> counters) {
+        JSONArray array = new JSONArray();
+        for (SpaceSaving.Counter counter : counters) {
+            array.put(new JSONObject().put("name", counter.getItem()).put("count", counter.getCount()).put("error",
+                    counter.getError()));
+        }
+        return array;
+    }
+
+    public void setAdminAccess(AdminAccess adminAccess) {
+        this.adminAccess = adminAccess;
+    }
+}
@@ -22,14 +22,15 @@ package org.georchestra.security;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.ProxySelector;
@@ -37,24 +38,31 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.zip.DeflaterInputStream;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
@@ -62,18 +70,19 @@ import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.Nullable;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
-import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -82,6 +91,11 @@ import org.apache.http.NameValuePair;
 import org.apache.http.ProtocolException;
 import org.apache.http.StatusLine;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
@@ -93,23 +107,30 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpTrace;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.nio.ContentDecoder;
-import org.apache.http.nio.IOControl;
-import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
 import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
 import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
 import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.HttpContext;
 import org.georchestra.commons.configuration.GeorchestraConfiguration;
+import org.georchestra.ogcservstatistics.log4j.OGCServiceEvent;
 import org.georchestra.ogcservstatistics.log4j.OGCServiceMessageFormatter;
 import org.georchestra.ogcservstatistics.log4j.OGCServicesAppender;
+import org.georchestra.security.permissions.DnsCache;
 import org.georchestra.security.permissions.Permissions;
 import org.georchestra.security.permissions.UriMatcher;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -125,6 +146,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * This proxy provides an indirect access to a remote host to retrieve data.
@@ -158,6 +180,13 @@ import com.google.common.annotations.VisibleForTesting;
 public class Proxy {
 
     private final static String SET_COOKIE_HEADER = "Set-Cookie";
+    /** the buffered body of an XML POST request, read by logStatistics */
+    private static final String STATISTICS_BODY_ATTRIBUTE = Proxy.class.getName() + ".statisticsBody";
+    /**
+     * logs the statistics of an XML POST request proxified in non-blocking mode,
+     * once its body has been read, see logXmlStatistics
+     */
+    private static final String STATISTICS_XML_ATTRIBUTE = Proxy.class.getName() + ".statisticsXml";
 
     protected static final Log logger = LogFactory.getLog(Proxy.class.getPackage().getName());
     protected static final Log statsLogger = LogFactory.getLog(Proxy.class.getPackage().getName() + ".statistics");
@@ -187,6 +216,8 @@ public class Proxy {
     private String publicUrl = "https://georchestra.mydomain.org";
 
     private Map<String, String> targets = Collections.emptyMap();
+    /** rebuilt and replaced whenever the targets are configured */
+    private volatile TargetRoutingTable routingTable = TargetRoutingTable.EMPTY;
     private HeadersManagementStrategy headerManagement = new HeadersManagementStrategy();
     private FilterRequestsStrategy strategyForFilteringRequests = new AcceptAllRequests();
     private List<String> requireCharsetContentTypes = Collections.emptyList();
@@ -198,6 +229,15 @@ public class Proxy {
     private Permissions sameDomainPermissions;
     private String proxyPermissionsFile;
 
+    /**
+     * Caches the host name resolutions of the permission checks: successful ones
+     * are kept dnsPositiveTtl seconds, failed ones dnsNegativeTtl seconds.
+     */
+    private int dnsPositiveTtl = 60;
+    private int dnsNegativeTtl = 10;
+    private int dnsCacheMaxEntries = 10000;
+    private DnsCache dnsCache;
+
     /**
      * This variable controls the socketTimeout parameter passed to the httpclient
      * configuration, used for proxified queries. Relying on HttpClient's
@@ -224,7 +264,145 @@ public class Proxy {
         this.entityEnclosedOrEmptyResponseTimeout = entityEnclosedOrEmptyResponseTimeout;
     }
 
-    private HttpAsyncClientBuilder httpAsyncClientBuilder;
+    /**
+     * Connection pool settings of the long-lived HTTP client shared by all the
+     * proxified requests. Connections are pooled per route, hence per target.
+     */
+    private int maxConnectionsPerRoute = 20;
+    private int maxConnectionsTotal = 200;
+    private Map<String, Integer> maxConnectionsPerTarget = Collections.emptyMap();
+    private int ioThreadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maximum time in seconds a pooled connection is kept alive when the remote
+     * server does not send a Keep-Alive header, or asks for a longer duration.
+     */
+    private int keepAliveTimeout = 60;
+
+    /**
+     * Pooled connections idle for longer than this number of seconds are closed by
+     * the idle connection evictor, which runs every
+     * {@link #idleConnectionEvictionInterval} seconds.
+     */
+    private int idleConnectionTimeout = 30;
+    private int idleConnectionEvictionInterval = 10;
+
+    /**
+     * Whether a HEAD request should be sent to every target at startup, so that the
+     * first requests find an already opened connection in the pool.
+     */
+    private boolean warmUpTargets = false;
+
+    /**
+     * The proxified response bodies are streamed to the clients through chunks of
+     * {@link #streamingBufferSize} bytes taken from a pool. When a client reads
+     * slower than the remote server sends, at most {@link #streamingBufferedChunks}
+     * chunks are buffered per response before the remote connection input is
+     * suspended.
+     */
+    private int streamingBufferSize = 32 * 1024;
+    private int streamingBufferedChunks = 16;
+    private int maxPooledBuffers = 1024;
+    private boolean directBuffers = false;
+    private ByteBufferPool bufferPool;
+
+    /**
+     * Whether requests are proxified in non-blocking mode, see
+     * {@link AsyncProxyExchange}. Raw request bodies are then buffered in memory,
+     * up to {@link #maxAsyncRequestBodySize} bytes.
+     */
+    private boolean asyncMode = false;
+    private int maxAsyncRequestBodySize = 16 * 1024 * 1024;
+
+    /**
+     * In blocking mode, raw request bodies are read before the request is sent, see
+     * {@link RequestBodyBuffer}: in memory up to
+     * {@link #requestBodyMemoryThreshold} bytes, in a temporary file beyond.
+     */
+    private int requestBodyMemoryThreshold = 1024 * 1024;
+
+    /**
+     * At most {@link #bulkheadSize} requests are proxified concurrently to a
+     * target, 0 for no limit, unless overridden in {@link #bulkheadSizePerTarget}.
+     * The requests beyond are rejected with a 503 error, so that a slow target does
+     * not hold all the threads and connections of the proxy.
+     */
+    private int bulkheadSize = 0;
+    private Map<String, Integer> bulkheadSizePerTarget = Collections.emptyMap();
+
+    /**
+     * Whether the requests to a failing target are rejected without being sent, see
+     * {@link CircuitBreaker}. Durations are in seconds, except
+     * {@link #circuitBreakerSlowCallDuration} in milliseconds, rates in percents.
+     */
+    private boolean circuitBreakerEnabled = false;
+    private int circuitBreakerFailureRate = 50;
+    private int circuitBreakerSlowCallDuration = 30000;
+    private int circuitBreakerLatencyPercentile = 95;
+    private int circuitBreakerWindowSize = 100;
+    private int circuitBreakerMinimumCalls = 20;
+    private int circuitBreakerOpenDuration = 30;
+    private int circuitBreakerHalfOpenProbes = 3;
+    /** by target name, rebuilt whenever the targets are configured */
+    private volatile Map<String, CircuitBreaker> circuitBreakers = Collections.emptyMap();
+
+    /**
+     * The responses of the targets listed in {@link #responseCacheTargets} to the
+     * {@link #responseCacheRequests} OGC requests are cached, see
+     * {@link ResponseCache}. Sizes are in megabytes, the default TTL in seconds.
+     */
+    private List<String> responseCacheTargets = Collections.emptyList();
+    private List<String> responseCacheRequests = Arrays.asList("GetCapabilities", "DescribeLayer", "GetLegendGraphic");
+    private int responseCacheMaxSize = 128;
+    private int responseCacheMaxEntrySize = 32;
+    private int responseCacheDefaultTtl = 60;
+    private ResponseCache responseCache;
+
+    /**
+     * The identical GET requests sent concurrently to the targets listed in
+     * {@link #coalescingTargets} are coalesced, see {@link RequestCoalescer}. A
+     * response is replayed if at most {@link #coalescingMaxBufferSize} megabytes,
+     * and the identical requests wait at most {@link #coalescingMaxWait}
+     * milliseconds for it.
+     */
+    private List<String> coalescingTargets = Collections.emptyList();
+    private int coalescingMaxBufferSize = 4;
+    private int coalescingMaxWait = 30000;
+    private RequestCoalescer requestCoalescer;
+
+    /**
+     * Whether the responses of the {@link #compressionContentTypes} larger than
+     * {@link #compressionMinSize} bytes are compressed on the fly, see
+     * {@link ResponseCompression}. At most {@link #compressionMaxConcurrent}
+     * responses are compressed at once, with {@link #compressionLevel} (1 to 9).
+     */
+    private boolean compressionEnabled = false;
+    private List<String> compressionContentTypes = Arrays.asList("text/*", "application/xml", "application/json",
+            "application/javascript", "application/vnd.ogc.wms_xml", "application/vnd.ogc.se_xml",
+            "application/vnd.ogc.gml", "*+xml", "*+json");
+    private int compressionMinSize = 1024;
+    private int compressionLevel = 4;
+    private int compressionMaxConcurrent = Runtime.getRuntime().availableProcessors();
+    private ResponseCompression responseCompression;
+
+    /**
+     * The latencies, throughput and outcomes of the requests, by target, also
+     * registered as MBeans if {@link #metricsJmxEnabled}.
+     */
+    private boolean metricsJmxEnabled = true;
+    private ProxyMetrics metrics;
+
+    /**
+     * The OGC service, operation and layers of the XML POST requests are read from
+     * at most the first {@link #statisticsXmlBodyLimit} bytes of their body,
+     * buffered while it is sent to the target, or once read by the
+     * {@link AsyncProxyExchange} in non-blocking mode, 0 to only use their URL.
+     */
+    private int statisticsXmlBodyLimit = 64 * 1024;
+
+    private PoolingNHttpClientConnectionManager connectionManager;
+    private CloseableHttpAsyncClient httpClient;
+    private ScheduledExecutorService scheduler;
 
     public void setPublicUrl(String publicUrl) {
         this.publicUrl = publicUrl;
@@ -233,11 +411,8 @@ public class Proxy {
     @PostConstruct
     public void init() throws Exception {
         OGCServicesAppender.setDataSource(ogcStatsDataSource);
-        if (targets != null) {
-            for (String url : targets.values()) {
-                new URL(url); // test that it is a valid URL
-            }
-        }
+        // test that the targets are valid URLs
+        routingTable = TargetRoutingTable.build(targets);
 
         // georchestra datadir autoconfiguration
         // dependency injection / properties setter() are made by Spring before
@@ -251,6 +426,7 @@ public class Proxy {
             for (String target : pTargets.stringPropertyNames()) {
                 this.targets.put(target, pTargets.getProperty(target));
             }
+            routingTable = TargetRoutingTable.build(targets);
 
             // Configure proxy permissions based on proxy-permissions.xml file in datadir
             String datadirContext = georchestraConfiguration.getContextDataDir();
@@ -270,9 +446,15 @@ public class Proxy {
             logger.info("Done.");
         }
 
+        if (dnsCache != null) {
+            dnsCache.close();
+        }
+        dnsCache = new DnsCache(dnsPositiveTtl, dnsNegativeTtl, TimeUnit.SECONDS, dnsCacheMaxEntries);
+
         // Create a deny permission for URL with same domain
         String publicDomain = new URL(this.publicUrl).getHost();
         this.sameDomainPermissions = new Permissions();
+        this.sameDomainPermissions.setDnsCache(dnsCache);
         this.sameDomainPermissions.setDenied(Collections.singletonList(new UriMatcher(publicDomain)));
         this.sameDomainPermissions.setAllowByDefault(true);
         this.sameDomainPermissions.init();
@@ -286,7 +468,222 @@ public class Proxy {
             }
             setProxyPermissions(Permissions.parse(inStream));
         }
-        httpAsyncClientBuilder = createHttpAsyncClientBuilder();
+        if (proxyPermissions != null) {
+            proxyPermissions.setDnsCache(dnsCache);
+        }
+        configureCircuitBreakers();
+        if (!responseCacheTargets.isEmpty()) {
+            responseCache = new ResponseCache(responseCacheMaxSize * 1024L * 1024L,
+                    responseCacheMaxEntrySize * 1024 * 1024, responseCacheDefaultTtl, responseCacheRequests);
+        }
+        if (!coalescingTargets.isEmpty()) {
+            requestCoalescer = new RequestCoalescer(coalescingMaxBufferSize * 1024 * 1024, coalescingMaxWait);
+        }
+        if (metrics == null) {
+            metrics = new ProxyMetrics(metricsJmxEnabled);
+        }
+        responseCompression = compressionEnabled
+                ? new ResponseCompression(compressionContentTypes, compressionMinSize, compressionLevel,
+                        compressionMaxConcurrent)
+                : null;
+        bufferPool = new ByteBufferPool(streamingBufferSize, directBuffers, maxPooledBuffers);
+        createHttpClient();
+        if (warmUpTargets) {
+            warmUpTargets();
+        }
+    }
+
+    /**
+     * Creates and starts the pooled HTTP client used to perform every proxified
+     * request, as well as the scheduler closing the idle pooled connections.
+     */
+    private void createHttpClient() throws IOReactorException {
+        // the bean may be initialized more than once (e.g. in unit tests)
+        closeHttpClient();
+
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom().setIoThreadCount(this.ioThreadCount)
+                .setSoKeepAlive(true).build();
+        Registry<SchemeIOSessionStrategy> sessionStrategies = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", SSLIOSessionStrategy.getDefaultStrategy()).build();
+
+        connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig),
+                sessionStrategies);
+        connectionManager.setMaxTotal(this.maxConnectionsTotal);
+        connectionManager.setDefaultMaxPerRoute(this.maxConnectionsPerRoute);
+        configureTargetRoutes();
+
+        httpClient = createHttpAsyncClientBuilder().setConnectionManager(connectionManager).build();
+        httpClient.start();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("security-proxy-scheduler-%d").build());
+        final PoolingNHttpClientConnectionManager evictedConnectionManager = connectionManager;
+        scheduler.scheduleWithFixedDelay(() -> {
+            evictedConnectionManager.closeExpiredConnections();
+            evictedConnectionManager.closeIdleConnections(idleConnectionTimeout, TimeUnit.SECONDS);
+        }, idleConnectionEvictionInterval, idleConnectionEvictionInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Applies the per-target connection limits defined in
+     * {@link #setMaxConnectionsPerTarget(Map)} onto the routes of the pool.
+     */
+    private void configureTargetRoutes() {
+        if (connectionManager == null || targets == null) {
+            return;
+        }
+        for (Map.Entry<String, Integer> limit : maxConnectionsPerTarget.entrySet()) {
+            TargetRoutingTable.Route route = routingTable.getRoute(limit.getKey());
+            if (route == null) {
+                logger.warn("Connection limit defined for unknown target " + limit.getKey());
+                continue;
+            }
+            connectionManager.setMaxPerRoute(new HttpRoute(toHttpHost(route.url)), limit.getValue());
+        }
+    }
+
+    /**
+     * Creates the bulkhead and circuit breaker of every target, if enabled.
+     */
+    private void configureCircuitBreakers() {
+        Map<String, CircuitBreaker> breakers = new HashMap<>();
+        for (String name : targets.keySet()) {
+            int size = bulkheadSizePerTarget.getOrDefault(name, bulkheadSize);
+            if (size <= 0 && !circuitBreakerEnabled) {
+                continue;
+            }
+            CircuitBreaker breaker = new CircuitBreaker(name, size, circuitBreakerWindowSize);
+            breaker.setEnabled(circuitBreakerEnabled);
+            breaker.setFailureRateThreshold(circuitBreakerFailureRate);
+            breaker.setSlowCallDuration(circuitBreakerSlowCallDuration, TimeUnit.MILLISECONDS);
+            breaker.setLatencyPercentile(circuitBreakerLatencyPercentile);
+            breaker.setMinimumCalls(circuitBreakerMinimumCalls);
+            breaker.setOpenDuration(circuitBreakerOpenDuration, TimeUnit.SECONDS);
+            breaker.setHalfOpenProbes(circuitBreakerHalfOpenProbes);
+            breakers.put(name, breaker);
+        }
+        for (String name : bulkheadSizePerTarget.keySet()) {
+            if (!targets.containsKey(name)) {
+                logger.warn("Bulkhead size defined for unknown target " + name);
+            }
+        }
+        circuitBreakers = Collections.unmodifiableMap(breakers);
+    }
+
+    private HttpHost toHttpHost(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return new HttpHost(url.getHost(), port, url.getProtocol());
+    }
+
+    /**
+     * Sends a HEAD request to every target without waiting for the responses, in
+     * order to open a first connection towards each of them.
+     */
+    private void warmUpTargets() {
+        for (Map.Entry<String, String> target : targets.entrySet()) {
+            final String name = target.getKey();
+            httpClient.execute(new HttpHead(target.getValue()), new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse result) {
+                    logger.debug("Warm-up of target " + name + " done: " + result.getStatusLine());
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    logger.info("Warm-up of target " + name + " failed: " + ex.getMessage());
+                }
+
+                @Override
+                public void cancelled() {
+                }
+            });
+        }
+    }
+
+    /**
+     * Shuts down the pooled HTTP client, closing all the pooled connections, and
+     * the background refresh of the DNS cache.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (dnsCache != null) {
+            dnsCache.close();
+        }
+        if (metrics != null) {
+            metrics.close();
+            metrics = null;
+        }
+        closeHttpClient();
+    }
+
+    private void closeHttpClient() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                logger.warn("Error closing the HTTP client", e);
+            }
+            httpClient = null;
+            connectionManager = null;
+        }
+    }
+
+    /**
+     * Returns the statistics (leased, pending, available and max connections) of
+     * the HTTP connection pool, per route, keyed by the route target host. The
+     * statistics of the whole pool are keyed by {@code total}.
+     */
+    public Map<String, PoolStats> getPoolStats() {
+        Map<String, PoolStats> stats = new LinkedHashMap<>();
+        PoolingNHttpClientConnectionManager manager = this.connectionManager;
+        if (manager != null) {
+            stats.put("total", manager.getTotalStats());
+            for (HttpRoute route : manager.getRoutes()) {
+                stats.put(route.getTargetHost().toURI(), manager.getStats(route));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the bulkheads and circuit breakers, keyed by target name, of the
+     * targets having one.
+     */
+    public Map<String, CircuitBreaker> getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    /**
+     * Returns the cache of the OGC responses, null if disabled.
+     */
+    public @Nullable ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Returns the coalescer of the identical requests, null if disabled.
+     */
+    public @Nullable RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * @return the metrics of the requests, by target
+     */
+    public ProxyMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the response compression, null if disabled
+     */
+    public @Nullable ResponseCompression getResponseCompression() {
+        return responseCompression;
     }
 
     /* ---------- start work around for no gateway option -------------- */
@@ -356,7 +753,7 @@ public class Proxy {
             response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "URL is not allowed.");
             return;
         }
-        handleRequest(request, response, sURL, false);
+        handleRequest(request, response, sURL, false, null);
     }
 
     /**
@@ -387,21 +784,13 @@ public class Proxy {
      * unlikely).
      *
      * @param request the HttpServletRequest
-     * @param url     the requested url
+     * @param url     the requested url, or an url with the same host
+     * @param path    the path of the requested url
      * @return true if the url is protected by the SP, false otherwise.
      *
      */
-    private boolean urlIsProtected(HttpServletRequest request, URL url) throws IOException {
-        if (isSameServer(request, url)) {
-            String requestURI = url.getPath();
-            String[] requestSegments = splitRequestPath(requestURI);
-            for (String target : targets.values()) {
-                if (samePathPrefix(requestSegments, target)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+    private boolean urlIsProtected(HttpServletRequest request, URL url, String path) {
+        return isSameServer(request, url) && routingTable.isProtected(path);
     }
 
     /**
@@ -413,7 +802,8 @@ public class Proxy {
      */
     private boolean isSameServer(HttpServletRequest request, URL url) {
         try {
-            return InetAddress.getByName(request.getServerName()).equals(InetAddress.getByName(url.getHost()));
+            DnsCache dnsCache = this.dnsCache == null ? DnsCache.getDefault() : this.dnsCache;
+            return firstAddress(dnsCache, request.getServerName()).equals(firstAddress(dnsCache, url.getHost()));
         } catch (UnknownHostException e) {
             logger.error(e.getMessage(), e);
             return false;
@@ -421,23 +811,10 @@ public class Proxy {
     }
 
     /**
-     * Check if the target url matches a security-proxified target.
-     *
-     * @return true if so, false otherwise.
+     * @return the first address of the host, as {@link InetAddress#getByName} would
      */
-    private boolean samePathPrefix(String[] requestSegments, String target) throws MalformedURLException {
-        String[] targetSegments = splitRequestPath(new URL(target).getPath());
-        for (int i = 0; i < targetSegments.length; i++) {
-            String targetSegment = targetSegments[i];
-            if (!targetSegment.equals(requestSegments[i])) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    private String[] splitRequestPath(String requestURI) {
-        return filter(requestURI.split("/"));
+    private static InetAddress firstAddress(DnsCache dnsCache, String host) throws UnknownHostException {
+        return dnsCache.resolve(host).iterator().next();
     }
 
     /**
@@ -463,7 +840,7 @@ public class Proxy {
 
     private String buildForwardRequestURL(HttpServletRequest request) {
         String forwardRequestURI = request.getRequestURI();
-        forwardRequestURI = forwardRequestURI.replaceAll("//", "/");
+        forwardRequestURI = forwardRequestURI.replace("//", "/");
 
         return forwardRequestURI;
     }
@@ -480,24 +857,21 @@ public class Proxy {
             logger.debug("handlePathEncodedRequests: -- Handling Request: " + type + ":" + forwardRequestURI + " from: "
                     + request.getRemoteAddr());
 
-            String sURL = findTarget(forwardRequestURI);
+            TargetRoutingTable.Route route = routingTable.findRoute(forwardRequestURI);
 
-            if (sURL == null) {
+            if (route == null) {
                 response.sendError(404);
                 return;
             }
-
-            URL url;
-            try {
-                url = new URL(sURL);
-            } catch (MalformedURLException e) {
-                throw new MalformedURLException(sURL + " is not a valid URL");
-            }
+            // the requested URL has the host and port of the target URL
+            String targetPath = TargetRoutingTable.targetPath(forwardRequestURI);
+            String sURL = route.base + targetPath;
+            String urlPath = route.basePath + targetPath;
 
             boolean sameHostAndPort = false;
 
             try {
-                sameHostAndPort = isSameHostAndPort(request, url);
+                sameHostAndPort = isSameHostAndPort(request, route.url);
             } catch (UnknownHostException e) {
                 logger.error("Unknown host in requested URL", e);
                 response.sendError(503);
@@ -505,14 +879,14 @@ public class Proxy {
             }
 
             if (sameHostAndPort && (isRecursiveCallToProxy(forwardRequestURI, contextPath)
-                    || isRecursiveCallToProxy(url.getPath(), contextPath))) {
+                    || isRecursiveCallToProxy(urlPath, contextPath))) {
                 response.sendError(403,
                         forwardRequestURI + " is a recursive call to this service.  That is not a legal request");
             }
 
             final String query = request.getQueryString();
             boolean needCasValidation = (request.getParameter(ServiceProperties.DEFAULT_CAS_ARTIFACT_PARAMETER) != null)
-                    && (request.getUserPrincipal() == null) && urlIsProtected(request, new URL(sURL));
+                    && (request.getUserPrincipal() == null) && urlIsProtected(request, route.url, urlPath);
             // special case: if we have a ticket parameter and no
             // authentication principal, we probably need to validate/open
             // the session against CAS server
@@ -530,7 +904,7 @@ public class Proxy {
             }
             if (query != null)
                 sURL += "?" + query;
-            handleRequest(request, response, sURL, true);
+            handleRequest(request, response, sURL, true, route.name);
         } catch (IOException e) {
             logger.error("Error connecting to client", e);
         }
@@ -540,67 +914,6 @@ public class Proxy {
         return isSameServer(request, url) && url.getPort() == request.getServerPort();
     }
 
-    private String findTarget(String requestURI) {
-        String[] segments;
-        if (requestURI.charAt(0) == '/') {
-            segments = requestURI.substring(1).split("/");
-        } else {
-            segments = requestURI.split("/");
-        }
-
-        if (segments.length == 0) {
-            return null;
-        }
-        String target = targets.get(segments[0]);
-        if (target == null) {
-            return null;
-        } else {
-            StringBuilder builder = new StringBuilder("/");
-            for (int i = 1; i < segments.length; i++) {
-                String segment = segments[i];
-                builder.append(segment);
-                if (i + 1 < segments.length)
-                    builder.append("/");
-            }
-
-            if (requestURI.endsWith("/") && builder.charAt(builder.length() - 1) != '/') {
-                builder.append('/');
-            }
-
-            return concat(target, builder);
-        }
-    }
-
-    private String concat(String target, StringBuilder builder) {
-        if (target == null) {
-            return null;
-        }
-        String target2 = target;
-        if (target.endsWith("/")) {
-            target2 = target.substring(0, target.length() - 1);
-        }
-        if (builder.charAt(0) != '/') {
-            builder.insert(0, '/');
-        }
-        return target2 + builder;
-
-    }
-
-    private String findMatchingTarget(HttpServletRequest request) {
-        String requestURI = buildForwardRequestURL(request);
-        String[] segments = splitRequestPath(requestURI);
-
-        if (segments.length == 0) {
-            return null;
-        }
-
-        if (targets.containsKey(segments[0])) {
-            return segments[0];
-        } else {
-            return null;
-        }
-    }
-
     /**
      * Actually do the request to the proxified server.
      *
@@ -609,156 +922,697 @@ public class Proxy {
      * @param sURL          the url to proxify onto
      * @param localProxy    true if the request targets a security-proxyfied webapp
      *                      (e.g. mapfishapp, ...), false otherwise
+     * @param target        the name of the target, null if the url is not one of a
+     *                      target
      */
     private void handleRequest(HttpServletRequest request, HttpServletResponse finalResponse, String sURL,
-            boolean localProxy) {
-        try (CloseableHttpAsyncClient httpclient = httpAsyncClientBuilder.build()) {
-            httpclient.start();
-
-            HttpResponse proxiedResponse = null;
-            int statusCode = 500;
+            boolean localProxy, @Nullable String target) {
+        ProxyMetrics.Sample sample = metrics.start(request, finalResponse, target);
+        try {
+            dispatchRequest(request, finalResponse, sURL, localProxy, target);
+        } finally {
+            // ended by the AsyncProxyExchange in non-blocking mode
+            if (!request.isAsyncStarted()) {
+                sample.end();
+            }
+        }
+    }
 
-            URL url = null;
-            try {
-                url = new URL(sURL);
-            } catch (MalformedURLException e) { // not an url
-                finalResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+    private void dispatchRequest(HttpServletRequest request, HttpServletResponse finalResponse, String sURL,
+            boolean localProxy, @Nullable String target) {
+        CircuitBreaker breaker = target == null ? null : circuitBreakers.get(target);
+        ResponseCache cache = this.responseCache;
+        if (cache != null && responseCacheTargets.contains(target) && cache.isCacheable(request)) {
+            handleCacheableRequest(request, finalResponse, sURL, localProxy, target, breaker, cache);
+            return;
+        }
+        RequestCoalescer coalescer = this.requestCoalescer;
+        if (coalescer != null && "GET".equals(request.getMethod()) && coalescingTargets.contains(target)) {
+            handleCoalescedRequest(request, finalResponse, sURL, localProxy, target, breaker, coalescer);
+            return;
+        }
+        CircuitBreaker.Call call = CircuitBreaker.Call.NONE;
+        if (breaker != null) {
+            call = breaker.tryAcquire();
+            if (call == null) {
+                rejectRequest(finalResponse, breaker);
                 return;
             }
-
-            // HTTP protocol is required
-            if (!"http".equalsIgnoreCase(url.getProtocol()) && !"https".equalsIgnoreCase(url.getProtocol())) {
-                finalResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,
-                        "HTTP protocol expected. \"" + url.getProtocol() + "\" used.");
+        }
+        if (isAsync(request)) {
+            handleRequestAsync(request, finalResponse, sURL, localProxy, call);
+            return;
+        }
+        HttpResponse proxiedResponse = null;
+        RequestBodyBuffer requestBody = null;
+        boolean executed = false;
+        try {
+            HttpRequestBase proxyingRequest = prepareProxyingRequest(request, finalResponse, sURL, localProxy);
+            if (proxyingRequest == null) {
                 return;
             }
+            // the body is read by this thread, not by the I/O reactor of the shared client
+            requestBody = RequestBodyBuffer.buffer(proxyingRequest, requestBodyMemoryThreshold);
+            executed = true;
+            proxiedResponse = sendRequest(request, proxyingRequest);
+            call.onResponse(proxiedResponse.getStatusLine().getStatusCode());
+            if (handleResponseHead(request, finalResponse, sURL, proxiedResponse)) {
+                doHandleRequest(request, finalResponse, proxiedResponse);
+            }
+        } catch (TimeoutException | IOException | ExecutionException | InterruptedException e) {
+            if (executed) {
+                call.onFailure();
+            }
+            handleExecutionFailure(request, finalResponse, sURL, e);
+        } finally {
+            if (requestBody != null) {
+                requestBody.close();
+            }
+            releaseResponse(proxiedResponse);
+            ResponseCompression.release(request);
+            call.release();
+        }
+    }
 
-            // check if proxy must filter on final host
-            if (!strategyForFilteringRequests.allowRequest(url)) {
-                finalResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,
-                        "Host \"" + url.getHost() + "\" is not allowed to be requested");
+    /**
+     * Same as
+     * {@link #handleRequest(HttpServletRequest, HttpServletResponse, String, boolean, String)},
+     * the response being sent from the {@link ResponseCache} when possible. The
+     * request is always proxified in blocking mode, since a response is only cached
+     * once fully received.
+     */
+    private void handleCacheableRequest(HttpServletRequest request, HttpServletResponse finalResponse, String sURL,
+            boolean localProxy, String target, @Nullable CircuitBreaker breaker, ResponseCache cache) {
+        CircuitBreaker.Call call = CircuitBreaker.Call.NONE;
+        HttpResponse proxiedResponse = null;
+        boolean executed = false;
+        try {
+            HttpRequestBase proxyingRequest = prepareProxyingRequest(request, finalResponse, sURL, localProxy);
+            if (proxyingRequest == null) {
                 return;
             }
-
-            logger.debug("Final request -- " + sURL);
-
-            HttpRequestBase proxyingRequest = makeRequest(request, sURL);
-            headerManagement.configureRequestHeaders(request, proxyingRequest, localProxy);
-
-            try {
-                Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-                Header[] originalHeaders = proxyingRequest.getHeaders("sec-orgname");
-                String org = "";
-                for (Header originalHeader : originalHeaders) {
-                    org = originalHeader.getValue();
-                }
-                // no OGC SERVICE log if request going through /proxy/?url=
-                if (!request.getRequestURI().startsWith("/proxy/")) {
-                    String[] roles = new String[] { "" };
-                    try {
-                        Header[] rolesHeaders = proxyingRequest.getHeaders("sec-roles");
-                        if (rolesHeaders.length > 0) {
-                            roles = rolesHeaders[0].getValue().split(";");
-                        }
-                    } catch (Exception e) {
-                        logger.error("Unable to compute roles");
-                    }
-                    statsLogger.info(OGCServiceMessageFormatter.format(authentication.getName(), sURL, org, roles));
-
-                }
-
-            } catch (Exception e) {
-                logger.error("Unable to log the request into the statistics logger", e);
+            String key = cache.key(target, proxyingRequest);
+            ResponseCache.Entry entry = cache.get(key);
+            if (entry != null && entry.isFresh()) {
+                sendCachedResponse(request, finalResponse, sURL, entry);
+                return;
             }
-
-            proxiedResponse = executeHttpRequest(httpclient, proxyingRequest);
-            StatusLine statusLine = proxiedResponse.getStatusLine();
-            statusCode = statusLine.getStatusCode();
-            String reasonPhrase = statusLine.getReasonPhrase();
-
-            if (reasonPhrase != null && statusCode >= 400) {
-                logger.warn("Downstream server returned a status code which could be an error. " + "Statuscode: "
-                        + statusCode + ", reason: " + reasonPhrase);
-
-                if (statusCode == 401) {
-                    //
-                    // Handle case of basic authentication.
-                    //
-                    Header authHeader = proxiedResponse.getFirstHeader("WWW-Authenticate");
-                    finalResponse.setHeader("WWW-Authenticate",
-                            (authHeader == null) ? "Basic realm=\"Authentication required\"" : authHeader.getValue());
-                }
-
-                // 403 and 404 are handled by specific JSP files provided by the security-proxy
-                // webapp
-                if ((statusCode == 404) || (statusCode == 403)) {
-                    // Hack for GN3.4: to protect against CSRF attacks, a token is provided by the
-                    // xml.info service.
-                    // Even if the return code is a 403, we are interested in getting the Set-Cookie
-                    // value.
-                    if (sURL.contains("/geonetwork/")) {
-                        Header setCookie = extractHeaderSetCookie(proxiedResponse);
-                        if (setCookie != null) {
-                            finalResponse.addHeader(setCookie.getName(), setCookie.getValue());
-                        }
-                    }
-                    finalResponse.sendError(statusCode);
+            if (breaker != null) {
+                call = breaker.tryAcquire();
+                if (call == null) {
+                    call = CircuitBreaker.Call.NONE;
+                    rejectRequest(finalResponse, breaker);
                     return;
                 }
             }
-
-            // process response headers before handling redirect or performing request
-            headerManagement.copyResponseHeaders(request, request.getRequestURI(), proxiedResponse, finalResponse,
-                    this.targets);
-
-            // Handle redirects
-            if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || statusCode == HttpStatus.SC_MOVED_TEMPORARILY) {
-                Optional<String> adjustedLocation = adjustLocation(request, proxiedResponse);
-                if (adjustedLocation.isPresent()) {
-                    logger.debug("Handling redirect to " + adjustedLocation.get());
-                    finalResponse.setStatus(statusCode);
-                    finalResponse.setHeader("Location", adjustedLocation.get());
-                } else {
-                    finalResponse.sendError(HttpStatus.SC_INTERNAL_SERVER_ERROR, "Unable to proxify redirect URL");
-                    return;
+            // the conditional headers of the client are checked against the cached
+            // response instead
+            proxyingRequest.removeHeaders("If-None-Match");
+            proxyingRequest.removeHeaders("If-Modified-Since");
+            if (entry != null && entry.hasValidators()) {
+                entry.addValidators(proxyingRequest);
+            }
+            executed = true;
+            proxiedResponse = sendRequest(request, proxyingRequest);
+            int statusCode = proxiedResponse.getStatusLine().getStatusCode();
+            call.onResponse(statusCode);
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && entry != null) {
+                cache.revalidated(entry, proxiedResponse);
+                sendCachedResponse(request, finalResponse, sURL, entry);
+                return;
+            }
+            if (!cache.isStorable(proxiedResponse)) {
+                if (handleResponseHead(request, finalResponse, sURL, proxiedResponse)) {
+                    doHandleRequest(request, finalResponse, proxiedResponse);
                 }
+                return;
             }
-
-            doHandleRequest(finalResponse, proxiedResponse);
-        } catch (TimeoutException e) {
-            String errMsg = String.format("timeout on [%s] '%s'", request.getMethod(), sURL);
-            logger.error(errMsg, e);
-            try {
-                finalResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
-            } catch (IOException ex2) {
-                // the least we can do is then to log the exception
-                // and set an explicit status
-                logger.error(ex2);
-                finalResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            byte[] body = readResponseBody(request, finalResponse, sURL, proxiedResponse, cache.getMaxEntrySize());
+            if (body != null) {
+                sendCachedResponse(request, finalResponse, sURL, cache.put(key, proxiedResponse, body));
             }
+        } catch (TimeoutException | IOException | ExecutionException | InterruptedException e) {
+            if (executed) {
+                call.onFailure();
+            }
+            handleExecutionFailure(request, finalResponse, sURL, e);
+        } finally {
+            releaseResponse(proxiedResponse);
+            ResponseCompression.release(request);
+            call.release();
+        }
+    }
+
+    /**
+     * Same as
+     * {@link #handleRequest(HttpServletRequest, HttpServletResponse, String, boolean, String)},
+     * the response of an identical request in flight being replayed when possible,
+     * see {@link RequestCoalescer}. The request is always proxified in blocking
+     * mode.
+     */
+    private void handleCoalescedRequest(HttpServletRequest request, HttpServletResponse finalResponse, String sURL,
+            boolean localProxy, String target, @Nullable CircuitBreaker breaker, RequestCoalescer coalescer) {
+        HttpRequestBase proxyingRequest;
+        try {
+            proxyingRequest = prepareProxyingRequest(request, finalResponse, sURL, localProxy);
+        } catch (IOException e) {
+            handleExecutionFailure(request, finalResponse, sURL, e);
             return;
-        } catch (IOException | ExecutionException | InterruptedException e) {
-            // connection problem with the host
-            String errMsg = String.format("Exception occured when trying to connect to the remote url '%s'", sURL);
-            logger.error(errMsg, e);
+        }
+        if (proxyingRequest == null) {
+            return;
+        }
+        RequestCoalescer.Flight flight = coalescer.join(coalescer.key(target, proxyingRequest));
+        if (flight != null && !flight.isLeader()) {
             try {
-                if (e.getCause() instanceof java.net.UnknownHostException) {
-                    // If the SP cannot resolve the remote host, it sounds more
-                    // logical to return a 404.
-                    finalResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
+                if (replayResponse(request, finalResponse, sURL, flight)) {
                     return;
                 }
-                finalResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
-            } catch (IOException e2) {
-                // error occured while trying to return the "service unavailable status"
-                finalResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } finally {
+                flight.leave();
+            }
+            flight = null;
+        }
+        CircuitBreaker.Call call = CircuitBreaker.Call.NONE;
+        if (breaker != null) {
+            call = breaker.tryAcquire();
+            if (call == null) {
+                if (flight != null) {
+                    flight.abandon();
+                }
+                rejectRequest(finalResponse, breaker);
+                return;
+            }
+        }
+        HttpResponse proxiedResponse = null;
+        Throwable failure = null;
+        try {
+            proxiedResponse = sendRequest(request, proxyingRequest);
+            call.onResponse(proxiedResponse.getStatusLine().getStatusCode());
+            if (flight != null) {
+                flight.onHead(proxiedResponse);
+            }
+            if (handleResponseHead(request, finalResponse, sURL, proxiedResponse)) {
+                if (flight == null) {
+                    doHandleRequest(request, finalResponse, proxiedResponse);
+                } else {
+                    recordResponseBody(request, finalResponse, proxiedResponse, flight);
+                }
             }
+        } catch (TimeoutException | IOException | ExecutionException | InterruptedException e) {
+            failure = e;
+            call.onFailure();
+            handleExecutionFailure(request, finalResponse, sURL, e);
+        } finally {
+            if (flight != null) {
+                flight.finish(failure);
+            }
+            releaseResponse(proxiedResponse);
+            ResponseCompression.release(request);
+            call.release();
         }
     }
 
-    private HttpAsyncClientBuilder createHttpAsyncClientBuilder() {
-        HttpAsyncClientBuilder htb = HttpAsyncClients.custom().setRedirectStrategy(NO_REDIRECT_STRATEGY);
-
+    /**
+     * Sends the response body to the client, recording it for the followers of the
+     * flight. The response is fully received even if the client has gone, as long
+     * as followers are waiting for it.
+     */
+    private void recordResponseBody(HttpServletRequest request, HttpServletResponse finalResponse,
+            HttpResponse proxiedResponse, RequestCoalescer.Flight flight) throws IOException {
+        HttpEntity entity = proxiedResponse.getEntity();
+        if (entity == null) {
+            return;
+        }
+        OutputStream out = responseOutput(request, finalResponse);
+        boolean clientGone = false;
+        byte[] buffer = new byte[8192];
+        try (InputStream in = entity.getContent()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                flight.onContent(buffer, read);
+                if (clientGone) {
+                    continue;
+                }
+                try {
+                    out.write(buffer, 0, read);
+                } catch (IOException e) {
+                    if (!flight.hasFollowers()) {
+                        throw e;
+                    }
+                    clientGone = true;
+                }
+            }
+        }
+        if (!clientGone) {
+            out.flush();
+            out.close();
+        }
+    }
+
+    /**
+     * Sends the response of the leader of the flight to the client.
+     *
+     * @return false if the request has to be sent on its own instead
+     */
+    private boolean replayResponse(HttpServletRequest request, HttpServletResponse finalResponse, String sURL,
+            RequestCoalescer.Flight flight) {
+        HttpResponse head;
+        try {
+            head = flight.awaitHead();
+        } catch (Throwable e) {
+            handleExecutionFailure(request, finalResponse, sURL, e);
+            return true;
+        }
+        if (head == null) {
+            return false;
+        }
+        try {
+            if (handleResponseHead(request, finalResponse, sURL, head)) {
+                OutputStream out = responseOutput(request, finalResponse);
+                byte[] chunk;
+                for (int i = 0; (chunk = flight.awaitChunk(i)) != null; i++) {
+                    out.write(chunk);
+                }
+                out.flush();
+                out.close();
+            }
+        } catch (IOException e) {
+            logger.info("Error replaying the response of " + sURL + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ResponseCompression.release(request);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the body of a response to cache.
+     *
+     * @return the body, or null if it is larger than maxSize, in which case the
+     *         response has been sent to the client without being cached
+     */
+    private @Nullable byte[] readResponseBody(HttpServletRequest request, HttpServletResponse finalResponse,
+            String sURL, HttpResponse proxiedResponse, int maxSize) throws IOException {
+        HttpEntity entity = proxiedResponse.getEntity();
+        if (entity == null) {
+            return new byte[0];
+        }
+        long length = entity.getContentLength();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(length > 0 ? (int) length : 8192);
+        byte[] buffer = new byte[8192];
+        try (InputStream in = entity.getContent()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+                if (body.size() > maxSize) {
+                    if (handleResponseHead(request, finalResponse, sURL, proxiedResponse)) {
+                        try (OutputStream out = responseOutput(request, finalResponse)) {
+                            body.writeTo(out);
+                            IOUtils.copy(in, out);
+                        }
+                    }
+                    return null;
+                }
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private void sendCachedResponse(HttpServletRequest request, HttpServletResponse finalResponse, String sURL,
+            ResponseCache.Entry entry) throws IOException {
+        HttpResponse cached = entry.toResponse(entry.isNotModified(request));
+        if (handleResponseHead(request, finalResponse, sURL, cached)) {
+            doHandleRequest(request, finalResponse, cached);
+        }
+    }
+
+    /**
+     * Sends a 503 error, telling the client when to retry, to a request not sent to
+     * its target by the circuit breaker.
+     */
+    private void rejectRequest(HttpServletResponse finalResponse, CircuitBreaker breaker) {
+        logger.debug("Request to target " + breaker.getTarget() + " rejected, circuit breaker " + breaker.getState()
+                + ", " + breaker.getInFlightRequests() + " requests in flight");
+        finalResponse.setHeader("Retry-After", String.valueOf(breaker.getRetryAfter()));
+        try {
+            finalResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Target " + breaker.getTarget() + " is temporarily unavailable");
+        } catch (IOException e) {
+            finalResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Same as
+     * {@link #handleRequest(HttpServletRequest, HttpServletResponse, String, boolean, CircuitBreaker)},
+     * but without holding the container thread while waiting for the proxified
+     * server: the response is sent from the HTTP client callbacks through an
+     * {@link AsyncContext}.
+     */
+    private void handleRequestAsync(HttpServletRequest request, HttpServletResponse finalResponse, String sURL,
+            boolean localProxy, CircuitBreaker.Call call) {
+        HttpRequestBase proxyingRequest;
+        try {
+            proxyingRequest = prepareProxyingRequest(request, finalResponse, sURL, localProxy);
+        } catch (IOException e) {
+            call.release();
+            handleExecutionFailure(request, finalResponse, sURL, e);
+            return;
+        }
+        if (proxyingRequest == null) {
+            call.release();
+            return;
+        }
+        AsyncContext asyncContext = request.startAsync(request, finalResponse);
+        // timeouts are handled by the exchange itself
+        asyncContext.setTimeout(0);
+        new AsyncProxyExchange(this, asyncContext, sURL, proxyingRequest, call).start();
+    }
+
+    /**
+     * @return true if the request is proxified in non-blocking mode
+     */
+    private boolean isAsync(HttpServletRequest request) {
+        return asyncMode && request.isAsyncSupported();
+    }
+
+    /**
+     * Validates the requested URL and builds the request to send to the proxified
+     * server.
+     *
+     * @return the request to send, or null if the URL is not allowed, in which case
+     *         an error has already been sent to the client
+     */
+    private HttpRequestBase prepareProxyingRequest(HttpServletRequest request, HttpServletResponse finalResponse,
+            String sURL, boolean localProxy) throws IOException {
+        URL url = null;
+        try {
+            url = new URL(sURL);
+        } catch (MalformedURLException e) { // not an url
+            finalResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return null;
+        }
+
+        // HTTP protocol is required
+        if (!"http".equalsIgnoreCase(url.getProtocol()) && !"https".equalsIgnoreCase(url.getProtocol())) {
+            finalResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "HTTP protocol expected. \"" + url.getProtocol() + "\" used.");
+            return null;
+        }
+
+        // check if proxy must filter on final host
+        if (!strategyForFilteringRequests.allowRequest(url)) {
+            finalResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Host \"" + url.getHost() + "\" is not allowed to be requested");
+            return null;
+        }
+
+        logger.debug("Final request -- " + sURL);
+
+        HttpRequestBase proxyingRequest = makeRequest(request, sURL, url);
+        headerManagement.configureRequestHeaders(request, proxyingRequest, localProxy);
+
+        try {
+            Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+            Header[] originalHeaders = proxyingRequest.getHeaders("sec-orgname");
+            String org = "";
+            for (Header originalHeader : originalHeaders) {
+                org = originalHeader.getValue();
+            }
+            // no OGC SERVICE log if request going through /proxy/?url=
+            if (!request.getRequestURI().startsWith("/proxy/")) {
+                String[] roles = new String[] { "" };
+                try {
+                    Header[] rolesHeaders = proxyingRequest.getHeaders("sec-roles");
+                    if (rolesHeaders.length > 0) {
+                        roles = rolesHeaders[0].getValue().split(";");
+                    }
+                } catch (Exception e) {
+                    logger.error("Unable to compute roles");
+                }
+                logStatistics(request, authentication.getName(), sURL, org, roles);
+
+            }
+
+        } catch (Exception e) {
+            logger.error("Unable to log the request into the statistics logger", e);
+        }
+        return proxyingRequest;
+    }
+
+    /**
+     * Logs the request into the statistics logger once its response has been sent,
+     * with the measures of the response, or right now if it is not measured.
+     * <p>
+     * The service, operation and layers are taken from the parameters of the
+     * request, already decoded by the servlet container, or from the head of the
+     * body of an XML POST request, and logged as an {@link OGCServiceEvent}.
+     * Otherwise the formatted message is logged and parsed by the statistics
+     * appender.
+     * </p>
+     * <p>
+     * In non-blocking mode, the body of an XML POST request is not read yet: the
+     * request is logged once the {@link AsyncProxyExchange} has buffered it, see
+     * {@link #logXmlStatistics}.
+     * </p>
+     */
+    private void logStatistics(HttpServletRequest request, String user, String sURL, String org, String[] roles) {
+        final Date date = new Date();
+        final OGCServiceEvent event;
+        InputStream body = (InputStream) request.getAttribute(STATISTICS_BODY_ATTRIBUTE);
+        if (body == null && statisticsXmlBodyLimit > 0 && isAsync(request) && "POST".equals(request.getMethod())
+                && isXmlContentType(request)) {
+            Consumer<InputStream> statistics = asyncBody -> logStatistics(request, user, date, sURL, org, roles,
+                    OGCServiceEvent.fromXmlRequest(user, date, sURL, asyncBody, statisticsXmlBodyLimit, org, roles));
+            request.setAttribute(STATISTICS_XML_ATTRIBUTE, statistics);
+            return;
+        }
+        if (body != null) {
+            try {
+                event = OGCServiceEvent.fromXmlRequest(user, date, sURL, body, statisticsXmlBodyLimit, org, roles);
+            } finally {
+                // rewinds the body before it is sent to the target
+                request.removeAttribute(STATISTICS_BODY_ATTRIBUTE);
+                try {
+                    body.reset();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to rewind the body of the request", e);
+                }
+            }
+        } else {
+            event = OGCServiceEvent.fromParameters(user, date, sURL, request.getParameterMap(), org, roles);
+        }
+        logStatistics(request, user, date, sURL, org, roles, event);
+    }
+
+    /**
+     * Logs the statistics of an XML POST request proxified in non-blocking mode,
+     * from the body buffered by the {@link AsyncProxyExchange}.
+     * 
+     * @param body the body of the request, of which at most
+     *             {@link #statisticsXmlBodyLimit} bytes are read
+     */
+    void logXmlStatistics(HttpServletRequest request, byte[] body) {
+        @SuppressWarnings("unchecked")
+        Consumer<InputStream> statistics = (Consumer<InputStream>) request.getAttribute(STATISTICS_XML_ATTRIBUTE);
+        if (statistics == null) {
+            return;
+        }
+        request.removeAttribute(STATISTICS_XML_ATTRIBUTE);
+        try {
+            statistics.accept(new ByteArrayInputStream(body));
+        } catch (Exception e) {
+            logger.error("Unable to log the request into the statistics logger", e);
+        }
+    }
+
+    /**
+     * Logs the event, or else the formatted message if the request is not one of an
+     * OGC service.
+     */
+    private void logStatistics(HttpServletRequest request, String user, Date date, String sURL, String org,
+            String[] roles, OGCServiceEvent event) {
+        ProxyMetrics.Sample sample = ProxyMetrics.sample(request);
+        if (sample == null) {
+            statsLogger.info(event != null ? event : OGCServiceMessageFormatter.format(user, date, sURL, org, roles));
+            return;
+        }
+        sample.onEnd(s -> {
+            if (event != null) {
+                statsLogger.info(event.withResponse(s.getTimeToFirstByte(), s.getDuration(), s.getResponseBytes(),
+                        s.getStatus()));
+            } else {
+                statsLogger.info(OGCServiceMessageFormatter.format(user, date, sURL, org, roles, s.getTimeToFirstByte(),
+                        s.getDuration(), s.getResponseBytes(), s.getStatus()));
+            }
+        });
+    }
+
+    /**
+     * Handles the status and headers of the proxified response.
+     *
+     * @return true if the response body has to be sent to the client, false if the
+     *         response has already been handled (e.g. an error page is sent
+     *         instead)
+     */
+    boolean handleResponseHead(HttpServletRequest request, HttpServletResponse finalResponse, String sURL,
+            HttpResponse proxiedResponse) throws IOException {
+        ProxyMetrics.Sample sample = ProxyMetrics.sample(request);
+        if (sample != null) {
+            sample.onResponseHead();
+        }
+        StatusLine statusLine = proxiedResponse.getStatusLine();
+        int statusCode = statusLine.getStatusCode();
+        String reasonPhrase = statusLine.getReasonPhrase();
+
+        if (reasonPhrase != null && statusCode >= 400) {
+            logger.warn("Downstream server returned a status code which could be an error. " + "Statuscode: "
+                    + statusCode + ", reason: " + reasonPhrase);
+
+            if (statusCode == 401) {
+                //
+                // Handle case of basic authentication.
+                //
+                Header authHeader = proxiedResponse.getFirstHeader("WWW-Authenticate");
+                finalResponse.setHeader("WWW-Authenticate",
+                        (authHeader == null) ? "Basic realm=\"Authentication required\"" : authHeader.getValue());
+            }
+
+            // 403 and 404 are handled by specific JSP files provided by the security-proxy
+            // webapp
+            if ((statusCode == 404) || (statusCode == 403)) {
+                // Hack for GN3.4: to protect against CSRF attacks, a token is provided by the
+                // xml.info service.
+                // Even if the return code is a 403, we are interested in getting the Set-Cookie
+                // value.
+                if (sURL.contains("/geonetwork/")) {
+                    Header setCookie = extractHeaderSetCookie(proxiedResponse);
+                    if (setCookie != null) {
+                        finalResponse.addHeader(setCookie.getName(), setCookie.getValue());
+                    }
+                }
+                finalResponse.sendError(statusCode);
+                return false;
+            }
+        }
+
+        ResponseCompression compression = this.responseCompression;
+        boolean compressible = compression != null && compression.isCompressible(request, proxiedResponse);
+        ResponseCompression.Encoder encoder = compressible ? compression.start(request) : null;
+        if (encoder != null) {
+            // the length of the compressed body is unknown
+            proxiedResponse.removeHeaders(HeaderNames.CONTENT_LENGTH);
+        }
+
+        // process response headers before handling redirect or performing request
+        headerManagement.copyResponseHeaders(request, request.getRequestURI(), proxiedResponse, finalResponse,
+                this.targets);
+        if (compressible && !varies(finalResponse, HeaderNames.ACCEPT_ENCODING)) {
+            finalResponse.addHeader("Vary", HeaderNames.ACCEPT_ENCODING);
+        }
+        if (encoder != null) {
+            finalResponse.setHeader(ResponseCompression.CONTENT_ENCODING, encoder.getEncoding());
+        }
+        if (compression != null) {
+            ResponseCompression.weakenETag(request, finalResponse, statusCode, encoder != null);
+        }
+
+        // Handle redirects
+        if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || statusCode == HttpStatus.SC_MOVED_TEMPORARILY) {
+            Optional<String> adjustedLocation = adjustLocation(request, proxiedResponse);
+            if (adjustedLocation.isPresent()) {
+                logger.debug("Handling redirect to " + adjustedLocation.get());
+                finalResponse.setHeader("Location", adjustedLocation.get());
+            } else {
+                ResponseCompression.release(request);
+                finalResponse.sendError(HttpStatus.SC_INTERNAL_SERVER_ERROR, "Unable to proxify redirect URL");
+                return false;
+            }
+        }
+
+        finalResponse.setStatus(statusCode);
+        return true;
+    }
+
+    private static boolean varies(HttpServletResponse response, String header) {
+        for (String vary : response.getHeaders("Vary")) {
+            for (String name : vary.split(",")) {
+                if (name.trim().equalsIgnoreCase(header) || name.trim().equals("*")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the error matching a failure to get a response from the proxified
+     * server.
+     */
+    void handleExecutionFailure(HttpServletRequest request, HttpServletResponse finalResponse, String sURL,
+            Throwable e) {
+        ProxyMetrics.Sample sample = ProxyMetrics.sample(request);
+        if (sample != null) {
+            sample.onFailure();
+        }
+        if (e instanceof TimeoutException) {
+            String errMsg = String.format("timeout on [%s] '%s'", request.getMethod(), sURL);
+            logger.error(errMsg, e);
+            try {
+                finalResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            } catch (IOException ex2) {
+                // the least we can do is then to log the exception
+                // and set an explicit status
+                logger.error(ex2);
+                finalResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            return;
+        }
+        // connection problem with the host
+        String errMsg = String.format("Exception occured when trying to connect to the remote url '%s'", sURL);
+        logger.error(errMsg, e);
+        try {
+            if (e instanceof UnknownHostException || e.getCause() instanceof UnknownHostException) {
+                // If the SP cannot resolve the remote host, it sounds more
+                // logical to return a 404.
+                finalResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            finalResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        } catch (IOException e2) {
+            // error occured while trying to return the "service unavailable status"
+            finalResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Closes the content stream of a proxified response which has not been (fully)
+     * sent to the client, so that the underlying connection stops receiving the
+     * response body.
+     */
+    private void releaseResponse(HttpResponse proxiedResponse) {
+        if (proxiedResponse == null || proxiedResponse.getEntity() == null
+                || !proxiedResponse.getEntity().isStreaming()) {
+            return;
+        }
+        try {
+            proxiedResponse.getEntity().getContent().close();
+        } catch (IOException e) {
+            logger.debug("Error closing the proxified response content", e);
+        }
+    }
+
+    private HttpAsyncClientBuilder createHttpAsyncClientBuilder() {
+        HttpAsyncClientBuilder htb = HttpAsyncClients.custom().setRedirectStrategy(NO_REDIRECT_STRATEGY);
+
+        // The client is shared by all the users: cookies are handled by the
+        // HeadersManagementStrategy and must never be stored by the client itself
+        htb.disableCookieManagement();
+        htb.disableConnectionState();
+        htb.setKeepAliveStrategy(keepAliveStrategy());
+
         RequestConfig config = RequestConfig.custom().setSocketTimeout(this.httpClientTimeoutMillis).build();
         htb.setDefaultRequestConfig(config);
 
@@ -769,6 +1623,14 @@ public class Proxy {
         return htb;
     }
 
+    private ConnectionKeepAliveStrategy keepAliveStrategy() {
+        return (response, context) -> {
+            long maxKeepAlive = TimeUnit.SECONDS.toMillis(keepAliveTimeout);
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? Math.min(keepAlive, maxKeepAlive) : maxKeepAlive;
+        };
+    }
+
     /**
      * Extracts the set-cookie http header from the downstream response.
      *
@@ -783,76 +1645,63 @@ public class Proxy {
         return null;
     }
 
+    private HttpResponse sendRequest(HttpServletRequest request, HttpRequestBase proxyingRequest)
+            throws IOException, TimeoutException, ExecutionException, InterruptedException {
+        ProxyMetrics.Sample sample = ProxyMetrics.sample(request);
+        if (sample != null) {
+            sample.onRequestSent();
+        }
+        return executeHttpRequest(httpClient, proxyingRequest);
+    }
+
     @VisibleForTesting
     protected HttpResponse executeHttpRequest(CloseableHttpAsyncClient httpclient, HttpRequestBase proxyingRequest)
             throws IOException, TimeoutException, ExecutionException, InterruptedException {
         CompletableFuture<HttpResponse> future = new CompletableFuture<HttpResponse>();
 
-        HttpAsyncResponseConsumer<Boolean> consumer = new AbstractAsyncResponseConsumer<Boolean>() {
-
-            private ByteBuffer bbuf = ByteBuffer.allocate(8192);
-            private HttpResponse httpResponse;
-            private PipedOutputStream pos = new PipedOutputStream();
-            private PipedInputStream pis = new PipedInputStream(pos);
-            private WritableByteChannel channel = Channels.newChannel(pos);
-
-            @Override
-            protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
-                HttpEntity streamEntity = new InputStreamEntity(pis, contentType);
-                httpResponse.setEntity(streamEntity);
-                future.complete(httpResponse);
-            }
+        HttpAsyncResponseConsumer<Boolean> consumer = createResponseConsumer(future);
+        Future<Boolean> execution = httpclient.execute(createRequestProducer(proxyingRequest, future), consumer, null);
 
-            @Override
-            protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
-                int bytesRead = decoder.read(this.bbuf);
-                while (bytesRead > 0) {
-                    this.bbuf.flip();
-                    while (this.bbuf.hasRemaining()) {
-                        channel.write(this.bbuf);
-                    }
-                    this.bbuf.clear();
-                    bytesRead = decoder.read(this.bbuf);
-                }
-            }
-
-            @Override
-            protected void releaseResources() {
-                try {
-                    channel.close();
-                    pos.close();
-                } catch (IOException e) {
-                }
-            }
-
-            @Override
-            protected void onResponseReceived(HttpResponse httpResponse) throws HttpException, IOException {
-                this.httpResponse = httpResponse;
-                if (httpResponse.getEntity() == null) {
-                    future.complete(httpResponse);
-                }
-            }
+        try {
+            return future.get(this.entityEnclosedOrEmptyResponseTimeout, TimeUnit.MINUTES);
+        } catch (TimeoutException | InterruptedException e) {
+            // the connection belongs to the shared pool: abort the exchange
+            execution.cancel(true);
+            throw e;
+        }
+    }
 
-            @Override
-            protected Boolean buildResult(HttpContext httpContext) throws Exception {
-                return Boolean.TRUE;
+    /**
+     * Sends the request to the proxified server without waiting for the response.
+     * The future is completed once the response headers are received, or if no
+     * response has been received after
+     * {@link #entityEnclosedOrEmptyResponseTimeout} minutes.
+     */
+    Future<Boolean> executeHttpRequestAsync(HttpRequestBase proxyingRequest, CompletableFuture<HttpResponse> future,
+            StreamingResponseConsumer consumer) {
+        Future<Boolean> execution = httpClient.execute(createRequestProducer(proxyingRequest, future), consumer, null);
+        ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+            if (future.completeExceptionally(new TimeoutException())) {
+                execution.cancel(true);
             }
+        }, entityEnclosedOrEmptyResponseTimeout, TimeUnit.MINUTES);
+        future.whenComplete((response, e) -> timeout.cancel(false));
+        return execution;
+    }
 
-        };
+    StreamingResponseConsumer createResponseConsumer(CompletableFuture<HttpResponse> future) {
+        return new StreamingResponseConsumer(future, bufferPool, streamingBufferedChunks, httpClientTimeoutMillis);
+    }
 
-        HttpAsyncRequestProducer producer = new BasicAsyncRequestProducer(
-                new HttpHost(proxyingRequest.getURI().getHost(), proxyingRequest.getURI().getPort(),
-                        proxyingRequest.getURI().getScheme()),
-                proxyingRequest) {
+    private HttpAsyncRequestProducer createRequestProducer(HttpRequestBase proxyingRequest,
+            CompletableFuture<HttpResponse> future) {
+        return new BasicAsyncRequestProducer(new HttpHost(proxyingRequest.getURI().getHost(),
+                proxyingRequest.getURI().getPort(), proxyingRequest.getURI().getScheme()), proxyingRequest) {
             @Override
             public void failed(Exception exc) {
                 future.completeExceptionally(exc);
             }
         };
-
-        httpclient.execute(producer, consumer, null);
-
-        return future.get(this.entityEnclosedOrEmptyResponseTimeout, TimeUnit.MINUTES);
     }
 
     private @Nullable String extractLocationHeader(HttpResponse proxiedResponse) {
@@ -863,27 +1712,27 @@ public class Proxy {
     private Optional<String> adjustLocation(HttpServletRequest request, HttpResponse proxiedResponse) {
         logger.debug("adjustLocation called for request: " + request.getRequestURI());
 
-        final String target = findMatchingTarget(request);
+        final TargetRoutingTable.Route route = routingTable.findMatchingRoute(request.getRequestURI());
         final String locationHeader = extractLocationHeader(proxiedResponse);
 
         String adjustedLocation = locationHeader;
 
-        if (target != null) {
+        if (route != null && route.baseURI != null) {
+            final String target = route.name;
             if (logger.isDebugEnabled()) {
                 logger.debug("adjustLocation found target: " + target + " for request: " + request.getRequestURI());
             }
 
-            final String baseURL = targets.get(target);
-            final URI baseURI;
+            final URI baseURI = route.baseURI;
+            final String baseURIString = route.baseURIString;
             try {
-                baseURI = new URI(baseURL);
                 logger.debug("adjustLocation process header: " + locationHeader);
                 URI locationURI = new URI(locationHeader);
-                URI resolvedURI = baseURI.resolve(locationURI);
+                String resolvedURI = baseURI.resolve(locationURI).toString();
 
-                logger.debug("Test location header: " + resolvedURI.toString() + " against: " + baseURI.toString());
-                if (resolvedURI.toString().startsWith(baseURI.toString())) {
-                    String resolvedSuffix = resolvedURI.toString().substring(baseURI.toString().length());
+                logger.debug("Test location header: " + resolvedURI + " against: " + baseURIString);
+                if (resolvedURI.startsWith(baseURIString)) {
+                    String resolvedSuffix = resolvedURI.substring(baseURIString.length());
                     String newLocation = "/" + target;
                     if (!resolvedSuffix.startsWith("/")) {
                         newLocation += "/";
@@ -893,7 +1742,7 @@ public class Proxy {
                     adjustedLocation = newLocation;
                 }
             } catch (URISyntaxException e) {
-                logger.info("Error creating baseURI from baseURL, leaving original Location header untouched", e);
+                logger.info("Error parsing the Location header, leaving it untouched", e);
             }
         }
         return Optional.ofNullable(adjustedLocation);
@@ -903,14 +1752,12 @@ public class Proxy {
     /**
      * Direct copy of response
      */
-    private void doHandleRequest(HttpServletResponse finalResponse, HttpResponse proxiedResponse) throws IOException {
-
-        finalResponse.setStatus(proxiedResponse.getStatusLine().getStatusCode());
-
+    private void doHandleRequest(HttpServletRequest request, HttpServletResponse finalResponse,
+            HttpResponse proxiedResponse) throws IOException {
         HttpEntity entity = proxiedResponse.getEntity();
         if (entity != null) {
             // Send the Response
-            OutputStream outputStream = finalResponse.getOutputStream();
+            OutputStream outputStream = responseOutput(request, finalResponse);
             try {
                 entity.writeTo(outputStream);
             } finally {
@@ -920,6 +1767,22 @@ public class Proxy {
         }
     }
 
+    /**
+     * @return the stream to write the response body to, compressing it if decided
+     *         by {@link #handleResponseHead}
+     */
+    private OutputStream responseOutput(HttpServletRequest request, HttpServletResponse finalResponse)
+            throws IOException {
+        OutputStream out = finalResponse.getOutputStream();
+        ResponseCompression.Encoder encoder = ResponseCompression.encoder(request);
+        if (encoder != null) {
+            out = encoder.wrap(out);
+        }
+        // the bytes of the response body, before compression
+        ProxyMetrics.Sample sample = ProxyMetrics.sample(request);
+        return sample == null ? out : sample.count(out);
+    }
+
     private URI buildUri(URL url) throws URISyntaxException {
         // Let URI constructor encode Path part
         // Don't use query part because URI constructor will try to double-encode it
@@ -943,10 +1806,9 @@ public class Proxy {
         return new URI(rawUrl.toString());
     }
 
-    private HttpRequestBase makeRequest(HttpServletRequest request, String sURL) throws IOException {
+    private HttpRequestBase makeRequest(HttpServletRequest request, String sURL, URL url) throws IOException {
         HttpRequestBase targetRequest;
         try {
-            URL url = new URL(sURL);
             URI uri = buildUri(url);
             HttpMethod meth = HttpMethod.resolve(request.getMethod());
 
@@ -985,7 +1847,15 @@ public class Proxy {
                 } else {
                     logger.debug("Post is a raw POST request");
                     int contentLength = request.getContentLength();
-                    ServletInputStream inputStream = request.getInputStream();
+                    InputStream inputStream = request.getInputStream();
+                    if (statisticsXmlBodyLimit > 0 && isXmlContentType(request) && !isAsync(request)) {
+                        // the head of the body is kept for the statistics, see logStatistics; in
+                        // non-blocking mode, it is buffered by the AsyncProxyExchange instead
+                        BufferedInputStream body = new BufferedInputStream(inputStream);
+                        body.mark(statisticsXmlBodyLimit);
+                        request.setAttribute(STATISTICS_BODY_ATTRIBUTE, body);
+                        inputStream = body;
+                    }
                     entity = new InputStreamEntity(inputStream, contentLength);
                 }
                 post.setEntity(entity);
@@ -1064,6 +1934,19 @@ public class Proxy {
         return "application/x-www-form-urlencoded".equalsIgnoreCase(contentType);
     }
 
+    /**
+     * Returns if the request body is an XML document, e.g. a WFS GetFeature or
+     * Transaction.
+     */
+    private boolean isXmlContentType(HttpServletRequest request) {
+        if (request.getContentType() == null) {
+            return false;
+        }
+        String contentType = request.getContentType().split(";")[0].trim().toLowerCase(Locale.ROOT);
+
+        return "text/xml".equals(contentType) || "application/xml".equals(contentType) || contentType.endsWith("+xml");
+    }
+
     protected String[] filter(String[] one) {
         return Arrays.stream(one).filter(x -> x.length() > 0).toArray(String[]::new);
     }
@@ -1092,8 +1975,226 @@ public class Proxy {
         this.defaultTarget = defaultTarget;
     }
 
-    public void setTargets(Map<String, String> targets) {
+    public void setTargets(Map<String, String> targets) throws MalformedURLException {
+        this.routingTable = TargetRoutingTable.build(targets);
         this.targets = targets;
+        configureTargetRoutes();
+        configureCircuitBreakers();
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsTotal(int maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    /**
+     * Overrides the maximum number of pooled connections towards some targets,
+     * keyed by target name.
+     */
+    public void setMaxConnectionsPerTarget(Map<String, Integer> maxConnectionsPerTarget) {
+        this.maxConnectionsPerTarget = maxConnectionsPerTarget;
+        configureTargetRoutes();
+    }
+
+    public void setIoThreadCount(int ioThreadCount) {
+        this.ioThreadCount = ioThreadCount;
+    }
+
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    public void setIdleConnectionTimeout(int idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    public void setIdleConnectionEvictionInterval(int idleConnectionEvictionInterval) {
+        this.idleConnectionEvictionInterval = idleConnectionEvictionInterval;
+    }
+
+    public void setWarmUpTargets(boolean warmUpTargets) {
+        this.warmUpTargets = warmUpTargets;
+    }
+
+    public void setDnsPositiveTtl(int dnsPositiveTtl) {
+        this.dnsPositiveTtl = dnsPositiveTtl;
+    }
+
+    public void setDnsNegativeTtl(int dnsNegativeTtl) {
+        this.dnsNegativeTtl = dnsNegativeTtl;
+    }
+
+    public void setDnsCacheMaxEntries(int dnsCacheMaxEntries) {
+        this.dnsCacheMaxEntries = dnsCacheMaxEntries;
+    }
+
+    public void setAsyncMode(boolean asyncMode) {
+        this.asyncMode = asyncMode;
+    }
+
+    public void setMaxAsyncRequestBodySize(int maxAsyncRequestBodySize) {
+        this.maxAsyncRequestBodySize = maxAsyncRequestBodySize;
+    }
+
+    int getMaxAsyncRequestBodySize() {
+        return maxAsyncRequestBodySize;
+    }
+
+    public void setRequestBodyMemoryThreshold(int requestBodyMemoryThreshold) {
+        this.requestBodyMemoryThreshold = requestBodyMemoryThreshold;
+    }
+
+    public void setStreamingBufferSize(int streamingBufferSize) {
+        this.streamingBufferSize = streamingBufferSize;
+    }
+
+    public void setStreamingBufferedChunks(int streamingBufferedChunks) {
+        this.streamingBufferedChunks = streamingBufferedChunks;
+    }
+
+    public void setMaxPooledBuffers(int maxPooledBuffers) {
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * Whether the streaming buffers are allocated off-heap, false by default. The
+     * decoded content is copied into the buffers either way, and the servlet output
+     * stream only takes byte arrays, so the content of direct buffers is copied
+     * once more to be written: they only move the buffers out of the heap.
+     */
+    public void setDirectBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+    }
+
+    public void setBulkheadSize(int bulkheadSize) {
+        this.bulkheadSize = bulkheadSize;
+    }
+
+    /**
+     * @param bulkheadSizePerTarget the maximum number of concurrent requests, by
+     *                              target name, overriding
+     *                              {@link #setBulkheadSize(int)}
+     */
+    public void setBulkheadSizePerTarget(Map<String, Integer> bulkheadSizePerTarget) {
+        this.bulkheadSizePerTarget = bulkheadSizePerTarget == null ? Collections.emptyMap() : bulkheadSizePerTarget;
+    }
+
+    public void setCircuitBreakerEnabled(boolean circuitBreakerEnabled) {
+        this.circuitBreakerEnabled = circuitBreakerEnabled;
+    }
+
+    public void setCircuitBreakerFailureRate(int circuitBreakerFailureRate) {
+        this.circuitBreakerFailureRate = circuitBreakerFailureRate;
+    }
+
+    public void setCircuitBreakerSlowCallDuration(int circuitBreakerSlowCallDuration) {
+        this.circuitBreakerSlowCallDuration = circuitBreakerSlowCallDuration;
+    }
+
+    public void setCircuitBreakerLatencyPercentile(int circuitBreakerLatencyPercentile) {
+        this.circuitBreakerLatencyPercentile = circuitBreakerLatencyPercentile;
+    }
+
+    public void setCircuitBreakerWindowSize(int circuitBreakerWindowSize) {
+        this.circuitBreakerWindowSize = circuitBreakerWindowSize;
+    }
+
+    public void setCircuitBreakerMinimumCalls(int circuitBreakerMinimumCalls) {
+        this.circuitBreakerMinimumCalls = circuitBreakerMinimumCalls;
+    }
+
+    public void setCircuitBreakerOpenDuration(int circuitBreakerOpenDuration) {
+        this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+    }
+
+    public void setCircuitBreakerHalfOpenProbes(int circuitBreakerHalfOpenProbes) {
+        this.circuitBreakerHalfOpenProbes = circuitBreakerHalfOpenProbes;
+    }
+
+    /**
+     * @param responseCacheTargets the names of the targets whose responses are
+     *                             cached
+     */
+    public void setResponseCacheTargets(List<String> responseCacheTargets) {
+        this.responseCacheTargets = trimmed(responseCacheTargets);
+    }
+
+    public void setResponseCacheRequests(List<String> responseCacheRequests) {
+        this.responseCacheRequests = responseCacheRequests;
+    }
+
+    public void setResponseCacheMaxSize(int responseCacheMaxSize) {
+        this.responseCacheMaxSize = responseCacheMaxSize;
+    }
+
+    public void setResponseCacheMaxEntrySize(int responseCacheMaxEntrySize) {
+        this.responseCacheMaxEntrySize = responseCacheMaxEntrySize;
+    }
+
+    public void setResponseCacheDefaultTtl(int responseCacheDefaultTtl) {
+        this.responseCacheDefaultTtl = responseCacheDefaultTtl;
+    }
+
+    /**
+     * @param coalescingTargets the names of the targets whose identical concurrent
+     *                          requests are coalesced
+     */
+    public void setCoalescingTargets(List<String> coalescingTargets) {
+        this.coalescingTargets = trimmed(coalescingTargets);
+    }
+
+    public void setCoalescingMaxBufferSize(int coalescingMaxBufferSize) {
+        this.coalescingMaxBufferSize = coalescingMaxBufferSize;
+    }
+
+    public void setCoalescingMaxWait(int coalescingMaxWait) {
+        this.coalescingMaxWait = coalescingMaxWait;
+    }
+
+    public void setMetricsJmxEnabled(boolean metricsJmxEnabled) {
+        this.metricsJmxEnabled = metricsJmxEnabled;
+    }
+
+    /**
+     * @param statisticsXmlBodyLimit the maximum number of bytes of the XML POST
+     *                               bodies read for the statistics, 0 to not read
+     *                               them
+     */
+    public void setStatisticsXmlBodyLimit(int statisticsXmlBodyLimit) {
+        this.statisticsXmlBodyLimit = Math.max(0, statisticsXmlBodyLimit);
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public void setCompressionContentTypes(List<String> compressionContentTypes) {
+        this.compressionContentTypes = trimmed(compressionContentTypes);
+    }
+
+    public void setCompressionMinSize(int compressionMinSize) {
+        this.compressionMinSize = compressionMinSize;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = Math.max(1, Math.min(9, compressionLevel));
+    }
+
+    /**
+     * @param compressionMaxConcurrent the maximum number of responses compressed at
+     *                                 once, 0 for the number of processors
+     */
+    public void setCompressionMaxConcurrent(int compressionMaxConcurrent) {
+        this.compressionMaxConcurrent = compressionMaxConcurrent > 0 ? compressionMaxConcurrent
+                : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static List<String> trimmed(List<String> values) {
+        return values == null ? Collections.emptyList()
+                : values.stream().map(String::trim).filter(v -> !v.isEmpty()).collect(Collectors.toList());
     }
 
     public void setHeaderManagement(HeadersManagementStrategy headerManagement) {
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The {@link TargetMetrics} of the proxy targets, the requests proxified
+ * through the {@code url} parameter being accounted to {@link #EXTERNAL}.
+ * <p>
+ * Each proxified request is measured by a {@link Sample}, bound to the request
+ * from the moment it is received to the moment its response has been fully
+ * sent, possibly from another thread in non-blocking mode.
+ * </p>
+ */
+public class ProxyMetrics {
+
+    private static final Log logger = LogFactory.getLog(ProxyMetrics.class.getPackage().getName());
+
+    /** the pseudo target of the requests to external URLs */
+    public static final String EXTERNAL = "_external";
+
+    private static final String SAMPLE_ATTRIBUTE = Sample.class.getName();
+
+    private final ConcurrentMap<String, TargetMetrics> targets = new ConcurrentHashMap<>();
+    private final boolean jmxEnabled;
+
+    /**
+     * @param jmxEnabled whether the metrics of each target are registered as an
+     *                   MBean in the platform MBean server
+     */
+    public ProxyMetrics(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * @return the metrics of the target, created on first use
+     */
+    public TargetMetrics forTarget(@Nullable String target) {
+        String name = target == null ? EXTERNAL : target;
+        TargetMetrics metrics = targets.get(name);
+        if (metrics != null) {
+            return metrics;
+        }
+        metrics = new TargetMetrics(name);
+        TargetMetrics existing = targets.putIfAbsent(name, metrics);
+        if (existing != null) {
+            return existing;
+        }
+        if (jmxEnabled) {
+            register(metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of the targets which got requests, by target name
+     */
+    public Map<String, TargetMetrics> getTargets() {
+        return new TreeMap<>(targets);
+    }
+
+    /**
+     * Starts measuring a request, until {@link Sample#end()}.
+     */
+    Sample start(HttpServletRequest request, HttpServletResponse response, @Nullable String target) {
+        Sample sample = new Sample(forTarget(target), response);
+        long contentLength = request.getContentLengthLong();
+        if (contentLength > 0) {
+            sample.metrics.requestBytes.add(contentLength);
+        }
+        request.setAttribute(SAMPLE_ATTRIBUTE, sample);
+        return sample;
+    }
+
+    /**
+     * @return the sample measuring the request, null if it is not proxified
+     */
+    static @Nullable Sample sample(HttpServletRequest request) {
+        return (Sample) request.getAttribute(SAMPLE_ATTRIBUTE);
+    }
+
+    static ObjectName objectName(String target) throws JMException {
+        return new ObjectName(
+                ProxyMetrics.class.getPackage().getName() + ":type=TargetMetrics,target=" + ObjectName.quote(target));
+    }
+
+    private void register(TargetMetrics metrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = objectName(metrics.getTarget());
+            try {
+                server.registerMBean(metrics, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // left by a previous proxy, e.g. on context reload
+                server.unregisterMBean(name);
+                server.registerMBean(metrics, name);
+            }
+        } catch (JMException e) {
+            logger.warn("Unable to register the metrics of target " + metrics.getTarget() + " in JMX", e);
+        }
+    }
+
+    /**
+     * Unregisters the MBeans of the targets.
+     */
+    public void close() {
+        if (!jmxEnabled) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (TargetMetrics metrics : targets.values()) {
+            try {
+                ObjectName name = objectName(metrics.getTarget());
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                logger.debug("Unable to unregister the metrics of target " + metrics.getTarget(), e);
+            }
+        }
+    }
+
+    /**
+     * The measure of a proxified request.
+     */
+    static final class Sample {
+        private final TargetMetrics metrics;
+        private final HttpServletResponse response;
+        private final long start = System.nanoTime();
+        private volatile long sent;
+        private volatile long timeToFirstByte = -1;
+        private volatile long duration = -1;
+        private final LongAdder responseBytes = new LongAdder();
+        private final AtomicBoolean headReceived = new AtomicBoolean();
+        private final AtomicBoolean ended = new AtomicBoolean();
+        private volatile Consumer<Sample> endListener;
+
+        private Sample(TargetMetrics metrics, HttpServletResponse response) {
+            this.metrics = metrics;
+            this.response = response;
+            metrics.requests.increment();
+            metrics.inFlight.incrementAndGet();
+        }
+
+        /**
+         * Tells the request is being sent to the target.
+         */
+        void onRequestSent() {
+            sent = System.nanoTime();
+        }
+
+        /**
+         * Tells the status and headers of the response have been received.
+         */
+        void onResponseHead() {
+            if (headReceived.compareAndSet(false, true)) {
+                long from = sent == 0 ? start : sent;
+                timeToFirstByte = System.nanoTime() - from;
+                metrics.timeToFirstByte.record(timeToFirstByte, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        void onResponseBytes(long bytes) {
+            metrics.responseBytes.add(bytes);
+            responseBytes.add(bytes);
+        }
+
+        /**
+         * Tells no response could be received from the target.
+         */
+        void onFailure() {
+            metrics.failures.increment();
+        }
+
+        /**
+         * @return a stream counting the response bytes written to out
+         */
+        OutputStream count(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    onResponseBytes(1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    onResponseBytes(len);
+                }
+            };
+        }
+
+        /**
+         * Sets the listener called once the response has been fully sent, from the
+         * thread calling {@link #end()}.
+         */
+        void onEnd(Consumer<Sample> listener) {
+            this.endListener = listener;
+        }
+
+        /**
+         * Tells the response has been fully sent, or abandoned. Only the first call is
+         * accounted.
+         */
+        void end() {
+            if (ended.compareAndSet(false, true)) {
+                duration = System.nanoTime() - start;
+                metrics.duration.record(duration, TimeUnit.NANOSECONDS);
+                metrics.onStatus(response.getStatus());
+                metrics.inFlight.decrementAndGet();
+                Consumer<Sample> listener = endListener;
+                if (listener != null) {
+                    try {
+                        listener.accept(this);
+                    } catch (RuntimeException e) {
+                        logger.error("Error handling the end of a proxified request", e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the time to first byte, in milliseconds, -1 if no response head has
+         *         been received
+         */
+        long getTimeToFirstByte() {
+            long ttfb = timeToFirstByte;
+            return ttfb < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(ttfb);
+        }
+
+        /**
+         * @return the duration of the request, in milliseconds, -1 if it has not ended
+         *         yet
+         */
+        long getDuration() {
+            long d = duration;
+            return d < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(d);
+        }
+
+        /**
+         * @return the response bytes sent so far, before compression
+         */
+        long getResponseBytes() {
+            return responseBytes.sum();
+        }
+
+        /**
+         * @return the status of the response sent to the client
+         */
+        int getStatus() {
+            return response.getStatus();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import static org.springframework.web.bind.annotation.RequestMethod.GET;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.pool.PoolStats;
+import org.apache.log4j.Category;
+import org.apache.log4j.Logger;
+import org.georchestra.ogcservstatistics.log4j.OGCServicesAppender;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+
+/**
+ * Exposes the metrics of the proxy in the Prometheus text format on
+ * {@code GET /_admin/metrics}: the {@link TargetMetrics} of each target, the
+ * connection pools, and the state of the circuit breakers, response cache,
+ * request coalescing and response compression when enabled, and the backlog of
+ * the {@link OGCServicesAppender} recording the OGC service statistics.
+ * <p>
+ * Only super users and the allowed addresses may call it, see
+ * {@link AdminAccess}.
+ * </p>
+ */
+@Controller
+public class ProxyMetricsController {
+
+    private static final String PREFIX = "georchestra_proxy_";
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.95, 0.99 };
+
+    private Proxy proxy;
+
+    private AdminAccess adminAccess = new AdminAccess();
+
+    @RequestMapping(value = "/_admin/metrics", method = GET)
+    public void metrics(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!adminAccess.isAllowed(request, response)) {
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter out = response.getWriter();
+        write(out);
+        out.flush();
+    }
+
+    void write(PrintWriter out) {
+        ProxyMetrics metrics = proxy.getMetrics();
+        if (metrics != null) {
+            writeTargets(out, metrics.getTargets());
+        }
+        writePools(out, proxy.getPoolStats());
+        writeCircuitBreakers(out, proxy.getCircuitBreakers());
+        ResponseCache cache = proxy.getResponseCache();
+        if (cache != null) {
+            counter(out, "response_cache_hits_total", "Responses sent from the cache", cache.getHits());
+            counter(out, "response_cache_misses_total", "Cacheable requests sent to the targets", cache.getMisses());
+            counter(out, "response_cache_revalidations_total", "Cached responses revalidated by the targets",
+                    cache.getRevalidations());
+            gauge(out, "response_cache_entries", "Cached responses", cache.size());
+        }
+        RequestCoalescer coalescer = proxy.getRequestCoalescer();
+        if (coalescer != null) {
+            counter(out, "coalescing_leaders_total", "Coalesced requests sent to the targets", coalescer.getLeaders());
+            counter(out, "coalescing_followers_total", "Requests which waited for an identical request",
+                    coalescer.getFollowers());
+            counter(out, "coalescing_fallbacks_total", "Requests sent on their own despite an identical request",
+                    coalescer.getFallbacks());
+        }
+        ResponseCompression compression = proxy.getResponseCompression();
+        if (compression != null) {
+            counter(out, "compression_responses_total", "Compressed responses", compression.getCompressed());
+            counter(out, "compression_skipped_total", "Responses sent uncompressed since too many were compressed",
+                    compression.getSkipped());
+            counter(out, "compression_input_bytes_total", "Bytes of the compressed responses before compression",
+                    compression.getBytesIn());
+            counter(out, "compression_output_bytes_total", "Bytes of the compressed responses after compression",
+                    compression.getBytesOut());
+        }
+        OGCServicesAppender statistics = statisticsAppender();
+        if (statistics != null) {
+            writeStatistics(out, statistics);
+        }
+    }
+
+    /**
+     * @return the appender the OGC service statistics are logged to, null if there
+     *         is none
+     */
+    static OGCServicesAppender statisticsAppender() {
+        for (Category logger = Logger.getLogger(
+                Proxy.class.getPackage().getName() + ".statistics"); logger != null; logger = logger.getParent()) {
+            Enumeration<?> appenders = logger.getAllAppenders();
+            while (appenders.hasMoreElements()) {
+                Object appender = appenders.nextElement();
+                if (appender instanceof OGCServicesAppender) {
+                    return (OGCServicesAppender) appender;
+                }
+            }
+            if (!logger.getAdditivity()) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private void writeStatistics(PrintWriter out, OGCServicesAppender statistics) {
+        gauge(out, "statistics_queued", "OGC service records waiting to be inserted", statistics.getQueued());
+        counter(out, "statistics_written_total", "OGC service records inserted or journaled", statistics.getWritten());
+        counter(out, "statistics_failed_total", "OGC service records which could not be parsed or inserted",
+                statistics.getFailed());
+        counter(out, "statistics_dropped_total", "OGC service records dropped since the queue was full",
+                statistics.getDropped());
+        gauge(out, "statistics_journal_backlog_records", "Journaled OGC service records waiting to be replayed",
+                statistics.getJournalBacklog());
+        gauge(out, "statistics_journal_backlog_bytes", "Bytes of the OGC service records journal",
+                statistics.getJournalBacklogBytes());
+        header(out, "statistics_journal_backlog_age_seconds", "gauge",
+                "Age of the oldest journaled OGC service record waiting to be replayed");
+        sample(out, "statistics_journal_backlog_age_seconds", null, statistics.getJournalBacklogAge() / 1e3);
+        counter(out, "statistics_journal_replayed_total", "Journaled OGC service records replayed",
+                statistics.getReplayed());
+        counter(out, "statistics_journal_dropped_total", "OGC service records dropped since the journal was full",
+                statistics.getJournalDropped());
+    }
+
+    private void writeTargets(PrintWriter out, Map<String, TargetMetrics> targets) {
+        header(out, "requests_total", "counter", "Proxified requests");
+        for (TargetMetrics target : targets.values()) {
+            sample(out, "requests_total", label(target), target.getRequests());
+        }
+        header(out, "responses_total", "counter", "Responses sent, by status class");
+        for (TargetMetrics target : targets.values()) {
+            for (int statusClass = 1; statusClass <= 5; statusClass++) {
+                sample(out, "responses_total", label(target) + ",status=\"" + statusClass + "xx\"",
+                        target.getResponses(statusClass));
+            }
+        }
+        header(out, "failures_total", "counter", "Requests which got no response from the target");
+        for (TargetMetrics target : targets.values()) {
+            sample(out, "failures_total", label(target), target.getFailures());
+        }
+        header(out, "in_flight_requests", "gauge", "Requests being proxified");
+        for (TargetMetrics target : targets.values()) {
+            sample(out, "in_flight_requests", label(target), target.getInFlight());
+        }
+        header(out, "request_bytes_total", "counter", "Bytes of the request bodies");
+        for (TargetMetrics target : targets.values()) {
+            sample(out, "request_bytes_total", label(target), target.getRequestBytes());
+        }
+        header(out, "response_bytes_total", "counter", "Bytes of the response bodies, before compression");
+        for (TargetMetrics target : targets.values()) {
+            sample(out, "response_bytes_total", label(target), target.getResponseBytes());
+        }
+        header(out, "time_to_first_byte_seconds", "summary",
+                "Time from sending the request to the target to receiving the response head");
+        for (TargetMetrics target : targets.values()) {
+            summary(out, "time_to_first_byte_seconds", label(target), target.getTimeToFirstByte());
+        }
+        header(out, "request_duration_seconds", "summary",
+                "Time from receiving the request to sending the whole response");
+        for (TargetMetrics target : targets.values()) {
+            summary(out, "request_duration_seconds", label(target), target.getDuration());
+        }
+    }
+
+    private void writePools(PrintWriter out, Map<String, PoolStats> pools) {
+        if (pools.isEmpty()) {
+            return;
+        }
+        header(out, "pool_connections", "gauge", "Connections of the HTTP client pool, by route");
+        for (Map.Entry<String, PoolStats> pool : pools.entrySet()) {
+            String label = "route=\"" + escape(pool.getKey()) + "\"";
+            sample(out, "pool_connections", label + ",state=\"leased\"", pool.getValue().getLeased());
+            sample(out, "pool_connections", label + ",state=\"available\"", pool.getValue().getAvailable());
+            sample(out, "pool_connections", label + ",state=\"pending\"", pool.getValue().getPending());
+            sample(out, "pool_connections", label + ",state=\"max\"", pool.getValue().getMax());
+        }
+    }
+
+    private void writeCircuitBreakers(PrintWriter out, Map<String, CircuitBreaker> breakers) {
+        if (breakers.isEmpty()) {
+            return;
+        }
+        header(out, "circuit_breaker_state", "gauge", "State of the circuit breaker: 0 closed, 1 half open, 2 open");
+        for (CircuitBreaker breaker : breakers.values()) {
+            int state = breaker.getState() == CircuitBreaker.State.CLOSED ? 0
+                    : breaker.getState() == CircuitBreaker.State.HALF_OPEN ? 1 : 2;
+            sample(out, "circuit_breaker_state", label(breaker.getTarget()), state);
+        }
+        header(out, "circuit_breaker_rejected_total", "counter", "Requests rejected by the circuit breaker");
+        for (CircuitBreaker breaker : breakers.values()) {
+            sample(out, "circuit_breaker_rejected_total", label(breaker.getTarget()) + ",reason=\"open\"",
+                    breaker.getRejectedWhileOpen());
+            sample(out, "circuit_breaker_rejected_total", label(breaker.getTarget()) + ",reason=\"bulkhead\"",
+                    breaker.getRejectedByBulkhead());
+        }
+    }
+
+    private static void summary(PrintWriter out, String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            sample(out, name, labels + ",quantile=\"" + quantile + "\"", histogram.getPercentile(quantile) / 1e6);
+        }
+        sample(out, name + "_sum", labels, histogram.getSum() / 1e6);
+        sample(out, name + "_count", labels, histogram.getCount());
+    }
+
+    private static void counter(PrintWriter out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        sample(out, name, null, value);
+    }
+
+    private static void gauge(PrintWriter out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        sample(out, name, null, value);
+    }
+
+    private static void header(PrintWriter out, String name, String type, String help) {
+        out.print("# HELP " + PREFIX + name + " " + help + "\n");
+        out.print("# TYPE " + PREFIX + name + " " + type + "\n");
+    }
+
+    private static void sample(PrintWriter out, String name, String labels, Number value) {
+        out.print(PREFIX + name);
+        if (labels != null) {
+            out.print("{" + labels + "}");
+        }
+        out.print(' ');
+        out.print(value instanceof Double ? String.format(Locale.ROOT, "%.6f", value) : value.toString());
+        out.print('\n');
+    }
+
+    private static String label(TargetMetrics target) {
+        return label(target.getTarget());
+    }
+
+    private static String label(String target) {
+        return "target=\"" + escape(target) + "\"";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    public void setProxy(Proxy proxy) {
+        this.proxy = proxy;
+    }
+
+    public void setAdminAccess(AdminAccess adminAccess) {
+        this.adminAccess = adminAccess;
+    }
+}
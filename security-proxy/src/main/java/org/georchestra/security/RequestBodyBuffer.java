@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+
+/**
+ * The raw body of a request proxified in blocking mode, read from the servlet
+ * input stream by the container thread before the request is handed to the HTTP
+ * client shared by all the proxified requests.
+ * <p>
+ * Each I/O reactor thread of the shared client serves many connections: reading
+ * the body of a slow client from it would stall every exchange multiplexed on
+ * the same thread, and could not be interrupted on timeout. The body is kept in
+ * memory up to {@code memoryThreshold} bytes, and spilled to a temporary file
+ * beyond, deleted once the buffer is closed.
+ * </p>
+ */
+final class RequestBodyBuffer implements Closeable {
+
+    private static final Log logger = LogFactory.getLog(RequestBodyBuffer.class.getPackage().getName());
+
+    private static final RequestBodyBuffer NONE = new RequestBodyBuffer(null);
+
+    private final File file;
+
+    private RequestBodyBuffer(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replaces the entity streamed from the servlet input stream, if the request
+     * has one, with its buffered content.
+     * 
+     * @return the buffer, to close once the request has been sent
+     */
+    static RequestBodyBuffer buffer(HttpRequestBase request, int memoryThreshold) throws IOException {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return NONE;
+        }
+        HttpEntityEnclosingRequest enclosingRequest = (HttpEntityEnclosingRequest) request;
+        HttpEntity original = enclosingRequest.getEntity();
+        if (!(original instanceof InputStreamEntity)) {
+            return NONE;
+        }
+        InputStream in = original.getContent();
+        // the length announced by the client is not trusted to size the buffer
+        long length = original.getContentLength();
+        ByteArrayOutputStream memory = new ByteArrayOutputStream(
+                (int) Math.min(length > 0 ? length : 1024, Math.min(memoryThreshold, 64 * 1024)));
+        byte[] buffer = new byte[8192];
+        File file = null;
+        OutputStream out = memory;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (file == null && memory.size() + read > memoryThreshold) {
+                    file = Files.createTempFile("security-proxy-", ".body").toFile();
+                    out = new FileOutputStream(file);
+                    memory.writeTo(out);
+                }
+                out.write(buffer, 0, read);
+            }
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            if (file != null) {
+                out.close();
+                Files.deleteIfExists(file.toPath());
+            }
+            throw e;
+        }
+        AbstractHttpEntity body = file == null ? new ByteArrayEntity(memory.toByteArray()) : new FileEntity(file);
+        body.setContentType(original.getContentType());
+        body.setContentEncoding(original.getContentEncoding());
+        enclosingRequest.setEntity(body);
+        return file == null ? NONE : new RequestBodyBuffer(file);
+    }
+
+    /**
+     * Deletes the temporary file of the body, if any.
+     */
+    @Override
+    public void close() {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                logger.warn("Unable to delete the request body buffered in " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * Coalesces identical concurrent requests to a target: while a request is in
+ * flight, the identical requests wait for its response instead of being sent
+ * too, and get a copy of it.
+ * <p>
+ * The first request of a {@link Flight}, the leader, is sent to the target and,
+ * once a follower has joined, its response body is recorded as it is sent to
+ * its client. The other requests, the followers, replay the recorded response:
+ * <ul>
+ * <li>while it is received if its length is known and at most
+ * {@code maxBufferSize},</li>
+ * <li>once fully received otherwise.</li>
+ * </ul>
+ * A follower is sent to the target on its own if the response head, or the
+ * whole body of a response of unknown length, is not received within
+ * {@code maxWait}, if the response body turns out to be larger than
+ * {@code maxBufferSize}, or if the response sets cookies or is private. A
+ * follower replaying a response while received fails if no chunk of the body is
+ * received within {@code maxWait}. No follower can join a flight once the
+ * leader has received the first chunk of the body without any follower, the
+ * body not being recorded.
+ * </p>
+ */
+public class RequestCoalescer {
+
+    /** the request headers the responses depend on */
+    private static final String[] KEY_HEADERS = { "Accept", HeaderNames.ACCEPT_ENCODING, "Accept-Language", "Range",
+            "If-None-Match", "If-Modified-Since" };
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final int maxBufferSize;
+    private final long maxWait;
+
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder followers = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    /**
+     * @param maxBufferSize the maximum size of a recorded response body
+     * @param maxWait       how long, in milliseconds, a follower waits for the
+     *                      response head, for the whole body of a response of
+     *                      unknown length, and for each chunk of the body
+     */
+    public RequestCoalescer(int maxBufferSize, long maxWait) {
+        this.maxBufferSize = maxBufferSize;
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+    }
+
+    String key(String target, HttpRequestBase proxyingRequest) {
+        return RequestKey.of(target, proxyingRequest, KEY_HEADERS);
+    }
+
+    /**
+     * @return the flight of the request, whose leader is the caller if
+     *         {@link Flight#isLeader()}, or null if the request has to be sent on
+     *         its own
+     */
+    Flight join(String key) {
+        Flight created = new Flight(this, key);
+        Flight flight = flights.putIfAbsent(key, created);
+        if (flight == null) {
+            leaders.increment();
+            return created;
+        }
+        synchronized (flight) {
+            if (flight.joinable()) {
+                followers.increment();
+                return flight.follower();
+            }
+        }
+        // too late to replay the response, another flight is started
+        if (flights.replace(key, flight, created)) {
+            leaders.increment();
+            return created;
+        }
+        fallbacks.increment();
+        return null;
+    }
+
+    void fallback() {
+        fallbacks.increment();
+    }
+
+    /**
+     * @return the number of requests sent to the targets through a flight
+     */
+    public long getLeaders() {
+        return leaders.sum();
+    }
+
+    /**
+     * @return the number of requests which waited for the response of an identical
+     *         request
+     */
+    public long getFollowers() {
+        return followers.sum();
+    }
+
+    /**
+     * @return the number of requests sent on their own, though an identical request
+     *         was in flight
+     */
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int getInFlight() {
+        return flights.size();
+    }
+
+    /**
+     * A request in flight and its recorded response.
+     */
+    static final class Flight {
+        private final RequestCoalescer coalescer;
+        private final String key;
+        private final boolean leader;
+        private final Flight shared;
+
+        // guarded by the shared flight
+        private StatusLine statusLine;
+        private Header[] headers;
+        private long contentLength = -1;
+        private boolean shareable;
+        private final List<byte[]> chunks;
+        private int size;
+        private boolean completed;
+        private boolean overflowed;
+        /** whether the body is recorded, once a follower has joined */
+        private boolean recording;
+        private boolean unrecorded;
+        private boolean abandoned;
+        private Throwable failure;
+        private int waiting;
+
+        private Flight(RequestCoalescer coalescer, String key) {
+            this.coalescer = coalescer;
+            this.key = key;
+            this.leader = true;
+            this.shared = this;
+            this.chunks = new ArrayList<>();
+        }
+
+        private Flight(Flight leader) {
+            this.coalescer = leader.coalescer;
+            this.key = leader.key;
+            this.leader = false;
+            this.shared = leader;
+            this.chunks = null;
+        }
+
+        boolean isLeader() {
+            return leader;
+        }
+
+        private boolean joinable() {
+            return !overflowed && !unrecorded && !abandoned && failure == null && (!completed || shareable)
+                    && (statusLine == null || shareable);
+        }
+
+        private Flight follower() {
+            waiting++;
+            return new Flight(this);
+        }
+
+        /* ---------- leader side ---------- */
+
+        /**
+         * Records the head of the response.
+         */
+        void onHead(HttpResponse response) {
+            boolean privateResponse = response.containsHeader(HeaderNames.SET_COOKIE_ID);
+            for (Header header : response.getHeaders("Cache-Control")) {
+                String value = header.getValue().toLowerCase(Locale.ROOT);
+                privateResponse |= value.contains("private") || value.contains("no-store");
+            }
+            synchronized (this) {
+                statusLine = response.getStatusLine();
+                headers = response.getAllHeaders();
+                contentLength = response.getEntity() == null ? 0 : response.getEntity().getContentLength();
+                shareable = !privateResponse && contentLength <= coalescer.maxBufferSize;
+                notifyAll();
+            }
+            if (!shareable) {
+                coalescer.flights.remove(key, this);
+            }
+        }
+
+        /**
+         * Records a chunk of the response body, which is not modified afterwards.
+         */
+        void onContent(byte[] chunk, int length) {
+            synchronized (this) {
+                if (!shareable || overflowed || unrecorded) {
+                    return;
+                }
+                if (!recording && waiting == 0) {
+                    // nobody to replay the body to, and too late for the next requests
+                    unrecorded = true;
+                } else if (size + length > coalescer.maxBufferSize) {
+                    overflowed = true;
+                    chunks.clear();
+                    notifyAll();
+                } else {
+                    recording = true;
+                    byte[] copy = new byte[length];
+                    System.arraycopy(chunk, 0, copy, 0, length);
+                    chunks.add(copy);
+                    size += length;
+                    notifyAll();
+                    return;
+                }
+            }
+            coalescer.flights.remove(key, this);
+        }
+
+        /**
+         * @return true if followers are waiting for the response, in which case the
+         *         leader should receive it all even if its own client has gone
+         */
+        synchronized boolean hasFollowers() {
+            return waiting > 0 && shareable && !overflowed;
+        }
+
+        /**
+         * Ends the flight, once the response has been fully received or on failure.
+         *
+         * @param failure the failure, null if the response has been fully received
+         */
+        void finish(@Nullable Throwable failure) {
+            coalescer.flights.remove(key, this);
+            synchronized (this) {
+                if (completed || this.failure != null) {
+                    return;
+                }
+                if (failure == null) {
+                    completed = true;
+                } else {
+                    this.failure = failure;
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Ends the flight without sending the request, the followers sending it on
+         * their own.
+         */
+        void abandon() {
+            coalescer.flights.remove(key, this);
+            synchronized (this) {
+                abandoned = true;
+                notifyAll();
+            }
+        }
+
+        /* ---------- follower side ---------- */
+
+        /**
+         * Waits for the response to replay. {@link #leave()} has to be called once
+         * done, whatever the outcome.
+         *
+         * @return the response head, without entity, or null if the request has to be
+         *         sent on its own
+         * @throws Throwable the failure of the leader request
+         */
+        @Nullable
+        HttpResponse awaitHead() throws Throwable {
+            Flight f = shared;
+            synchronized (f) {
+                long deadline = System.nanoTime() + coalescer.maxWait;
+                while (f.statusLine == null && f.failure == null && !f.abandoned) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return fallback();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(f, remaining);
+                }
+                if (f.abandoned) {
+                    return fallback();
+                }
+                if (f.failure != null) {
+                    throw f.failure;
+                }
+                if (!f.shareable) {
+                    return fallback();
+                }
+                // replays while received only if the whole body is known to fit
+                while (f.contentLength < 0 && !f.completed && !f.overflowed && f.failure == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        // the leader is stalled, do not hold the thread any longer
+                        return fallback();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(f, remaining);
+                }
+                if (f.overflowed || (f.failure != null && !f.completed)) {
+                    return fallback();
+                }
+                BasicHttpResponse response = new BasicHttpResponse(f.statusLine);
+                response.setHeaders(f.headers);
+                return response;
+            }
+        }
+
+        private HttpResponse fallback() {
+            coalescer.fallback();
+            return null;
+        }
+
+        /**
+         * @return the next chunk of the response body, null once it has been fully
+         *         replayed
+         * @throws IOException if the leader request failed, or if the chunk is not
+         *                     received within {@code maxWait}
+         */
+        @Nullable
+        byte[] awaitChunk(int index) throws IOException, InterruptedException {
+            Flight f = shared;
+            synchronized (f) {
+                long deadline = System.nanoTime() + coalescer.maxWait;
+                while (index >= f.chunks.size() && !f.completed && !f.overflowed && f.failure == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new IOException("No content of the response to replay received for "
+                                + TimeUnit.NANOSECONDS.toMillis(coalescer.maxWait) + " ms");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(f, remaining);
+                }
+                if (index < f.chunks.size()) {
+                    return f.chunks.get(index);
+                }
+                if (f.completed) {
+                    return null;
+                }
+                throw new IOException("The response to replay has not been fully received", f.failure);
+            }
+        }
+
+        /**
+         * Tells the follower has replayed the response, or given up.
+         */
+        void leave() {
+            synchronized (shared) {
+                shared.waiting--;
+            }
+        }
+    }
+}
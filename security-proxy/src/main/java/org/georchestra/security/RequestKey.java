@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Builds the keys identifying the proxified requests which get the same
+ * response from a target: same path, same query parameters (names being case
+ * insensitive, order not significant), same roles, and same values of the given
+ * request headers.
+ */
+final class RequestKey {
+
+    private RequestKey() {
+    }
+
+    /**
+     * @param target          the name of the target
+     * @param proxyingRequest the proxified request, once the security headers have
+     *                        been set
+     * @param headers         the names of the request headers the response depends
+     *                        on
+     */
+    static String of(String target, HttpRequestBase proxyingRequest, String... headers) {
+        StringBuilder key = new StringBuilder(target).append('\n').append(proxyingRequest.getURI().getRawPath());
+        String query = proxyingRequest.getURI().getRawQuery();
+        if (query != null) {
+            List<String> params = new ArrayList<>();
+            for (String param : query.split("&")) {
+                if (param.isEmpty()) {
+                    continue;
+                }
+                int equals = param.indexOf('=');
+                String name = equals == -1 ? param : param.substring(0, equals);
+                String value = equals == -1 ? "" : param.substring(equals + 1);
+                // a decoded separator must not pass for an actual one
+                params.add(escape(decode(name).toLowerCase(Locale.ROOT)) + '=' + escape(decode(value)));
+            }
+            params.sort(null);
+            key.append('?');
+            for (String param : params) {
+                key.append(param).append('&');
+            }
+        }
+        key.append('\n');
+        Set<String> roles = new TreeSet<>();
+        for (Header header : proxyingRequest.getHeaders(HeaderNames.SEC_ROLES)) {
+            roles.addAll(Arrays.asList(header.getValue().split(";")));
+        }
+        key.append(String.join(";", roles));
+        for (String name : headers) {
+            // list values in any order, e.g. "gzip, deflate" and "deflate,gzip"
+            Set<String> values = new TreeSet<>();
+            for (Header header : proxyingRequest.getHeaders(name)) {
+                for (String value : header.getValue().split(",")) {
+                    values.add(value.replace(" ", "").toLowerCase(Locale.ROOT));
+                }
+            }
+            key.append('\n').append(String.join(",", values));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Escapes the characters separating the parts of the key, and the escape
+     * character itself.
+     */
+    private static String escape(String s) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String replacement = c == '%' ? "%25" : c == '&' ? "%26" : c == '=' ? "%3D" : c == '\n' ? "%0A" : null;
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(s.length() + 8).append(s, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement == null) {
+                    escaped.append(c);
+                } else {
+                    escaped.append(replacement);
+                }
+            }
+        }
+        return escaped == null ? s : escaped.toString();
+    }
+
+    static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return s;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * In-memory cache of the responses to the OGC requests which only depend on the
+ * URL and on the roles of the user, such as GetCapabilities or
+ * GetLegendGraphic.
+ * <p>
+ * The responses are keyed by target, path, query parameters (names being case
+ * insensitive, order not significant), roles and accepted encodings. The memory
+ * used by the response bodies is bounded by {@code maxSize} bytes, the least
+ * recently used responses being evicted first.
+ * </p>
+ * <p>
+ * A response is kept for the duration given by its {@code Cache-Control} or
+ * {@code Expires} headers, or {@code defaultTtl} if there are none. Once
+ * expired, a response having an {@code ETag} or {@code Last-Modified} header is
+ * revalidated through a conditional request. Responses marked {@code no-store}
+ * or {@code private}, setting cookies, or varying on other headers than
+ * {@code Accept-Encoding} are never cached.
+ * </p>
+ */
+public class ResponseCache {
+
+    private static final List<String> VALIDATOR_HEADERS = Arrays.asList("ETag", "Last-Modified", "Cache-Control",
+            "Expires", "Date");
+
+    private final Cache<String, Entry> entries;
+    private final int maxEntrySize;
+    private final long defaultTtl;
+    private final Set<String> requests = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+
+    /**
+     * @param maxSize      the maximum number of bytes of the cached responses
+     * @param maxEntrySize the maximum size of a cached response body
+     * @param defaultTtl   how long, in seconds, a response without caching headers
+     *                     is kept
+     * @param requests     the values of the OGC REQUEST parameter of the cached
+     *                     requests
+     */
+    public ResponseCache(long maxSize, int maxEntrySize, int defaultTtl, Collection<String> requests) {
+        this.maxEntrySize = maxEntrySize;
+        this.defaultTtl = TimeUnit.SECONDS.toNanos(defaultTtl);
+        this.requests.addAll(requests);
+        this.entries = CacheBuilder.newBuilder().maximumWeight(maxSize)
+                .weigher((String key, Entry entry) -> entry.weight(key)).build();
+    }
+
+    /**
+     * @return true if the response to the request may be cached
+     */
+    public boolean isCacheable(HttpServletRequest request) {
+        if (!"GET".equals(request.getMethod())) {
+            return false;
+        }
+        String query = request.getQueryString();
+        if (query == null) {
+            return false;
+        }
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            if (equals > 0 && "request".equalsIgnoreCase(param.substring(0, equals))) {
+                return requests.contains(RequestKey.decode(param.substring(equals + 1)));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the key of the response to the proxified request, once the security
+     *         headers have been set
+     */
+    String key(String target, HttpRequestBase proxyingRequest) {
+        // the target may send a compressed response depending on the encodings
+        return RequestKey.of(target, proxyingRequest, HeaderNames.ACCEPT_ENCODING);
+    }
+
+    /**
+     * @return the cached response, fresh or not, null if there is none
+     */
+    @Nullable
+    Entry get(String key) {
+        Entry entry = entries.getIfPresent(key);
+        if (entry != null && entry.isFresh()) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * @return the maximum size of a cached response body
+     */
+    int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * @return true if the response may be cached, provided its body is not larger
+     *         than {@link #getMaxEntrySize()}
+     */
+    boolean isStorable(HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK
+                || response.containsHeader(HeaderNames.SET_COOKIE_ID)) {
+            return false;
+        }
+        for (Header header : response.getHeaders("Vary")) {
+            for (String name : header.getValue().split(",")) {
+                if (!name.trim().isEmpty() && !name.trim().equalsIgnoreCase(HeaderNames.ACCEPT_ENCODING)) {
+                    return false;
+                }
+            }
+        }
+        for (String directive : cacheControl(response)) {
+            if (directive.equals("no-store") || directive.equals("private")) {
+                return false;
+            }
+        }
+        if (response.getEntity() != null && response.getEntity().getContentLength() > maxEntrySize) {
+            return false;
+        }
+        long ttl = ttl(response);
+        return ttl > 0 || response.containsHeader("ETag") || response.containsHeader("Last-Modified");
+    }
+
+    /**
+     * Caches a response which {@link #isStorable(HttpResponse)}.
+     *
+     * @return the cached response
+     */
+    Entry put(String key, HttpResponse response, byte[] body) {
+        List<Header> headers = new ArrayList<>();
+        for (Header header : response.getAllHeaders()) {
+            if (!header.getName().equalsIgnoreCase(HeaderNames.TRANSFER_ENCODING)) {
+                headers.add(header);
+            }
+        }
+        Entry entry = new Entry(headers, body, System.nanoTime() + ttl(response));
+        entries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Updates the validity of a response the target tells is not modified.
+     */
+    void revalidated(Entry entry, HttpResponse notModified) {
+        revalidations.increment();
+        List<Header> headers = new ArrayList<>();
+        for (Header header : entry.headers) {
+            if (!notModified.containsHeader(header.getName()) || !isValidatorHeader(header.getName())) {
+                headers.add(header);
+            }
+        }
+        for (Header header : notModified.getAllHeaders()) {
+            if (isValidatorHeader(header.getName())) {
+                headers.add(header);
+            }
+        }
+        entry.headers = headers;
+        entry.expiresAt = System.nanoTime() + ttl(notModified);
+    }
+
+    private static boolean isValidatorHeader(String name) {
+        for (String validator : VALIDATOR_HEADERS) {
+            if (validator.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> cacheControl(HttpResponse response) {
+        List<String> directives = new ArrayList<>();
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (String directive : header.getValue().split(",")) {
+                directives.add(directive.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * @return how long, in nanoseconds, the response may be served without
+     *         revalidation
+     */
+    private long ttl(HttpResponse response) {
+        long maxAge = -1;
+        for (String directive : cacheControl(response)) {
+            if (directive.equals("no-cache")) {
+                return 0;
+            }
+            if (directive.startsWith("s-maxage=") || (maxAge == -1 && directive.startsWith("max-age="))) {
+                try {
+                    maxAge = Long.parseLong(directive.substring(directive.indexOf('=') + 1).replace("\"", ""));
+                } catch (NumberFormatException e) {
+                    maxAge = 0;
+                }
+                if (directive.startsWith("s-maxage=")) {
+                    break;
+                }
+            }
+        }
+        if (maxAge >= 0) {
+            return TimeUnit.SECONDS.toNanos(maxAge);
+        }
+        Header expires = response.getFirstHeader("Expires");
+        if (expires != null) {
+            Date expiresAt = DateUtils.parseDate(expires.getValue());
+            if (expiresAt == null) {
+                return 0;
+            }
+            Header dateHeader = response.getFirstHeader("Date");
+            Date date = dateHeader == null ? null : DateUtils.parseDate(dateHeader.getValue());
+            long now = date == null ? System.currentTimeMillis() : date.getTime();
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, expiresAt.getTime() - now));
+        }
+        return defaultTtl;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getRevalidations() {
+        return revalidations.sum();
+    }
+
+    /**
+     * @return the number of cached responses
+     */
+    public long size() {
+        return entries.size();
+    }
+
+    public void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    /**
+     * A cached response.
+     */
+    static final class Entry {
+        private volatile List<Header> headers;
+        private final byte[] body;
+        private volatile long expiresAt;
+
+        private Entry(List<Header> headers, byte[] body, long expiresAt) {
+            this.headers = headers;
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh() {
+            return System.nanoTime() - expiresAt < 0;
+        }
+
+        /**
+         * @return true if a stale response can be revalidated
+         */
+        boolean hasValidators() {
+            return header("ETag") != null || header("Last-Modified") != null;
+        }
+
+        /**
+         * Makes the request conditional, so that the target only sends the response
+         * again if it has changed.
+         */
+        void addValidators(HttpRequestBase request) {
+            String etag = header("ETag");
+            if (etag != null) {
+                request.setHeader("If-None-Match", etag);
+            }
+            String lastModified = header("Last-Modified");
+            if (lastModified != null) {
+                request.setHeader("If-Modified-Since", lastModified);
+            }
+        }
+
+        /**
+         * @return true if the client already has this version of the response, as told
+         *         by its conditional request headers
+         */
+        boolean isNotModified(HttpServletRequest request) {
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            String etag = header("ETag");
+            if (ifNoneMatch != null) {
+                if (etag == null) {
+                    return false;
+                }
+                for (String tag : ifNoneMatch.split(",")) {
+                    // the weak tag of a compressed response matches as well
+                    if (tag.trim().equals("*") || ResponseCompression.weakMatch(tag, etag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            String ifModifiedSince = request.getHeader("If-Modified-Since");
+            String lastModified = header("Last-Modified");
+            return ifModifiedSince != null && ifModifiedSince.equals(lastModified);
+        }
+
+        @Nullable
+        private String header(String name) {
+            for (Header header : headers) {
+                if (header.getName().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the response to send to the client, as if it came from the target
+         */
+        HttpResponse toResponse(boolean notModified) {
+            BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                    notModified ? HttpStatus.SC_NOT_MODIFIED : HttpStatus.SC_OK, notModified ? "Not Modified" : "OK");
+            for (Header header : headers) {
+                if (notModified && (header.getName().equalsIgnoreCase(HeaderNames.CONTENT_LENGTH)
+                        || header.getName().equalsIgnoreCase("Content-Type"))) {
+                    continue;
+                }
+                response.addHeader(new BasicHeader(header.getName(), header.getValue()));
+            }
+            if (!notModified) {
+                response.setEntity(new ByteArrayEntity(body));
+            }
+            return response;
+        }
+
+        private int weight(String key) {
+            return body.length + key.length() * 2 + headers.size() * 64;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+/**
+ * Compresses on the fly the proxified responses which are not compressed by the
+ * targets, such as the WFS GML or GeoJSON responses and the capabilities
+ * documents.
+ * <p>
+ * A response is compressed with gzip or deflate, as accepted by the client,
+ * when its content type is one of {@code contentTypes} and its body is larger
+ * than {@code minSize} bytes, or of unknown length. The body is compressed
+ * chunk by chunk while streamed to the client, see {@link Encoder}.
+ * </p>
+ * <p>
+ * At most {@code maxConcurrent} responses are compressed at once, the responses
+ * beyond being sent as is, so that compression cannot take all the CPU of the
+ * proxy.
+ * </p>
+ */
+public class ResponseCompression {
+
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+
+    private static final String ENCODER_ATTRIBUTE = Encoder.class.getName();
+
+    private static final String ETAG = "ETag";
+
+    private final List<String> contentTypes = new ArrayList<>();
+    private final int minSize;
+    private final int level;
+    private final Semaphore permits;
+
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * @param contentTypes  the compressed content types: {@code type/subtype},
+     *                      {@code type/*} or {@code *+suffix}
+     * @param minSize       the minimum size of a compressed response body
+     * @param level         the compression level, from 1 (fastest) to 9 (smallest)
+     * @param maxConcurrent the maximum number of responses compressed at once
+     */
+    public ResponseCompression(Collection<String> contentTypes, int minSize, int level, int maxConcurrent) {
+        for (String contentType : contentTypes) {
+            this.contentTypes.add(contentType.trim().toLowerCase(Locale.ROOT));
+        }
+        this.minSize = minSize;
+        this.level = level;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * @return true if the response would be compressed for a client accepting it,
+     *         in which case it varies on {@code Accept-Encoding}
+     */
+    public boolean isCompressible(HttpServletRequest request, HttpResponse proxiedResponse) {
+        int statusCode = proxiedResponse.getStatusLine().getStatusCode();
+        HttpEntity entity = proxiedResponse.getEntity();
+        if (statusCode < 200 || statusCode >= 300 || statusCode == 204 || statusCode == 206 || entity == null
+                || "HEAD".equals(request.getMethod())) {
+            return false;
+        }
+        Header contentEncoding = proxiedResponse.getFirstHeader(CONTENT_ENCODING);
+        if (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding.getValue().trim())) {
+            return false;
+        }
+        for (Header header : proxiedResponse.getHeaders("Cache-Control")) {
+            if (header.getValue().toLowerCase(Locale.ROOT).contains("no-transform")) {
+                return false;
+            }
+        }
+        long length = entity.getContentLength();
+        if (length >= 0 && length < minSize) {
+            return false;
+        }
+        Header contentType = proxiedResponse.getFirstHeader("Content-Type");
+        return contentType != null && isCompressibleType(contentType.getValue());
+    }
+
+    boolean isCompressibleType(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        String mimeType = (semicolon == -1 ? contentType : contentType.substring(0, semicolon)).trim()
+                .toLowerCase(Locale.ROOT);
+        for (String type : contentTypes) {
+            if (type.endsWith("/*") ? mimeType.startsWith(type.substring(0, type.length() - 1))
+                    : type.startsWith("*") ? mimeType.endsWith(type.substring(1)) : mimeType.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the encoding accepted by the client, preferring gzip, null if it only
+     *         accepts uncompressed responses
+     */
+    static @Nullable String acceptedEncoding(@Nullable String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        boolean any = false;
+        boolean gzipRefused = false;
+        boolean deflateRefused = false;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        refused = Float.parseFloat(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = !refused;
+                gzipRefused = refused;
+            } else if (coding.equals("deflate")) {
+                deflate = !refused;
+                deflateRefused = refused;
+            } else if (coding.equals("*")) {
+                any = !refused;
+            }
+        }
+        if (gzip || (any && !gzipRefused)) {
+            return "gzip";
+        }
+        if (deflate || (any && !deflateRefused)) {
+            return "deflate";
+        }
+        return null;
+    }
+
+    /**
+     * Starts compressing the response of a request, if accepted by the client and
+     * as long as fewer than {@code maxConcurrent} responses are being compressed.
+     * The encoder is then bound to the request until {@link #release}.
+     *
+     * @return the encoder of the response body, null if it has to be sent as is
+     */
+    public @Nullable Encoder start(HttpServletRequest request) {
+        String encoding = acceptedEncoding(request.getHeader(HeaderNames.ACCEPT_ENCODING));
+        if (encoding == null) {
+            return null;
+        }
+        if (!permits.tryAcquire()) {
+            skipped.increment();
+            return null;
+        }
+        compressed.increment();
+        Encoder encoder = new Encoder(this, encoding);
+        request.setAttribute(ENCODER_ATTRIBUTE, encoder);
+        return encoder;
+    }
+
+    /**
+     * @return the encoder of the response body of the request, null if sent as is
+     */
+    public static @Nullable Encoder encoder(HttpServletRequest request) {
+        return (Encoder) request.getAttribute(ENCODER_ATTRIBUTE);
+    }
+
+    /**
+     * Releases the encoder of the response of the request, if any, whether the
+     * response has been fully sent or not.
+     */
+    public static void release(HttpServletRequest request) {
+        Encoder encoder = encoder(request);
+        if (encoder != null) {
+            encoder.end();
+        }
+    }
+
+    /**
+     * Weakens the {@code ETag} of a response compressed by the proxy, the strong
+     * tag of the target standing for the uncompressed bytes only. A
+     * {@code 304 Not Modified} response gets the weak tag the client sent.
+     */
+    static void weakenETag(HttpServletRequest request, HttpServletResponse response, int statusCode,
+            boolean compressed) {
+        String etag = response.getHeader(ETAG);
+        if (etag == null || etag.startsWith("W/")) {
+            return;
+        }
+        if (compressed) {
+            response.setHeader(ETAG, "W/" + etag);
+            return;
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (statusCode == HttpServletResponse.SC_NOT_MODIFIED && ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                if (tag.trim().equals("W/" + etag)) {
+                    response.setHeader(ETAG, "W/" + etag);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the entity tags are equal, ignoring whether they are weak
+     *         ones
+     */
+    static boolean weakMatch(String tag, String other) {
+        return opaqueTag(tag).equals(opaqueTag(other));
+    }
+
+    private static String opaqueTag(String tag) {
+        tag = tag.trim();
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * @return the number of compressed responses
+     */
+    public long getCompressed() {
+        return compressed.sum();
+    }
+
+    /**
+     * @return the number of responses sent as is since too many responses were
+     *         being compressed
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return the number of bytes of the compressed responses, before compression
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return the number of bytes of the compressed responses, after compression
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Compresses a response body chunk by chunk. Not thread safe, the chunks being
+     * written in sequence.
+     */
+    public static final class Encoder {
+        private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0,
+                (byte) 0xff };
+        private static final byte[] EMPTY = new byte[0];
+
+        private final ResponseCompression compression;
+        private final String encoding;
+        private final boolean gzip;
+        private final Deflater deflater;
+        private final CRC32 crc;
+        private byte[] buffer = new byte[8192];
+        private boolean headerWritten;
+        private boolean finishing;
+        private boolean ended;
+
+        private Encoder(ResponseCompression compression, String encoding) {
+            this.compression = compression;
+            this.encoding = encoding;
+            this.gzip = encoding.equals("gzip");
+            this.deflater = new Deflater(compression.level, gzip);
+            this.crc = gzip ? new CRC32() : null;
+        }
+
+        /**
+         * @return the {@code Content-Encoding} of the compressed response
+         */
+        public String getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * @return the compressed bytes available once the chunk has been added, maybe
+         *         none as the compressor buffers its input
+         */
+        public byte[] encode(byte[] chunk, int offset, int length) {
+            if (length == 0) {
+                return header(EMPTY);
+            }
+            compression.bytesIn.add(length);
+            if (crc != null) {
+                crc.update(chunk, offset, length);
+            }
+            deflater.setInput(chunk, offset, length);
+            return header(deflate());
+        }
+
+        /**
+         * @return the last compressed bytes, once the whole body has been encoded
+         */
+        public byte[] finish() {
+            deflater.finish();
+            finishing = true;
+            byte[] last = deflate();
+            if (gzip) {
+                int crcValue = (int) crc.getValue();
+                int size = deflater.getTotalIn();
+                compression.bytesOut.add(8);
+                byte[] withTrailer = new byte[last.length + 8];
+                System.arraycopy(last, 0, withTrailer, 0, last.length);
+                for (int i = 0; i < 4; i++) {
+                    withTrailer[last.length + i] = (byte) (crcValue >> (8 * i));
+                    withTrailer[last.length + 4 + i] = (byte) (size >> (8 * i));
+                }
+                last = withTrailer;
+            }
+            last = header(last);
+            end();
+            return last;
+        }
+
+        private byte[] deflate() {
+            int length = 0;
+            while (finishing ? !deflater.finished() : !deflater.needsInput()) {
+                if (length == buffer.length) {
+                    byte[] larger = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    buffer = larger;
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (length == 0) {
+                return EMPTY;
+            }
+            compression.bytesOut.add(length);
+            byte[] out = new byte[length];
+            System.arraycopy(buffer, 0, out, 0, length);
+            return out;
+        }
+
+        private byte[] header(byte[] bytes) {
+            if (!gzip || headerWritten) {
+                return bytes;
+            }
+            headerWritten = true;
+            compression.bytesOut.add(GZIP_HEADER.length);
+            byte[] withHeader = new byte[GZIP_HEADER.length + bytes.length];
+            System.arraycopy(GZIP_HEADER, 0, withHeader, 0, GZIP_HEADER.length);
+            System.arraycopy(bytes, 0, withHeader, GZIP_HEADER.length, bytes.length);
+            return withHeader;
+        }
+
+        /**
+         * @return a stream compressing what is written to out, and finishing the
+         *         compression when closed
+         */
+        public OutputStream wrap(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(encode(b, off, len));
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        if (!ended) {
+                            out.write(finish());
+                        }
+                        out.flush();
+                    } finally {
+                        end();
+                        out.close();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Frees the compressor, whether the whole body has been encoded or not.
+         */
+        public void end() {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            deflater.end();
+            compression.permits.release();
+        }
+    }
+}
@@ -20,12 +20,14 @@
 package org.georchestra.security;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
@@ -37,11 +39,11 @@ import javax.xml.xpath.XPathFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.georchestra.security.SecurityRuleIndex.Rule;
 import org.springframework.security.access.ConfigAttribute;
 import org.springframework.security.access.SecurityConfig;
 import org.springframework.security.web.FilterInvocation;
 import org.springframework.security.web.access.intercept.FilterInvocationSecurityMetadataSource;
-import org.springframework.security.web.util.matcher.RegexRequestMatcher;
 import org.springframework.security.web.util.matcher.RequestMatcher;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
@@ -55,6 +57,12 @@ import org.w3c.dom.NodeList;
  * Spring security docs warns users who want to achieve this to think twice or
  * more before doing so, but we do need to have it separated from the webapp.
  *
+ * The rules are compiled into a {@link SecurityRuleIndex}, so that finding the
+ * first rule matching a request does not test each of them. When
+ * {@code reloadInterval} is positive, the datadir security-mappings.xml file is
+ * checked for changes at most every {@code reloadInterval} seconds, and the
+ * rules are replaced at once when it has been modified.
+ *
  * @author pmauduit
  */
 
@@ -62,14 +70,22 @@ public class SecurityProxyMetadataSource implements FilterInvocationSecurityMeta
 
     private static final Log LOGGER = LogFactory.getLog(SecurityProxyMetadataSource.class.getPackage().getName());
 
-    private Map<RequestMatcher, Collection<ConfigAttribute>> requestMap = new LinkedHashMap<RequestMatcher, Collection<ConfigAttribute>>();
+    private volatile Map<RequestMatcher, Collection<ConfigAttribute>> requestMap = new LinkedHashMap<RequestMatcher, Collection<ConfigAttribute>>();
+    private volatile SecurityRuleIndex rules = new SecurityRuleIndex(new ArrayList<Rule>(), 0);
+
+    private int cacheSize = 1000;
+    private int reloadInterval = 0;
+
+    private File securityMappings;
+    private volatile long securityMappingsLastModified;
+    private final AtomicLong nextReloadCheck = new AtomicLong();
 
     public void setRequestMap(Map map) {
-        requestMap.clear();
+        List<Rule> rules = new ArrayList<Rule>();
         for (String entry : (Set<String>) map.keySet()) {
-            this.requestMap.put(new RegexRequestMatcher(entry, null),
-                    SecurityConfig.createListFromCommaDelimitedString(map.get(entry).toString()));
+            rules.add(new Rule(entry, SecurityConfig.createListFromCommaDelimitedString(map.get(entry).toString())));
         }
+        install(rules);
     }
 
     @PostConstruct
@@ -97,14 +113,25 @@ public class SecurityProxyMetadataSource implements FilterInvocationSecurityMeta
         }
 
         try {
-            requestMap.clear();
+            long lastModified = securityMappings.lastModified();
             loadSecurityRules(securityMappings);
+            this.securityMappings = securityMappings;
+            this.securityMappingsLastModified = lastModified;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
     private void loadSecurityRules(File f) throws Exception {
+        List<Rule> rules = parseSecurityRules(f);
+        requestMap.clear();
+        for (Rule rule : rules) {
+            requestMap.put(rule.matcher, rule.attributes);
+        }
+        this.rules = new SecurityRuleIndex(rules, cacheSize);
+    }
+
+    private List<Rule> parseSecurityRules(File f) throws Exception {
         DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
         DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
         Document doc = dBuilder.parse(f);
@@ -112,14 +139,49 @@ public class SecurityProxyMetadataSource implements FilterInvocationSecurityMeta
         XPath xPath = XPathFactory.newInstance().newXPath();
         NodeList l = (NodeList) xPath.compile("//http/intercept-url").evaluate(doc, XPathConstants.NODESET);
 
+        List<Rule> rules = new ArrayList<Rule>(l.getLength());
         for (int i = 0; i < l.getLength(); ++i) {
-            RequestMatcher rm = new RegexRequestMatcher(
-                    l.item(i).getAttributes().getNamedItem("pattern").getTextContent(), null);
             List<ConfigAttribute> lca = SecurityConfig.createListFromCommaDelimitedString(
                     l.item(i).getAttributes().getNamedItem("access").getTextContent());
-            requestMap.put(rm, lca);
+            rules.add(new Rule(l.item(i).getAttributes().getNamedItem("pattern").getTextContent(), lca));
+        }
+        return rules;
+    }
+
+    /**
+     * Replaces the rules at once.
+     */
+    private void install(List<Rule> rules) {
+        Map<RequestMatcher, Collection<ConfigAttribute>> map = new LinkedHashMap<RequestMatcher, Collection<ConfigAttribute>>();
+        for (Rule rule : rules) {
+            map.put(rule.matcher, rule.attributes);
         }
+        this.requestMap = map;
+        this.rules = new SecurityRuleIndex(rules, cacheSize);
+    }
 
+    /**
+     * Reloads the security mappings if the file has been modified since the last
+     * check. The current rules are kept if the file cannot be parsed.
+     */
+    private void reloadIfModified() {
+        long now = System.currentTimeMillis();
+        long next = nextReloadCheck.get();
+        if (now < next || !nextReloadCheck.compareAndSet(next, now + reloadInterval * 1000L)) {
+            return;
+        }
+        long lastModified = securityMappings.lastModified();
+        if (lastModified == securityMappingsLastModified) {
+            return;
+        }
+        securityMappingsLastModified = lastModified;
+        try {
+            List<Rule> rules = parseSecurityRules(securityMappings);
+            install(rules);
+            LOGGER.info("Reloaded " + rules.size() + " security rules from " + securityMappings.getPath());
+        } catch (Exception e) {
+            LOGGER.error("Unable to reload " + securityMappings.getPath() + ", keeping the current security rules", e);
+        }
     }
 
     public Collection<ConfigAttribute> getAllConfigAttributes() {
@@ -134,16 +196,31 @@ public class SecurityProxyMetadataSource implements FilterInvocationSecurityMeta
     }
 
     public Collection<ConfigAttribute> getAttributes(Object object) {
-        final HttpServletRequest request = ((FilterInvocation) object).getRequest();
-        for (Map.Entry<RequestMatcher, Collection<ConfigAttribute>> entry : requestMap.entrySet()) {
-            if (entry.getKey().matches(request)) {
-                return entry.getValue();
-            }
+        if (securityMappings != null && reloadInterval > 0) {
+            reloadIfModified();
         }
-        return null;
+        final HttpServletRequest request = ((FilterInvocation) object).getRequest();
+        return rules.getAttributes(request);
     }
 
     public boolean supports(Class<?> clazz) {
         return FilterInvocation.class.isAssignableFrom(clazz);
     }
+
+    /**
+     * @param cacheSize the maximum number of URLs whose attributes are cached, 0 to
+     *                  disable the cache
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @param reloadInterval the minimum time, in seconds, between two checks of the
+     *                       modification of the datadir security mappings, 0 to
+     *                       disable their reloading
+     */
+    public void setReloadInterval(int reloadInterval) {
+        this.reloadInterval = reloadInterval;
+    }
 }
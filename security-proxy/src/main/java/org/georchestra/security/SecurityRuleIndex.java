@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.security.access.ConfigAttribute;
+import org.springframework.security.web.util.matcher.RegexRequestMatcher;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Immutable index of the security rules, finding the first rule matching a
+ * request as {@link RegexRequestMatcher}s tested in order would.
+ * <p>
+ * Each rule starting with a literal prefix is stored in a trie under that
+ * prefix, so that only the rules whose prefix starts the requested URL are
+ * tested. The rules without literal prefix, such as {@code .*\?.*login.*}, are
+ * merged into a single alternation whose matching group gives the first of them
+ * matching the URL. The attributes of the URLs without query string are kept in
+ * a bounded cache.
+ * </p>
+ */
+class SecurityRuleIndex {
+
+    private static final Collection<ConfigAttribute> NO_ATTRIBUTES = Collections.emptyList();
+
+    /** patterns which cannot be shifted into a merged pattern */
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[0-9]|\\\\k<");
+
+    static final class Rule {
+        final String pattern;
+        final Pattern compiled;
+        final RegexRequestMatcher matcher;
+        final Collection<ConfigAttribute> attributes;
+
+        Rule(String pattern, Collection<ConfigAttribute> attributes) {
+            this.pattern = pattern;
+            this.compiled = Pattern.compile(pattern);
+            this.matcher = new RegexRequestMatcher(pattern, null);
+            this.attributes = attributes;
+        }
+    }
+
+    private final Rule[] rules;
+    private final Node trie = new Node();
+
+    private Pattern fallback;
+    /** group of each merged rule in the fallback pattern */
+    private int[] fallbackGroups;
+    /** index of each merged rule */
+    private int[] fallbackRules;
+
+    private final Cache<String, Collection<ConfigAttribute>> cache;
+
+    SecurityRuleIndex(List<Rule> rules, int cacheSize) {
+        this.rules = rules.toArray(new Rule[rules.size()]);
+        List<Integer> unprefixed = new ArrayList<>();
+        for (int i = 0; i < this.rules.length; i++) {
+            String prefix = literalPrefix(this.rules[i].pattern);
+            if (prefix.isEmpty() && !BACK_REFERENCE.matcher(this.rules[i].pattern).find()) {
+                unprefixed.add(i);
+            } else {
+                trie.add(prefix, i);
+            }
+        }
+        mergeUnprefixed(unprefixed);
+        this.cache = cacheSize > 0 ? CacheBuilder.newBuilder().maximumSize(cacheSize).build() : null;
+    }
+
+    private void mergeUnprefixed(List<Integer> unprefixed) {
+        if (unprefixed.isEmpty()) {
+            return;
+        }
+        StringBuilder merged = new StringBuilder();
+        int[] groups = new int[unprefixed.size()];
+        int[] indexes = new int[unprefixed.size()];
+        int group = 1;
+        for (int i = 0; i < unprefixed.size(); i++) {
+            Rule rule = rules[unprefixed.get(i)];
+            if (i > 0) {
+                merged.append('|');
+            }
+            merged.append('(').append(rule.pattern).append(')');
+            groups[i] = group;
+            indexes[i] = unprefixed.get(i);
+            group += 1 + rule.compiled.matcher("").groupCount();
+        }
+        try {
+            fallback = Pattern.compile(merged.toString());
+            fallbackGroups = groups;
+            fallbackRules = indexes;
+        } catch (PatternSyntaxException e) {
+            // e.g. a named group defined by several rules, test them one by one
+            for (int index : indexes) {
+                trie.add("", index);
+            }
+        }
+    }
+
+    int size() {
+        return rules.length;
+    }
+
+    /**
+     * @return the attributes of the first rule matching the request, null if none
+     *         matches
+     */
+    Collection<ConfigAttribute> getAttributes(HttpServletRequest request) {
+        String query = request.getQueryString();
+        String url = url(request, query);
+        boolean cacheable = cache != null && query == null && url.length() <= 512;
+        if (cacheable) {
+            Collection<ConfigAttribute> cached = cache.getIfPresent(url);
+            if (cached != null) {
+                return cached == NO_ATTRIBUTES ? null : cached;
+            }
+        }
+        Collection<ConfigAttribute> attributes = getAttributes(url);
+        if (cacheable) {
+            cache.put(url, attributes == null ? NO_ATTRIBUTES : attributes);
+        }
+        return attributes;
+    }
+
+    /**
+     * Builds the URL matched by the rules, as {@link RegexRequestMatcher} does.
+     */
+    private static String url(HttpServletRequest request, String query) {
+        String url = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        if (pathInfo == null && query == null) {
+            return url;
+        }
+        StringBuilder sb = new StringBuilder(url);
+        if (pathInfo != null) {
+            sb.append(pathInfo);
+        }
+        if (query != null) {
+            sb.append('?').append(query);
+        }
+        return sb.toString();
+    }
+
+    Collection<ConfigAttribute> getAttributes(String url) {
+        int first = Integer.MAX_VALUE;
+        if (fallback != null) {
+            Matcher m = fallback.matcher(url);
+            if (m.matches()) {
+                for (int i = 0; i < fallbackGroups.length; i++) {
+                    if (m.group(fallbackGroups[i]) != null) {
+                        first = fallbackRules[i];
+                        break;
+                    }
+                }
+            }
+        }
+        // the prefixed rules only win if they come before the first unprefixed
+        // rule matching
+        for (int candidate : trie.find(url)) {
+            if (candidate > first) {
+                break;
+            }
+            if (rules[candidate].compiled.matcher(url).matches()) {
+                return rules[candidate].attributes;
+            }
+        }
+        return first == Integer.MAX_VALUE ? null : rules[first].attributes;
+    }
+
+    /**
+     * @return the literal characters any string matching the regular expression
+     *         starts with
+     */
+    static String literalPrefix(String regex) {
+        if (regex.startsWith("(?") || hasTopLevelAlternation(regex)) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int length = regex.length();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < length) {
+            char c = regex.charAt(i);
+            char literal;
+            int next;
+            if (c == '\\') {
+                if (i + 1 >= length || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    // character class, back-reference or quotation
+                    break;
+                }
+                literal = regex.charAt(i + 1);
+                next = i + 2;
+            } else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+                next = i + 1;
+            }
+            if (next < length && "*?{".indexOf(regex.charAt(next)) >= 0) {
+                // optional or repeated character
+                break;
+            }
+            prefix.append(literal);
+            if (next < length && regex.charAt(next) == '+') {
+                break;
+            }
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    private static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                }
+            } else if (c == '[') {
+                inClass = true;
+                // a leading ] is part of the class
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Node {
+        final Map<Character, Node> children = new HashMap<>(4);
+        int[] rules = new int[0];
+
+        void add(String prefix, int rule) {
+            Node node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+            }
+            node.rules = Arrays.copyOf(node.rules, node.rules.length + 1);
+            node.rules[node.rules.length - 1] = rule;
+        }
+
+        /**
+         * @return the sorted indexes of the rules whose prefix starts the URL
+         */
+        int[] find(String url) {
+            int[] found = rules;
+            Node node = this;
+            for (int i = 0; i < url.length(); i++) {
+                node = node.children.get(url.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                if (node.rules.length > 0) {
+                    int[] merged = Arrays.copyOf(found, found.length + node.rules.length);
+                    System.arraycopy(node.rules, 0, merged, found.length, node.rules.length);
+                    found = merged;
+                }
+            }
+            if (found != rules) {
+                Arrays.sort(found);
+            }
+            return found;
+        }
+    }
+}
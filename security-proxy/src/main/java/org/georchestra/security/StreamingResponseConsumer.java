@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Response consumer handing the proxified response over to the servlet thread
+ * as soon as its headers are received, the body being then streamed chunk by
+ * chunk.
+ * <p>
+ * The content decoded by the I/O reactor is copied into pooled buffers which
+ * are queued as is and written to the servlet response by
+ * {@link HttpEntity#writeTo(OutputStream)}, saving the per chunk allocations
+ * and the pipe of the blocking copy. It is not zero-copy: the servlet API only
+ * writes byte arrays, so the content of heap buffers is handed over as is and
+ * the one of direct buffers copied once more. When the client is slower than
+ * the remote server and {@code highWatermark} chunks are waiting in the queue,
+ * the input of the remote connection is suspended, and requested again once the
+ * queue has been drained down to {@code lowWatermark} chunks.
+ * </p>
+ * <p>
+ * In the non-blocking proxying mode, the chunks are consumed through
+ * {@link #pollChunk()} instead, the {@link #setContentListener(Runnable)
+ * content listener} being notified whenever new content is available.
+ * </p>
+ */
+class StreamingResponseConsumer extends AbstractAsyncResponseConsumer<Boolean> {
+
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    private final CompletableFuture<HttpResponse> future;
+    private final ByteBufferPool bufferPool;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final long readTimeoutMillis;
+
+    private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<>();
+
+    private HttpResponse httpResponse;
+    private ByteBuffer current;
+
+    private volatile Runnable contentListener;
+    private volatile boolean finished;
+    private volatile IOControl ioControl;
+    private volatile boolean completed;
+    private volatile boolean aborted;
+    private volatile Exception failure;
+
+    /** guarded by this */
+    private boolean inputSuspended;
+
+    /**
+     * @param future            completed with the response once its headers are
+     *                          received
+     * @param bufferPool        pool providing the buffers the content is read into
+     * @param highWatermark     number of queued chunks above which the remote input
+     *                          is suspended
+     * @param readTimeoutMillis maximum time to wait for the next chunk of content
+     */
+    StreamingResponseConsumer(CompletableFuture<HttpResponse> future, ByteBufferPool bufferPool, int highWatermark,
+            long readTimeoutMillis) {
+        this.future = future;
+        this.bufferPool = bufferPool;
+        this.highWatermark = Math.max(1, highWatermark);
+        this.lowWatermark = this.highWatermark / 2;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Sets the callback notified, from the I/O reactor thread, when new chunks have
+     * been queued or when the response is complete.
+     */
+    void setContentListener(Runnable contentListener) {
+        this.contentListener = contentListener;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse httpResponse) throws HttpException, IOException {
+        this.httpResponse = httpResponse;
+        if (httpResponse.getEntity() == null) {
+            future.complete(httpResponse);
+        }
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+        httpResponse.setEntity(new StreamingEntity(contentType));
+        future.complete(httpResponse);
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+        this.ioControl = ioctrl;
+        if (aborted) {
+            throw new IOException("Response aborted by the client");
+        }
+        int read;
+        do {
+            if (current == null) {
+                current = bufferPool.acquire();
+            }
+            read = decoder.read(current);
+            if (!current.hasRemaining()) {
+                enqueueCurrent();
+            }
+        } while (read > 0 && chunks.size() < highWatermark);
+
+        if (current != null && current.position() > 0) {
+            enqueueCurrent();
+        }
+        synchronized (this) {
+            if (!inputSuspended && chunks.size() >= highWatermark && !decoder.isCompleted()) {
+                inputSuspended = true;
+                ioctrl.suspendInput();
+            }
+        }
+        notifyContentListener();
+    }
+
+    private void notifyContentListener() {
+        Runnable listener = this.contentListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private void enqueueCurrent() {
+        current.flip();
+        chunks.offer(current);
+        current = null;
+    }
+
+    @Override
+    protected Boolean buildResult(HttpContext httpContext) throws Exception {
+        completed = true;
+        return Boolean.TRUE;
+    }
+
+    @Override
+    protected void releaseResources() {
+        if (current != null) {
+            if (completed && current.position() > 0) {
+                enqueueCurrent();
+            } else {
+                bufferPool.release(current);
+                current = null;
+            }
+        }
+        if (!completed) {
+            failure = getException() == null ? new IOException("Response cancelled") : getException();
+            future.completeExceptionally(failure);
+        }
+        chunks.offer(END_OF_STREAM);
+        notifyContentListener();
+    }
+
+    /**
+     * Takes the next chunk of content without waiting. The returned chunk has to be
+     * given back through {@link #releaseChunk(ByteBuffer)} once written.
+     *
+     * @return the next chunk, or null if none is available yet or if the whole
+     *         content has been read, see {@link #isFinished()}
+     * @throws IOException if the response failed
+     */
+    ByteBuffer pollChunk() throws IOException {
+        ByteBuffer chunk = chunks.poll();
+        if (chunk == null) {
+            return null;
+        }
+        if (chunk == END_OF_STREAM) {
+            chunks.offer(END_OF_STREAM);
+            finished = true;
+            if (failure != null) {
+                throw new IOException("Error receiving the proxified response content", failure);
+            }
+            return null;
+        }
+        resumeInput();
+        return chunk;
+    }
+
+    /**
+     * @return true once {@link #pollChunk()} has reached the end of the content
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    void releaseChunk(ByteBuffer chunk) {
+        bufferPool.release(chunk);
+    }
+
+    /**
+     * Waits for the next chunk of content.
+     *
+     * @return the next chunk, or null if the whole content has been read
+     * @throws IOException if the response failed, or if no content has been
+     *                     received for {@code readTimeoutMillis}
+     */
+    private ByteBuffer nextChunk() throws IOException {
+        ByteBuffer chunk;
+        try {
+            chunk = chunks.poll(readTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("Interrupted while waiting for the proxified response content");
+        }
+        if (chunk == null) {
+            abort();
+            throw new SocketTimeoutException("No content received for " + readTimeoutMillis + " ms");
+        }
+        if (chunk == END_OF_STREAM) {
+            // let subsequent reads see the end of stream too
+            chunks.offer(END_OF_STREAM);
+            if (failure != null) {
+                throw new IOException("Error receiving the proxified response content", failure);
+            }
+            return null;
+        }
+        resumeInput();
+        return chunk;
+    }
+
+    private synchronized void resumeInput() {
+        if (inputSuspended && chunks.size() <= lowWatermark) {
+            inputSuspended = false;
+            ioControl.requestInput();
+        }
+    }
+
+    /**
+     * Stops receiving the response: the buffered chunks are released and the next
+     * content notification makes the exchange fail, closing the remote connection.
+     */
+    void abort() {
+        if (completed || aborted) {
+            drain();
+            return;
+        }
+        aborted = true;
+        drain();
+        synchronized (this) {
+            inputSuspended = false;
+            if (ioControl != null) {
+                ioControl.requestInput();
+            }
+        }
+    }
+
+    private void drain() {
+        ByteBuffer chunk;
+        while ((chunk = chunks.poll()) != null) {
+            if (chunk == END_OF_STREAM) {
+                chunks.offer(END_OF_STREAM);
+                return;
+            }
+            bufferPool.release(chunk);
+        }
+    }
+
+    private class StreamingEntity extends AbstractHttpEntity {
+
+        StreamingEntity(ContentType contentType) {
+            if (contentType != null) {
+                setContentType(contentType.toString());
+            }
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return !completed || !chunks.isEmpty();
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            byte[] transfer = null;
+            try {
+                ByteBuffer chunk;
+                while ((chunk = nextChunk()) != null) {
+                    try {
+                        if (chunk.hasArray()) {
+                            outstream.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                        } else {
+                            // direct buffers have to be copied to be written to an OutputStream
+                            if (transfer == null) {
+                                transfer = new byte[bufferPool.getBufferSize()];
+                            }
+                            while (chunk.hasRemaining()) {
+                                int length = Math.min(transfer.length, chunk.remaining());
+                                chunk.get(transfer, 0, length);
+                                outstream.write(transfer, 0, length);
+                            }
+                        }
+                    } finally {
+                        bufferPool.release(chunk);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new ChunksInputStream();
+        }
+    }
+
+    private class ChunksInputStream extends InputStream {
+
+        private ByteBuffer chunk;
+        private boolean endOfStream;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (endOfStream) {
+                return -1;
+            }
+            if (chunk == null || !chunk.hasRemaining()) {
+                bufferPool.release(chunk);
+                chunk = nextChunk();
+                if (chunk == null) {
+                    endOfStream = true;
+                    return -1;
+                }
+            }
+            int length = Math.min(len, chunk.remaining());
+            chunk.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            bufferPool.release(chunk);
+            chunk = null;
+            if (!endOfStream) {
+                endOfStream = true;
+                abort();
+            }
+        }
+    }
+}
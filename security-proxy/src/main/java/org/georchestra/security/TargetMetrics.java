@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latencies, throughput and outcomes of the requests proxified to a target,
+ * updated without locking by the {@link ProxyMetrics.Sample samples}.
+ * <p>
+ * The time to first byte is measured from the moment the request is sent to the
+ * target, or received by the proxy when it is not sent (e.g. for a cached
+ * response), to the moment the response status and headers are received. The
+ * duration is measured from the moment the request is received by the proxy to
+ * the moment the response has been fully sent to the client: the difference
+ * between both is spent in the proxy or in sending the response body.
+ * </p>
+ */
+public class TargetMetrics implements TargetMetricsMBean {
+
+    private final String target;
+
+    final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    final LatencyHistogram duration = new LatencyHistogram();
+
+    final LongAdder requests = new LongAdder();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final LongAdder failures = new LongAdder();
+    /** by status class, 1 for 1xx to 5 for 5xx */
+    private final LongAdder[] responses = new LongAdder[6];
+    final LongAdder requestBytes = new LongAdder();
+    final LongAdder responseBytes = new LongAdder();
+
+    TargetMetrics(String target) {
+        this.target = target;
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    void onStatus(int status) {
+        int statusClass = status / 100;
+        if (statusClass >= 1 && statusClass <= 5) {
+            responses[statusClass].increment();
+        }
+    }
+
+    /**
+     * @param statusClass 1 for 1xx to 5 for 5xx
+     * @return the number of responses of this status class
+     */
+    public long getResponses(int statusClass) {
+        return responses[statusClass].sum();
+    }
+
+    LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    LatencyHistogram getDuration() {
+        return duration;
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000d;
+    }
+
+    private static double mean(LatencyHistogram histogram) {
+        long count = histogram.getCount();
+        return count == 0 ? 0 : millis(histogram.getSum()) / count;
+    }
+
+    @Override
+    public String getTarget() {
+        return target;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getResponses1xx() {
+        return getResponses(1);
+    }
+
+    @Override
+    public long getResponses2xx() {
+        return getResponses(2);
+    }
+
+    @Override
+    public long getResponses3xx() {
+        return getResponses(3);
+    }
+
+    @Override
+    public long getResponses4xx() {
+        return getResponses(4);
+    }
+
+    @Override
+    public long getResponses5xx() {
+        return getResponses(5);
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+
+    @Override
+    public double getTimeToFirstByteMean() {
+        return mean(timeToFirstByte);
+    }
+
+    @Override
+    public double getTimeToFirstByte50thPercentile() {
+        return millis(timeToFirstByte.getPercentile(0.5));
+    }
+
+    @Override
+    public double getTimeToFirstByte95thPercentile() {
+        return millis(timeToFirstByte.getPercentile(0.95));
+    }
+
+    @Override
+    public double getTimeToFirstByte99thPercentile() {
+        return millis(timeToFirstByte.getPercentile(0.99));
+    }
+
+    @Override
+    public double getTimeToFirstByteMax() {
+        return millis(timeToFirstByte.getMax());
+    }
+
+    @Override
+    public double getDurationMean() {
+        return mean(duration);
+    }
+
+    @Override
+    public double getDuration50thPercentile() {
+        return millis(duration.getPercentile(0.5));
+    }
+
+    @Override
+    public double getDuration95thPercentile() {
+        return millis(duration.getPercentile(0.95));
+    }
+
+    @Override
+    public double getDuration99thPercentile() {
+        return millis(duration.getPercentile(0.99));
+    }
+
+    @Override
+    public double getDurationMax() {
+        return millis(duration.getMax());
+    }
+}
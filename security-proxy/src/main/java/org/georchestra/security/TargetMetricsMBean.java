@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+/**
+ * The metrics of a proxy target, as exposed over JMX. Durations are in
+ * milliseconds.
+ */
+public interface TargetMetricsMBean {
+
+    String getTarget();
+
+    long getRequests();
+
+    int getInFlight();
+
+    long getFailures();
+
+    long getResponses1xx();
+
+    long getResponses2xx();
+
+    long getResponses3xx();
+
+    long getResponses4xx();
+
+    long getResponses5xx();
+
+    long getRequestBytes();
+
+    long getResponseBytes();
+
+    double getTimeToFirstByteMean();
+
+    double getTimeToFirstByte50thPercentile();
+
+    double getTimeToFirstByte95thPercentile();
+
+    double getTimeToFirstByte99thPercentile();
+
+    double getTimeToFirstByteMax();
+
+    double getDurationMean();
+
+    double getDuration50thPercentile();
+
+    double getDuration95thPercentile();
+
+    double getDuration99thPercentile();
+
+    double getDurationMax();
+}
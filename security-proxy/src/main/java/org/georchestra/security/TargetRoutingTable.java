@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Immutable view of the proxy targets, built once whenever the targets are
+ * configured so that the requests are routed without parsing the target URLs
+ * again:
+ * <ul>
+ * <li>the first segment of the request path gives the {@link Route} of the
+ * target,</li>
+ * <li>each route holds the parsed target URL, and the base URI used to rewrite
+ * the Location headers,</li>
+ * <li>a trie of the target path segments tells whether a path is protected by
+ * the proxy.</li>
+ * </ul>
+ */
+class TargetRoutingTable {
+
+    private static final Log logger = LogFactory.getLog(TargetRoutingTable.class.getPackage().getName());
+
+    static final TargetRoutingTable EMPTY = new TargetRoutingTable(Collections.<String, Route>emptyMap(),
+            new PathNode());
+
+    /**
+     * A target, as configured in the targets mapping.
+     */
+    static final class Route {
+        final String name;
+        final URL url;
+        /** the target URL without trailing slash, to append the request path to */
+        final String base;
+        /** the path of the target URL without trailing slash */
+        final String basePath;
+        /** null if the target URL is not a valid URI */
+        final URI baseURI;
+        final String baseURIString;
+
+        Route(String name, String target) throws MalformedURLException {
+            this.name = name;
+            this.url = new URL(target);
+            this.base = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+            String path = url.getPath();
+            this.basePath = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+            URI uri = null;
+            try {
+                uri = new URI(target);
+            } catch (URISyntaxException e) {
+                logger.info("Target " + name + " is not a valid URI, its Location headers will be left untouched", e);
+            }
+            this.baseURI = uri;
+            this.baseURIString = uri == null ? null : uri.toString();
+        }
+    }
+
+    private final Map<String, Route> routes;
+    private final PathNode protectedPaths;
+
+    private TargetRoutingTable(Map<String, Route> routes, PathNode protectedPaths) {
+        this.routes = routes;
+        this.protectedPaths = protectedPaths;
+    }
+
+    /**
+     * @throws MalformedURLException if a target is not a valid URL
+     */
+    static TargetRoutingTable build(Map<String, String> targets) throws MalformedURLException {
+        if (targets == null || targets.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, Route> routes = new HashMap<>();
+        PathNode protectedPaths = new PathNode();
+        for (Map.Entry<String, String> target : targets.entrySet()) {
+            Route route = new Route(target.getKey(), target.getValue());
+            routes.put(route.name, route);
+            PathNode node = protectedPaths;
+            for (String segment : route.url.getPath().split("/")) {
+                if (!segment.isEmpty()) {
+                    node = node.children.computeIfAbsent(segment, s -> new PathNode());
+                }
+            }
+            node.terminal = true;
+        }
+        return new TargetRoutingTable(routes, protectedPaths);
+    }
+
+    Route getRoute(String name) {
+        return routes.get(name);
+    }
+
+    /**
+     * @return the route of the target named by the first segment of the request
+     *         path, which has to start with a slash, null if there is none
+     */
+    Route findRoute(String requestURI) {
+        int start = requestURI.startsWith("/") ? 1 : 0;
+        int slash = requestURI.indexOf('/', start);
+        return routes.get(slash == -1 ? requestURI.substring(start) : requestURI.substring(start, slash));
+    }
+
+    /**
+     * @return the route of the target named by the first non empty segment of the
+     *         request path, null if there is none
+     */
+    Route findMatchingRoute(String requestURI) {
+        int start = 0;
+        while (start < requestURI.length() && requestURI.charAt(start) == '/') {
+            start++;
+        }
+        if (start == requestURI.length()) {
+            return null;
+        }
+        int slash = requestURI.indexOf('/', start);
+        return routes.get(slash == -1 ? requestURI.substring(start) : requestURI.substring(start, slash));
+    }
+
+    /**
+     * @return the path, starting with a slash, requested to the target found by
+     *         {@link #findRoute(String)}: the request path without its first
+     *         segment, trailing slashes being collapsed into one
+     */
+    static String targetPath(String requestURI) {
+        int start = requestURI.startsWith("/") ? 1 : 0;
+        int slash = requestURI.indexOf('/', start);
+        if (slash == -1) {
+            return "/";
+        }
+        int end = requestURI.length();
+        while (end > slash + 1 && requestURI.charAt(end - 1) == '/') {
+            end--;
+        }
+        StringBuilder path = new StringBuilder(end - slash + 1);
+        path.append('/').append(requestURI, slash + 1, end);
+        if (end < requestURI.length() && path.charAt(path.length() - 1) != '/') {
+            path.append('/');
+        }
+        return path.toString();
+    }
+
+    /**
+     * @return true if the path starts with the path of a target
+     */
+    boolean isProtected(String path) {
+        PathNode node = protectedPaths;
+        int start = 0;
+        int length = path.length();
+        while (!node.terminal) {
+            while (start < length && path.charAt(start) == '/') {
+                start++;
+            }
+            if (start == length) {
+                return false;
+            }
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = length;
+            }
+            node = node.children.get(path.substring(start, end));
+            if (node == null) {
+                return false;
+            }
+            start = end;
+        }
+        return true;
+    }
+
+    private static class PathNode {
+        final Map<String, PathNode> children = new HashMap<>(4);
+        boolean terminal;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import static org.springframework.web.bind.annotation.RequestMethod.DELETE;
+import static org.springframework.web.bind.annotation.RequestMethod.POST;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Lets the console drop the cached details of a user once it has been modified:
+ * <ul>
+ * <li>{@code DELETE /_admin/cache/users?username=<username>} invalidates one
+ * user,</li>
+ * <li>{@code DELETE /_admin/cache/users} invalidates all of them.</li>
+ * </ul>
+ * Only super users and the allowed addresses may call it, see
+ * {@link AdminAccess}.
+ */
+@Controller
+public class UserDetailsCacheController {
+
+    private static final Log logger = LogFactory.getLog(UserDetailsCacheController.class.getPackage().getName());
+
+    private LdapUserDetailsCache userDetailsCache;
+
+    private AdminAccess adminAccess = new AdminAccess();
+
+    @RequestMapping(value = "/_admin/cache/users", params = "username", method = { DELETE, POST })
+    public void invalidate(@RequestParam("username") String username, HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        if (!adminAccess.isAllowed(request, response)) {
+            return;
+        }
+        userDetailsCache.invalidate(username);
+        logger.info("Cached details of user " + username + " invalidated by " + request.getRemoteAddr());
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    @RequestMapping(value = "/_admin/cache/users", params = "!username", method = { DELETE, POST })
+    public void invalidateAll(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!adminAccess.isAllowed(request, response)) {
+            return;
+        }
+        userDetailsCache.invalidateAll();
+        logger.info("Cached details of all users invalidated by " + request.getRemoteAddr());
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    public void setUserDetailsCache(LdapUserDetailsCache userDetailsCache) {
+        this.userDetailsCache = userDetailsCache;
+    }
+
+    public void setAdminAccess(AdminAccess adminAccess) {
+        this.adminAccess = adminAccess;
+    }
+}
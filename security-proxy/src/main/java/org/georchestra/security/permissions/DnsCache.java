@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security.permissions;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Caches host name resolutions, so that permission checks do not wait for the
+ * DNS resolver on every request.
+ * <p>
+ * Successful resolutions are kept {@code positiveTtl}, failures
+ * {@code negativeTtl}, and at most {@code maxEntries} host names are cached. An
+ * entry used during the last quarter of its lifetime is resolved again in the
+ * background, so that frequently checked hosts never expire on the request
+ * path. A failed background resolution keeps the previous addresses until they
+ * expire.
+ * </p>
+ */
+public class DnsCache {
+
+    private static final Log logger = LogFactory.getLog(DnsCache.class.getPackage().getName());
+
+    private static volatile DnsCache defaultInstance;
+
+    private final long positiveTtl;
+    private final long negativeTtl;
+    private final Cache<String, Entry> entries;
+    private final ThreadPoolExecutor refresher;
+
+    /**
+     * Creates a cache keeping resolutions 60s, failures 10s, and up to 10000 host
+     * names.
+     */
+    public DnsCache() {
+        this(60, 10, TimeUnit.SECONDS, 10000);
+    }
+
+    public DnsCache(long positiveTtl, long negativeTtl, TimeUnit unit, int maxEntries) {
+        this.positiveTtl = unit.toNanos(positiveTtl);
+        this.negativeTtl = unit.toNanos(negativeTtl);
+        this.entries = CacheBuilder.newBuilder().maximumSize(maxEntries)
+                .expireAfterWrite(Math.max(this.positiveTtl, this.negativeTtl), TimeUnit.NANOSECONDS).build();
+        // a single refresh thread, stopped when idle; refreshes beyond the queue
+        // capacity are skipped and the entries just expire
+        this.refresher = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1024),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("security-proxy-dns-%d").build(),
+                new ThreadPoolExecutor.DiscardPolicy());
+        this.refresher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the cache used by the permissions which have not been given another
+     *         one
+     */
+    public static DnsCache getDefault() {
+        DnsCache instance = defaultInstance;
+        if (instance == null) {
+            synchronized (DnsCache.class) {
+                instance = defaultInstance;
+                if (instance == null) {
+                    instance = new DnsCache();
+                    defaultInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return the addresses of the host, in the order returned by the resolver
+     * @throws UnknownHostException if the host could not be resolved
+     */
+    public Set<InetAddress> resolve(String host) throws UnknownHostException {
+        final String key = host.toLowerCase(Locale.ROOT);
+        final long now = System.nanoTime();
+        Entry entry = entries.getIfPresent(key);
+        if (entry == null || now - entry.expiresAt >= 0) {
+            entry = load(key);
+            entries.put(key, entry);
+        } else if (entry.addresses != null && now - entry.refreshAt >= 0
+                && entry.refreshing.compareAndSet(false, true)) {
+            refresher.execute(() -> refresh(key));
+        }
+        if (entry.addresses == null) {
+            throw new UnknownHostException(host);
+        }
+        return entry.addresses;
+    }
+
+    private void refresh(String key) {
+        Entry entry = load(key);
+        if (entry.addresses != null) {
+            entries.put(key, entry);
+            return;
+        }
+        Entry previous = entries.getIfPresent(key);
+        if (previous != null) {
+            previous.refreshing.set(false);
+        }
+    }
+
+    private Entry load(String host) {
+        long loadedAt = System.nanoTime();
+        try {
+            return new Entry(ImmutableSet.copyOf(lookup(host)), loadedAt, positiveTtl);
+        } catch (UnknownHostException e) {
+            logger.debug("Unable to resolve " + host);
+            return new Entry(null, loadedAt, negativeTtl);
+        }
+    }
+
+    /**
+     * Resolves the host through the system resolver.
+     */
+    @VisibleForTesting
+    protected InetAddress[] lookup(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    public long getPositiveTtl(TimeUnit unit) {
+        return unit.convert(positiveTtl, TimeUnit.NANOSECONDS);
+    }
+
+    public long getNegativeTtl(TimeUnit unit) {
+        return unit.convert(negativeTtl, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of cached host names
+     */
+    public long size() {
+        return entries.size();
+    }
+
+    public void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    /**
+     * Stops the background refresh.
+     */
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    private static class Entry {
+        /** null if the host could not be resolved */
+        final Set<InetAddress> addresses;
+        final long refreshAt;
+        final long expiresAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(Set<InetAddress> addresses, long loadedAt, long ttl) {
+            this.addresses = addresses;
+            this.refreshAt = loadedAt + ttl - ttl / 4;
+            this.expiresAt = loadedAt + ttl;
+        }
+    }
+}
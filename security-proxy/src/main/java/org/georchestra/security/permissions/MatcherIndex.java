@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security.permissions;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds whether any of a list of {@link UriMatcher}s matches an URL without
+ * evaluating all of them.
+ * <p>
+ * Each matcher is indexed by its most selective criterion:
+ * <ul>
+ * <li>host: by the addresses of the host, re-resolved every positive TTL of the
+ * {@link DnsCache},</li>
+ * <li>network: in a prefix trie of the address bits,</li>
+ * <li>domain: all the domain patterns are merged into a single one, whose
+ * matching alternative tells the candidate matcher,</li>
+ * <li>port: by port number,</li>
+ * <li>any other matcher is evaluated for every URL.</li>
+ * </ul>
+ * The candidates found are then fully evaluated through
+ * {@link UriMatcher#matches(URL)}, so that the result is the same as walking
+ * the whole list.
+ * </p>
+ */
+final class MatcherIndex {
+
+    private static final Log logger = LogFactory.getLog(MatcherIndex.class.getPackage().getName());
+
+    /** domain patterns which cannot be shifted into a merged pattern */
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[0-9]|\\\\k<");
+
+    private final DnsCache dnsCache;
+    private final long hostTableTtl;
+
+    private final List<UriMatcher> hostMatchers = new ArrayList<>();
+    private volatile HostTable hostTable;
+
+    private final NetworkTrie networks = new NetworkTrie();
+
+    private final List<UriMatcher> domainMatchers = new ArrayList<>();
+    private Pattern domainPattern;
+    /** index of the group matching the domain of each domain matcher */
+    private int[] domainGroups;
+
+    private final Map<Integer, List<UriMatcher>> ports = new HashMap<>();
+    private final List<UriMatcher> others = new ArrayList<>();
+
+    MatcherIndex(List<UriMatcher> matchers, DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+        this.hostTableTtl = dnsCache.getPositiveTtl(TimeUnit.NANOSECONDS);
+        List<UriMatcher> domains = new ArrayList<>();
+        for (UriMatcher matcher : matchers) {
+            if (matcher.getHost() != null) {
+                hostMatchers.add(matcher);
+            } else if (matcher.getNetwork() != null && networks.add(matcher)) {
+                continue;
+            } else if (matcher.getDomain() != null && !BACK_REFERENCE.matcher(matcher.getDomain()).find()) {
+                domains.add(matcher);
+            } else if (matcher.getPort() != -1) {
+                ports.computeIfAbsent(matcher.getPort(), port -> new ArrayList<>()).add(matcher);
+            } else {
+                others.add(matcher);
+            }
+        }
+        compileDomains(domains);
+    }
+
+    private void compileDomains(List<UriMatcher> domains) {
+        if (domains.isEmpty()) {
+            return;
+        }
+        StringBuilder merged = new StringBuilder();
+        int[] groups = new int[domains.size()];
+        int group = 1;
+        for (int i = 0; i < domains.size(); i++) {
+            String domain = domains.get(i).getDomain();
+            if (i > 0) {
+                merged.append('|');
+            }
+            merged.append('(').append(domain).append(')');
+            groups[i] = group;
+            group += 1 + Pattern.compile(domain).matcher("").groupCount();
+        }
+        try {
+            domainPattern = Pattern.compile(merged.toString(), Pattern.CASE_INSENSITIVE);
+            domainGroups = groups;
+            domainMatchers.addAll(domains);
+        } catch (PatternSyntaxException e) {
+            // e.g. a named group defined by several patterns
+            logger.info("Unable to merge the domain patterns, evaluating them one by one: " + e.getMessage());
+            for (UriMatcher matcher : domains) {
+                if (matcher.getPort() != -1) {
+                    ports.computeIfAbsent(matcher.getPort(), port -> new ArrayList<>()).add(matcher);
+                } else {
+                    others.add(matcher);
+                }
+            }
+        }
+    }
+
+    boolean matches(URL url) {
+        Set<InetAddress> addresses = null;
+        if (!hostMatchers.isEmpty() || !networks.isEmpty()) {
+            try {
+                addresses = dnsCache.resolve(url.getHost());
+            } catch (UnknownHostException e) {
+                // neither host nor network matchers can match
+                addresses = Collections.emptySet();
+            }
+        }
+        if (!hostMatchers.isEmpty()) {
+            HostTable table = hostTable();
+            for (InetAddress address : addresses) {
+                if (anyMatches(table.matchers.get(address), url)) {
+                    return true;
+                }
+            }
+        }
+        if (!networks.isEmpty()) {
+            for (InetAddress address : addresses) {
+                if (anyMatches(networks.find(address), url)) {
+                    return true;
+                }
+            }
+        }
+        if (domainPattern != null && matchesDomain(url)) {
+            return true;
+        }
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        if (anyMatches(ports.get(port), url)) {
+            return true;
+        }
+        return anyMatches(others, url);
+    }
+
+    private boolean matchesDomain(URL url) {
+        Matcher m = domainPattern.matcher(url.getHost());
+        if (!m.matches()) {
+            return false;
+        }
+        for (int i = 0; i < domainGroups.length; i++) {
+            if (m.group(domainGroups[i]) != null) {
+                if (domainMatchers.get(i).matches(url)) {
+                    return true;
+                }
+                break;
+            }
+        }
+        // the first matching domain does not match the rest of the URL, other
+        // domains may match too
+        return anyMatches(domainMatchers, url);
+    }
+
+    private static boolean anyMatches(List<UriMatcher> matchers, URL url) {
+        if (matchers == null) {
+            return false;
+        }
+        for (UriMatcher matcher : matchers) {
+            if (matcher.matches(url)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the matchers by host address, resolved again once older than the
+     *         positive TTL of the DNS cache
+     */
+    private HostTable hostTable() {
+        HostTable table = hostTable;
+        if (table == null || System.nanoTime() - table.builtAt > hostTableTtl) {
+            synchronized (this) {
+                table = hostTable;
+                if (table == null || System.nanoTime() - table.builtAt > hostTableTtl) {
+                    table = new HostTable(hostMatchers);
+                    hostTable = table;
+                }
+            }
+        }
+        return table;
+    }
+
+    private static class HostTable {
+        final long builtAt = System.nanoTime();
+        final Map<InetAddress, List<UriMatcher>> matchers = new HashMap<>();
+
+        HostTable(List<UriMatcher> hostMatchers) {
+            for (UriMatcher matcher : hostMatchers) {
+                Set<InetAddress> addresses = matcher.currentHostNames();
+                if (addresses == null) {
+                    continue;
+                }
+                for (InetAddress address : addresses) {
+                    matchers.computeIfAbsent(address, a -> new ArrayList<>()).add(matcher);
+                }
+            }
+        }
+    }
+
+    /**
+     * Binary trie of the network prefixes, IPv4 and IPv6 networks being in distinct
+     * trees as they never match each other.
+     */
+    private static class NetworkTrie {
+        private final Node ipv4 = new Node();
+        private final Node ipv6 = new Node();
+        private boolean empty = true;
+
+        /**
+         * @return false if the network could not be parsed, the matcher being then left
+         *         to the other indexes
+         */
+        boolean add(UriMatcher matcher) {
+            String network = matcher.getNetwork();
+            int slash = network.indexOf('/');
+            byte[] address;
+            int bits;
+            try {
+                address = InetAddress.getByName(slash == -1 ? network : network.substring(0, slash)).getAddress();
+                bits = slash == -1 ? address.length * 8 : Integer.parseInt(network.substring(slash + 1));
+            } catch (UnknownHostException | NumberFormatException e) {
+                return false;
+            }
+            if (bits < 0 || bits > address.length * 8) {
+                return false;
+            }
+            Node node = address.length == 4 ? ipv4 : ipv6;
+            for (int i = 0; i < bits; i++) {
+                int bit = (address[i / 8] >> (7 - i % 8)) & 1;
+                if (node.children[bit] == null) {
+                    node.children[bit] = new Node();
+                }
+                node = node.children[bit];
+            }
+            if (node.matchers == null) {
+                node.matchers = new ArrayList<>();
+            }
+            node.matchers.add(matcher);
+            empty = false;
+            return true;
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        /**
+         * @return the matchers of all the networks containing the address
+         */
+        List<UriMatcher> find(InetAddress inetAddress) {
+            byte[] address = inetAddress.getAddress();
+            Node node = address.length == 4 ? ipv4 : ipv6;
+            List<UriMatcher> found = null;
+            for (int i = 0; node != null; i++) {
+                if (node.matchers != null) {
+                    if (found == null) {
+                        found = new ArrayList<>();
+                    }
+                    found.addAll(node.matchers);
+                }
+                if (i == address.length * 8) {
+                    break;
+                }
+                node = node.children[(address[i / 8] >> (7 - i % 8)) & 1];
+            }
+            return found;
+        }
+
+        private static class Node {
+            final Node[] children = new Node[2];
+            List<UriMatcher> matchers;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.io.InputStream;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -34,10 +35,20 @@ import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlElementRef;
 import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 
 /**
+ * Lists of {@link UriMatcher}s allowing or denying URLs.
+ * <p>
+ * {@link #init()} compiles each list into a {@link MatcherIndex}, and the
+ * decisions are cached by host, port and path, up to {@code decisionCacheSize}
+ * entries kept no longer than the DNS cache TTLs.
+ * </p>
+ *
  * @author Jesse on 8/15/2014.
  */
 @XmlRootElement(name = "permissions")
@@ -47,16 +58,43 @@ public class Permissions {
     private List<UriMatcher> denied = Lists.newArrayList();
     private boolean allowByDefault;
     private boolean initialized;
+    private DnsCache dnsCache = DnsCache.getDefault();
+    private int decisionCacheSize = 10000;
+
+    private volatile MatcherIndex allowedIndex;
+    private volatile MatcherIndex deniedIndex;
+    private volatile Cache<String, Boolean> decisions;
 
     public void setAllowed(List<UriMatcher> allowed) {
         this.allowed = allowed;
+        reset();
     }
 
     public void setDenied(List<UriMatcher> denied) {
         this.denied = denied;
+        reset();
     }
 
     public boolean isDenied(URL url) {
+        Cache<String, Boolean> decisions = this.decisions;
+        if (decisions == null) {
+            return evaluate(url);
+        }
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String path = url.getPath();
+        if (path.length() > 1024) {
+            return evaluate(url);
+        }
+        String key = url.getHost().toLowerCase() + ':' + port + path;
+        Boolean denied = decisions.getIfPresent(key);
+        if (denied == null) {
+            denied = evaluate(url);
+            decisions.put(key, denied);
+        }
+        return denied;
+    }
+
+    private boolean evaluate(URL url) {
         if (allowByDefault) {
             if (checkIfAllowed(url))
                 return false;
@@ -72,6 +110,10 @@ public class Permissions {
     }
 
     private boolean checkIfDenied(URL url) {
+        MatcherIndex index = this.deniedIndex;
+        if (index != null) {
+            return index.matches(url);
+        }
         for (UriMatcher uriMatcher : denied) {
             if (uriMatcher.matches(url)) {
                 return true;
@@ -81,6 +123,10 @@ public class Permissions {
     }
 
     private boolean checkIfAllowed(URL url) {
+        MatcherIndex index = this.allowedIndex;
+        if (index != null) {
+            return index.matches(url);
+        }
         for (UriMatcher uriMatcher : allowed) {
             if (uriMatcher.matches(url)) {
                 return true;
@@ -108,19 +154,75 @@ public class Permissions {
 
     public void setAllowByDefault(boolean allowByDefault) {
         this.allowByDefault = allowByDefault;
+        reset();
+    }
+
+    /**
+     * Falls back to walking the lists until the next {@link #init()}.
+     */
+    private void reset() {
+        allowedIndex = null;
+        deniedIndex = null;
+        decisions = null;
+    }
+
+    /**
+     * Sets the cache resolving the host names of the matchers and of the checked
+     * URLs.
+     */
+    @XmlTransient
+    public synchronized void setDnsCache(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+        for (UriMatcher uriMatcher : allowed) {
+            uriMatcher.setDnsCache(dnsCache);
+        }
+        for (UriMatcher uriMatcher : denied) {
+            uriMatcher.setDnsCache(dnsCache);
+        }
+        if (initialized) {
+            compile();
+        }
+    }
+
+    /**
+     * @param decisionCacheSize the maximum number of cached decisions, 0 to disable
+     *                          the cache
+     */
+    @XmlTransient
+    public synchronized void setDecisionCacheSize(int decisionCacheSize) {
+        this.decisionCacheSize = decisionCacheSize;
+        if (initialized) {
+            compile();
+        }
     }
 
     public synchronized void init() throws UnknownHostException {
         for (UriMatcher uriMatcher : allowed) {
+            uriMatcher.setDnsCache(dnsCache);
             uriMatcher.init();
         }
 
         for (UriMatcher uriMatcher : denied) {
+            uriMatcher.setDnsCache(dnsCache);
             uriMatcher.init();
         }
+        compile();
         initialized = true;
     }
 
+    private void compile() {
+        allowedIndex = new MatcherIndex(allowed, dnsCache);
+        deniedIndex = new MatcherIndex(denied, dnsCache);
+        if (decisionCacheSize > 0) {
+            long ttl = Math.min(dnsCache.getPositiveTtl(TimeUnit.NANOSECONDS),
+                    dnsCache.getNegativeTtl(TimeUnit.NANOSECONDS));
+            decisions = CacheBuilder.newBuilder().maximumSize(decisionCacheSize)
+                    .expireAfterWrite(ttl, TimeUnit.NANOSECONDS).build();
+        } else {
+            decisions = null;
+        }
+    }
+
     public synchronized boolean isInitialized() {
         return this.initialized;
     }
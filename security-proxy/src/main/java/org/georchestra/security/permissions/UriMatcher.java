@@ -22,7 +22,7 @@ package org.georchestra.security.permissions;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.util.HashSet;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import javax.xml.bind.annotation.XmlAccessType;
@@ -32,8 +32,6 @@ import javax.xml.bind.annotation.XmlRootElement;
 
 import org.springframework.security.web.util.matcher.IpAddressMatcher;
 
-import com.google.common.collect.Sets;
-
 /**
  * @author Jesse on 8/15/2014.
  */
@@ -43,12 +41,13 @@ public class UriMatcher {
     private int port = -1;
     private String path;
     private Pattern pathPattern;
-    private HashSet<InetAddress> hostNames;
+    private volatile Set<InetAddress> hostNames;
     private String host;
     private String network;
     private IpAddressMatcher ipMatcher;
     private String domain;
     private Pattern domainPattern;
+    private DnsCache dnsCache = DnsCache.getDefault();
 
     public UriMatcher() {
 
@@ -61,7 +60,7 @@ public class UriMatcher {
     public synchronized void init() throws UnknownHostException {
         this.hostNames = null;
         if (this.host != null) {
-            this.hostNames = Sets.newHashSet(InetAddress.getAllByName(this.host));
+            this.hostNames = dnsCache.resolve(this.host);
         }
         this.pathPattern = null;
         if (this.path != null) {
@@ -103,25 +102,39 @@ public class UriMatcher {
     }
 
     private boolean matchesHost(URL url) {
-        final InetAddress[] allByName;
+        final Set<InetAddress> allByName;
         try {
-            allByName = InetAddress.getAllByName(url.getHost());
+            allByName = dnsCache.resolve(url.getHost());
         } catch (UnknownHostException e) {
             return false;
         }
 
+        final Set<InetAddress> hostNames = currentHostNames();
         for (InetAddress inetAddress : allByName) {
-            if (this.hostNames.contains(inetAddress)) {
+            if (hostNames.contains(inetAddress)) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * @return the current addresses of the configured host, or the last known ones
+     *         if it can no longer be resolved
+     */
+    Set<InetAddress> currentHostNames() {
+        try {
+            this.hostNames = dnsCache.resolve(this.host);
+        } catch (UnknownHostException e) {
+            // keep the last known addresses
+        }
+        return this.hostNames;
+    }
+
     private boolean matchesNetwork(URL url) {
-        final InetAddress[] allByName;
+        final Set<InetAddress> allByName;
         try {
-            allByName = InetAddress.getAllByName(url.getHost());
+            allByName = dnsCache.resolve(url.getHost());
         } catch (UnknownHostException e) {
             return false;
         }
@@ -142,6 +155,13 @@ public class UriMatcher {
         this.host = host;
     }
 
+    /**
+     * Sets the cache resolving the configured host and the checked URLs.
+     */
+    public void setDnsCache(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+    }
+
     public void setPort(int port) {
         this.port = port;
     }
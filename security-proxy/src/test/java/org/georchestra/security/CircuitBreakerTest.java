@@ -0,0 +1,117 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.georchestra.security.CircuitBreaker.Call;
+import org.georchestra.security.CircuitBreaker.State;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private long now;
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        breaker = new CircuitBreaker("geonetwork", 0, 10, () -> now);
+        breaker.setMinimumCalls(5);
+        breaker.setFailureRateThreshold(50);
+        breaker.setSlowCallDuration(1, TimeUnit.SECONDS);
+        breaker.setLatencyPercentile(80);
+        breaker.setOpenDuration(30, TimeUnit.SECONDS);
+        breaker.setHalfOpenProbes(2);
+    }
+
+    private void respond(int statusCode, long durationMillis) {
+        Call call = breaker.tryAcquire();
+        assertNotNull(call);
+        now += TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        call.onResponse(statusCode);
+        call.release();
+    }
+
+    @Test
+    public void testOpensOnFailureRate() {
+        for (int i = 0; i < 4; i++) {
+            respond(i % 2 == 0 ? 200 : 502, 10);
+        }
+        // not enough calls yet
+        assertEquals(State.CLOSED, breaker.getState());
+        respond(503, 10);
+        assertEquals(State.OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire());
+        assertEquals(30, breaker.getRetryAfter());
+        assertEquals(1, breaker.getRejectedWhileOpen());
+
+        now += TimeUnit.SECONDS.toNanos(20);
+        assertEquals(10, breaker.getRetryAfter());
+    }
+
+    @Test
+    public void testOpensOnLatencyPercentile() {
+        for (int i = 0; i < 4; i++) {
+            respond(200, 10);
+        }
+        respond(200, 1500);
+        // 20% slow calls: the 80th percentile is still below one second
+        assertEquals(State.CLOSED, breaker.getState());
+        respond(200, 2000);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenProbes() {
+        for (int i = 0; i < 5; i++) {
+            respond(500, 10);
+        }
+        assertEquals(State.OPEN, breaker.getState());
+        now += TimeUnit.SECONDS.toNanos(30);
+
+        // a failed probe opens the breaker again
+        Call probe = breaker.tryAcquire();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        probe.onFailure();
+        probe.release();
+        assertEquals(State.OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire());
+
+        now += TimeUnit.SECONDS.toNanos(30);
+        Call first = breaker.tryAcquire();
+        Call second = breaker.tryAcquire();
+        assertNotNull(second);
+        // no more than two probes at once
+        assertNull(breaker.tryAcquire());
+        first.onResponse(200);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        second.onResponse(200);
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getFailureRate());
+        assertEquals(2, breaker.getTransitions(State.OPEN));
+        assertEquals(1, breaker.getTransitions(State.CLOSED));
+    }
+
+    @Test
+    public void testBulkhead() {
+        breaker = new CircuitBreaker("geonetwork", 2, 10, () -> now);
+        breaker.setEnabled(false);
+        Call first = breaker.tryAcquire();
+        Call second = breaker.tryAcquire();
+        assertNotNull(second);
+        assertNull(breaker.tryAcquire());
+        assertEquals(1, breaker.getRejectedByBulkhead());
+        assertEquals(2, breaker.getInFlightRequests());
+
+        first.release();
+        // released once only
+        first.release();
+        assertNotNull(breaker.tryAcquire());
+        assertNull(breaker.tryAcquire());
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+}
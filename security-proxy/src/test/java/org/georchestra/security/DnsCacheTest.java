@@ -0,0 +1,117 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.georchestra.security.permissions.DnsCache;
+import org.georchestra.security.permissions.Permissions;
+import org.georchestra.security.permissions.UriMatcher;
+import org.junit.Test;
+
+public class DnsCacheTest {
+
+    /**
+     * Resolves the host names from a map, counting the lookups.
+     */
+    private static class MapDnsCache extends DnsCache {
+        final Map<String, InetAddress> hosts = new ConcurrentHashMap<>();
+        final AtomicInteger lookups = new AtomicInteger();
+
+        MapDnsCache(long positiveTtl, long negativeTtl) {
+            super(positiveTtl, negativeTtl, TimeUnit.MILLISECONDS, 100);
+        }
+
+        @Override
+        protected InetAddress[] lookup(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            InetAddress address = hosts.get(host);
+            if (address == null) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] { address };
+        }
+    }
+
+    private static InetAddress address(String ip) throws UnknownHostException {
+        return InetAddress.getByName(ip);
+    }
+
+    @Test
+    public void testPositiveCaching() throws Exception {
+        MapDnsCache cache = new MapDnsCache(60000, 60000);
+        cache.hosts.put("example.org", address("10.0.0.1"));
+
+        assertEquals(Collections.singleton(address("10.0.0.1")), cache.resolve("example.org"));
+        assertEquals(Collections.singleton(address("10.0.0.1")), cache.resolve("EXAMPLE.org"));
+        assertEquals(1, cache.lookups.get());
+    }
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        MapDnsCache cache = new MapDnsCache(60000, 100);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.resolve("unknown.org");
+                fail("expected UnknownHostException");
+            } catch (UnknownHostException expected) {
+            }
+        }
+        assertEquals(1, cache.lookups.get());
+
+        cache.hosts.put("unknown.org", address("10.0.0.2"));
+        Thread.sleep(150);
+        assertEquals(Collections.singleton(address("10.0.0.2")), cache.resolve("unknown.org"));
+    }
+
+    @Test
+    public void testBackgroundRefresh() throws Exception {
+        MapDnsCache cache = new MapDnsCache(400, 100);
+        cache.hosts.put("example.org", address("10.0.0.1"));
+        cache.resolve("example.org");
+
+        cache.hosts.put("example.org", address("10.0.0.3"));
+        Thread.sleep(320);
+        // still valid, served from the cache while being resolved again
+        assertEquals(Collections.singleton(address("10.0.0.1")), cache.resolve("example.org"));
+        for (int i = 0; i < 50 && cache.lookups.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, cache.lookups.get());
+        assertEquals(Collections.singleton(address("10.0.0.3")), cache.resolve("example.org"));
+        cache.close();
+    }
+
+    @Test
+    public void testUriMatcherFollowsResolution() throws Exception {
+        MapDnsCache cache = new MapDnsCache(100, 100);
+        cache.hosts.put("internal.org", address("10.0.0.1"));
+        cache.hosts.put("other.org", address("10.0.0.5"));
+
+        UriMatcher matcher = new UriMatcher();
+        matcher.setHost("internal.org");
+        Permissions permissions = new Permissions();
+        permissions.setAllowByDefault(true);
+        permissions.setDenied(Collections.singletonList(matcher));
+        permissions.setDnsCache(cache);
+        permissions.init();
+
+        assertTrue(permissions.isDenied(new URL("http://internal.org/")));
+        assertFalse(permissions.isDenied(new URL("http://other.org/")));
+
+        // internal.org moved to the address of other.org
+        cache.hosts.put("internal.org", address("10.0.0.5"));
+        Thread.sleep(150);
+        assertTrue(permissions.isDenied(new URL("http://other.org/")));
+    }
+}
@@ -56,6 +56,31 @@ public class HeadersManagementStrategyTest {
         assertTrue(hasHeader("other_header", proxyRequest));
     }
 
+    @Test
+    public void testConfigureRequestHeaders_SkippedHeadersIgnoreCase() throws Exception {
+        HeadersManagementStrategy headerManagement = new HeadersManagementStrategy();
+        headerManagement.setNoAcceptEncoding(true);
+        headerManagement.setReferer("https://georchestra.mydomain.org/");
+
+        HttpRequestBase proxyRequest = new HttpGet("http://localhost/geonetwork");
+        MockHttpServletRequest originalRequest = createTestRequest();
+        originalRequest.addHeader("HOST", "georchestra.org");
+        originalRequest.addHeader("content-LENGTH", "12");
+        originalRequest.addHeader("authorization", "Basic dGVzdDp0ZXN0");
+        originalRequest.addHeader("ACCEPT-ENCODING", "gzip");
+        originalRequest.addHeader("referer", "http://evil.org/");
+
+        headerManagement.configureRequestHeaders(originalRequest, proxyRequest, false);
+
+        assertFalse(hasHeader("Host", proxyRequest));
+        assertFalse(hasHeader("Content-Length", proxyRequest));
+        assertFalse(hasHeader("Authorization", proxyRequest));
+        assertFalse(hasHeader("Accept-Encoding", proxyRequest));
+        assertEquals(1, proxyRequest.getHeaders("Referer").length);
+        assertEquals("https://georchestra.mydomain.org/", proxyRequest.getFirstHeader("Referer").getValue());
+        assertTrue(hasHeader("other_header", proxyRequest));
+    }
+
     private MockHttpServletRequest createTestRequest() {
         MockHttpServletRequest originalRequest = new MockHttpServletRequest("get", "http://georchestra.org/geonetwork");
         originalRequest.setRemoteHost("someserver.com");
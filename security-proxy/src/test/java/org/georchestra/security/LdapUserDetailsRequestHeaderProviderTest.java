@@ -0,0 +1,90 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.naming.directory.BasicAttributes;
+
+import org.apache.http.Header;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.ldap.search.LdapUserSearch;
+
+public class LdapUserDetailsRequestHeaderProviderTest {
+
+    private LdapUserSearch userSearch;
+    private LdapUserDetailsCache cache;
+    private LdapUserDetailsRequestHeaderProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        BasicAttributes attributes = new BasicAttributes();
+        attributes.put("mail", "jdoe@georchestra.org");
+        userSearch = mock(LdapUserSearch.class);
+        when(userSearch.searchForUser("jdoe")).thenReturn(new DirContextAdapter(attributes, null));
+
+        Map<String, String> mapping = new HashMap<String, String>();
+        mapping.put("sec-email", "mail");
+        cache = new LdapUserDetailsCache();
+        cache.init();
+        provider = new LdapUserDetailsRequestHeaderProvider(userSearch, "ou=orgs", mapping);
+        provider.setUserDetailsCache(cache);
+        provider.init();
+
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("jdoe", "pass"));
+    }
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testHeadersSharedAcrossSessions() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+
+        Collection<Header> headers = provider.getCustomRequestHeaders(new MockHttpSession(), request);
+        assertEquals(1, headers.size());
+        assertEquals("jdoe@georchestra.org", headers.iterator().next().getValue());
+
+        // a stateless client gets a new session on each request
+        headers = provider.getCustomRequestHeaders(new MockHttpSession(), request);
+        assertEquals(1, headers.size());
+        verify(userSearch, times(1)).searchForUser("jdoe");
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        provider.getCustomRequestHeaders(new MockHttpSession(), request);
+
+        cache.invalidate("JDoe");
+        provider.getCustomRequestHeaders(new MockHttpSession(), request);
+        verify(userSearch, times(2)).searchForUser("jdoe");
+    }
+
+    @Test
+    public void testLookupFailureNotCached() throws Exception {
+        SecurityContextHolder.getContext()
+                .setAuthentication(new UsernamePasswordAuthenticationToken("unknown", "pass"));
+        when(userSearch.searchForUser("unknown")).thenThrow(new IllegalStateException("LDAP unavailable"));
+        MockHttpServletRequest request = new MockHttpServletRequest();
+
+        assertEquals(0, provider.getCustomRequestHeaders(new MockHttpSession(), request).size());
+        assertEquals(0, provider.getCustomRequestHeaders(new MockHttpSession(), request).size());
+        verify(userSearch, times(2)).searchForUser("unknown");
+    }
+}
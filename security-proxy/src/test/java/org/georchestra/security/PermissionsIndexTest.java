@@ -0,0 +1,131 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.georchestra.security.permissions.DnsCache;
+import org.georchestra.security.permissions.Permissions;
+import org.georchestra.security.permissions.UriMatcher;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PermissionsIndexTest {
+
+    private static final Map<String, String> HOSTS = new HashMap<>();
+    static {
+        HOSTS.put("internal.org", "10.1.2.3");
+        HOSTS.put("intranet.org", "10.1.2.3");
+        HOSTS.put("lan.org", "192.168.1.20");
+        HOSTS.put("www.georchestra.org", "203.0.113.10");
+        HOSTS.put("sdi.georchestra.org", "203.0.113.11");
+        HOSTS.put("example.org", "198.51.100.7");
+        HOSTS.put("v6.org", "2001:db8::12");
+    }
+
+    private DnsCache dnsCache;
+
+    @Before
+    public void setUp() {
+        dnsCache = new DnsCache(60, 60, TimeUnit.SECONDS, 100) {
+            @Override
+            protected InetAddress[] lookup(String host) throws UnknownHostException {
+                String address = HOSTS.get(host);
+                if (address == null) {
+                    throw new UnknownHostException(host);
+                }
+                return new InetAddress[] { InetAddress.getByName(address) };
+            }
+        };
+    }
+
+    private static UriMatcher matcher(String host, String network, String domain, int port, String path)
+            throws UnknownHostException {
+        UriMatcher matcher = new UriMatcher(domain);
+        matcher.setHost(host);
+        matcher.setNetwork(network);
+        matcher.setPort(port);
+        matcher.setPath(path);
+        return matcher;
+    }
+
+    private Permissions permissions(boolean allowByDefault, List<UriMatcher> allowed, List<UriMatcher> denied)
+            throws UnknownHostException {
+        Permissions permissions = new Permissions();
+        permissions.setAllowByDefault(allowByDefault);
+        permissions.setAllowed(allowed);
+        permissions.setDenied(denied);
+        permissions.setDnsCache(dnsCache);
+        permissions.init();
+        return permissions;
+    }
+
+    /**
+     * Walks the lists as Permissions did before being indexed.
+     */
+    private static boolean linearIsDenied(Permissions permissions, URL url) {
+        boolean allowed = permissions.getAllowed().stream().anyMatch(m -> m.matches(url));
+        boolean denied = permissions.getDenied().stream().anyMatch(m -> m.matches(url));
+        if (permissions.isAllowByDefault()) {
+            return !allowed && denied;
+        }
+        return denied || !allowed;
+    }
+
+    private List<UriMatcher> matchers() throws UnknownHostException {
+        return new ArrayList<>(Arrays.asList(//
+                matcher("internal.org", null, null, -1, null), //
+                matcher("lan.org", null, null, 8080, "/admin/.*"), //
+                matcher(null, "10.0.0.0/8", null, -1, "/private/.*"), //
+                matcher(null, "192.168.1.20", null, -1, null), //
+                matcher(null, "2001:db8::/32", null, -1, null), //
+                matcher(null, null, "(www|sdi)\\.georchestra\\.org", -1, "/geoserver/.*"), //
+                matcher(null, null, ".*\\.georchestra\\.org", 443, null), //
+                matcher(null, null, null, 8443, null), //
+                matcher(null, null, null, -1, "/secret/.*")));
+    }
+
+    private static final String[] URLS = { "http://internal.org/", "http://INTRANET.org/any", "http://lan.org/",
+            "http://lan.org:8080/admin/x", "http://example.org/private/x", "http://lan.org/private/x",
+            "http://[2001:db8::12]/", "http://v6.org/", "http://www.georchestra.org/geoserver/wms",
+            "http://sdi.georchestra.org/geonetwork/", "https://sdi.georchestra.org/geonetwork/",
+            "http://example.org:8443/", "http://example.org/secret/a", "http://example.org/", "http://unknown.org/",
+            "http://10.20.30.40/private/y" };
+
+    @Test
+    public void testSameDecisionsAsLinearEvaluation() throws Exception {
+        for (boolean allowByDefault : new boolean[] { true, false }) {
+            List<UriMatcher> matchers = matchers();
+            Permissions permissions = permissions(allowByDefault, matchers.subList(0, 4), matchers.subList(4, 9));
+            Permissions swapped = permissions(allowByDefault, matchers.subList(4, 9), matchers.subList(0, 4));
+            for (String url : URLS) {
+                URL u = new URL(url);
+                assertEquals(url, linearIsDenied(permissions, u), permissions.isDenied(u));
+                assertEquals(url, linearIsDenied(swapped, u), swapped.isDenied(u));
+                // cached decision
+                assertEquals(url, linearIsDenied(permissions, u), permissions.isDenied(u));
+            }
+        }
+    }
+
+    @Test
+    public void testFirstDomainNotMatchingPath() throws Exception {
+        // both domains match www.georchestra.org, only the second one matches the
+        // path
+        Permissions permissions = permissions(true, new ArrayList<>(),
+                Arrays.asList(matcher(null, null, ".*georchestra.*", -1, "/geoserver/.*"),
+                        matcher(null, null, "www\\.(georchestra)\\.org", -1, "/geonetwork/.*")));
+        assertTrue(permissions.isDenied(new URL("http://www.georchestra.org/geonetwork/srv")));
+        assertFalse(permissions.isDenied(new URL("http://www.georchestra.org/mapfishapp/")));
+    }
+}
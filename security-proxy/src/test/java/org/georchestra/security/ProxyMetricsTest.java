@@ -0,0 +1,388 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.sql.DataSource;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.georchestra.ogcservstatistics.calculations.LiveStatistics;
+import org.georchestra.ogcservstatistics.log4j.OGCServiceEvent;
+import org.georchestra.ogcservstatistics.log4j.OGCServiceParser;
+import org.georchestra.ogcservstatistics.log4j.OGCServicesAppender;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.google.common.collect.Maps;
+
+public class ProxyMetricsTest {
+
+    private Proxy proxy;
+    private int status;
+    private byte[] sentBody;
+
+    @Before
+    public void setUp() throws Exception {
+        proxy = new Proxy() {
+            @Override
+            protected HttpResponse executeHttpRequest(CloseableHttpAsyncClient httpclient,
+                    HttpRequestBase proxyingRequest) throws IOException {
+                if (proxyingRequest instanceof HttpEntityEnclosingRequest) {
+                    sentBody = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) proxyingRequest).getEntity());
+                }
+                BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "Status");
+                response.setEntity(new ByteArrayEntity(new byte[100]));
+                return response;
+            }
+
+            @Override
+            Future<Boolean> executeHttpRequestAsync(HttpRequestBase proxyingRequest,
+                    CompletableFuture<HttpResponse> future, StreamingResponseConsumer consumer) {
+                try {
+                    sentBody = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) proxyingRequest).getEntity());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                future.complete(new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "Status"));
+                return CompletableFuture.completedFuture(Boolean.TRUE);
+            }
+        };
+        proxy.setOgcStatsDataSource(Mockito.mock(DataSource.class));
+        proxy.setProxyPermissionsFile("default-permissions.xml");
+        Map<String, String> targets = Maps.newHashMap();
+        targets.put("geoserver", "http://localhost/geoserver-private");
+        proxy.setTargets(targets);
+        proxy.init();
+    }
+
+    @After
+    public void tearDown() {
+        proxy.destroy();
+    }
+
+    private void get(String uri) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        request.setServerName("localhost");
+        proxy.handleRequest(request, new MockHttpServletResponse());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_000, histogram.getPercentile(0.5), 500_000 * 0.07);
+        assertEquals(990_000, histogram.getPercentile(0.99), 990_000 * 0.07);
+        assertEquals(1_000_000, histogram.getPercentile(1));
+
+        // consecutive buckets cover every duration
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, LatencyHistogram.index(LatencyHistogram.highestValue(i)));
+            assertEquals(i + 1, LatencyHistogram.index(LatencyHistogram.highestValue(i) + 1));
+        }
+    }
+
+    @Test
+    public void testRequestsMeasuredByTarget() throws Exception {
+        status = 200;
+        get("/geoserver/wms");
+        get("/geoserver/wms");
+        status = 503;
+        get("/geoserver/wfs");
+
+        TargetMetrics geoserver = proxy.getMetrics().getTargets().get("geoserver");
+        assertEquals(3, geoserver.getRequests());
+        assertEquals(2, geoserver.getResponses2xx());
+        assertEquals(1, geoserver.getResponses5xx());
+        assertEquals(0, geoserver.getInFlight());
+        assertEquals(300, geoserver.getResponseBytes());
+        assertEquals(3, geoserver.getTimeToFirstByte().getCount());
+        assertEquals(3, geoserver.getDuration().getCount());
+
+        assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(ProxyMetrics.objectName("geoserver"),
+                "Requests"));
+    }
+
+    private List<Object> logStatistics(MockHttpServletRequest request) {
+        List<Object> messages = new ArrayList<>();
+        AppenderSkeleton appender = new AppenderSkeleton() {
+            @Override
+            protected void append(LoggingEvent event) {
+                messages.add(event.getMessage());
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean requiresLayout() {
+                return false;
+            }
+        };
+        Logger statsLogger = Logger.getLogger("org.georchestra.security.statistics");
+        Level level = statsLogger.getLevel();
+        statsLogger.setLevel(Level.INFO);
+        statsLogger.addAppender(appender);
+        SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("testadmin", null));
+        try {
+            request.setServerName("localhost");
+            proxy.handleRequest(request, new MockHttpServletResponse());
+        } finally {
+            SecurityContextHolder.clearContext();
+            statsLogger.removeAppender(appender);
+            statsLogger.setLevel(level);
+        }
+        return messages;
+    }
+
+    @Test
+    public void testStatisticsLoggedOnceResponseSent() throws Exception {
+        status = 200;
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/geoserver/wms");
+        request.setQueryString("SERVICE=WMS&REQUEST=GetMap&LAYERS=roads");
+        request.addParameter("SERVICE", "WMS");
+        request.addParameter("REQUEST", "GetMap");
+        request.addParameter("LAYERS", "roads");
+        List<Object> messages = logStatistics(request);
+
+        assertEquals(1, messages.size());
+        // the event is logged as is, and formatted for the other appenders
+        assertTrue(messages.get(0) instanceof OGCServiceEvent);
+        Map<String, Object> log = ((OGCServiceEvent) messages.get(0)).toLogs().get(0);
+        Map<String, Object> formatted = OGCServiceParser.parseLog(messages.get(0).toString()).get(0);
+        // the formatted date has no milliseconds
+        formatted.remove("date");
+        assertEquals(formatted, Maps.filterKeys(log, key -> !"date".equals(key)));
+        assertEquals("testadmin", log.get("user_name"));
+        assertEquals("roads", log.get("layer"));
+        assertEquals(200, log.get("http_status"));
+        assertEquals(100L, log.get("bytes_sent"));
+        assertTrue((Integer) log.get("duration_ms") >= (Integer) log.get("ttfb_ms"));
+    }
+
+    private static byte[] xmlPostBody() {
+        StringBuilder xml = new StringBuilder("<wfs:GetFeature service=\"WFS\" version=\"1.1.0\""
+                + " xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:ogc=\"http://www.opengis.net/ogc\">"
+                + "<wfs:Query typeName=\"topp:states\"><ogc:Filter><ogc:Or>");
+        // a filter larger than the bytes read for the statistics
+        while (xml.length() < 200_000) {
+            xml.append("<ogc:PropertyIsEqualTo><ogc:PropertyName>STATE_NAME</ogc:PropertyName>"
+                    + "<ogc:Literal>Utah</ogc:Literal></ogc:PropertyIsEqualTo>");
+        }
+        return xml.append("</ogc:Or></ogc:Filter></wfs:Query></wfs:GetFeature>").toString()
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testStatisticsOfXmlPostRequest() throws Exception {
+        status = 200;
+        byte[] body = xmlPostBody();
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/geoserver/wfs");
+        request.setContentType("text/xml; charset=UTF-8");
+        request.setContent(body);
+        List<Object> messages = logStatistics(request);
+
+        assertEquals(1, messages.size());
+        Map<String, Object> log = ((OGCServiceEvent) messages.get(0)).toLogs().get(0);
+        assertEquals("WFS", log.get("service"));
+        assertEquals("getfeature", log.get("request"));
+        assertEquals("topp:states", log.get("layer"));
+        // the whole body is sent to the target
+        assertArrayEquals(body, sentBody);
+    }
+
+    @Test
+    public void testStatisticsOfAsyncXmlPostRequest() throws Exception {
+        status = 200;
+        proxy.setAsyncMode(true);
+        byte[] body = xmlPostBody();
+        ByteArrayInputStream content = new ByteArrayInputStream(body);
+        // the body is read through the ReadListener, then the request is sent
+        ServletInputStream input = new ServletInputStream() {
+            @Override
+            public int read() {
+                return content.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return content.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return content.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                try {
+                    readListener.onDataAvailable();
+                    readListener.onAllDataRead();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/geoserver/wfs") {
+            @Override
+            public ServletInputStream getInputStream() {
+                return input;
+            }
+        };
+        request.setAsyncSupported(true);
+        request.setContentType("text/xml; charset=UTF-8");
+        request.setContent(body);
+        List<Object> messages = logStatistics(request);
+
+        assertFalse("async request should be completed", request.isAsyncStarted());
+        // the whole body is sent to the target
+        assertArrayEquals(body, sentBody);
+        assertEquals(1, messages.size());
+        Map<String, Object> log = ((OGCServiceEvent) messages.get(0)).toLogs().get(0);
+        assertEquals("WFS", log.get("service"));
+        assertEquals("getfeature", log.get("request"));
+        assertEquals("topp:states", log.get("layer"));
+        assertEquals(200, log.get("http_status"));
+    }
+
+    @Test
+    public void testPrometheusEndpoint() throws Exception {
+        status = 200;
+        get("/geoserver/wms");
+        ProxyMetricsController controller = new ProxyMetricsController();
+        controller.setProxy(proxy);
+        AdminAccess adminAccess = new AdminAccess();
+        adminAccess.setAllowedAddresses("192.0.2.10, 127.0.0.1");
+        controller.setAdminAccess(adminAccess);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/_admin/metrics");
+        request.setRemoteAddr("127.0.0.1");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        Logger statsLogger = Logger.getLogger("org.georchestra.security.statistics");
+        OGCServicesAppender statistics = new OGCServicesAppender();
+        statsLogger.addAppender(statistics);
+        try {
+            controller.metrics(request, response);
+        } finally {
+            statsLogger.removeAppender(statistics);
+        }
+
+        String text = response.getContentAsString();
+        assertTrue(text, text.contains("# TYPE georchestra_proxy_requests_total counter\n"));
+        assertTrue(text, text.contains("georchestra_proxy_requests_total{target=\"geoserver\"} 1\n"));
+        assertTrue(text, text.contains("georchestra_proxy_responses_total{target=\"geoserver\",status=\"2xx\"} 1\n"));
+        assertTrue(text, text.contains("georchestra_proxy_request_duration_seconds_count{target=\"geoserver\"} 1\n"));
+        assertTrue(text, text.contains("georchestra_proxy_pool_connections{route=\"total\",state=\"max\"}"));
+        assertTrue(text, text.contains("georchestra_proxy_statistics_journal_backlog_records 0\n"));
+
+        request.setRemoteAddr("192.0.2.1");
+        response = new MockHttpServletResponse();
+        controller.metrics(request, response);
+        assertEquals(403, response.getStatus());
+
+        // the local host is not trusted unless allowed, a front server forwarding from
+        // it
+        controller.setAdminAccess(new AdminAccess());
+        request.setRemoteAddr("127.0.0.1");
+        response = new MockHttpServletResponse();
+        controller.metrics(request, response);
+        assertEquals(403, response.getStatus());
+
+        SecurityContextHolder.getContext()
+                .setAuthentication(new TestingAuthenticationToken("testadmin", null, AdminAccess.SUPERUSER_ROLE));
+        try {
+            response = new MockHttpServletResponse();
+            controller.metrics(request, response);
+            assertEquals(200, response.getStatus());
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    @Test
+    public void testLiveStatisticsEndpoint() throws Exception {
+        LiveStatistics live = new LiveStatistics(10, 4, 128);
+        List<Map<String, Object>> logs = new ArrayList<>();
+        for (String layer : new String[] { "roads", "roads", "rivers" }) {
+            Map<String, Object> log = Maps.newHashMap();
+            log.put("date", new Date());
+            log.put("service", "WMS");
+            log.put("layer", layer);
+            log.put("user_name", "testadmin");
+            logs.add(log);
+        }
+        live.add(logs);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/_admin/statistics/live");
+        request.addParameter("layer", "parcels");
+        JSONObject json = new LiveStatisticsController().toJson(live.window(15), request, 1, true);
+        assertEquals(3, json.getLong("requests"));
+        assertEquals(1, json.getJSONArray("layers").length());
+        assertEquals("roads", json.getJSONArray("layers").getJSONObject(0).getString("name"));
+        assertEquals(2, json.getJSONArray("layers").getJSONObject(0).getLong("count"));
+        assertEquals(3, json.getJSONArray("users").getJSONObject(0).getLong("count"));
+        assertEquals(0, json.getJSONObject("estimates").getJSONObject("layer").getLong("count"));
+        JSONObject sketch = json.getJSONObject("sketches").getJSONObject("layers");
+        assertEquals(2, sketch.getJSONArray("top").length());
+        assertEquals(4 * 128, sketch.getJSONArray("counts").length());
+
+        LiveStatisticsController controller = new LiveStatisticsController();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.live(request, response, 15, 10, false);
+        assertEquals(403, response.getStatus());
+
+        // without statistics appender
+        AdminAccess adminAccess = new AdminAccess();
+        adminAccess.setAllowedAddresses(request.getRemoteAddr());
+        controller.setAdminAccess(adminAccess);
+        response = new MockHttpServletResponse();
+        controller.live(request, response, 15, 10, false);
+        assertEquals(404, response.getStatus());
+    }
+}
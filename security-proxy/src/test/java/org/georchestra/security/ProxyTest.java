@@ -1,11 +1,17 @@
 package org.georchestra.security;
 
 import com.google.common.collect.Maps;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -14,15 +20,25 @@ import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.util.ReflectionUtils;
 
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.net.ConnectException;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -33,6 +49,9 @@ public class ProxyTest {
     private Proxy proxy;
     private BasicHttpResponse response;
     private boolean executed = true;
+    private HttpEntity sentEntity;
+    private byte[] sentBody;
+    private int bufferedBodyFiles;
     private MockHttpServletRequest request;
     private MockHttpServletResponse httpResponse;
 
@@ -47,6 +66,11 @@ public class ProxyTest {
             protected HttpResponse executeHttpRequest(CloseableHttpAsyncClient httpclient,
                     HttpRequestBase proxyingRequest) throws IOException {
                 executed = true;
+                if (proxyingRequest instanceof HttpEntityEnclosingRequest) {
+                    sentEntity = ((HttpEntityEnclosingRequest) proxyingRequest).getEntity();
+                    sentBody = EntityUtils.toByteArray(sentEntity);
+                    bufferedBodyFiles = bufferedBodyFiles();
+                }
                 return response;
             }
         };
@@ -214,6 +238,210 @@ public class ProxyTest {
         assertEquals(expected, values.get(0));
     }
 
+    @Test
+    public void testPooledHttpClient() throws Exception {
+        Map<String, PoolStats> stats = proxy.getPoolStats();
+        assertTrue(stats.containsKey("total"));
+        assertEquals(0, stats.get("total").getLeased());
+
+        proxy.destroy();
+        assertTrue(proxy.getPoolStats().isEmpty());
+    }
+
+    @Test
+    public void testCircuitBreakerRejectsRequests() throws Exception {
+        proxy.setCircuitBreakerEnabled(true);
+        proxy.setCircuitBreakerMinimumCalls(2);
+        proxy.setTargets(targets);
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 502, "Bad Gateway");
+        for (int i = 0; i < 2; i++) {
+            request = new MockHttpServletRequest("GET", "/extractorapp/home");
+            proxy.handleRequest(request, new MockHttpServletResponse());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, proxy.getCircuitBreakers().get("extractorapp").getState());
+
+        executed = false;
+        request = new MockHttpServletRequest("GET", "/extractorapp/home");
+        proxy.handleRequest(request, httpResponse);
+        assertFalse(executed);
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE.value(), httpResponse.getStatus());
+        assertEquals("30", httpResponse.getHeader("Retry-After"));
+        assertEquals(0, proxy.getCircuitBreakers().get("extractorapp").getInFlightRequests());
+
+        // other targets are not affected
+        request = new MockHttpServletRequest("GET", "/geonetwork/srv/eng/something");
+        proxy.handleRequest(request, new MockHttpServletResponse());
+        assertTrue(executed);
+    }
+
+    @Test
+    public void testAsyncModeRedirect() throws Exception {
+        Proxy asyncProxy = asyncProxy(null);
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.FOUND.value(), "Temporarily moved");
+        response.setHeader("Location", "http://acme.com");
+
+        asyncProxy.handleUrlParamRequest(request, httpResponse, "http://localhost:8080/path");
+
+        assertTrue(executed);
+        assertFalse("async request should be completed", request.isAsyncStarted());
+        assertEquals(HttpStatus.FOUND.value(), httpResponse.getStatus());
+        assertEquals("http://acme.com", httpResponse.getHeader("Location"));
+        asyncProxy.destroy();
+    }
+
+    @Test
+    public void testAsyncModeConnectionFailure() throws Exception {
+        Proxy asyncProxy = asyncProxy(new ConnectException("Connection refused"));
+
+        asyncProxy.handleUrlParamRequest(request, httpResponse, "http://localhost:8080/path");
+
+        assertTrue(executed);
+        assertFalse("async request should be completed", request.isAsyncStarted());
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE.value(), httpResponse.getStatus());
+        asyncProxy.destroy();
+    }
+
+    @Test
+    public void testAsyncModeOversizedContentLength() throws Exception {
+        request = new MockHttpServletRequest("POST", "/proxy/") {
+            @Override
+            public long getContentLengthLong() {
+                return 2_000_000_000L;
+            }
+        };
+        Proxy asyncProxy = asyncProxy(null);
+
+        asyncProxy.handleUrlParamRequest(request, httpResponse, "http://localhost:8080/path");
+
+        // rejected before the body is read, or a buffer is allocated for it
+        assertFalse(executed);
+        assertFalse("async request should be completed", request.isAsyncStarted());
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE.value(), httpResponse.getStatus());
+        asyncProxy.destroy();
+    }
+
+    private Proxy asyncProxy(Exception failure) throws Exception {
+        Proxy asyncProxy = new Proxy() {
+            @Override
+            Future<Boolean> executeHttpRequestAsync(HttpRequestBase proxyingRequest,
+                    CompletableFuture<HttpResponse> future, StreamingResponseConsumer consumer) {
+                executed = true;
+                if (failure == null) {
+                    future.complete(response);
+                } else {
+                    future.completeExceptionally(failure);
+                }
+                return CompletableFuture.completedFuture(Boolean.TRUE);
+            }
+        };
+        asyncProxy.setOgcStatsDataSource(Mockito.mock(DataSource.class));
+        asyncProxy.setProxyPermissionsFile("default-permissions.xml");
+        asyncProxy.setAsyncMode(true);
+        asyncProxy.init();
+        asyncProxy.setTargets(targets);
+        request.setAsyncSupported(true);
+        return asyncProxy;
+    }
+
+    private static int bufferedBodyFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(System.getProperty("java.io.tmpdir")),
+                "security-proxy-*.body")) {
+            int count = 0;
+            for (Path file : files) {
+                count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return a request whose body is received by small chunks
+     */
+    private MockHttpServletRequest slowBodyRequest(String method, String uri, byte[] body) {
+        ServletInputStream input = new ServletInputStream() {
+            private int position;
+
+            @Override
+            public int read() {
+                return position < body.length ? body[position++] & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position == body.length) {
+                    return -1;
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                int read = Math.min(Math.min(len, 1000), body.length - position);
+                System.arraycopy(body, position, b, off, read);
+                position += read;
+                return read;
+            }
+
+            @Override
+            public boolean isFinished() {
+                return position == body.length;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        MockHttpServletRequest slowRequest = new MockHttpServletRequest(method, uri) {
+            @Override
+            public ServletInputStream getInputStream() {
+                return input;
+            }
+        };
+        slowRequest.setServerName("localhost");
+        slowRequest.setContentType("application/octet-stream");
+        slowRequest.setContent(body);
+        return slowRequest;
+    }
+
+    @Test
+    public void testSlowRequestBodyReadBeforeSent() throws Exception {
+        byte[] body = new byte[50_000];
+        new Random(1).nextBytes(body);
+        request = slowBodyRequest("POST", "/extractorapp/extractor/initiate", body);
+
+        proxy.handleRequest(request, httpResponse);
+
+        assertTrue(executed);
+        // the HTTP client shared by the requests does not read the servlet input
+        // stream from its I/O threads
+        assertFalse(sentEntity instanceof InputStreamEntity);
+        assertTrue(sentEntity.isRepeatable());
+        assertArrayEquals(body, sentBody);
+    }
+
+    @Test
+    public void testLargeRequestBodyBufferedInFile() throws Exception {
+        proxy.setRequestBodyMemoryThreshold(10_000);
+        byte[] body = new byte[50_000];
+        new Random(2).nextBytes(body);
+        request = slowBodyRequest("PUT", "/geonetwork/srv/api/records", body);
+        int files = bufferedBodyFiles();
+
+        proxy.handleRequest(request, httpResponse);
+
+        assertTrue(sentEntity instanceof FileEntity);
+        assertArrayEquals(body, sentBody);
+        assertEquals(files + 1, bufferedBodyFiles);
+        // the file is deleted once the response has been sent
+        assertEquals(files, bufferedBodyFiles());
+    }
+
     @Test
     public void filterOne() {
         Proxy toTest = new Proxy();
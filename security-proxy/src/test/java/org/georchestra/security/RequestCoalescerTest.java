@@ -0,0 +1,234 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.google.common.collect.Maps;
+
+public class RequestCoalescerTest {
+
+    private static final int CLIENTS = 5;
+
+    private Proxy proxy;
+    private AtomicInteger executed;
+    private CountDownLatch release;
+    private String setCookie;
+    private boolean knownLength;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executed = new AtomicInteger();
+        release = new CountDownLatch(1);
+        knownLength = true;
+        proxy = new Proxy() {
+            @Override
+            protected HttpResponse executeHttpRequest(CloseableHttpAsyncClient httpclient,
+                    HttpRequestBase proxyingRequest) throws IOException {
+                executed.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                response.addHeader("Content-Type", "image/png");
+                if (setCookie != null) {
+                    response.addHeader("Set-Cookie", setCookie);
+                }
+                byte[] body = proxyingRequest.getURI().getQuery().getBytes();
+                response.setEntity(knownLength ? new ByteArrayEntity(body)
+                        : new InputStreamEntity(new java.io.ByteArrayInputStream(body), -1));
+                return response;
+            }
+        };
+        proxy.setOgcStatsDataSource(Mockito.mock(DataSource.class));
+        proxy.setProxyPermissionsFile("default-permissions.xml");
+        Map<String, String> targets = Maps.newHashMap();
+        targets.put("geoserver", "http://localhost/geoserver-private");
+        proxy.setTargets(targets);
+        proxy.setCoalescingTargets(Collections.singletonList("geoserver"));
+        proxy.init();
+        executor = Executors.newFixedThreadPool(CLIENTS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        proxy.destroy();
+    }
+
+    private List<Future<MockHttpServletResponse>> sendConcurrently(String query) {
+        List<Future<MockHttpServletResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            responses.add(executor.submit(() -> {
+                MockHttpServletRequest request = new MockHttpServletRequest("GET", "/geoserver/wms");
+                request.setQueryString(query);
+                request.setServerName("localhost");
+                MockHttpServletResponse response = new MockHttpServletResponse();
+                proxy.handleRequest(request, response);
+                return response;
+            }));
+        }
+        return responses;
+    }
+
+    private void awaitFlights(int followers) throws InterruptedException {
+        RequestCoalescer coalescer = proxy.getRequestCoalescer();
+        for (int i = 0; i < 500 && coalescer.getFollowers() < followers; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testIdenticalRequestsCoalesced() throws Exception {
+        List<Future<MockHttpServletResponse>> responses = sendConcurrently("REQUEST=GetMap&LAYERS=roads");
+        awaitFlights(CLIENTS - 1);
+        release.countDown();
+        for (Future<MockHttpServletResponse> response : responses) {
+            MockHttpServletResponse r = response.get(10, TimeUnit.SECONDS);
+            assertEquals(200, r.getStatus());
+            assertEquals("image/png", r.getContentType());
+            assertEquals("REQUEST=GetMap&LAYERS=roads", r.getContentAsString());
+        }
+        assertEquals(1, executed.get());
+        assertEquals(CLIENTS - 1, proxy.getRequestCoalescer().getFollowers());
+        assertEquals(0, proxy.getRequestCoalescer().getInFlight());
+    }
+
+    @Test
+    public void testUnknownLengthReplayedOnceReceived() throws Exception {
+        knownLength = false;
+        List<Future<MockHttpServletResponse>> responses = sendConcurrently("REQUEST=GetMap&LAYERS=lakes");
+        awaitFlights(CLIENTS - 1);
+        release.countDown();
+        for (Future<MockHttpServletResponse> response : responses) {
+            assertEquals("REQUEST=GetMap&LAYERS=lakes", response.get(10, TimeUnit.SECONDS).getContentAsString());
+        }
+        assertEquals(1, executed.get());
+    }
+
+    @Test
+    public void testResponsesSettingCookiesNotShared() throws Exception {
+        setCookie = "id=1; Path=/geoserver";
+        List<Future<MockHttpServletResponse>> responses = sendConcurrently("REQUEST=GetMap&LAYERS=roads");
+        awaitFlights(CLIENTS - 1);
+        release.countDown();
+        for (Future<MockHttpServletResponse> response : responses) {
+            assertEquals(200, response.get(10, TimeUnit.SECONDS).getStatus());
+        }
+        assertEquals(CLIENTS, executed.get());
+        assertTrue(proxy.getRequestCoalescer().getFallbacks() >= CLIENTS - 1);
+    }
+
+    @Test
+    public void testBufferOverflowFallsBack() throws Throwable {
+        RequestCoalescer coalescer = new RequestCoalescer(4, 1000);
+        RequestCoalescer.Flight leader = coalescer.join("key");
+        RequestCoalescer.Flight follower = coalescer.join("key");
+        assertTrue(leader.isLeader());
+
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new InputStreamEntity(new java.io.ByteArrayInputStream(new byte[0]), -1));
+        leader.onHead(response);
+        leader.onContent(new byte[] { 1, 2, 3 }, 3);
+        leader.onContent(new byte[] { 4, 5 }, 2);
+        // no more followers once the body is too large
+        assertTrue(coalescer.join("key").isLeader());
+        leader.finish(null);
+
+        assertEquals(null, follower.awaitHead());
+        follower.leave();
+        assertEquals(1, coalescer.getFollowers());
+        assertEquals(1, coalescer.getFallbacks());
+    }
+
+    private static HttpResponse head(int contentLength) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new ByteArrayEntity(new byte[contentLength]));
+        return response;
+    }
+
+    @Test
+    public void testStalledLeaderFallsBack() throws Throwable {
+        RequestCoalescer coalescer = new RequestCoalescer(1024, 200);
+        RequestCoalescer.Flight leader = coalescer.join("key");
+        RequestCoalescer.Flight follower = coalescer.join("key");
+
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new InputStreamEntity(new java.io.ByteArrayInputStream(new byte[0]), -1));
+        leader.onHead(response);
+        leader.onContent(new byte[] { 1 }, 1);
+        // the body of unknown length is never completed
+        long start = System.nanoTime();
+        assertEquals(null, follower.awaitHead());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        follower.leave();
+        assertEquals(1, coalescer.getFallbacks());
+
+        // a response replayed while received fails once stalled
+        RequestCoalescer.Flight other = coalescer.join("other");
+        RequestCoalescer.Flight replaying = coalescer.join("other");
+        other.onHead(head(2));
+        other.onContent(new byte[] { 1 }, 1);
+        assertTrue(replaying.awaitHead() != null);
+        assertEquals(1, replaying.awaitChunk(0).length);
+        try {
+            replaying.awaitChunk(1);
+            fail("the stalled replay should fail");
+        } catch (IOException expected) {
+        } finally {
+            replaying.leave();
+        }
+    }
+
+    @Test
+    public void testBodyNotRecordedWithoutFollowers() throws Throwable {
+        RequestCoalescer coalescer = new RequestCoalescer(1024, 1000);
+        RequestCoalescer.Flight leader = coalescer.join("key");
+        leader.onHead(head(2));
+        // a follower joining before the body is received gets it all
+        RequestCoalescer.Flight early = coalescer.join("key");
+        leader.onContent(new byte[] { 1 }, 1);
+        assertTrue(early.awaitHead() != null);
+        assertEquals(1, early.awaitChunk(0).length);
+        early.leave();
+        leader.finish(null);
+
+        leader = coalescer.join("key");
+        leader.onHead(head(2));
+        leader.onContent(new byte[] { 1 }, 1);
+        // too late to replay the body, which is not recorded
+        assertTrue(coalescer.join("key").isLeader());
+        assertEquals(1, coalescer.getFollowers());
+    }
+}
@@ -0,0 +1,170 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.google.common.collect.Maps;
+
+public class ResponseCacheTest {
+
+    private Proxy proxy;
+    private List<HttpRequestBase> executed;
+    private BasicHttpResponse response;
+
+    @Before
+    public void setUp() throws Exception {
+        executed = new ArrayList<>();
+        proxy = new Proxy() {
+            @Override
+            protected HttpResponse executeHttpRequest(CloseableHttpAsyncClient httpclient,
+                    HttpRequestBase proxyingRequest) throws IOException {
+                executed.add(proxyingRequest);
+                return response;
+            }
+        };
+        proxy.setOgcStatsDataSource(Mockito.mock(DataSource.class));
+        proxy.setProxyPermissionsFile("default-permissions.xml");
+        Map<String, String> targets = Maps.newHashMap();
+        targets.put("geoserver", "http://localhost/geoserver-private");
+        targets.put("mapfishapp", "http://localhost/mapfishapp-private");
+        proxy.setTargets(targets);
+        proxy.setResponseCacheTargets(Arrays.asList("geoserver", " "));
+        proxy.init();
+    }
+
+    @After
+    public void tearDown() {
+        proxy.destroy();
+    }
+
+    private static BasicHttpResponse response(String body, String... headers) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        for (int i = 0; i < headers.length; i += 2) {
+            response.addHeader(headers[i], headers[i + 1]);
+        }
+        response.setEntity(new ByteArrayEntity(body.getBytes()));
+        return response;
+    }
+
+    private MockHttpServletResponse get(String uri, String query, String... headers) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        request.setQueryString(query);
+        request.setServerName("localhost");
+        for (int i = 0; i < headers.length; i += 2) {
+            request.addHeader(headers[i], headers[i + 1]);
+        }
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        proxy.handleRequest(request, servletResponse);
+        return servletResponse;
+    }
+
+    @Test
+    public void testCachedCapabilities() throws Exception {
+        response = response("<WMS_Capabilities/>", "Cache-Control", "max-age=60");
+        MockHttpServletResponse first = get("/geoserver/wms", "SERVICE=WMS&REQUEST=GetCapabilities");
+        assertEquals("<WMS_Capabilities/>", first.getContentAsString());
+        // parameters order and names case do not matter
+        MockHttpServletResponse second = get("/geoserver/wms", "request=GetCapabilities&service=WMS");
+        assertEquals(200, second.getStatus());
+        assertEquals("<WMS_Capabilities/>", second.getContentAsString());
+        assertEquals(1, executed.size());
+        assertEquals(1, proxy.getResponseCache().getHits());
+
+        get("/geoserver/wms", "SERVICE=WMS&REQUEST=GetMap");
+        get("/mapfishapp/wms", "SERVICE=WMS&REQUEST=GetCapabilities");
+        get("/mapfishapp/wms", "SERVICE=WMS&REQUEST=GetCapabilities");
+        assertEquals(4, executed.size());
+    }
+
+    @Test
+    public void testNotStoredResponses() throws Exception {
+        response = response("<WMS_Capabilities/>", "Cache-Control", "private, max-age=60");
+        get("/geoserver/wms", "REQUEST=GetCapabilities");
+        get("/geoserver/wms", "REQUEST=GetCapabilities");
+        response = response("<WMS_Capabilities/>", "Set-Cookie", "id=1");
+        get("/geoserver/wms", "REQUEST=GetCapabilities");
+        get("/geoserver/wms", "REQUEST=GetCapabilities");
+        assertEquals(4, executed.size());
+        assertEquals(0, proxy.getResponseCache().size());
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        response = response("legend", "Cache-Control", "no-cache", "ETag", "\"v1\"");
+        get("/geoserver/wms", "REQUEST=GetLegendGraphic&LAYER=roads");
+        assertNull(executed.get(0).getFirstHeader("If-None-Match"));
+
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 304, "Not Modified");
+        response.addHeader("ETag", "\"v1\"");
+        MockHttpServletResponse revalidated = get("/geoserver/wms", "REQUEST=GetLegendGraphic&LAYER=roads");
+        assertEquals("\"v1\"", executed.get(1).getFirstHeader("If-None-Match").getValue());
+        assertEquals(200, revalidated.getStatus());
+        assertEquals("legend", revalidated.getContentAsString());
+        assertEquals(1, proxy.getResponseCache().getRevalidations());
+
+        // the client already has the response
+        MockHttpServletResponse notModified = get("/geoserver/wms", "REQUEST=GetLegendGraphic&LAYER=roads",
+                "If-None-Match", "\"v1\"");
+        assertEquals(304, notModified.getStatus());
+        assertEquals(0, notModified.getContentAsByteArray().length);
+    }
+
+    @Test
+    public void testKeyDependsOnRoles() {
+        ResponseCache cache = new ResponseCache(1024, 1024, 60, Collections.singletonList("GetCapabilities"));
+        HttpGet admin = new HttpGet("http://localhost/geoserver/wms?REQUEST=GetCapabilities&SERVICE=WMS");
+        admin.addHeader("sec-roles", "ROLE_USER;ROLE_ADMINISTRATOR");
+        HttpGet sameRoles = new HttpGet("http://localhost/geoserver/wms?service=WMS&request=GetCapabilities");
+        sameRoles.addHeader("sec-roles", "ROLE_ADMINISTRATOR;ROLE_USER");
+        HttpGet user = new HttpGet("http://localhost/geoserver/wms?REQUEST=GetCapabilities&SERVICE=WMS");
+        user.addHeader("sec-roles", "ROLE_USER");
+        HttpGet gzip = new HttpGet("http://localhost/geoserver/wms?REQUEST=GetCapabilities&SERVICE=WMS");
+        gzip.addHeader("sec-roles", "ROLE_USER");
+        gzip.addHeader("Accept-Encoding", "gzip");
+
+        assertEquals(cache.key("geoserver", admin), cache.key("geoserver", sameRoles));
+        assertNotEquals(cache.key("geoserver", admin), cache.key("geoserver", user));
+        assertNotEquals(cache.key("geoserver", user), cache.key("geoserver", gzip));
+
+        // encoded separators in a value are not mistaken for actual ones
+        HttpGet forged = new HttpGet(
+                "http://localhost/geoserver/wms?REQUEST=GetCapabilities&SERVICE=WMS%26version%3D1.3.0");
+        HttpGet versioned = new HttpGet(
+                "http://localhost/geoserver/wms?SERVICE=WMS&VERSION=1.3.0&REQUEST=GetCapabilities");
+        assertNotEquals(cache.key("geoserver", versioned), cache.key("geoserver", forged));
+        assertEquals(cache.key("geoserver", versioned), cache.key("geoserver",
+                new HttpGet("http://localhost/geoserver/wms?request=GetCapabilities&version=1.3.0&service=%57MS")));
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/geoserver/wms");
+        request.setQueryString("service=WMS&request=getcapabilities");
+        assertTrue(cache.isCacheable(request));
+        request.setQueryString("service=WMS&request=GetMap");
+        assertFalse(cache.isCacheable(request));
+    }
+}
@@ -0,0 +1,213 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.google.common.collect.Maps;
+
+public class ResponseCompressionTest {
+
+    private static final byte[] CAPABILITIES = capabilities();
+
+    private Proxy proxy;
+    private BasicHttpResponse response;
+
+    @Before
+    public void setUp() throws Exception {
+        proxy = new Proxy() {
+            @Override
+            protected HttpResponse executeHttpRequest(CloseableHttpAsyncClient httpclient,
+                    HttpRequestBase proxyingRequest) throws IOException {
+                return response;
+            }
+        };
+        proxy.setOgcStatsDataSource(Mockito.mock(DataSource.class));
+        proxy.setProxyPermissionsFile("default-permissions.xml");
+        Map<String, String> targets = Maps.newHashMap();
+        targets.put("geoserver", "http://localhost/geoserver-private");
+        proxy.setTargets(targets);
+        proxy.setCompressionEnabled(true);
+        proxy.init();
+    }
+
+    @After
+    public void tearDown() {
+        proxy.destroy();
+    }
+
+    private static byte[] capabilities() {
+        StringBuilder xml = new StringBuilder("<WMS_Capabilities>");
+        for (int i = 0; i < 1000; i++) {
+            xml.append("<Layer queryable=\"1\"><Name>layer").append(i).append("</Name></Layer>");
+        }
+        return xml.append("</WMS_Capabilities>").toString().getBytes();
+    }
+
+    private static BasicHttpResponse response(String contentType, byte[] body) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("Content-Type", contentType);
+        response.addHeader("Content-Length", String.valueOf(body.length));
+        response.setEntity(new ByteArrayEntity(body));
+        return response;
+    }
+
+    private MockHttpServletResponse get(String acceptEncoding) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/geoserver/wms");
+        request.setQueryString("REQUEST=GetCapabilities");
+        request.setServerName("localhost");
+        if (acceptEncoding != null) {
+            request.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        proxy.handleRequest(request, servletResponse);
+        return servletResponse;
+    }
+
+    @Test
+    public void testGzipCompression() throws Exception {
+        response = response("text/xml; charset=UTF-8", CAPABILITIES);
+        MockHttpServletResponse compressed = get("gzip, deflate, br");
+
+        assertEquals(200, compressed.getStatus());
+        assertEquals("gzip", compressed.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", compressed.getHeader("Vary"));
+        assertNull(compressed.getHeader("Content-Length"));
+        byte[] body = compressed.getContentAsByteArray();
+        assertTrue(body.length < CAPABILITIES.length / 4);
+        assertArrayEquals(CAPABILITIES, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(body))));
+
+        ResponseCompression compression = proxy.getResponseCompression();
+        assertEquals(1, compression.getCompressed());
+        assertEquals(CAPABILITIES.length, compression.getBytesIn());
+        assertEquals(body.length, compression.getBytesOut());
+    }
+
+    @Test
+    public void testDeflateCompression() throws Exception {
+        response = response("application/json", CAPABILITIES);
+        MockHttpServletResponse compressed = get("gzip;q=0, deflate");
+
+        assertEquals("deflate", compressed.getHeader("Content-Encoding"));
+        byte[] body = compressed.getContentAsByteArray();
+        assertArrayEquals(CAPABILITIES, IOUtils.toByteArray(new InflaterInputStream(new ByteArrayInputStream(body))));
+    }
+
+    @Test
+    public void testNotCompressed() throws Exception {
+        // not accepted by the client
+        response = response("text/xml", CAPABILITIES);
+        MockHttpServletResponse identity = get(null);
+        assertNull(identity.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", identity.getHeader("Vary"));
+        assertArrayEquals(CAPABILITIES, identity.getContentAsByteArray());
+
+        // already compressed
+        response = response("image/png", CAPABILITIES);
+        assertNull(get("gzip").getHeader("Content-Encoding"));
+        response = response("text/xml", CAPABILITIES);
+        response.addHeader("Content-Encoding", "gzip");
+        assertEquals("gzip", get("gzip").getHeader("Content-Encoding"));
+        assertArrayEquals(CAPABILITIES, get("gzip").getContentAsByteArray());
+
+        // too small
+        response = response("text/xml", "<ServiceExceptionReport/>".getBytes());
+        MockHttpServletResponse small = get("gzip");
+        assertNull(small.getHeader("Content-Encoding"));
+        assertEquals("<ServiceExceptionReport/>", small.getContentAsString());
+
+        assertEquals(0, proxy.getResponseCompression().getCompressed());
+    }
+
+    @Test
+    public void testETagWeakenedOnceCompressed() throws Exception {
+        response = response("text/xml", CAPABILITIES);
+        response.addHeader("ETag", "\"v1\"");
+        assertEquals("W/\"v1\"", get("gzip").getHeader("ETag"));
+        // the uncompressed body is the one tagged by the target
+        response = response("text/xml", CAPABILITIES);
+        response.addHeader("ETag", "\"v1\"");
+        assertEquals("\"v1\"", get(null).getHeader("ETag"));
+
+        // the client revalidates its compressed response
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 304, "Not Modified");
+        response.addHeader("ETag", "\"v1\"");
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/geoserver/wms");
+        request.setQueryString("REQUEST=GetCapabilities");
+        request.setServerName("localhost");
+        request.addHeader("Accept-Encoding", "gzip");
+        request.addHeader("If-None-Match", "W/\"v1\"");
+        MockHttpServletResponse notModified = new MockHttpServletResponse();
+        proxy.handleRequest(request, notModified);
+        assertEquals(304, notModified.getStatus());
+        assertEquals("W/\"v1\"", notModified.getHeader("ETag"));
+        assertTrue(ResponseCompression.weakMatch("W/\"v1\"", "\"v1\""));
+    }
+
+    @Test
+    public void testAcceptedEncoding() {
+        assertEquals("gzip", ResponseCompression.acceptedEncoding("deflate, gzip"));
+        assertEquals("gzip", ResponseCompression.acceptedEncoding("*"));
+        assertEquals("deflate", ResponseCompression.acceptedEncoding("gzip;q=0, *"));
+        assertNull(ResponseCompression.acceptedEncoding("identity"));
+        assertNull(ResponseCompression.acceptedEncoding("br"));
+        assertNull(ResponseCompression.acceptedEncoding(null));
+
+        ResponseCompression compression = new ResponseCompression(Arrays.asList("text/*", "*+xml"), 0, 1, 1);
+        assertTrue(compression.isCompressibleType("text/plain"));
+        assertTrue(compression.isCompressibleType("application/vnd.google-earth.kml+xml; charset=UTF-8"));
+        assertFalse(compression.isCompressibleType("application/json"));
+    }
+
+    @Test
+    public void testConcurrentCompressionsBounded() throws Exception {
+        ResponseCompression compression = new ResponseCompression(Arrays.asList("text/*"), 0, 1, 1);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/geoserver/wms");
+        request.addHeader("Accept-Encoding", "gzip");
+        ResponseCompression.Encoder encoder = compression.start(request);
+        assertEquals(encoder, ResponseCompression.encoder(request));
+
+        MockHttpServletRequest other = new MockHttpServletRequest("GET", "/geoserver/wms");
+        other.addHeader("Accept-Encoding", "gzip");
+        assertNull(compression.start(other));
+        assertEquals(1, compression.getSkipped());
+
+        // chunk by chunk
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < CAPABILITIES.length; i += 1000) {
+            out.write(encoder.encode(CAPABILITIES, i, Math.min(1000, CAPABILITIES.length - i)));
+        }
+        out.write(encoder.finish());
+        assertArrayEquals(CAPABILITIES,
+                IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+
+        ResponseCompression.release(request);
+        assertTrue(compression.start(other) != null);
+    }
+}
@@ -1,5 +1,7 @@
 package org.georchestra.security;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
@@ -7,11 +9,20 @@ import java.io.File;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.security.access.ConfigAttribute;
+import org.springframework.security.access.SecurityConfig;
+import org.springframework.security.web.FilterInvocation;
 import org.springframework.security.web.util.matcher.RequestMatcher;
 import org.springframework.util.ReflectionUtils;
 
@@ -41,4 +52,122 @@ public class SecurityProxyMetadataSourceTest {
         assertTrue("Expected 14 items, found " + map.keySet().size(), map.keySet().size() == 14);
     }
 
+    @org.junit.Rule
+    public TemporaryFolder datadir = new TemporaryFolder();
+
+    private static FilterInvocation invocation(String path, String query) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+        request.setServletPath(path);
+        request.setQueryString(query);
+        return new FilterInvocation(request, new MockHttpServletResponse(), new MockFilterChain());
+    }
+
+    /**
+     * Tests the rules one by one as the former implementation did.
+     */
+    private static Collection<ConfigAttribute> linearAttributes(SecurityProxyMetadataSource sp,
+            FilterInvocation invocation) {
+        Field rm = ReflectionUtils.findField(sp.getClass(), "requestMap");
+        rm.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        Map<RequestMatcher, Collection<ConfigAttribute>> map = (Map<RequestMatcher, Collection<ConfigAttribute>>) ReflectionUtils
+                .getField(rm, sp);
+        for (Map.Entry<RequestMatcher, Collection<ConfigAttribute>> entry : map.entrySet()) {
+            if (entry.getKey().matches(invocation.getRequest())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testSameAttributesAsLinearMatching() throws Exception {
+        Map<String, String> rules = new LinkedHashMap<>();
+        rules.put(".*\\?.*login.*", "ROLE_USER");
+        rules.put("/extractorapp/admin/.*", "ROLE_ADMINISTRATOR");
+        rules.put("/extractorapp/.*", "ROLE_EXTRACTORAPP");
+        rules.put("/console/(manager|private)/.*", "ROLE_SUPERUSER");
+        rules.put("/testPage", "IS_AUTHENTICATED_FULLY");
+        rules.put("/geoserver/ws(1|2)?/.*", "ROLE_WS");
+        rules.put(".*/ogcproxy/.*", "ROLE_NO_ONE");
+        rules.put("/mapfishapp/.*|/header/.*", "ROLE_APPS");
+        rules.put("/analytics/\\w+/.*", "ROLE_SUPERUSER");
+        rules.put(".*", "IS_AUTHENTICATED_ANONYMOUSLY");
+
+        SecurityProxyMetadataSource sp = new SecurityProxyMetadataSource();
+        sp.setRequestMap(rules);
+
+        String[][] requests = { { "/extractorapp/admin/jobs", null }, { "/extractorapp/admin/jobs", "login" },
+                { "/extractorapp/", null }, { "/extractorapp", null }, { "/console/manager/users", null },
+                { "/console/public/", null }, { "/testPage", null }, { "/testPage2", null },
+                { "/geoserver/ws1/wms", null }, { "/geoserver/ws/wms", null }, { "/geoserver/wms", "login" },
+                { "/mapfishapp/ogcproxy/x", null }, { "/mapfishapp/", null }, { "/header/", null },
+                { "/analytics/ws/x", null }, { "/analytics//x", null } };
+        for (String[] r : requests) {
+            for (int pass = 0; pass < 2; pass++) {
+                FilterInvocation invocation = invocation(r[0], r[1]);
+                assertSame(r[0] + "?" + r[1], linearAttributes(sp, invocation), sp.getAttributes(invocation));
+            }
+        }
+    }
+
+    @Test
+    public void testNoMatchingRule() throws Exception {
+        SecurityProxyMetadataSource sp = new SecurityProxyMetadataSource();
+        sp.setRequestMap(java.util.Collections.singletonMap("/geonetwork/.*", "ROLE_USER"));
+        assertEquals(null, sp.getAttributes(invocation("/geoserver/wms", null)));
+        assertEquals(null, sp.getAttributes(invocation("/geoserver/wms", null)));
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals("/testPage", SecurityRuleIndex.literalPrefix("/testPage"));
+        assertEquals("/extractorapp/", SecurityRuleIndex.literalPrefix("/extractorapp/.*"));
+        assertEquals("/geoserver/ws", SecurityRuleIndex.literalPrefix("/geoserver/ws(1|2)?/.*"));
+        assertEquals("/a", SecurityRuleIndex.literalPrefix("/ab?c"));
+        assertEquals("/ab", SecurityRuleIndex.literalPrefix("/ab+c"));
+        assertEquals("/a.b/", SecurityRuleIndex.literalPrefix("^/a\\.b/\\w"));
+        assertEquals("", SecurityRuleIndex.literalPrefix("/mapfishapp/.*|/header/.*"));
+        assertEquals("", SecurityRuleIndex.literalPrefix("(?i)/geoserver/.*"));
+        assertEquals("", SecurityRuleIndex.literalPrefix(".*\\?.*login.*"));
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        File spDatadir = datadir.newFolder("security-proxy");
+        File mappings = new File(spDatadir, "security-mappings.xml");
+        writeMappings(mappings, "ROLE_USER");
+        String previous = System.getProperty("georchestra.datadir");
+        System.setProperty("georchestra.datadir", datadir.getRoot().getAbsolutePath());
+        try {
+            SecurityProxyMetadataSource sp = new SecurityProxyMetadataSource();
+            sp.setReloadInterval(1);
+            sp.remap();
+            assertEquals(SecurityConfig.createList("ROLE_USER"), sp.getAttributes(invocation("/geonetwork/", null)));
+
+            writeMappings(mappings, "ROLE_ADMINISTRATOR");
+            mappings.setLastModified(mappings.lastModified() + 2000);
+            Thread.sleep(1100);
+            assertEquals(SecurityConfig.createList("ROLE_ADMINISTRATOR"),
+                    sp.getAttributes(invocation("/geonetwork/", null)));
+
+            // an invalid file does not replace the current rules
+            Files.write(mappings.toPath(), "<http>".getBytes(StandardCharsets.UTF_8));
+            mappings.setLastModified(mappings.lastModified() + 4000);
+            Thread.sleep(1100);
+            assertEquals(SecurityConfig.createList("ROLE_ADMINISTRATOR"),
+                    sp.getAttributes(invocation("/geonetwork/", null)));
+        } finally {
+            if (previous == null) {
+                System.clearProperty("georchestra.datadir");
+            } else {
+                System.setProperty("georchestra.datadir", previous);
+            }
+        }
+    }
+
+    private static void writeMappings(File mappings, String access) throws Exception {
+        String xml = "<http><intercept-url pattern=\"/geonetwork/.*\" access=\"" + access + "\" /></http>";
+        Files.write(mappings.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+    }
 }
@@ -0,0 +1,123 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class StreamingResponseConsumerTest {
+
+    private CompletableFuture<HttpResponse> future;
+    private StreamingResponseConsumer consumer;
+    private IOControl ioControl;
+
+    @Before
+    public void setUp() throws Exception {
+        future = new CompletableFuture<>();
+        consumer = new StreamingResponseConsumer(future, new ByteBufferPool(4, false, 8), 2, 1000);
+        ioControl = Mockito.mock(IOControl.class);
+
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new BasicHttpEntity());
+        consumer.responseReceived(response);
+    }
+
+    @Test
+    public void testResponseAvailableOnceHeadersReceived() throws Exception {
+        assertTrue(future.isDone());
+        assertEquals(200, future.get().getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        byte[] content = "0123456789abcdef".getBytes();
+        ArrayDecoder decoder = new ArrayDecoder(content);
+
+        // 2 chunks of 4 bytes reach the high watermark
+        consumer.consumeContent(decoder, ioControl);
+        Mockito.verify(ioControl).suspendInput();
+
+        // remaining content is received once the input has been requested again
+        HttpResponse response = future.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Thread writer = new Thread(() -> {
+            try {
+                response.getEntity().writeTo(out);
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        });
+        writer.start();
+
+        Mockito.verify(ioControl, Mockito.timeout(1000)).requestInput();
+        consumer.consumeContent(decoder, ioControl);
+        consumer.responseCompleted(new BasicHttpContext());
+        writer.join(1000);
+
+        assertArrayEquals(content, out.toByteArray());
+    }
+
+    @Test
+    public void testFailureAfterHeaders() throws Exception {
+        consumer.consumeContent(new ArrayDecoder("abc".getBytes()), ioControl);
+        consumer.failed(new IOException("connection reset"));
+
+        try {
+            future.get().getEntity().writeTo(new ByteArrayOutputStream());
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals("connection reset", e.getCause().getMessage());
+        }
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void testFailureBeforeHeaders() throws Exception {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        StreamingResponseConsumer consumer = new StreamingResponseConsumer(future, new ByteBufferPool(4, false, 8), 2,
+                1000);
+        consumer.failed(new IOException("connection refused"));
+        future.get();
+    }
+
+    private static class ArrayDecoder implements ContentDecoder {
+        private final ByteBuffer content;
+
+        ArrayDecoder(byte[] content) {
+            this.content = ByteBuffer.wrap(content);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!content.hasRemaining()) {
+                return -1;
+            }
+            int length = Math.min(dst.remaining(), content.remaining());
+            for (int i = 0; i < length; i++) {
+                dst.put(content.get());
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return !content.hasRemaining();
+        }
+    }
+}
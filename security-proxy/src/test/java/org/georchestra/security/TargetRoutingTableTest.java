@@ -0,0 +1,59 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TargetRoutingTableTest {
+
+    private TargetRoutingTable table;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, String> targets = new HashMap<>();
+        targets.put("geoserver", "http://localhost:8080/geoserver/");
+        targets.put("mapfishapp", "http://localhost:8080/mapfishapp");
+        targets.put("header", "http://localhost:8080/apps/header/");
+        table = TargetRoutingTable.build(targets);
+    }
+
+    @Test
+    public void testFindRoute() {
+        assertEquals("geoserver", table.findRoute("/geoserver/wms").name);
+        assertEquals("mapfishapp", table.findRoute("/mapfishapp").name);
+        assertEquals("http://localhost:8080/geoserver", table.findRoute("/geoserver/").base);
+        assertEquals("/apps/header", table.findRoute("/header/index.html").basePath);
+        assertNull(table.findRoute("/unknown/wms"));
+        assertNull(table.findRoute("//geoserver/wms"));
+        assertEquals("geoserver", table.findMatchingRoute("//geoserver/wms").name);
+        assertNull(table.findMatchingRoute("/"));
+    }
+
+    @Test
+    public void testTargetPath() {
+        assertEquals("/", TargetRoutingTable.targetPath("/geoserver"));
+        assertEquals("/", TargetRoutingTable.targetPath("/geoserver/"));
+        assertEquals("/wms", TargetRoutingTable.targetPath("/geoserver/wms"));
+        assertEquals("/ows/", TargetRoutingTable.targetPath("/geoserver/ows//"));
+        assertEquals("/a//b", TargetRoutingTable.targetPath("/geoserver/a//b"));
+    }
+
+    @Test
+    public void testIsProtected() {
+        assertTrue(table.isProtected("/geoserver"));
+        assertTrue(table.isProtected("/geoserver/wms"));
+        assertTrue(table.isProtected("/apps/header/"));
+        assertTrue(table.isProtected("//mapfishapp//x"));
+        assertFalse(table.isProtected("/apps"));
+        assertFalse(table.isProtected("/geoserver2/wms"));
+        assertFalse(table.isProtected("/"));
+        assertFalse(TargetRoutingTable.EMPTY.isProtected("/geoserver"));
+    }
+}